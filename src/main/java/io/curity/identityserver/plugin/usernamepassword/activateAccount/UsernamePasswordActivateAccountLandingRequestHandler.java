@@ -17,14 +17,13 @@
 package io.curity.identityserver.plugin.usernamepassword.activateAccount;
 
 import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.usernamepassword.runtime.AuthenticatorRuntime;
 import io.curity.identityserver.plugin.usernamepassword.utils.ViewModelReservedKeys;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.curity.identityserver.sdk.authentication.AnonymousRequestHandler;
 import se.curity.identityserver.sdk.http.HttpStatus;
-import se.curity.identityserver.sdk.service.AccountManager;
 import se.curity.identityserver.sdk.service.ExceptionFactory;
-import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
 import se.curity.identityserver.sdk.web.Request;
 import se.curity.identityserver.sdk.web.Response;
 import static se.curity.identityserver.sdk.web.ResponseModel.templateResponseModel;
@@ -35,15 +34,14 @@ public class UsernamePasswordActivateAccountLandingRequestHandler implements Ano
 {
     private static final Logger _logger = LoggerFactory.getLogger(UsernamePasswordActivateAccountLandingRequestHandler.class);
 
-    private final AccountManager _accountManager;
-    private final AuthenticatorInformationProvider _authenticatorInformationProvider;
     private final ExceptionFactory _exceptionFactory;
+    private final AuthenticatorRuntime _runtime;
 
-    public UsernamePasswordActivateAccountLandingRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration)
+    public UsernamePasswordActivateAccountLandingRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration,
+                                                                AuthenticatorRuntime runtime)
     {
-        _accountManager = configuration.getAccountManager();
-        _authenticatorInformationProvider = configuration.getAuthenticatorInformationProvider();
         _exceptionFactory = configuration.getExceptionFactory();
+        _runtime = runtime;
     }
 
     @Override
@@ -62,9 +60,7 @@ public class UsernamePasswordActivateAccountLandingRequestHandler implements Ano
     {
         var model = requestModel.getGetRequestModel();
 
-        var destinationUrl = String.format("%s/%s",
-                _authenticatorInformationProvider.getFullyQualifiedAnonymousUri(),
-                _accountManager.isSetPasswordAfterActivation() ? "activate-and-set" : "activate");
+        var destinationUrl = _runtime.getViewModel().getActivationLandingUrl();
 
         var data = new HashMap<String, Object>(2);
         data.put(ViewModelReservedKeys.ACTION, destinationUrl);
@@ -17,6 +17,7 @@
 package io.curity.identityserver.plugin.usernamepassword.activateAccount;
 
 import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.usernamepassword.runtime.AuthenticatorRuntime;
 import io.curity.identityserver.plugin.usernamepassword.utils.ViewModelReservedKeys;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,7 +27,6 @@ import se.curity.identityserver.sdk.authentication.ActivationResult;
 import se.curity.identityserver.sdk.authentication.AnonymousRequestHandler;
 import se.curity.identityserver.sdk.http.HttpStatus;
 import se.curity.identityserver.sdk.service.AccountManager;
-import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
 import se.curity.identityserver.sdk.web.Request;
 import se.curity.identityserver.sdk.web.Response;
 import se.curity.identityserver.sdk.web.alerts.ErrorMessage;
@@ -42,12 +42,13 @@ public class UsernamePasswordActivateAccountRequestHandler
     private static final Logger _logger = LoggerFactory.getLogger(UsernamePasswordActivateAccountRequestHandler.class);
 
     private final AccountManager _accountManager;
-    private final AuthenticatorInformationProvider _authenticatorInformationProvider;
+    private final AuthenticatorRuntime _runtime;
 
-    public UsernamePasswordActivateAccountRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration)
+    public UsernamePasswordActivateAccountRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration,
+                                                     AuthenticatorRuntime runtime)
     {
         _accountManager = configuration.getAccountManager();
-        _authenticatorInformationProvider = configuration.getAuthenticatorInformationProvider();
+        _runtime = runtime;
     }
 
     @Override
@@ -71,8 +72,7 @@ public class UsernamePasswordActivateAccountRequestHandler
                     "account-activation/request-new-activation"), HttpStatus.BAD_REQUEST);
         }
 
-        var activateAccountUrl = String.format("%s/activate",
-                _authenticatorInformationProvider.getFullyQualifiedAnonymousUri());
+        var activateAccountUrl = _runtime.getViewModel().getActivateUrl();
         response.putViewData(ViewModelReservedKeys.ACTIVATION_ENDPOINT, activateAccountUrl, Response.ResponseModelScope.ANY);
 
         return new ActivateAccountRequestModel(request);
@@ -88,6 +88,7 @@ public class UsernamePasswordActivateAccountRequestHandler
 
         if (activationResult.isDone())
         {
+            _runtime.onAccountUsable(activationResult.getUsername());
             response.setResponseModel(activationResult.getModel(), HttpStatus.OK);
         }
         else
@@ -106,16 +107,16 @@ public class UsernamePasswordActivateAccountRequestHandler
         var model = requestModel.getPostRequestModel();
 
         @Nullable AccountAttributes account = null;
+        @Nullable String emailAddress = _runtime.getIdentifierCanonicalizer().email(model.getEmail());
 
-        if (model.getEmail() != null)
+        if (emailAddress != null)
         {
-            account = _accountManager.getByEmail(model.getEmail());
+            account = _runtime.getAccountLookup().getByEmail(emailAddress);
         }
 
         if (account != null)
         {
-            String activateAccountUrl = String.format("%s/activate-account",
-                    _authenticatorInformationProvider.getFullyQualifiedAnonymousUri());
+            String activateAccountUrl = _runtime.getViewModel().getActivateAccountUrl();
             var data = new HashMap<String, Object>(1);
             data.put(ViewModelReservedKeys.ACTIVATION_ENDPOINT, activateAccountUrl);
 
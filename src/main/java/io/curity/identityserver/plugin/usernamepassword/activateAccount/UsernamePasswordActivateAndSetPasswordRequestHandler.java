@@ -17,6 +17,7 @@
 package io.curity.identityserver.plugin.usernamepassword.activateAccount;
 
 import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.usernamepassword.runtime.AuthenticatorRuntime;
 import io.curity.identityserver.plugin.usernamepassword.utils.CredentialOperations;
 import io.curity.identityserver.plugin.usernamepassword.utils.ViewModelReservedKeys;
 import org.slf4j.Logger;
@@ -30,7 +31,6 @@ import se.curity.identityserver.sdk.authentication.AnonymousRequestHandler;
 import se.curity.identityserver.sdk.http.HttpStatus;
 import se.curity.identityserver.sdk.service.AccountManager;
 import se.curity.identityserver.sdk.service.SessionManager;
-import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
 import se.curity.identityserver.sdk.service.credential.CredentialUpdateResult;
 import se.curity.identityserver.sdk.service.credential.UserCredentialManager;
 import se.curity.identityserver.sdk.web.Request;
@@ -51,14 +51,15 @@ public class UsernamePasswordActivateAndSetPasswordRequestHandler
     private final AccountManager _accountManager;
     private final SessionManager _sessionManager;
     private final UserCredentialManager _userCredentialManager;
-    private final AuthenticatorInformationProvider _authenticatorInformationProvider;
+    private final AuthenticatorRuntime _runtime;
 
-    public UsernamePasswordActivateAndSetPasswordRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration)
+    public UsernamePasswordActivateAndSetPasswordRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration,
+                                                            AuthenticatorRuntime runtime)
     {
         _accountManager = configuration.getAccountManager();
         _sessionManager = configuration.getSessionManager();
         _userCredentialManager = configuration.getCredentialManager();
-        _authenticatorInformationProvider = configuration.getAuthenticatorInformationProvider();
+        _runtime = runtime;
     }
 
     @Override
@@ -94,6 +95,7 @@ public class UsernamePasswordActivateAndSetPasswordRequestHandler
 
         if (activationResult.isDone())
         {
+            _runtime.onAccountUsable(activationResult.getUsername());
             response.setResponseModel(activationResult.getModel(), HttpStatus.OK);
             _sessionManager.put(Attribute.of(USER_TO_SET_PASSWORD_FOR, activationResult.getUsername()));
         }
@@ -102,8 +104,7 @@ public class UsernamePasswordActivateAndSetPasswordRequestHandler
             response.setHttpStatus(HttpStatus.BAD_REQUEST);
             response.addErrorMessage(ErrorMessage.withMessage("validation.error.token.invalid"));
 
-            var activateAccountUrl = String.format("%s/activate",
-                    _authenticatorInformationProvider.getFullyQualifiedAnonymousUri());
+            var activateAccountUrl = _runtime.getViewModel().getActivateUrl();
             response.putViewData(ViewModelReservedKeys.ACTIVATION_ENDPOINT, activateAccountUrl, HttpStatus.BAD_REQUEST);
         }
 
@@ -128,6 +129,7 @@ public class UsernamePasswordActivateAndSetPasswordRequestHandler
                 return null;
             }
 
+            _runtime.onPasswordChanged(account.getUserName());
             _sessionManager.remove(USER_TO_SET_PASSWORD_FOR);
             return null;
         }
@@ -146,7 +148,7 @@ public class UsernamePasswordActivateAndSetPasswordRequestHandler
             Object value = userAttributes.getValue();
             if (value != null)
             {
-                user = _accountManager.getByUserName(value.toString());
+                user = _runtime.getAccountLookup().getByUserName(value.toString());
             }
         }
 
@@ -155,8 +157,7 @@ public class UsernamePasswordActivateAndSetPasswordRequestHandler
 
     private void setNoSessionResponse(ActivateAndSetPasswordRequestModel.Post requestModel, Response response)
     {
-        var activateAccountUrl = String.format("%s/activate",
-                _authenticatorInformationProvider.getFullyQualifiedAnonymousUri());
+        var activateAccountUrl = _runtime.getViewModel().getActivateUrl();
 
         var data = new HashMap<String, Object>(1);
         data.put(ViewModelReservedKeys.ACTIVATION_ENDPOINT, activateAccountUrl);
@@ -17,6 +17,7 @@
 package io.curity.identityserver.plugin.usernamepassword.authentication;
 
 import com.google.common.html.HtmlEscapers;
+import io.curity.identityserver.plugin.usernamepassword.utils.PluginCookies;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.Valid;
 import se.curity.identityserver.sdk.Nullable;
@@ -51,6 +52,10 @@ public final class RequestModel
     {
         static final String USERNAME_PARAM = "userName";
         static final String PASSWORD_PARAM = "password";
+        static final String PROOF_OF_WORK_CHALLENGE_PARAM = "proofOfWorkChallenge";
+        static final String PROOF_OF_WORK_NONCE_PARAM = "proofOfWorkNonce";
+        static final String DEVICE_COOKIE = "upa-device";
+        static final String REAUTHENTICATION_COOKIE = "upa-reauthentication";
 
         @NotBlank(message = "validation.error.accountId.required")
         private final String _userName;
@@ -58,10 +63,29 @@ public final class RequestModel
         @NotBlank(message = "validation.error.password.required")
         private final String _password;
 
+        private final String _clientIpAddress;
+
+        @Nullable
+        private final String _proofOfWorkChallenge;
+
+        @Nullable
+        private final String _proofOfWorkNonce;
+
+        @Nullable
+        private final String _deviceId;
+
+        @Nullable
+        private final String _reauthenticationToken;
+
         Post(Request request)
         {
             _userName = request.getFormParameterValueOrError(USERNAME_PARAM);
             _password = request.getFormParameterValueOrError(PASSWORD_PARAM);
+            _clientIpAddress = request.getClientIpAddress();
+            _proofOfWorkChallenge = request.getFormParameterValueOrError(PROOF_OF_WORK_CHALLENGE_PARAM);
+            _proofOfWorkNonce = request.getFormParameterValueOrError(PROOF_OF_WORK_NONCE_PARAM);
+            _deviceId = PluginCookies.get(request, DEVICE_COOKIE);
+            _reauthenticationToken = PluginCookies.get(request, REAUTHENTICATION_COOKIE);
         }
 
         String getUserName()
@@ -76,6 +100,35 @@ public final class RequestModel
             return _password;
         }
 
+        String getClientIpAddress()
+        {
+            return _clientIpAddress;
+        }
+
+        @Nullable
+        String getProofOfWorkChallenge()
+        {
+            return _proofOfWorkChallenge;
+        }
+
+        @Nullable
+        String getProofOfWorkNonce()
+        {
+            return _proofOfWorkNonce;
+        }
+
+        @Nullable
+        String getDeviceId()
+        {
+            return _deviceId;
+        }
+
+        @Nullable
+        String getReauthenticationToken()
+        {
+            return _reauthenticationToken;
+        }
+
         Map<String, Object> dataOnError()
         {
             var data = new HashMap<String, Object>(1);
@@ -18,26 +18,44 @@ package io.curity.identityserver.plugin.usernamepassword.authentication;
 
 import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
 import io.curity.identityserver.plugin.usernamepassword.descriptor.UsernamePasswordAuthenticatorPluginDescriptor;
+import io.curity.identityserver.plugin.usernamepassword.lookup.AccountPrefetcher;
+import io.curity.identityserver.plugin.usernamepassword.protection.AccountStateTable.AccountState;
+import io.curity.identityserver.plugin.usernamepassword.protection.AdaptiveConcurrencyLimiter;
+import io.curity.identityserver.plugin.usernamepassword.protection.ProofOfWork;
+import io.curity.identityserver.plugin.usernamepassword.reauthentication.ReauthenticationTokens;
+import io.curity.identityserver.plugin.usernamepassword.runtime.AuthenticatorRuntime;
+import io.curity.identityserver.plugin.usernamepassword.runtime.Deadline;
+import io.curity.identityserver.plugin.usernamepassword.runtime.DeadlineExceededException;
 import io.curity.identityserver.plugin.usernamepassword.utils.CredentialOperations;
+import io.curity.identityserver.plugin.usernamepassword.utils.PluginCookies;
+import io.curity.identityserver.plugin.usernamepassword.utils.RetryableErrors;
 import io.curity.identityserver.plugin.usernamepassword.utils.ViewModelReservedKeys;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+import se.curity.identityserver.sdk.attribute.AuthenticationAttributes;
 import se.curity.identityserver.sdk.attribute.SubjectAttributes;
 import se.curity.identityserver.sdk.authentication.AuthenticationResult;
 import se.curity.identityserver.sdk.authentication.AuthenticatorRequestHandler;
 import se.curity.identityserver.sdk.http.HttpStatus;
-import se.curity.identityserver.sdk.service.AccountManager;
 import se.curity.identityserver.sdk.service.UserPreferenceManager;
+import se.curity.identityserver.sdk.service.credential.CredentialOperationDetails;
 import se.curity.identityserver.sdk.service.credential.CredentialVerificationResult;
 import se.curity.identityserver.sdk.service.credential.UserCredentialManager;
+import se.curity.identityserver.sdk.service.credential.results.PasswordLockedOut;
+import se.curity.identityserver.sdk.service.credential.results.SubjectCredentialsNotFound;
 import se.curity.identityserver.sdk.web.Request;
 import se.curity.identityserver.sdk.web.Response;
 import se.curity.identityserver.sdk.web.alerts.ErrorMessage;
 
+import java.time.Duration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 
+import static java.util.Collections.emptyList;
 import static se.curity.identityserver.sdk.web.Response.ResponseModelScope.NOT_FAILURE;
 import static se.curity.identityserver.sdk.web.ResponseModel.templateResponseModel;
 
@@ -47,10 +65,12 @@ import static se.curity.identityserver.sdk.web.ResponseModel.templateResponseMod
 public final class UsernamePasswordAuthenticationRequestHandler implements AuthenticatorRequestHandler<RequestModel>
 {
     private static final Logger _logger = LoggerFactory.getLogger(UsernamePasswordAuthenticationRequestHandler.class);
+    private static final Duration OVERLOAD_RETRY_AFTER = Duration.ofSeconds(2);
+    private static final Duration DEVICE_ID_LIFETIME = Duration.ofDays(365);
 
-    private final AccountManager _accountManager;
     private final UserCredentialManager _userCredentialManager;
     private final UserPreferenceManager _userPreferenceManager;
+    private final AuthenticatorRuntime _runtime;
 
     /**
      * Create a new instance of UsernamePasswordAuthenticatorRequestHandler using the configuration for this plugin.
@@ -59,23 +79,41 @@ public final class UsernamePasswordAuthenticationRequestHandler implements Authe
      * plugin descriptor at {@link UsernamePasswordAuthenticatorPluginDescriptor#getConfigurationType()}.
      *
      * @param configuration for the Username/Password authenticator plugin
+     * @param runtime       the state shared by all requests to this authenticator
      */
 
-    public UsernamePasswordAuthenticationRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration)
+    public UsernamePasswordAuthenticationRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration,
+                                                        AuthenticatorRuntime runtime)
     {
-        _accountManager = configuration.getAccountManager();
         _userCredentialManager = configuration.getCredentialManager();
         _userPreferenceManager = configuration.getUserPreferenceManager();
+        _runtime = runtime;
     }
 
     @Override
     public RequestModel preProcess(Request request, Response response)
     {
-        var data = new HashMap<String, Object>(2);
-        data.put(ViewModelReservedKeys.USERNAME, _userPreferenceManager.getUsername());
+        _runtime.onRequest();
+        _runtime.checkClientAddress(request);
 
-        boolean isRegistrationEnabled = (_accountManager != null && _accountManager.supportsRegistration());
-        data.put(ViewModelReservedKeys.REGISTRATION_ENABLED, isRegistrationEnabled);
+        var data = new HashMap<String, Object>(4);
+        @Nullable String rememberedUsername = _userPreferenceManager.getUsername();
+        data.put(ViewModelReservedKeys.USERNAME, rememberedUsername);
+
+        // the user is likely to log in within seconds, so their account is looked up while they type
+        if (request.isGetRequest())
+        {
+            _runtime.getAccountPrefetcher().ifPresent(prefetcher ->
+                    prefetcher.prefetch(_runtime.getIdentifierCanonicalizer().username(rememberedUsername)));
+        }
+
+        data.put(ViewModelReservedKeys.REGISTRATION_ENABLED, _runtime.getViewModel().isRegistrationEnabled());
+
+        // a new challenge is needed whenever the form is shown, since each can only be used once
+        _runtime.getProofOfWork().flatMap(ProofOfWork::issue).ifPresent(challenge -> {
+            data.put(ViewModelReservedKeys.PROOF_OF_WORK_CHALLENGE, challenge.value());
+            data.put(ViewModelReservedKeys.PROOF_OF_WORK_DIFFICULTY, String.valueOf(challenge.difficulty()));
+        });
 
         // set the template and model for responses on the NOT_FAILURE scope
         response.setResponseModel(templateResponseModel(
@@ -86,6 +124,12 @@ public final class UsernamePasswordAuthenticationRequestHandler implements Authe
         response.setResponseModel(templateResponseModel(data,
                 "authenticate/get"), HttpStatus.BAD_REQUEST);
 
+        // when an attempt is refused to protect the server, the form is shown again so that the user can retry
+        response.setResponseModel(templateResponseModel(data,
+                "authenticate/get"), HttpStatus.TOO_MANY_REQUESTS);
+        response.setResponseModel(templateResponseModel(data,
+                "authenticate/get"), HttpStatus.SERVICE_UNAVAILABLE);
+
         return new RequestModel(request);
     }
 
@@ -99,31 +143,280 @@ public final class UsernamePasswordAuthenticationRequestHandler implements Authe
     public Optional<AuthenticationResult> post(RequestModel requestModel, Response response)
     {
         var model = requestModel.getPostRequestModel();
+        Deadline deadline = _runtime.newDeadline("authentication");
+
+        try
+        {
+            return authenticate(model, deadline, response);
+        }
+        catch (DeadlineExceededException e)
+        {
+            _logger.debug("Login was aborted: {}", e.getMessage());
+            RetryableErrors.deadlineExceeded(response);
+            response.putViewData(ViewModelReservedKeys.FORM_POST_BACK, model.dataOnError(), Response.ResponseModelScope.FAILURE);
+            return Optional.empty();
+        }
+    }
 
+    private Optional<AuthenticationResult> authenticate(RequestModel.Post model, Deadline deadline, Response response)
+    {
         Optional<AuthenticationResult> result = Optional.empty();
-        var subjectAttributes = SubjectAttributes.of(model.getUserName());
+        // every protection and data source sees the same form of what the user typed
+        String loginIdentifier = _runtime.getIdentifierCanonicalizer().username(model.getUserName());
+
+        var loginRateLimiter = _runtime.getLoginRateLimiter();
+        if (loginRateLimiter.isPresent())
+        {
+            Duration retryAfter = loginRateLimiter.get().tryAcquire(model.getClientIpAddress(), loginIdentifier);
+            if (!retryAfter.isZero())
+            {
+                _logger.debug("Login attempt was rate limited, retry after = {}", retryAfter);
+                RetryableErrors.tooManyRequests(response, retryAfter);
+                response.putViewData(ViewModelReservedKeys.FORM_POST_BACK, model.dataOnError(), Response.ResponseModelScope.FAILURE);
+                return result;
+            }
+        }
+
+        var proofOfWork = _runtime.getProofOfWork();
+        if (proofOfWork.isPresent() && proofOfWork.get().getCurrentDifficulty() > 0 &&
+                !proofOfWork.get().verify(model.getProofOfWorkChallenge(), model.getProofOfWorkNonce()))
+        {
+            _logger.debug("Login was refused, since no valid proof of work was provided");
+            RetryableErrors.serviceUnavailable(response, OVERLOAD_RETRY_AFTER);
+            response.putViewData(ViewModelReservedKeys.FORM_POST_BACK, model.dataOnError(), Response.ResponseModelScope.FAILURE);
+            return result;
+        }
+
+        // the state is kept by username, which is checked here when the user entered it and again once resolved
+        if (isRefusedByAccountState(response, model, loginIdentifier))
+        {
+            return result;
+        }
+
+        var reauthenticationTokens = _runtime.getReauthenticationTokens();
+        if (reauthenticationTokens.isPresent())
+        {
+            Optional<AuthenticationAttributes> attributes = reauthenticationTokens.get().verify(
+                    model.getReauthenticationToken(), model.getDeviceId(), loginIdentifier, model.getPassword());
+            if (attributes.isPresent())
+            {
+                _logger.debug("The user was authenticated with a re-authentication token, without calling the data source");
+                _userPreferenceManager.saveUsername(loginIdentifier);
+                return Optional.of(new AuthenticationResult(attributes.get()));
+            }
+        }
+
+        var passwordSprayDetector = _runtime.getPasswordSprayDetector();
+        if (passwordSprayDetector.isPresent() && passwordSprayDetector.get().isSprayed(model.getPassword()))
+        {
+            _logger.debug("Login was refused without verification, since the password is being sprayed");
+            // whether the password is correct is not known, so the user is told why it was refused instead
+            response.addErrorMessage(ErrorMessage.withMessage("error.password-sprayed"));
+            response.putViewData(ViewModelReservedKeys.FORM_POST_BACK, model.dataOnError(),
+                    Response.ResponseModelScope.FAILURE);
+            return result;
+        }
+
+        @Nullable AdaptiveConcurrencyLimiter.Permit permit = null;
+        var concurrencyLimiter = _runtime.getConcurrencyLimiter();
+        if (concurrencyLimiter.isPresent())
+        {
+            permit = concurrencyLimiter.get().tryAcquire().orElse(null);
+            if (permit == null)
+            {
+                _logger.debug("Password verification was shed because the concurrency limit was reached");
+                RetryableErrors.serviceUnavailable(response, OVERLOAD_RETRY_AFTER);
+                response.putViewData(ViewModelReservedKeys.FORM_POST_BACK, model.dataOnError(), Response.ResponseModelScope.FAILURE);
+                return result;
+            }
+        }
+
+        String username;
+        @Nullable CredentialVerificationResult credentialVerificationResult;
+        try
+        {
+            // the account of a remembered user was looked up while the form was shown, and needs no resolving
+            @Nullable AccountPrefetcher.Prefetched prefetched = _runtime.getAccountPrefetcher()
+                    .flatMap(prefetcher -> prefetcher.take(loginIdentifier))
+                    .orElse(null);
+            if (prefetched != null && prefetched.account() != null)
+            {
+                username = prefetched.account().getUserName();
+            }
+            else
+            {
+                // users may enter their email address instead of their username
+                deadline.check("resolveIdentifier");
+                username = _runtime.getAccountResolver()
+                        .map(resolver -> resolver.resolveLoginIdentifier(loginIdentifier, deadline))
+                        .map(AccountAttributes::getUserName)
+                        .orElse(loginIdentifier);
+            }
+
+            if (!username.equals(loginIdentifier) && isRefusedByAccountState(response, model, username))
+            {
+                if (permit != null)
+                {
+                    permit.abandon();
+                }
+                return result;
+            }
+
+            // that no account has the identifier says nothing about the one it resolved to
+            boolean isPrefetchedMissing = prefetched != null && !prefetched.exists()
+                    && username.equals(loginIdentifier);
+            credentialVerificationResult = verify(model, username, isPrefetchedMissing, deadline);
+        }
+        catch (RuntimeException e)
+        {
+            if (permit != null)
+            {
+                permit.abandon();
+            }
+            throw e;
+        }
+
+        if (permit != null)
+        {
+            permit.release();
+        }
+
+        if (credentialVerificationResult == null)
+        {
+            passwordSprayDetector.ifPresent(detector -> detector.recordFailure(model.getPassword()));
+            onIncorrectCredentials(response, model, emptyList());
+            return result;
+        }
 
-        var credentialVerificationResult = _userCredentialManager.verify(subjectAttributes, model.getPassword());
         switch (credentialVerificationResult)
         {
             case CredentialVerificationResult.Accepted accepted ->
             {
                 var attributes = accepted.getAuthenticationAttributes();
                 result = Optional.of(new AuthenticationResult(attributes));
-                _userPreferenceManager.saveUsername(model.getUserName());
+                // the user is authenticated, which running out of time now must not undo
+                _userPreferenceManager.saveUsername(loginIdentifier);
+                reauthenticationTokens.ifPresent(tokens ->
+                        issueReauthenticationToken(tokens, response, model, loginIdentifier, username, attributes));
             }
 
             case CredentialVerificationResult.Rejected rejected ->
             {
-                response.addErrorMessage(ErrorMessage.withMessage("validation.error.incorrect.credentials"));
-                CredentialOperations.onCredentialUpdateRejected(response, rejected.getDetails());
-                response.putViewData(ViewModelReservedKeys.FORM_POST_BACK, model.dataOnError(), Response.ResponseModelScope.FAILURE);
+                if (rejected.getDetails().stream().anyMatch(PasswordLockedOut.class::isInstance))
+                {
+                    _runtime.onLockedOut(username);
+                }
+                else
+                {
+                    passwordSprayDetector.ifPresent(detector -> detector.recordFailure(model.getPassword()));
+                }
+                onIncorrectCredentials(response, model, rejected.getDetails());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Verify the credentials against the data source, unless the username is known not to exist.
+     *
+     * @param isPrefetchedMissing whether a prefetch found that no account has the username
+     * @return the result of the verification, or null if the username does not exist
+     */
+    @Nullable
+    private CredentialVerificationResult verify(RequestModel.Post model, String username, boolean isPrefetchedMissing,
+                                                Deadline deadline)
+    {
+        var knownUsernameFilter = _runtime.getKnownUsernameFilter();
+        var decoyPasswordHasher = _runtime.getDecoyPasswordHasher();
+
+        // an account missing from the main store may still be migrated from the legacy one
+        boolean mayBeMigrated = _runtime.getCredentialMigrator().isPresent();
+        boolean isUnknown = !mayBeMigrated && (isPrefetchedMissing || knownUsernameFilter.isPresent() &&
+                !knownUsernameFilter.get().mightExist(username));
+
+        if (isUnknown && decoyPasswordHasher.isPresent())
+        {
+            // spend the time a verification would take, so that the response does not reveal the miss
+            _logger.trace("The username is known not to exist, so the data source is not called");
+            decoyPasswordHasher.get().hash(model.getPassword());
+            return null;
+        }
+
+        deadline.check("verify");
+        long startedAt = System.nanoTime();
+        var subject = SubjectAttributes.of(username);
+        var result = _runtime.getMultiStoreCredentialVerifier()
+                .map(verifier -> verifier.verify(subject, model.getPassword()))
+                .orElseGet(() -> _userCredentialManager.verify(subject, model.getPassword()));
+        var latency = Duration.ofNanos(System.nanoTime() - startedAt);
+
+        decoyPasswordHasher.ifPresent(hasher -> hasher.recordVerification(latency));
+        _runtime.getShadowVerifier().ifPresent(verifier ->
+                verifier.compare(subject, model.getPassword(), result, latency));
+
+        var credentialMigrator = _runtime.getCredentialMigrator();
+        if (credentialMigrator.isPresent() && result instanceof CredentialVerificationResult.Rejected rejected &&
+                rejected.getDetails().stream().anyMatch(SubjectCredentialsNotFound.class::isInstance))
+        {
+            deadline.check("migrate");
+            var legacyLogin = credentialMigrator.get().verifyAndMigrate(username, model.getPassword());
+            if (legacyLogin.isPresent())
+            {
+                @Nullable AccountAttributes createdAccount = legacyLogin.get().createdAccount();
+                if (createdAccount != null)
+                {
+                    _runtime.onAccountCreated(createdAccount.getUserName(), AccountAttributes.emailFrom(createdAccount));
+                }
+                return legacyLogin.get().result();
             }
         }
 
         return result;
     }
 
+    private static void issueReauthenticationToken(ReauthenticationTokens tokens, Response response,
+                                                   RequestModel.Post model, String loginIdentifier, String username,
+                                                   AuthenticationAttributes attributes)
+    {
+        @Nullable String deviceId = model.getDeviceId();
+        if (deviceId == null)
+        {
+            deviceId = tokens.newDeviceId();
+            PluginCookies.set(response, RequestModel.Post.DEVICE_COOKIE, deviceId, DEVICE_ID_LIFETIME);
+        }
+
+        PluginCookies.set(response, RequestModel.Post.REAUTHENTICATION_COOKIE,
+                tokens.issue(loginIdentifier, username, attributes, deviceId, model.getPassword()), tokens.getLifetime());
+    }
+
+    private boolean isRefusedByAccountState(Response response, RequestModel.Post model, String username)
+    {
+        var accountState = _runtime.getAccountStateTable()
+                .map(table -> table.get(username))
+                .orElse(AccountState.NONE);
+        if (accountState == AccountState.NONE)
+        {
+            return false;
+        }
+
+        _logger.debug("Login was refused without verification, since the account state is {}", accountState);
+        onIncorrectCredentials(response, model, emptyList());
+        if (accountState == AccountState.LOCKED_OUT)
+        {
+            response.addErrorMessage(ErrorMessage.withMessage("error.too-many-attempts"));
+        }
+        return true;
+    }
+
+    private void onIncorrectCredentials(Response response, RequestModel.Post model,
+                                        List<? extends CredentialOperationDetails.Rejected> details)
+    {
+        response.addErrorMessage(ErrorMessage.withMessage("validation.error.incorrect.credentials"));
+        CredentialOperations.onCredentialUpdateRejected(response, details);
+        response.putViewData(ViewModelReservedKeys.FORM_POST_BACK, model.dataOnError(), Response.ResponseModelScope.FAILURE);
+    }
+
     @Override
     public void onRequestModelValidationFailure(Request request, Response response, Set<ErrorMessage> errorMessages)
     {
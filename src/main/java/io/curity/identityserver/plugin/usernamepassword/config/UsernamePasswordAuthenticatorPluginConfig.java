@@ -17,6 +17,9 @@
 package io.curity.identityserver.plugin.usernamepassword.config;
 
 import se.curity.identityserver.sdk.config.Configuration;
+import se.curity.identityserver.sdk.config.annotation.DefaultBoolean;
+import se.curity.identityserver.sdk.config.annotation.DefaultInteger;
+import se.curity.identityserver.sdk.config.annotation.DefaultString;
 import se.curity.identityserver.sdk.config.annotation.Description;
 import se.curity.identityserver.sdk.service.AccountManager;
 import se.curity.identityserver.sdk.service.EmailSender;
@@ -27,6 +30,7 @@ import se.curity.identityserver.sdk.service.UserPreferenceManager;
 import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
 import se.curity.identityserver.sdk.service.credential.UserCredentialManager;
 
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -53,4 +57,424 @@ public interface UsernamePasswordAuthenticatorPluginConfig extends Configuration
     SessionManager getSessionManager();
 
     ExceptionFactory getExceptionFactory();
+
+    @Description("When configured, requests from client addresses in a list of denied ranges are refused " +
+            "before any data source is called")
+    Optional<AddressFilterSettings> getAddressFilter();
+
+    @Description("When configured, each request has a time budget, after which it makes no more calls to " +
+            "data sources, and is answered with a retryable error")
+    Optional<RequestDeadlineSettings> getRequestDeadline();
+
+    @Description("When configured, password verifications run under an adaptive concurrency limit, " +
+            "and requests over the limit are refused instead of queued")
+    Optional<ConcurrencyLimitSettings> getConcurrencyLimit();
+
+    @Description("When configured, login attempts are rate limited per client address, " +
+            "and per client address and username, before any password is verified")
+    Optional<RateLimitSettings> getRateLimit();
+
+    @Description("When configured, logins for usernames that are known not to exist are rejected " +
+            "without calling the credential data source")
+    Optional<KnownUsernameFilterSettings> getKnownUsernameFilter();
+
+    @Description("The share, in percent, of the time of a password verification that is spent hashing rather " +
+            "than waiting for the data source. Logins that are rejected without a verification, because the " +
+            "account is known not to exist, hash for that share of the time and wait for the rest")
+    @DefaultInteger(50)
+    int getDecoyHashingPercent();
+
+    @Description("When configured, accounts that are locked out or awaiting activation are remembered, " +
+            "so that further logins to them are refused without calling the credential data source")
+    Optional<AccountStateCacheSettings> getAccountStateCache();
+
+    @Description("When configured, passwords that are rejected for many different logins are recognized as " +
+            "password spraying, and refused without calling the credential data source")
+    Optional<PasswordSprayDetectionSettings> getPasswordSprayDetection();
+
+    @Description("When configured, clients must solve a proof of work challenge before their password is " +
+            "verified, whenever the load on password verification is high")
+    Optional<ProofOfWorkSettings> getProofOfWork();
+
+    @Description("When configured, a user who recently logged in on a device can do so again without the " +
+            "password being verified by the data source. The password must still be entered")
+    Optional<FastReauthenticationSettings> getFastReauthentication();
+
+    @Description("When configured, the account of the remembered user is looked up in the background while " +
+            "the login form is shown, so that the login that follows does not wait for a cold data source")
+    Optional<PrefetchSettings> getPrefetch();
+
+    @Description("When configured, passwords are verified against additional credential managers as well, " +
+            "and are accepted if any of them accepts them")
+    Optional<MultipleCredentialStoresSettings> getMultipleCredentialStores();
+
+    @Description("When configured, a sample of password verifications is repeated against a secondary " +
+            "credential manager in the background, to compare its verdicts and latency without affecting logins")
+    Optional<ShadowVerificationSettings> getShadowVerification();
+
+    @Description("When configured, users who have no credentials in the main credential manager are verified " +
+            "against a legacy credential manager, and their password is migrated when it is accepted")
+    Optional<CredentialMigrationSettings> getCredentialMigration();
+
+    @Description("When configured, accounts read from the account manager are cached, and removed from the " +
+            "cache when they are changed through this authenticator")
+    Optional<AccountCacheSettings> getAccountCache();
+
+    @Description("When configured, usernames and email addresses that the forgot password and forgot username " +
+            "flows found no account for are remembered, so that repeated requests for them do not call the data source")
+    Optional<UnknownIdentifierFilterSettings> getUnknownIdentifierFilter();
+
+    @Description("When configured, accounts are read from a read-only account manager, such as one on a database " +
+            "replica, and only written through the main one")
+    Optional<ReadReplicaSettings> getReadReplica();
+
+    @Description("When configured, account changes made through this authenticator are sent to the other " +
+            "authenticators on the same channel, so that they drop what they cache about the account")
+    Optional<InvalidationBusSettings> getInvalidationBus();
+
+    @Description("When configured, nonces of the set password flow that were already used or found invalid are " +
+            "remembered, so that requests with them are refused without calling the nonce token issuer")
+    Optional<NonceIntrospectionCacheSettings> getNonceIntrospectionCache();
+
+    @Description("When configured, the account, credential and nonce data sources are probed with cheap operations " +
+            "while there are no requests, so that they are still warm when traffic resumes")
+    Optional<KeepWarmSettings> getKeepWarm();
+
+    @Description("Bring usernames, email addresses and phone numbers that users enter to a canonical form before " +
+            "they are looked up, checked for duplicates or stored. Only enable this when existing accounts are " +
+            "stored in canonical form, or the data source compares them in the same way")
+    Optional<IdentifierCanonicalizationSettings> getIdentifierCanonicalization();
+
+    @Description("Reserve the username, email address and phone number of each new account while it is registered, " +
+            "so that concurrent registrations with the same identifiers are refused without calling the data source")
+    Optional<RegistrationReservationSettings> getRegistrationReservations();
+
+    interface ConcurrencyLimitSettings
+    {
+        @Description("The number of concurrent password verifications allowed before any latency has been observed")
+        @DefaultInteger(20)
+        int getInitialLimit();
+
+        @Description("The limit never shrinks below this number of concurrent password verifications")
+        @DefaultInteger(4)
+        int getMinimumLimit();
+
+        @Description("The limit never grows above this number of concurrent password verifications")
+        @DefaultInteger(200)
+        int getMaximumLimit();
+    }
+
+    interface RateLimitSettings
+    {
+        @Description("The number of login attempts allowed in a burst for one username from one client address")
+        @DefaultInteger(5)
+        int getAttemptsPerUsernameAndAddress();
+
+        @Description("The number of login attempts allowed in a burst from one client address")
+        @DefaultInteger(100)
+        int getAttemptsPerAddress();
+
+        @Description("The number of seconds it takes to regain a full burst of attempts")
+        @DefaultInteger(60)
+        int getRefillSeconds();
+
+        @Description("The maximum number of keys to track for each limit. " +
+                "The least recently used keys are forgotten first")
+        @DefaultInteger(1000000)
+        int getMaximumTrackedKeys();
+    }
+
+    interface KnownUsernameFilterSettings
+    {
+        @Description("A local file listing every existing username, one per line. " +
+                "It must be kept complete, since users that are missing from it are not able to log in")
+        String getUsernameFile();
+
+        @Description("The number of usernames the filter is sized for")
+        @DefaultInteger(10000000)
+        int getExpectedUsernames();
+
+        @Description("The acceptable number of unknown usernames per million that are still verified " +
+                "against the data source, when the filter holds the expected number of usernames")
+        @DefaultInteger(1000)
+        int getFalsePositivesPerMillion();
+
+        @Description("How often, in seconds, to check whether the username file has changed")
+        @DefaultInteger(60)
+        int getReloadIntervalSeconds();
+    }
+
+    interface AccountStateCacheSettings
+    {
+        @Description("The number of accounts that can be remembered. Each takes 16 bytes of off-heap memory")
+        @DefaultInteger(1048576)
+        int getCapacity();
+
+        @Description("How long, in seconds, an account is refused after the data source reported it as locked out. " +
+                "This should not exceed the lockout duration of the credential policy")
+        @DefaultInteger(300)
+        int getLockoutSeconds();
+
+        @Description("How long, in seconds, an account created by this authenticator is refused while it awaits " +
+                "activation, unless it is activated through this authenticator first")
+        @DefaultInteger(600)
+        int getPendingActivationSeconds();
+    }
+
+    interface PasswordSprayDetectionSettings
+    {
+        @Description("The number of rejections of the same password, within about one decay interval, " +
+                "after which it is refused")
+        @DefaultInteger(50)
+        int getThreshold();
+
+        @Description("How often, in seconds, the recorded rejections are halved")
+        @DefaultInteger(60)
+        int getDecayIntervalSeconds();
+
+        @Description("The number of counters in each row of the sketch. Each counter takes 4 bytes")
+        @DefaultInteger(262144)
+        int getWidth();
+
+        @Description("The number of rows in the sketch, between 1 and 8")
+        @DefaultInteger(4)
+        int getDepth();
+    }
+
+    interface ProofOfWorkSettings
+    {
+        @Description("The load, as a percentage of the concurrency limit or of latency above its baseline, " +
+                "at which challenges start to be issued. Without a concurrency limit, there is no measure of load, " +
+                "so challenges are always issued at the minimum difficulty")
+        @DefaultInteger(50)
+        int getActivationLoadPercent();
+
+        @Description("The number of leading zero bits required when challenges start to be issued")
+        @DefaultInteger(12)
+        int getMinimumDifficulty();
+
+        @Description("The number of leading zero bits required at full load, at most 20. " +
+                "Each extra bit doubles the average work of the client")
+        @DefaultInteger(18)
+        int getMaximumDifficulty();
+
+        @Description("How long, in seconds, a challenge can be used after it was issued")
+        @DefaultInteger(300)
+        int getChallengeLifetimeSeconds();
+    }
+
+    interface FastReauthenticationSettings
+    {
+        @Description("How long, in seconds, a re-authentication token can be used after a full login")
+        @DefaultInteger(28800)
+        int getTokenLifetimeSeconds();
+
+        @Description("The maximum number of tokens that can be used at once. Beyond it, the oldest are forgotten, " +
+                "and their users have their password verified by the data source again")
+        @DefaultInteger(100000)
+        int getMaximumTokens();
+    }
+
+    interface PrefetchSettings
+    {
+        @Description("How long, in seconds, a prefetched account is kept for the login that follows")
+        @DefaultInteger(30)
+        int getTimeToLiveSeconds();
+
+        @Description("The maximum number of prefetched accounts kept at once")
+        @DefaultInteger(100000)
+        int getMaximumEntries();
+
+        @Description("The number of threads that look up accounts in the background")
+        @DefaultInteger(4)
+        int getThreads();
+
+        @Description("The number of lookups that can wait for a thread. Further lookups are dropped")
+        @DefaultInteger(1000)
+        int getQueueCapacity();
+    }
+
+    interface MultipleCredentialStoresSettings
+    {
+        @Description("The credential managers to verify passwords against after the main one, " +
+                "in order of preference")
+        List<UserCredentialManager> getAdditionalCredentialManagers();
+
+        @Description("When above zero, a credential manager is also called once the previous one has not " +
+                "answered within this percentile of its latency. When zero, it is only called once the previous " +
+                "one has no credentials for the user")
+        @DefaultInteger(0)
+        int getHedgingPercentile();
+    }
+
+    interface ShadowVerificationSettings
+    {
+        @Description("The credential manager to compare with")
+        UserCredentialManager getShadowCredentialManager();
+
+        @Description("The percentage of accepted passwords that are verified again against the shadow " +
+                "credential manager. Rejected passwords are never repeated, so that they cannot lock accounts out")
+        @DefaultInteger(10)
+        int getSamplePercent();
+
+        @Description("The number of threads that call the shadow credential manager")
+        @DefaultInteger(2)
+        int getThreads();
+
+        @Description("The number of verifications that can wait for a thread. Further verifications are dropped")
+        @DefaultInteger(100)
+        int getQueueCapacity();
+    }
+
+    interface CredentialMigrationSettings
+    {
+        @Description("The credential manager to migrate credentials from")
+        UserCredentialManager getLegacyCredentialManager();
+
+        @Description("The account manager of the legacy store. Accounts that do not exist in the main account " +
+                "manager are copied from it, and cannot be migrated without it")
+        Optional<AccountManager> getLegacyAccountManager();
+    }
+
+    interface AddressFilterSettings
+    {
+        @Description("The path of a file with one address or CIDR range on each line, which may be preceded by " +
+                "'deny', the default, or 'allow'. The longest range that contains an address decides")
+        String getListFile();
+
+        @Description("How often, in seconds, the file is checked for changes")
+        @DefaultInteger(60)
+        int getReloadIntervalSeconds();
+    }
+
+    interface RequestDeadlineSettings
+    {
+        @Description("The time, in milliseconds, that a request may take")
+        @DefaultInteger(5000)
+        int getBudgetMillis();
+    }
+
+    interface AccountCacheSettings
+    {
+        @Description("The maximum number of cached accounts. An account can take two entries, " +
+                "one by username and one by email address")
+        @DefaultInteger(100000)
+        int getMaximumEntries();
+
+        @Description("How long, in seconds, an account is cached. This bounds how long a change made outside " +
+                "this authenticator goes unnoticed")
+        @DefaultInteger(60)
+        int getTimeToLiveSeconds();
+    }
+
+    interface UnknownIdentifierFilterSettings
+    {
+        @Description("The number of identifiers that can be remembered. Each takes 8 bytes")
+        @DefaultInteger(1048576)
+        int getCapacity();
+
+        @Description("The minimum time, in seconds, that an identifier is remembered. It may be remembered for up " +
+                "to twice as long, and accounts created outside this authenticator and its invalidation bus may go " +
+                "unnoticed for as long")
+        @DefaultInteger(300)
+        int getTimeToLiveSeconds();
+    }
+
+    interface ReadReplicaSettings
+    {
+        @Description("The account manager to read accounts from. When it fails, the main one is read instead")
+        AccountManager getReadOnlyAccountManager();
+
+        @Description("How long, in seconds, after an account is created, activated or has its password changed " +
+                "through this authenticator, it is read from the main account manager. " +
+                "This should exceed the usual replication lag")
+        @DefaultInteger(30)
+        int getReadYourWritesSeconds();
+
+        @Description("The maximum number of recently written accounts that are read from the main account manager. " +
+                "Beyond it, the oldest are read from the read-only one again before their time is up")
+        @DefaultInteger(100000)
+        int getMaximumRecentWrites();
+    }
+
+    interface InvalidationBusSettings
+    {
+        @Description("Authenticators only receive changes sent on the same channel. When not set, the id of " +
+                "this authenticator is used, so that changes only reach the same authenticator on other nodes")
+        Optional<String> getChannel();
+
+        @Description("The multicast address, such as 239.255.42.1, to send changes to the other nodes of the cluster. " +
+                "When not set, changes are only sent to authenticators in the same server")
+        Optional<String> getMulticastGroup();
+
+        @Description("The UDP port of the multicast group")
+        @DefaultInteger(45900)
+        int getMulticastPort();
+
+        @Description("The network interface to join the multicast group on, such as eth0. " +
+                "When not set, the default interface is used")
+        Optional<String> getMulticastInterface();
+
+        @Description("The number of router hops that changes may take. Use 1 when all nodes are on the same subnet")
+        @DefaultInteger(1)
+        int getMulticastTimeToLive();
+
+        @Description("How long, in milliseconds, changes are collected before they are sent together")
+        @DefaultInteger(50)
+        int getBatchMillis();
+    }
+
+    interface NonceIntrospectionCacheSettings
+    {
+        @Description("How long, in seconds, a nonce is remembered. This should be at least the lifetime of nonces")
+        @DefaultInteger(3600)
+        int getTimeToLiveSeconds();
+
+        @Description("The maximum number of used nonces, and separately of invalid ones, remembered at once")
+        @DefaultInteger(100000)
+        int getMaximumEntries();
+    }
+
+    interface KeepWarmSettings
+    {
+        @Description("How long, in seconds, without requests before the data sources are probed, " +
+                "and how often they are probed after that")
+        @DefaultInteger(60)
+        int getIntervalSeconds();
+
+        @Description("The username that probes look up. Since it is only read, it does not need to belong " +
+                "to an account")
+        @DefaultString("keep-warm-probe")
+        String getProbeUsername();
+    }
+
+    interface IdentifierCanonicalizationSettings
+    {
+        @Description("Whether usernames that only differ in case belong to the same account, and are stored " +
+                "in lower case. Only enable this when the data source compares usernames without case, " +
+                "or existing usernames are all in lower case")
+        @DefaultBoolean(false)
+        boolean isCaseInsensitiveUsernames();
+
+        @Description("The country calling code, such as 46, of phone numbers entered without one. " +
+                "When not set, such phone numbers are only trimmed")
+        Optional<String> getDefaultCountryCode();
+    }
+
+    interface RegistrationReservationSettings
+    {
+        @Description("How long, in seconds, identifiers stay reserved by a registration that never finishes")
+        @DefaultInteger(60)
+        int getPendingSeconds();
+
+        @Description("How long, in seconds, the identifiers of a created account stay reserved, so that repeated " +
+                "registrations with them are refused without calling the data source")
+        @DefaultInteger(300)
+        int getCreatedSeconds();
+
+        @Description("The maximum number of identifiers reserved at once. Beyond it, only the data source checks " +
+                "for duplicates")
+        @DefaultInteger(100000)
+        int getMaximumEntries();
+    }
 }
@@ -25,6 +25,7 @@ import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordA
 import io.curity.identityserver.plugin.usernamepassword.forgotAccountId.UsernamePasswordForgotAccountIdRequestHandler;
 import io.curity.identityserver.plugin.usernamepassword.forgotPassword.UsernamePasswordForgotPasswordRequestHandler;
 import io.curity.identityserver.plugin.usernamepassword.registration.UsernamePasswordRegistrationRequestHandler;
+import io.curity.identityserver.plugin.usernamepassword.runtime.AuthenticatorRuntime;
 import io.curity.identityserver.plugin.usernamepassword.setPassword.UsernamePasswordSetPasswordRequestHandler;
 import io.curity.identityserver.plugin.usernamepassword.templates.AuthenticateGetRepresentationFunction;
 import io.curity.identityserver.plugin.usernamepassword.templates.CreateAccountGetRepresentationFunction;
@@ -42,6 +43,7 @@ import se.curity.identityserver.sdk.web.RequestHandlerSet;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 
 import static java.util.Collections.singletonMap;
 
@@ -64,6 +66,12 @@ public final class UsernamePasswordAuthenticatorPluginDescriptor
         return UsernamePasswordAuthenticatorPluginConfig.class;
     }
 
+    @Override
+    public Optional<AuthenticatorRuntime> createManagedObject(UsernamePasswordAuthenticatorPluginConfig configuration)
+    {
+        return Optional.of(new AuthenticatorRuntime(configuration));
+    }
+
     @Override
     public Map<String, Class<? extends AuthenticatorRequestHandler<?>>> getAuthenticationRequestHandlerTypes()
     {
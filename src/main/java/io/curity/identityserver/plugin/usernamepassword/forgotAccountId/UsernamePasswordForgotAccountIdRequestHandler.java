@@ -19,7 +19,10 @@ package io.curity.identityserver.plugin.usernamepassword.forgotAccountId;
 import com.google.common.html.HtmlEscapers;
 import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
 import io.curity.identityserver.plugin.usernamepassword.descriptor.UsernamePasswordAuthenticatorPluginDescriptor;
-import io.curity.identityserver.plugin.usernamepassword.utils.NullEmailSender;
+import io.curity.identityserver.plugin.usernamepassword.runtime.AuthenticatorRuntime;
+import io.curity.identityserver.plugin.usernamepassword.runtime.Deadline;
+import io.curity.identityserver.plugin.usernamepassword.runtime.DeadlineExceededException;
+import io.curity.identityserver.plugin.usernamepassword.utils.RetryableErrors;
 import io.curity.identityserver.plugin.usernamepassword.utils.ViewModelReservedKeys;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,7 +32,6 @@ import se.curity.identityserver.sdk.authentication.AuthenticationResult;
 import se.curity.identityserver.sdk.authentication.AuthenticatorRequestHandler;
 import se.curity.identityserver.sdk.data.email.Email;
 import se.curity.identityserver.sdk.http.HttpStatus;
-import se.curity.identityserver.sdk.service.AccountManager;
 import se.curity.identityserver.sdk.service.EmailSender;
 import se.curity.identityserver.sdk.service.UserPreferenceManager;
 import se.curity.identityserver.sdk.web.Request;
@@ -56,37 +58,35 @@ public final class UsernamePasswordForgotAccountIdRequestHandler implements Auth
      * plugin descriptor at {@link UsernamePasswordAuthenticatorPluginDescriptor#getConfigurationType()}.
      *
      * @param configuration for the Username/Password authenticator plugin
+     * @param runtime       the state shared by all requests to this authenticator
      */
 
     private static final Logger _logger = LoggerFactory.getLogger(UsernamePasswordForgotAccountIdRequestHandler.class);
 
-    private final AccountManager _accountManager;
     private final UserPreferenceManager _userPreferenceManager;
     private final EmailSender _emailSender;
+    private final AuthenticatorRuntime _runtime;
 
-    public UsernamePasswordForgotAccountIdRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration)
+    public UsernamePasswordForgotAccountIdRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration,
+                                                         AuthenticatorRuntime runtime)
     {
-        _accountManager = configuration.getAccountManager();
         _userPreferenceManager = configuration.getUserPreferenceManager();
-
-        if (configuration.getEmailSender().isPresent())
-        {
-            _emailSender = configuration.getEmailSender().get();
-        }
-        else
-        {
-            _logger.info("No email provider has been configured");
-            _emailSender = new NullEmailSender();
-        }
+        _runtime = runtime;
+        _emailSender = runtime.getEmailSender();
     }
 
     @Override
     public RequestModel preProcess(Request request, Response response)
     {
+        _runtime.onRequest();
+        _runtime.checkClientAddress(request);
+
         if (request.isPostRequest())
         {
             response.setResponseModel(templateResponseModel(emptyMap(),
                     "forgot-account-id/get"), HttpStatus.BAD_REQUEST);
+            response.setResponseModel(templateResponseModel(emptyMap(),
+                    "forgot-account-id/get"), HttpStatus.SERVICE_UNAVAILABLE);
 
             response.setResponseModel(templateResponseModel(emptyMap(),
                     "forgot-account-id/post"), NOT_FAILURE);
@@ -113,8 +113,42 @@ public final class UsernamePasswordForgotAccountIdRequestHandler implements Auth
     public Optional<AuthenticationResult> post(RequestModel requestModel, Response response)
     {
         var postModel = requestModel.getPostRequestModel();
+        Deadline deadline = _runtime.newDeadline("forgotAccountId");
+
+        try
+        {
+            sendAccountId(postModel, deadline, response);
+        }
+        catch (DeadlineExceededException e)
+        {
+            _logger.debug("Forgot account id request was aborted: {}", e.getMessage());
+            RetryableErrors.deadlineExceeded(response);
+            response.putViewData(ViewModelReservedKeys.FORM_POST_BACK, postModel.dataOnError(),
+                    Response.ResponseModelScope.FAILURE);
+        }
 
-        @Nullable AccountAttributes account = _accountManager.getByEmail(postModel.getPrimaryEmail());
+        return Optional.empty();
+    }
+
+    private void sendAccountId(RequestModel.Post postModel, Deadline deadline, Response response)
+    {
+        String emailAddress = _runtime.getIdentifierCanonicalizer().email(postModel.getPrimaryEmail());
+
+        @Nullable AccountAttributes account;
+        if (_runtime.getUnknownIdentifierFilter().map(filter -> filter.isUnknown(null, emailAddress)).orElse(false))
+        {
+            account = null;
+        }
+        else
+        {
+            deadline.check("getByEmail");
+            account = _runtime.getAccountLookup().getByEmail(emailAddress, deadline);
+
+            if (account == null)
+            {
+                _runtime.getUnknownIdentifierFilter().ifPresent(filter -> filter.addUnknown(null, emailAddress));
+            }
+        }
 
         @Nullable String emailValue = AccountAttributes.emailFrom(account);
 
@@ -126,6 +160,7 @@ public final class UsernamePasswordForgotAccountIdRequestHandler implements Auth
             model.put("accountId", account.getUserName());
             Email emailToSend = new Email(model);
 
+            deadline.check("sendEmail");
             _emailSender.sendEmail(emailValue, emailToSend, "email/forgot-account-id/email");
         }
         else
@@ -136,8 +171,6 @@ public final class UsernamePasswordForgotAccountIdRequestHandler implements Auth
         }
 
         response.setHttpStatus(HttpStatus.OK);
-
-        return Optional.empty();
     }
 
     @Override
@@ -19,7 +19,10 @@ package io.curity.identityserver.plugin.usernamepassword.forgotPassword;
 import com.google.common.html.HtmlEscapers;
 import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
 import io.curity.identityserver.plugin.usernamepassword.descriptor.UsernamePasswordAuthenticatorPluginDescriptor;
-import io.curity.identityserver.plugin.usernamepassword.utils.NullEmailSender;
+import io.curity.identityserver.plugin.usernamepassword.runtime.AuthenticatorRuntime;
+import io.curity.identityserver.plugin.usernamepassword.runtime.Deadline;
+import io.curity.identityserver.plugin.usernamepassword.runtime.DeadlineExceededException;
+import io.curity.identityserver.plugin.usernamepassword.utils.RetryableErrors;
 import io.curity.identityserver.plugin.usernamepassword.utils.ViewModelReservedKeys;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -34,12 +37,10 @@ import se.curity.identityserver.sdk.data.tokens.TokenAttributes;
 import se.curity.identityserver.sdk.data.tokens.TokenIssuerException;
 import se.curity.identityserver.sdk.errors.ErrorCode;
 import se.curity.identityserver.sdk.http.HttpStatus;
-import se.curity.identityserver.sdk.service.AccountManager;
 import se.curity.identityserver.sdk.service.EmailSender;
 import se.curity.identityserver.sdk.service.ExceptionFactory;
 import se.curity.identityserver.sdk.service.NonceTokenIssuer;
 import se.curity.identityserver.sdk.service.UserPreferenceManager;
-import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
 import se.curity.identityserver.sdk.web.Request;
 import se.curity.identityserver.sdk.web.Response;
 import se.curity.identityserver.sdk.web.alerts.ErrorMessage;
@@ -64,41 +65,35 @@ public final class UsernamePasswordForgotPasswordRequestHandler implements Authe
      * plugin descriptor at {@link UsernamePasswordAuthenticatorPluginDescriptor#getConfigurationType()}.
      *
      * @param configuration for the Username/Password authenticator plugin
+     * @param runtime       the state shared by all requests to this authenticator
      */
 
     private static final Logger _logger = LoggerFactory.getLogger(UsernamePasswordForgotPasswordRequestHandler.class);
 
     private final UserPreferenceManager _userPreferenceManager;
-    private final AccountManager _accountManager;
     private final EmailSender _emailSender;
     private final NonceTokenIssuer _nonceTokenIssuer;
-    private final AuthenticatorInformationProvider _authenticatorInformationProvider;
     private final ExceptionFactory _exceptionFactory;
+    private final AuthenticatorRuntime _runtime;
 
-    public UsernamePasswordForgotPasswordRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration)
+    public UsernamePasswordForgotPasswordRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration,
+                                                        AuthenticatorRuntime runtime)
     {
-        _accountManager = configuration.getAccountManager();
         _userPreferenceManager = configuration.getUserPreferenceManager();
         _nonceTokenIssuer = configuration.getNonceTokenIssuer();
-        _authenticatorInformationProvider = configuration.getAuthenticatorInformationProvider();
         _exceptionFactory = configuration.getExceptionFactory();
-
-        if (configuration.getEmailSender().isPresent())
-        {
-            _emailSender = configuration.getEmailSender().get();
-        }
-        else
-        {
-            _logger.info("No email provider has been configured");
-            _emailSender = new NullEmailSender();
-        }
+        _runtime = runtime;
+        _emailSender = runtime.getEmailSender();
     }
 
     @Override
     public RequestModel preProcess(Request request, Response response)
     {
+        _runtime.onRequest();
+        _runtime.checkClientAddress(request);
+
         var data = new HashMap<String, Object>(1);
-        data.put(ViewModelReservedKeys.SHOW_EMAIL_FIELD, !_accountManager.useUsernameAsEmail());
+        data.put(ViewModelReservedKeys.SHOW_EMAIL_FIELD, !_runtime.getViewModel().isUsernameAsEmail());
 
         if (request.isPostRequest())
         {
@@ -110,6 +105,8 @@ public final class UsernamePasswordForgotPasswordRequestHandler implements Authe
 
             response.setResponseModel(templateResponseModel(data, "forgot-password/get"),
                     HttpStatus.BAD_REQUEST);
+            response.setResponseModel(templateResponseModel(data, "forgot-password/get"),
+                    HttpStatus.SERVICE_UNAVAILABLE);
         }
         else if (request.isGetRequest())
         {
@@ -133,46 +130,69 @@ public final class UsernamePasswordForgotPasswordRequestHandler implements Authe
     public Optional<AuthenticationResult> post(RequestModel requestModel, Response response)
     {
         var postModel = requestModel.getPostRequestModel();
+        Deadline deadline = _runtime.newDeadline("forgotPassword");
 
-        @Nullable String username = postModel.getUsername();
-        @Nullable String emailAddress = postModel.getPrimaryEmail();
-        @Nullable AccountAttributes account = null;
+        try
+        {
+            sendResetLink(postModel, deadline, response);
+        }
+        catch (DeadlineExceededException e)
+        {
+            _logger.debug("Forgot password request was aborted: {}", e.getMessage());
+            RetryableErrors.deadlineExceeded(response);
+            response.putViewData(ViewModelReservedKeys.FORM_POST_BACK, postModel.dataOnError(),
+                    Response.ResponseModelScope.FAILURE);
+        }
+
+        return Optional.empty();
+    }
 
-        if (StringUtils.isNotBlank(emailAddress))
+    private void sendResetLink(RequestModel.PostRequestModel postModel, Deadline deadline, Response response)
+    {
+        var canonicalizer = _runtime.getIdentifierCanonicalizer();
+        @Nullable String username = canonicalizer.username(postModel.getUsername());
+        @Nullable String emailAddress = canonicalizer.email(postModel.getPrimaryEmail());
+
+        if (_runtime.getUnknownIdentifierFilter().map(filter -> filter.isUnknown(username, emailAddress)).orElse(false))
         {
-            account = _accountManager.getByEmail(emailAddress);
+            onAccountNotFound(response, emailAddress, username, null);
+            return;
         }
 
-        if (account == null && StringUtils.isNotBlank(username))
+        deadline.check("findAccount");
+        @Nullable AccountAttributes account = _runtime.getAccountResolver()
+                .map(resolver -> resolver.resolve(username, emailAddress, deadline))
+                .orElse(null);
+
+        if (account == null)
         {
-            account = _accountManager.getByUserName(username);
+            _runtime.getUnknownIdentifierFilter().ifPresent(filter -> filter.addUnknown(username, emailAddress));
         }
 
         @Nullable String emailValue = AccountAttributes.emailFrom(account);
 
         if (account != null && emailValue != null)
         {
-            onAccountFound(response, emailValue, account);
+            onAccountFound(response, emailValue, account, deadline);
         }
         else
         {
             onAccountNotFound(response, emailAddress, username, emailValue);
         }
-
-        return Optional.empty();
     }
 
-    private void onAccountFound(Response response, String emailValue, AccountAttributes account) {
+    private void onAccountFound(Response response, String emailValue, AccountAttributes account, Deadline deadline) {
 
+        deadline.check("issueNonce");
         String nonce = issueNonce(account);
         var emailModel = new HashMap<String, Object>(2);
         emailModel.put("nonce", nonce);
 
-        var setPasswordUrl = String.format("%s/set-password",
-                _authenticatorInformationProvider.getFullyQualifiedAnonymousUri());
+        var setPasswordUrl = _runtime.getViewModel().getSetPasswordUrl();
         emailModel.put(ViewModelReservedKeys.SET_PASSWORD_ENDPOINT, setPasswordUrl);
 
         var emailToSend = new Email(emailModel);
+        deadline.check("sendEmail");
         _emailSender.sendEmail(emailValue, emailToSend, "email/forgot-password/email");
 
         response.putViewData(ViewModelReservedKeys.RECIPIENT_OF_COMMUNICATION, emailValue, Response.ResponseModelScope.NOT_FAILURE);
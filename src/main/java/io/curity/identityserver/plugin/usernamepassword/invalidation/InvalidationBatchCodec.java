@@ -0,0 +1,266 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.invalidation;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The datagram format of the multicast invalidation bus.
+ * <p>
+ * A datagram holds a header with a magic number, the random id of the sending node, a hash of the channel name,
+ * and whether the body is compressed. The body holds a batch of events, and is compressed with deflate whenever
+ * that makes it smaller. A batch is never larger than {@link #MAXIMUM_BODY_BYTES} before compression, and an event
+ * that would not fit in a batch by itself is not encoded at all.
+ */
+final class InvalidationBatchCodec
+{
+    static final int MAXIMUM_BODY_BYTES = 16 * 1024;
+
+    private static final int MAGIC = 0x55504931;
+    private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES + 1;
+    private static final int COMPRESSION_THRESHOLD = 256;
+    private static final byte UNCOMPRESSED = 0;
+    private static final byte COMPRESSED = 1;
+    private static final InvalidationEvent.Type[] TYPES = InvalidationEvent.Type.values();
+
+    private InvalidationBatchCodec()
+    {
+    }
+
+    record Batch(long nodeId, int channelHash, List<InvalidationEvent> events)
+    {
+    }
+
+    /**
+     * @param datagrams      the datagrams to send
+     * @param oversizedCount the number of events that were left out, since they are too large to be sent
+     */
+    record Encoded(List<byte[]> datagrams, int oversizedCount)
+    {
+    }
+
+    /**
+     * Encode the events into as many datagrams as needed, leaving out those that are too large for one.
+     */
+    static Encoded encode(long nodeId, int channelHash, List<InvalidationEvent> events)
+    {
+        var datagrams = new ArrayList<byte[]>();
+        var body = new ByteArrayOutputStream();
+        var eventBytes = new ByteArrayOutputStream();
+        int count = 0;
+        int oversizedCount = 0;
+
+        try
+        {
+            for (InvalidationEvent event : events)
+            {
+                eventBytes.reset();
+                if (!tryWriteEvent(new DataOutputStream(eventBytes), event) ||
+                        eventBytes.size() > MAXIMUM_BODY_BYTES)
+                {
+                    oversizedCount++;
+                    continue;
+                }
+
+                if (count > 0 && body.size() + eventBytes.size() > MAXIMUM_BODY_BYTES)
+                {
+                    datagrams.add(datagram(nodeId, channelHash, count, body.toByteArray()));
+                    body.reset();
+                    count = 0;
+                }
+
+                eventBytes.writeTo(body);
+                count++;
+            }
+
+            if (count > 0)
+            {
+                datagrams.add(datagram(nodeId, channelHash, count, body.toByteArray()));
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        return new Encoded(datagrams, oversizedCount);
+    }
+
+    static Batch decode(byte[] datagram, int length) throws IOException
+    {
+        var input = new DataInputStream(new ByteArrayInputStream(datagram, 0, length));
+        if (length < HEADER_BYTES || input.readInt() != MAGIC)
+        {
+            throw new IOException("Not an invalidation datagram");
+        }
+
+        long nodeId = input.readLong();
+        int channelHash = input.readInt();
+        byte compression = input.readByte();
+
+        byte[] body = input.readAllBytes();
+        if (compression == COMPRESSED)
+        {
+            body = inflate(body);
+        }
+        else if (compression != UNCOMPRESSED)
+        {
+            throw new IOException("Unknown compression " + compression);
+        }
+
+        var bodyInput = new DataInputStream(new ByteArrayInputStream(body));
+        int count = bodyInput.readUnsignedShort();
+        var events = new ArrayList<InvalidationEvent>(count);
+        for (int i = 0; i < count; i++)
+        {
+            events.add(readEvent(bodyInput));
+        }
+
+        return new Batch(nodeId, channelHash, events);
+    }
+
+    private static byte[] datagram(long nodeId, int channelHash, int count, byte[] events) throws IOException
+    {
+        var body = new ByteArrayOutputStream(events.length + Short.BYTES);
+        var bodyOutput = new DataOutputStream(body);
+        bodyOutput.writeShort(count);
+        bodyOutput.write(events);
+
+        byte[] bodyBytes = body.toByteArray();
+        byte compression = UNCOMPRESSED;
+        if (bodyBytes.length >= COMPRESSION_THRESHOLD)
+        {
+            byte[] deflated = deflate(bodyBytes);
+            if (deflated.length < bodyBytes.length)
+            {
+                bodyBytes = deflated;
+                compression = COMPRESSED;
+            }
+        }
+
+        var datagram = new ByteArrayOutputStream(HEADER_BYTES + bodyBytes.length);
+        var output = new DataOutputStream(datagram);
+        output.writeInt(MAGIC);
+        output.writeLong(nodeId);
+        output.writeInt(channelHash);
+        output.writeByte(compression);
+        output.write(bodyBytes);
+        return datagram.toByteArray();
+    }
+
+    /**
+     * @return false if a value of the event is longer than the 65535 bytes that a string can take
+     */
+    private static boolean tryWriteEvent(DataOutputStream output, InvalidationEvent event) throws IOException
+    {
+        try
+        {
+            output.writeByte(event.type().ordinal());
+            output.writeLong(event.publishedAtMillis());
+            output.writeUTF(event.username());
+            output.writeBoolean(event.emailAddress() != null);
+            if (event.emailAddress() != null)
+            {
+                output.writeUTF(event.emailAddress());
+            }
+            return true;
+        }
+        catch (UTFDataFormatException e)
+        {
+            return false;
+        }
+    }
+
+    private static InvalidationEvent readEvent(DataInputStream input) throws IOException
+    {
+        int type = input.readUnsignedByte();
+        if (type >= TYPES.length)
+        {
+            throw new IOException("Unknown event type " + type);
+        }
+
+        long publishedAtMillis = input.readLong();
+        String username = input.readUTF();
+        @Nullable String emailAddress = input.readBoolean() ? input.readUTF() : null;
+
+        return new InvalidationEvent(TYPES[type], username, emailAddress, publishedAtMillis);
+    }
+
+    private static byte[] deflate(byte[] bytes)
+    {
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        try
+        {
+            deflater.setInput(bytes);
+            deflater.finish();
+
+            var output = new ByteArrayOutputStream(bytes.length);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished())
+            {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            return output.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes) throws IOException
+    {
+        var inflater = new Inflater();
+        try
+        {
+            inflater.setInput(bytes);
+
+            // a body is never larger than this, so anything that inflates further is not a valid datagram
+            byte[] buffer = new byte[MAXIMUM_BODY_BYTES + Short.BYTES + 1];
+            int length = inflater.inflate(buffer);
+            if (!inflater.finished() || length > MAXIMUM_BODY_BYTES + Short.BYTES)
+            {
+                throw new IOException("The compressed body is invalid or too large");
+            }
+
+            return Arrays.copyOf(buffer, length);
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("The compressed body is invalid", e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.invalidation;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries account changes from the authenticator that made them to the other authenticators that share its data
+ * source, so that they can drop what they remember about the account.
+ * <p>
+ * Delivery is best effort. Every local cache must still expire its entries by itself, since events can be lost.
+ */
+public interface InvalidationBus extends AutoCloseable
+{
+    /**
+     * Send the event to every other subscriber of the bus, without waiting for it to be delivered.
+     */
+    void publish(InvalidationEvent event);
+
+    /**
+     * Receive the events published by others, but not those published through this instance.
+     * The subscriber is called on a thread of the bus, and must not block.
+     */
+    void subscribe(Consumer<InvalidationEvent> subscriber);
+
+    @Override
+    void close();
+}
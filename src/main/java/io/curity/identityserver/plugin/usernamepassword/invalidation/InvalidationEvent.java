@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.invalidation;
+
+import se.curity.identityserver.sdk.Nullable;
+
+/**
+ * A change to an account that may have left state about it stale in the caches of other authenticators.
+ *
+ * @param username          the username of the account
+ * @param emailAddress      the email address of the account, if it is known
+ * @param publishedAtMillis when the change was published, by the clock of the publisher
+ */
+public record InvalidationEvent(Type type, String username, @Nullable String emailAddress, long publishedAtMillis)
+{
+    public enum Type
+    {
+        ACCOUNT_CREATED,
+        ACCOUNT_ACTIVATED,
+        PASSWORD_CHANGED
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.invalidation;
+
+import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.usernamepassword.runtime.RuntimeResources;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.function.Consumer;
+
+/**
+ * The configured invalidation bus, if any, which does nothing when none is configured.
+ */
+public final class InvalidationFeatures implements AutoCloseable
+{
+    @Nullable
+    private final InvalidationBus _invalidationBus;
+
+    public InvalidationFeatures(UsernamePasswordAuthenticatorPluginConfig configuration, RuntimeResources resources)
+    {
+        _invalidationBus = configuration.getInvalidationBus()
+                .map(settings -> newInvalidationBus(settings, settings.getChannel().orElse(configuration.id()),
+                        resources))
+                .orElse(null);
+    }
+
+    private static InvalidationBus newInvalidationBus(
+            UsernamePasswordAuthenticatorPluginConfig.InvalidationBusSettings settings, String channel,
+            RuntimeResources resources)
+    {
+        if (settings.getMulticastGroup().isEmpty())
+        {
+            return new LocalInvalidationBus(channel);
+        }
+
+        InetAddress group;
+        try
+        {
+            group = InetAddress.getByName(settings.getMulticastGroup().get());
+        }
+        catch (UnknownHostException e)
+        {
+            throw new IllegalArgumentException("The invalidation multicast group is not a valid address", e);
+        }
+
+        var bus = new MulticastInvalidationBus(channel,
+                new InetSocketAddress(group, settings.getMulticastPort()),
+                settings.getMulticastInterface().orElse(null),
+                settings.getMulticastTimeToLive(),
+                Duration.ofMillis(settings.getBatchMillis()),
+                resources.getScheduler());
+        resources.register("InvalidationBus", bus);
+        return bus;
+    }
+
+    /**
+     * @see InvalidationBus#subscribe
+     */
+    public void subscribe(Consumer<InvalidationEvent> subscriber)
+    {
+        if (_invalidationBus != null)
+        {
+            _invalidationBus.subscribe(subscriber);
+        }
+    }
+
+    /**
+     * Send a change to the other authenticators on the bus.
+     */
+    public void publish(InvalidationEvent.Type type, String username, @Nullable String emailAddress)
+    {
+        if (_invalidationBus != null)
+        {
+            _invalidationBus.publish(new InvalidationEvent(type, username, emailAddress, System.currentTimeMillis()));
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (_invalidationBus != null)
+        {
+            _invalidationBus.close();
+        }
+    }
+}
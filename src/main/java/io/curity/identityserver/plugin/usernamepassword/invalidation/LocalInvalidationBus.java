@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.invalidation;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * An invalidation bus between the authenticators of one server, which share a named channel.
+ * Events are delivered on the thread of the publisher.
+ */
+public final class LocalInvalidationBus implements InvalidationBus
+{
+    private static final Map<String, Set<LocalInvalidationBus>> _channels = new ConcurrentHashMap<>();
+
+    private final String _channel;
+    private final List<Consumer<InvalidationEvent>> _subscribers = new CopyOnWriteArrayList<>();
+
+    public LocalInvalidationBus(String channel)
+    {
+        _channel = channel;
+        _channels.computeIfAbsent(channel, name -> ConcurrentHashMap.newKeySet()).add(this);
+    }
+
+    @Override
+    public void publish(InvalidationEvent event)
+    {
+        for (LocalInvalidationBus member : _channels.getOrDefault(_channel, Set.of()))
+        {
+            if (member != this)
+            {
+                member.deliver(event);
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<InvalidationEvent> subscriber)
+    {
+        _subscribers.add(subscriber);
+    }
+
+    private void deliver(InvalidationEvent event)
+    {
+        _subscribers.forEach(subscriber -> subscriber.accept(event));
+    }
+
+    @Override
+    public void close()
+    {
+        _channels.computeIfPresent(_channel, (name, members) ->
+        {
+            members.remove(this);
+            return members.isEmpty() ? null : members;
+        });
+    }
+}
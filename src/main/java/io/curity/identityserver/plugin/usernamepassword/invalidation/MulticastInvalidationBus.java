@@ -0,0 +1,330 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.invalidation;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.curity.identityserver.plugin.usernamepassword.verification.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * An invalidation bus between the nodes of a cluster, over UDP multicast.
+ * <p>
+ * Published events are queued, and every batch interval the queue is sent as one or a few datagrams, which are
+ * compressed when that makes them smaller. Each node has a random id, so that it ignores its own datagrams, and
+ * datagrams of other channels are ignored as well. Datagrams are not authenticated, so the multicast group must
+ * only be reachable from the nodes of the cluster. Lost datagrams are not resent.
+ */
+public final class MulticastInvalidationBus implements InvalidationBus, MulticastInvalidationBusMXBean
+{
+    private static final Logger _logger = LoggerFactory.getLogger(MulticastInvalidationBus.class);
+    private static final int RECEIVE_BUFFER_BYTES = 65536;
+
+    private final long _nodeId = new SecureRandom().nextLong();
+    private final int _channelHash;
+    private final InetSocketAddress _group;
+    @Nullable
+    private final NetworkInterface _networkInterface;
+    private final MulticastSocket _socket;
+    private final Queue<InvalidationEvent> _pending = new ConcurrentLinkedQueue<>();
+    private final List<Consumer<InvalidationEvent>> _subscribers = new CopyOnWriteArrayList<>();
+    private final ScheduledFuture<?> _flushing;
+    private final Thread _receiver;
+    private final LatencyHistogram _propagation = new LatencyHistogram();
+
+    private final LongAdder _published = new LongAdder();
+    private final LongAdder _received = new LongAdder();
+    private final LongAdder _sentDatagrams = new LongAdder();
+    private final LongAdder _sentBytes = new LongAdder();
+    private final LongAdder _receivedDatagrams = new LongAdder();
+    private final LongAdder _rejectedDatagrams = new LongAdder();
+    private final LongAdder _sendFailures = new LongAdder();
+    private final LongAdder _oversized = new LongAdder();
+
+    /**
+     * @param channel          the name of the channel, which other nodes must share to receive events
+     * @param group            the multicast address and port
+     * @param networkInterface the name of the interface to join the group on, or null for the default one
+     * @param timeToLive       the number of router hops a datagram may take
+     * @param batchInterval    how long events are collected before they are sent
+     * @param scheduler        the scheduler to send batches on
+     */
+    public MulticastInvalidationBus(String channel,
+                                    InetSocketAddress group,
+                                    @Nullable String networkInterface,
+                                    int timeToLive,
+                                    Duration batchInterval,
+                                    ScheduledExecutorService scheduler)
+    {
+        _channelHash = channel.hashCode();
+        _group = group;
+
+        try
+        {
+            _networkInterface = networkInterface != null ? NetworkInterface.getByName(networkInterface) : null;
+            if (networkInterface != null && _networkInterface == null)
+            {
+                throw new IllegalArgumentException("There is no network interface named " + networkInterface);
+            }
+
+            _socket = new MulticastSocket(group.getPort());
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Unable to join the invalidation multicast group " + group, e);
+        }
+
+        try
+        {
+            _socket.setTimeToLive(timeToLive);
+            if (_networkInterface != null)
+            {
+                _socket.setNetworkInterface(_networkInterface);
+            }
+            _socket.joinGroup(group, _networkInterface);
+        }
+        catch (IOException e)
+        {
+            _socket.close();
+            throw new UncheckedIOException("Unable to join the invalidation multicast group " + group, e);
+        }
+
+        _receiver = new ThreadFactoryBuilder()
+                .setNameFormat("username-password-invalidation-%d")
+                .setDaemon(true)
+                .build()
+                .newThread(this::receive);
+        _receiver.start();
+
+        _flushing = scheduler.scheduleWithFixedDelay(this::flush,
+                batchInterval.toMillis(), batchInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void publish(InvalidationEvent event)
+    {
+        _pending.add(event);
+        _published.increment();
+    }
+
+    @Override
+    public void subscribe(Consumer<InvalidationEvent> subscriber)
+    {
+        _subscribers.add(subscriber);
+    }
+
+    synchronized void flush()
+    {
+        var events = new ArrayList<InvalidationEvent>();
+        @Nullable InvalidationEvent event;
+        while ((event = _pending.poll()) != null)
+        {
+            events.add(event);
+        }
+
+        if (events.isEmpty())
+        {
+            return;
+        }
+
+        InvalidationBatchCodec.Encoded encoded = InvalidationBatchCodec.encode(_nodeId, _channelHash, events);
+        if (encoded.oversizedCount() > 0)
+        {
+            // other nodes still expire what they remember about these accounts
+            _logger.warn("Not sending {} invalidation events that are too large for a datagram",
+                    encoded.oversizedCount());
+            _oversized.add(encoded.oversizedCount());
+        }
+
+        for (byte[] datagram : encoded.datagrams())
+        {
+            try
+            {
+                _socket.send(new DatagramPacket(datagram, datagram.length, _group));
+                _sentDatagrams.increment();
+                _sentBytes.add(datagram.length);
+            }
+            catch (IOException e)
+            {
+                _logger.debug("Unable to send an invalidation datagram", e);
+                _sendFailures.increment();
+            }
+        }
+    }
+
+    private void receive()
+    {
+        byte[] buffer = new byte[RECEIVE_BUFFER_BYTES];
+        var packet = new DatagramPacket(buffer, buffer.length);
+
+        while (!_socket.isClosed())
+        {
+            try
+            {
+                packet.setLength(buffer.length);
+                _socket.receive(packet);
+                _receivedDatagrams.increment();
+
+                InvalidationBatchCodec.Batch batch = InvalidationBatchCodec.decode(buffer, packet.getLength());
+                if (batch.nodeId() == _nodeId || batch.channelHash() != _channelHash)
+                {
+                    continue;
+                }
+
+                long now = System.currentTimeMillis();
+                for (InvalidationEvent event : batch.events())
+                {
+                    _received.increment();
+                    _propagation.record(Duration.ofMillis(Math.max(0, now - event.publishedAtMillis())));
+                    deliver(event);
+                }
+            }
+            catch (SocketException e)
+            {
+                if (!_socket.isClosed())
+                {
+                    _logger.warn("The invalidation multicast socket failed", e);
+                }
+                return;
+            }
+            catch (IOException e)
+            {
+                _logger.debug("Ignoring an invalid invalidation datagram from {}", packet.getAddress(), e);
+                _rejectedDatagrams.increment();
+            }
+        }
+    }
+
+    private void deliver(InvalidationEvent event)
+    {
+        for (Consumer<InvalidationEvent> subscriber : _subscribers)
+        {
+            try
+            {
+                subscriber.accept(event);
+            }
+            catch (RuntimeException e)
+            {
+                _logger.warn("An invalidation subscriber failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        _flushing.cancel(false);
+
+        // waits for a flush that is already running, which would otherwise lose its events on the closed socket
+        synchronized (this)
+        {
+            flush();
+
+            try
+            {
+                _socket.leaveGroup(_group, _networkInterface);
+            }
+            catch (IOException e)
+            {
+                _logger.debug("Unable to leave the invalidation multicast group", e);
+            }
+            _socket.close();
+        }
+        _receiver.interrupt();
+    }
+
+    @Override
+    public long getPublishedCount()
+    {
+        return _published.sum();
+    }
+
+    @Override
+    public long getReceivedCount()
+    {
+        return _received.sum();
+    }
+
+    @Override
+    public long getSentDatagramCount()
+    {
+        return _sentDatagrams.sum();
+    }
+
+    @Override
+    public long getSentBytes()
+    {
+        return _sentBytes.sum();
+    }
+
+    @Override
+    public long getReceivedDatagramCount()
+    {
+        return _receivedDatagrams.sum();
+    }
+
+    @Override
+    public long getRejectedDatagramCount()
+    {
+        return _rejectedDatagrams.sum();
+    }
+
+    @Override
+    public long getSendFailureCount()
+    {
+        return _sendFailures.sum();
+    }
+
+    @Override
+    public long getOversizedEventCount()
+    {
+        return _oversized.sum();
+    }
+
+    @Override
+    public long getMeanPropagationMillis()
+    {
+        return _propagation.getMean().toMillis();
+    }
+
+    @Override
+    public long getPropagationMillis99thPercentile()
+    {
+        return _propagation.getPercentile(99).toMillis();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.invalidation;
+
+public interface MulticastInvalidationBusMXBean
+{
+    long getPublishedCount();
+
+    long getReceivedCount();
+
+    long getSentDatagramCount();
+
+    long getSentBytes();
+
+    long getReceivedDatagramCount();
+
+    long getRejectedDatagramCount();
+
+    long getSendFailureCount();
+
+    /**
+     * The number of events that were not sent, since they did not fit in a datagram.
+     */
+    long getOversizedEventCount();
+
+    /**
+     * The mean time from publishing to receipt of the received events, which includes any clock difference between
+     * the nodes.
+     */
+    long getMeanPropagationMillis();
+
+    long getPropagationMillis99thPercentile();
+}
@@ -0,0 +1,443 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.lookup;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import io.curity.identityserver.plugin.usernamepassword.protection.CountMinSketch;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of accounts, with the admission policy of W-TinyLFU.
+ * <p>
+ * New entries enter a small LRU window. When the window is full, its least recently used entry competes with the
+ * least recently used entry of the main area, and only the one that was accessed more often recently stays, as
+ * estimated by a count-min sketch that is halved periodically. The main area is a segmented LRU, in which entries
+ * that are read again move from a probation segment to a protected one. This keeps frequently read accounts
+ * cached even when many accounts are only read once, such as during an enumeration attack.
+ * <p>
+ * Entries also expire a fixed time after they were loaded, and are removed when their account changes. Each load
+ * is stamped with a generation when it starts, and an account that changed after that is not cached when the load
+ * completes, since it may have been read before the change.
+ */
+public final class AccountCache implements AccountCacheMXBean
+{
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+    private static final int SKETCH_DEPTH = 4;
+
+    // the number of accesses, in multiples of the maximum size, after which frequencies are halved
+    private static final int SAMPLE_FACTOR = 10;
+
+    private final int _maximumSize;
+    private final int _windowCapacity;
+    private final int _protectedCapacity;
+    private final long _timeToLiveNanos;
+    private final CountMinSketch _frequencies;
+    private final HashFunction _hashFunction;
+
+    private final ReentrantLock _lock = new ReentrantLock();
+
+    // guarded by _lock, in access order, so that the first entry of each is the least recently used
+    private final LinkedHashMap<String, Entry> _window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> _probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> _protected = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<String>> _keysByUsername = new HashMap<>();
+    private int _samples;
+
+    // guarded by _lock, the generation of the last invalidation of each account, in the order they happened,
+    // kept only for as long as a load that started before it is in flight
+    private final LinkedHashMap<String, Long> _invalidatedAt = new LinkedHashMap<>();
+    private final TreeMap<Long, Integer> _loadsInFlight = new TreeMap<>();
+    private long _generation;
+
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _loads = new LongAdder();
+    private final LongAdder _loadNanos = new LongAdder();
+    private final LongAdder _evictions = new LongAdder();
+    private final LongAdder _rejectedAdmissions = new LongAdder();
+    private final LongAdder _expirations = new LongAdder();
+    private final LongAdder _invalidations = new LongAdder();
+    private final LongAdder _staleLoads = new LongAdder();
+
+    public AccountCache(int maximumSize, Duration timeToLive)
+    {
+        _maximumSize = Math.max(2, maximumSize);
+        _windowCapacity = Math.max(1, (int) (_maximumSize * WINDOW_RATIO));
+        _protectedCapacity = (int) ((_maximumSize - _windowCapacity) * PROTECTED_RATIO);
+        _timeToLiveNanos = timeToLive.toNanos();
+        _frequencies = new CountMinSketch(_maximumSize, SKETCH_DEPTH);
+
+        var random = new SecureRandom();
+        _hashFunction = Hashing.sipHash24(random.nextLong(), random.nextLong());
+    }
+
+    @Nullable
+    public AccountAttributes getIfPresent(String key)
+    {
+        _lock.lock();
+        try
+        {
+            recordAccess(key);
+
+            @Nullable Entry entry = _window.get(key);
+            if (entry == null)
+            {
+                entry = _protected.get(key);
+            }
+            if (entry == null && (entry = _probation.remove(key)) != null)
+            {
+                // read again while on probation, so it is worth protecting
+                _protected.put(key, entry);
+                demoteProtected();
+            }
+
+            if (entry == null)
+            {
+                _misses.increment();
+                return null;
+            }
+
+            if (System.nanoTime() - entry.expiresAtNanos() >= 0)
+            {
+                remove(key);
+                _expirations.increment();
+                _misses.increment();
+                return null;
+            }
+
+            _hits.increment();
+            return entry.account();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Note that an account is about to be loaded from the data source.
+     *
+     * @return the generation to complete the load with
+     */
+    public long beginLoad()
+    {
+        _lock.lock();
+        try
+        {
+            _loadsInFlight.merge(_generation, 1, Integer::sum);
+            return _generation;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Cache the result of a load, unless its account was invalidated after the load began. This must be called
+     * for every load that began, even when it failed.
+     *
+     * @param account    the account that was loaded, or null if none was found or the load failed
+     * @param generation the generation that {@link #beginLoad()} returned
+     */
+    public void completeLoad(String key, @Nullable AccountAttributes account, long generation)
+    {
+        _lock.lock();
+        try
+        {
+            if (account != null)
+            {
+                String username = normalize(account.getUserName());
+                @Nullable Long invalidatedAt = _invalidatedAt.get(username);
+                if (invalidatedAt == null || invalidatedAt <= generation)
+                {
+                    put(key, new Entry(account, username, System.nanoTime() + _timeToLiveNanos));
+                }
+                else
+                {
+                    _staleLoads.increment();
+                }
+            }
+
+            _loadsInFlight.computeIfPresent(generation, (ignored, loads) -> loads > 1 ? loads - 1 : null);
+            forgetSettledInvalidations();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Remove every entry of an account, after it has changed, and keep loads that are in flight from caching it.
+     */
+    public void invalidate(String username)
+    {
+        String normalizedUsername = normalize(username);
+
+        _lock.lock();
+        try
+        {
+            if (!_loadsInFlight.isEmpty())
+            {
+                // moved to the end, so that the map stays in the order of generations
+                _invalidatedAt.remove(normalizedUsername);
+                _invalidatedAt.put(normalizedUsername, ++_generation);
+            }
+
+            @Nullable Set<String> keys = _keysByUsername.get(normalizedUsername);
+            if (keys != null)
+            {
+                Set.copyOf(keys).forEach(this::remove);
+                _invalidations.increment();
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    void recordLoad(Duration latency)
+    {
+        _loads.increment();
+        _loadNanos.add(latency.toNanos());
+    }
+
+    private void put(String key, Entry entry)
+    {
+        if (_window.containsKey(key) || _probation.containsKey(key) || _protected.containsKey(key))
+        {
+            remove(key);
+        }
+
+        _window.put(key, entry);
+        _keysByUsername.computeIfAbsent(entry.username(), username -> new HashSet<>()).add(key);
+
+        if (_window.size() > _windowCapacity)
+        {
+            Iterator<Map.Entry<String, Entry>> eldest = _window.entrySet().iterator();
+            Map.Entry<String, Entry> candidate = eldest.next();
+            eldest.remove();
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    // an invalidation only matters to loads that began before it
+    private void forgetSettledInvalidations()
+    {
+        if (_loadsInFlight.isEmpty())
+        {
+            _invalidatedAt.clear();
+            return;
+        }
+
+        long oldestLoad = _loadsInFlight.firstKey();
+        Iterator<Long> invalidations = _invalidatedAt.values().iterator();
+        while (invalidations.hasNext() && invalidations.next() <= oldestLoad)
+        {
+            invalidations.remove();
+        }
+    }
+
+    private void admit(String key, Entry candidate)
+    {
+        if (_probation.size() + _protected.size() < _maximumSize - _windowCapacity)
+        {
+            _probation.put(key, candidate);
+            return;
+        }
+
+        LinkedHashMap<String, Entry> victims = _probation.isEmpty() ? _protected : _probation;
+        String victim = victims.keySet().iterator().next();
+
+        if (_frequencies.estimate(hash(key)) > _frequencies.estimate(hash(victim)))
+        {
+            remove(victim);
+            _probation.put(key, candidate);
+            _evictions.increment();
+        }
+        else
+        {
+            unindex(key, candidate);
+            _rejectedAdmissions.increment();
+        }
+    }
+
+    private void demoteProtected()
+    {
+        if (_protected.size() > _protectedCapacity)
+        {
+            Iterator<Map.Entry<String, Entry>> eldest = _protected.entrySet().iterator();
+            Map.Entry<String, Entry> demoted = eldest.next();
+            eldest.remove();
+            _probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    private void remove(String key)
+    {
+        @Nullable Entry entry = _window.remove(key);
+        if (entry == null)
+        {
+            entry = _probation.remove(key);
+        }
+        if (entry == null)
+        {
+            entry = _protected.remove(key);
+        }
+        if (entry != null)
+        {
+            unindex(key, entry);
+        }
+    }
+
+    private void unindex(String key, Entry entry)
+    {
+        @Nullable Set<String> keys = _keysByUsername.get(entry.username());
+        if (keys != null && keys.remove(key) && keys.isEmpty())
+        {
+            _keysByUsername.remove(entry.username());
+        }
+    }
+
+    private void recordAccess(String key)
+    {
+        _frequencies.increment(hash(key));
+
+        if (++_samples >= SAMPLE_FACTOR * _maximumSize)
+        {
+            _frequencies.decay();
+            _samples /= 2;
+        }
+    }
+
+    private long hash(String key)
+    {
+        return _hashFunction.hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+
+    // invalidations may name the account in a different case than it was read with, and removing too much is harmless
+    private static String normalize(String value)
+    {
+        return value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public long getSize()
+    {
+        _lock.lock();
+        try
+        {
+            return _window.size() + _probation.size() + _protected.size();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public long getMaximumSize()
+    {
+        return _maximumSize;
+    }
+
+    @Override
+    public long getHitCount()
+    {
+        return _hits.sum();
+    }
+
+    @Override
+    public long getMissCount()
+    {
+        return _misses.sum();
+    }
+
+    @Override
+    public double getHitRatio()
+    {
+        long hits = _hits.sum();
+        long total = hits + _misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getLoadCount()
+    {
+        return _loads.sum();
+    }
+
+    @Override
+    public long getAverageLoadMillis()
+    {
+        long loads = _loads.sum();
+        return loads == 0 ? 0 : Duration.ofNanos(_loadNanos.sum() / loads).toMillis();
+    }
+
+    @Override
+    public long getEvictionCount()
+    {
+        return _evictions.sum();
+    }
+
+    @Override
+    public long getRejectedAdmissionCount()
+    {
+        return _rejectedAdmissions.sum();
+    }
+
+    @Override
+    public long getExpirationCount()
+    {
+        return _expirations.sum();
+    }
+
+    @Override
+    public long getInvalidationCount()
+    {
+        return _invalidations.sum();
+    }
+
+    @Override
+    public long getStaleLoadCount()
+    {
+        return _staleLoads.sum();
+    }
+
+    private record Entry(AccountAttributes account, String username, long expiresAtNanos)
+    {
+    }
+}
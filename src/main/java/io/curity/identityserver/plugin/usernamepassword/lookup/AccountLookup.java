@@ -0,0 +1,376 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.lookup;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.curity.identityserver.plugin.usernamepassword.runtime.Deadline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+import se.curity.identityserver.sdk.service.AccountManager;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Reads accounts from the account manager, through a cache when one is configured.
+ * <p>
+ * When a read-only account manager is configured, such as one on a database replica, accounts are read from it
+ * instead. They are read from the main account manager when the read-only one fails or does not find them, and
+ * for a short time after an account is written through this authenticator, so that a replica that lags behind is
+ * not asked for it.
+ * <p>
+ * Accounts that were not found are not cached, so that a new account can log in as soon as it is created.
+ * Entries are keyed by the exact value that was looked up, since it depends on the data source whether
+ * identifiers that differ only in case belong to the same account.
+ * Accounts that change through this authenticator are removed from the cache by {@link #onAccountWritten}, and
+ * changes made elsewhere are seen once the entry expires.
+ * <p>
+ * Concurrent lookups of the same identifier share a single call to the account manager, and its result or
+ * failure, so that a burst of requests for one account makes only one call. Requests that join a call wait for no
+ * longer than their own deadline. When the request that made the call was interrupted, those that joined it make
+ * their own call rather than failing with it.
+ */
+public final class AccountLookup implements AccountLookupMXBean
+{
+    private static final Logger _logger = LoggerFactory.getLogger(AccountLookup.class);
+    private static final String USERNAME_KEY_PREFIX = "u:";
+    private static final String EMAIL_KEY_PREFIX = "e:";
+
+    private final AccountManager _accountManager;
+
+    @Nullable
+    private final AccountManager _readOnlyAccountManager;
+
+    // identifiers of accounts that were recently written, which a replica may not have caught up with
+    @Nullable
+    private final Cache<String, Boolean> _recentWrites;
+
+    @Nullable
+    private final AccountCache _cache;
+
+    private final ConcurrentMap<String, CompletableFuture<AccountAttributes>> _inFlight = new ConcurrentHashMap<>();
+    private final LongAdder _calls = new LongAdder();
+    private final LongAdder _coalesced = new LongAdder();
+    private final LongAdder _readOnlyCalls = new LongAdder();
+    private final LongAdder _readOnlyFailures = new LongAdder();
+    private final LongAdder _readOnlyMisses = new LongAdder();
+    private final LongAdder _recentWriteCalls = new LongAdder();
+
+    /**
+     * @param readOnlyAccountManager an account manager to read from instead of the main one, if any
+     * @param readYourWritesWindow   how long after an account is written it is only read from the main one
+     * @param maximumRecentWrites    the number of written accounts that are remembered for that long
+     * @param cache                  the cache to read through, if any
+     */
+    public AccountLookup(AccountManager accountManager,
+                         @Nullable AccountManager readOnlyAccountManager,
+                         Duration readYourWritesWindow,
+                         int maximumRecentWrites,
+                         @Nullable AccountCache cache)
+    {
+        _accountManager = accountManager;
+        _readOnlyAccountManager = readOnlyAccountManager;
+        _recentWrites = readOnlyAccountManager != null
+                ? CacheBuilder.newBuilder()
+                        .expireAfterWrite(readYourWritesWindow)
+                        .maximumSize(maximumRecentWrites)
+                        .build()
+                : null;
+        _cache = cache;
+    }
+
+    @Nullable
+    public AccountAttributes getByUserName(String username)
+    {
+        return getByUserName(username, Deadline.none());
+    }
+
+    /**
+     * @param deadline the deadline of the request, which limits how long it waits for the call of another one
+     */
+    @Nullable
+    public AccountAttributes getByUserName(String username, Deadline deadline)
+    {
+        return get(USERNAME_KEY_PREFIX + username, username, deadline, AccountManager::getByUserName);
+    }
+
+    @Nullable
+    public AccountAttributes getByEmail(String email)
+    {
+        return getByEmail(email, Deadline.none());
+    }
+
+    /**
+     * @param deadline the deadline of the request, which limits how long it waits for the call of another one
+     */
+    @Nullable
+    public AccountAttributes getByEmail(String email, Deadline deadline)
+    {
+        return get(EMAIL_KEY_PREFIX + email, email, deadline, AccountManager::getByEmail);
+    }
+
+    /**
+     * Forget the cached account of a user after it has been written, and read it from the main account manager
+     * for a while.
+     */
+    public void onAccountWritten(String username, @Nullable String emailAddress)
+    {
+        if (_cache != null)
+        {
+            _cache.invalidate(username);
+        }
+
+        if (_recentWrites != null)
+        {
+            _recentWrites.put(recentWriteKey(USERNAME_KEY_PREFIX + username), true);
+            if (emailAddress != null)
+            {
+                _recentWrites.put(recentWriteKey(EMAIL_KEY_PREFIX + emailAddress), true);
+            }
+        }
+    }
+
+    public boolean useUsernameAsEmail()
+    {
+        return _accountManager.useUsernameAsEmail();
+    }
+
+    public Optional<AccountCache> getCache()
+    {
+        return Optional.ofNullable(_cache);
+    }
+
+    @Nullable
+    private AccountAttributes get(String key, String value, Deadline deadline,
+                                  BiFunction<AccountManager, String, AccountAttributes> loader)
+    {
+        if (_cache != null)
+        {
+            @Nullable AccountAttributes account = _cache.getIfPresent(key);
+            if (account != null)
+            {
+                return account;
+            }
+        }
+
+        while (true)
+        {
+            var call = new CompletableFuture<AccountAttributes>();
+            @Nullable CompletableFuture<AccountAttributes> inFlight = _inFlight.putIfAbsent(key, call);
+            if (inFlight == null)
+            {
+                return call(call, key, value, loader);
+            }
+
+            _coalesced.increment();
+            try
+            {
+                return await(inFlight, deadline);
+            }
+            catch (CancellationException e)
+            {
+                _logger.trace("The lookup that was joined was interrupted, so the account is looked up again");
+            }
+        }
+    }
+
+    @Nullable
+    private AccountAttributes call(CompletableFuture<AccountAttributes> call, String key, String value,
+                                   BiFunction<AccountManager, String, AccountAttributes> loader)
+    {
+        // the call is always removed and completed, even when the loader fails, so that no waiter is left behind,
+        // and removed first, so that a waiter that tries again does not find it
+        @Nullable AccountAttributes account;
+        try
+        {
+            account = load(key, value, loader);
+        }
+        catch (RuntimeException | Error e)
+        {
+            _inFlight.remove(key, call);
+            if (Thread.currentThread().isInterrupted() || e.getCause() instanceof InterruptedException)
+            {
+                // the interruption was meant for this request only
+                call.cancel(false);
+            }
+            else
+            {
+                call.completeExceptionally(e);
+            }
+            throw e;
+        }
+
+        _inFlight.remove(key, call);
+        call.complete(account);
+        return account;
+    }
+
+    @Nullable
+    private AccountAttributes load(String key, String value, BiFunction<AccountManager, String, AccountAttributes> loader)
+    {
+        _calls.increment();
+
+        if (_cache == null)
+        {
+            return read(key, value, loader);
+        }
+
+        long generation = _cache.beginLoad();
+        @Nullable AccountAttributes account = null;
+        try
+        {
+            long started = System.nanoTime();
+            account = read(key, value, loader);
+            _cache.recordLoad(Duration.ofNanos(System.nanoTime() - started));
+            return account;
+        }
+        finally
+        {
+            _cache.completeLoad(key, account, generation);
+        }
+    }
+
+    @Nullable
+    private AccountAttributes read(String key, String value, BiFunction<AccountManager, String, AccountAttributes> loader)
+    {
+        if (_readOnlyAccountManager == null)
+        {
+            return loader.apply(_accountManager, value);
+        }
+
+        if (_recentWrites != null && _recentWrites.getIfPresent(recentWriteKey(key)) != null)
+        {
+            _recentWriteCalls.increment();
+            return loader.apply(_accountManager, value);
+        }
+
+        @Nullable AccountAttributes account;
+        try
+        {
+            _readOnlyCalls.increment();
+            account = loader.apply(_readOnlyAccountManager, value);
+        }
+        catch (RuntimeException e)
+        {
+            _logger.debug("The read-only account manager failed, reading from the main one instead", e);
+            _readOnlyFailures.increment();
+            return loader.apply(_accountManager, value);
+        }
+
+        if (account == null)
+        {
+            // the account may have been written elsewhere, and not have reached the replica yet
+            _readOnlyMisses.increment();
+            return loader.apply(_accountManager, value);
+        }
+
+        return account;
+    }
+
+    // written accounts may be read in a different case, and reading too many from the main account manager is harmless
+    private static String recentWriteKey(String key)
+    {
+        return key.toLowerCase(Locale.ROOT);
+    }
+
+    @Nullable
+    private static AccountAttributes await(CompletableFuture<AccountAttributes> call, Deadline deadline)
+    {
+        try
+        {
+            return deadline.await(call, "awaitAccountLookup");
+        }
+        catch (ExecutionException e)
+        {
+            // rethrow what the account manager threw, as if this caller had made the call itself
+            if (e.getCause() instanceof RuntimeException runtimeException)
+            {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error)
+            {
+                throw error;
+            }
+            throw new IllegalStateException("Account lookup failed", e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for an account lookup", e);
+        }
+    }
+
+    @Override
+    public long getDataSourceCallCount()
+    {
+        return _calls.sum();
+    }
+
+    @Override
+    public long getCoalescedCount()
+    {
+        return _coalesced.sum();
+    }
+
+    @Override
+    public long getInFlightCount()
+    {
+        return _inFlight.size();
+    }
+
+    @Override
+    public long getReadOnlyCallCount()
+    {
+        return _readOnlyCalls.sum();
+    }
+
+    @Override
+    public long getReadOnlyFailureCount()
+    {
+        return _readOnlyFailures.sum();
+    }
+
+    @Override
+    public long getReadOnlyMissCount()
+    {
+        return _readOnlyMisses.sum();
+    }
+
+    @Override
+    public long getRecentWriteCallCount()
+    {
+        return _recentWriteCalls.sum();
+    }
+
+    @Override
+    public double getFanInRatio()
+    {
+        long calls = _calls.sum();
+        return calls == 0 ? 0 : (double) (calls + _coalesced.sum()) / calls;
+    }
+}
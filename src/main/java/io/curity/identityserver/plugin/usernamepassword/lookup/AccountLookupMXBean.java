@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.lookup;
+
+public interface AccountLookupMXBean
+{
+    long getDataSourceCallCount();
+
+    long getCoalescedCount();
+
+    long getInFlightCount();
+
+    long getReadOnlyCallCount();
+
+    long getReadOnlyFailureCount();
+
+    /**
+     * The number of accounts that the read-only account manager did not find, and were read from the main one.
+     */
+    long getReadOnlyMissCount();
+
+    /**
+     * The number of calls made to the main account manager instead of the read-only one, for recently written accounts.
+     */
+    long getRecentWriteCallCount();
+
+    /**
+     * The average number of lookups answered by each call to the account manager.
+     */
+    double getFanInRatio();
+}
@@ -0,0 +1,231 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.lookup;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Looks up the account of a user who is about to log in, while the login form is shown.
+ * <p>
+ * The lookup runs on a bounded executor and is dropped when that is full, so that showing the form never waits
+ * for it. Its result is kept for a short time, and taken by the login that follows. Besides warming the data
+ * source, it lets a login for an account that does not exist be answered without calling the data source, and a
+ * login for one that does use the account without looking it up again.
+ * <p>
+ * Results are kept by the exact username that was looked up, since it depends on the data source whether
+ * usernames that differ only in case belong to the same account. When an account changes, the results for every
+ * username that differs from it only in case are forgotten, in case they do.
+ */
+public final class AccountPrefetcher implements AccountPrefetcherMXBean
+{
+    private static final Logger _logger = LoggerFactory.getLogger(AccountPrefetcher.class);
+
+    private final AccountLookup _accountLookup;
+    private final Executor _executor;
+    // by the lower case username, and then by the exact one
+    private final Cache<String, Map<String, Prefetched>> _accounts;
+    private final Set<String> _inFlight = ConcurrentHashMap.newKeySet();
+    private final LongAdder _prefetches = new LongAdder();
+    private final LongAdder _dropped = new LongAdder();
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _lookupNanos = new LongAdder();
+    private final LongAdder _savedNanos = new LongAdder();
+
+    public AccountPrefetcher(AccountLookup accountLookup, Executor executor, Duration timeToLive, int maximumSize)
+    {
+        _accountLookup = accountLookup;
+        _executor = executor;
+        _accounts = CacheBuilder.newBuilder()
+                .expireAfterWrite(timeToLive)
+                .maximumSize(maximumSize)
+                .build();
+    }
+
+    /**
+     * Start looking up the account in the background, unless it was already looked up recently.
+     */
+    public void prefetch(@Nullable String username)
+    {
+        if (username == null || username.isBlank())
+        {
+            return;
+        }
+
+        if (prefetchedFor(username) != null || !_inFlight.add(username))
+        {
+            return;
+        }
+
+        try
+        {
+            _executor.execute(() -> lookUp(username));
+        }
+        catch (RejectedExecutionException e)
+        {
+            _inFlight.remove(username);
+            _dropped.increment();
+        }
+    }
+
+    private void lookUp(String username)
+    {
+        try
+        {
+            long startedAt = System.nanoTime();
+            @Nullable AccountAttributes account = _accountLookup.getByUserName(username);
+            _lookupNanos.add(System.nanoTime() - startedAt);
+            _prefetches.increment();
+
+            _accounts.asMap()
+                    .computeIfAbsent(groupOf(username), group -> new ConcurrentHashMap<>(2))
+                    .put(username, new Prefetched(account));
+        }
+        catch (RuntimeException e)
+        {
+            _logger.debug("Could not prefetch the account of a user who is about to log in", e);
+        }
+        finally
+        {
+            _inFlight.remove(username);
+        }
+    }
+
+    /**
+     * Take the result of a previous prefetch for the username.
+     *
+     * @return the result of the lookup, or empty if the account was not prefetched
+     */
+    public Optional<Prefetched> take(String username)
+    {
+        @Nullable Map<String, Prefetched> group = _accounts.getIfPresent(groupOf(username));
+        @Nullable Prefetched prefetched = group == null ? null : group.remove(username);
+        if (prefetched == null)
+        {
+            _misses.increment();
+            return Optional.empty();
+        }
+
+        _hits.increment();
+
+        // only a login for an account that does not exist is answered without calling the data source, while
+        // any other still has its password verified by it
+        if (!prefetched.exists())
+        {
+            _savedNanos.add(getAverageLookupNanos());
+        }
+
+        return Optional.of(prefetched);
+    }
+
+    /**
+     * Forget what was prefetched for the username, and for any that only differs from it in case, because the
+     * account changed.
+     */
+    public void invalidate(String username)
+    {
+        _accounts.invalidate(groupOf(username));
+    }
+
+    @Nullable
+    private Prefetched prefetchedFor(String username)
+    {
+        @Nullable Map<String, Prefetched> group = _accounts.getIfPresent(groupOf(username));
+        return group == null ? null : group.get(username);
+    }
+
+    private static String groupOf(String username)
+    {
+        return username.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private long getAverageLookupNanos()
+    {
+        long prefetches = _prefetches.sum();
+        return prefetches == 0 ? 0 : _lookupNanos.sum() / prefetches;
+    }
+
+    /**
+     * @param account the account that was found, or null if it does not exist
+     */
+    public record Prefetched(@Nullable AccountAttributes account)
+    {
+        public boolean exists()
+        {
+            return account != null;
+        }
+    }
+
+    @Override
+    public long getPrefetchCount()
+    {
+        return _prefetches.sum();
+    }
+
+    @Override
+    public long getDroppedPrefetchCount()
+    {
+        return _dropped.sum();
+    }
+
+    @Override
+    public long getHitCount()
+    {
+        return _hits.sum();
+    }
+
+    @Override
+    public long getMissCount()
+    {
+        return _misses.sum();
+    }
+
+    @Override
+    public double getHitRatio()
+    {
+        long hits = _hits.sum();
+        long total = hits + _misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getAverageLookupMillis()
+    {
+        return Duration.ofNanos(getAverageLookupNanos()).toMillis();
+    }
+
+    @Override
+    public long getSavedMillis()
+    {
+        return Duration.ofNanos(_savedNanos.sum()).toMillis();
+    }
+}
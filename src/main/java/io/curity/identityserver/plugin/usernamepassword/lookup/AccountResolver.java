@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.lookup;
+
+import io.curity.identityserver.plugin.usernamepassword.runtime.Deadline;
+import org.apache.commons.lang3.StringUtils;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Finds an account by whichever identifier the user entered, looking it up as a username and as an email
+ * address at the same time, rather than one after the other.
+ * <p>
+ * When both lookups find an account, which need not be the same one, the lookup that has priority decides, so
+ * that the answer does not depend on which one was faster.
+ */
+public final class AccountResolver
+{
+    private final AccountLookup _accountLookup;
+    private final ExecutorService _executor;
+
+    public AccountResolver(AccountLookup accountLookup, ExecutorService executor)
+    {
+        _accountLookup = accountLookup;
+        _executor = executor;
+    }
+
+    /**
+     * Resolve what the user entered as a username at login, which may also be their email address.
+     * <p>
+     * An account with the identifier as its username has priority, since the identifier was verified as a
+     * username before email addresses could be entered.
+     *
+     * @param deadline the deadline of the request
+     * @return the account, or null if the identifier is not an email address, or no account has it
+     */
+    @Nullable
+    public AccountAttributes resolveLoginIdentifier(String identifier, Deadline deadline)
+    {
+        if (_accountLookup.useUsernameAsEmail() || !looksLikeEmail(identifier))
+        {
+            return null;
+        }
+
+        return firstFound(List.of(
+                () -> _accountLookup.getByUserName(identifier, deadline),
+                () -> _accountLookup.getByEmail(identifier, deadline)));
+    }
+
+    /**
+     * Look up the account by username and by email address concurrently.
+     * <p>
+     * An account with the email address has priority, as when it was looked up before the username.
+     *
+     * @param deadline the deadline of the request
+     * @return the account found, or null if there is none
+     */
+    @Nullable
+    public AccountAttributes resolve(@Nullable String username, @Nullable String emailAddress, Deadline deadline)
+    {
+        boolean hasUsername = StringUtils.isNotBlank(username);
+        boolean hasEmailAddress = StringUtils.isNotBlank(emailAddress);
+
+        if (hasUsername && hasEmailAddress)
+        {
+            return firstFound(List.of(
+                    () -> _accountLookup.getByEmail(emailAddress, deadline),
+                    () -> _accountLookup.getByUserName(username, deadline)));
+        }
+        else if (hasUsername)
+        {
+            return _accountLookup.getByUserName(username, deadline);
+        }
+        else if (hasEmailAddress)
+        {
+            return _accountLookup.getByEmail(emailAddress, deadline);
+        }
+
+        return null;
+    }
+
+    /**
+     * Run the lookups concurrently, and return the account of the first one, in the order given, that finds one.
+     */
+    @Nullable
+    private AccountAttributes firstFound(List<Callable<AccountAttributes>> lookups)
+    {
+        var futures = new ArrayList<Future<AccountAttributes>>(lookups.size());
+        lookups.forEach(lookup -> futures.add(_executor.submit(lookup)));
+
+        @Nullable RuntimeException failure = null;
+        try
+        {
+            for (Future<AccountAttributes> future : futures)
+            {
+                try
+                {
+                    @Nullable AccountAttributes account = future.get();
+                    if (account != null)
+                    {
+                        return account;
+                    }
+                }
+                catch (ExecutionException e)
+                {
+                    failure = e.getCause() instanceof RuntimeException runtimeException
+                            ? runtimeException
+                            : new IllegalStateException("Account lookup failed", e.getCause());
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while looking up an account", e);
+        }
+        finally
+        {
+            // a lookup that is already running is left to finish, since other requests may be waiting for its call
+            futures.forEach(future -> future.cancel(false));
+        }
+
+        // without an answer from every lookup, it cannot be concluded that there is no account
+        if (failure != null)
+        {
+            throw failure;
+        }
+
+        return null;
+    }
+
+    private static boolean looksLikeEmail(String identifier)
+    {
+        int at = identifier.indexOf('@');
+        return at > 0 && at < identifier.length() - 1 && StringUtils.containsNone(identifier, ' ', '\t');
+    }
+}
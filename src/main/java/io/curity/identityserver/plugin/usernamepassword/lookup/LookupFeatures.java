@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.lookup;
+
+import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.usernamepassword.runtime.RuntimeResources;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * The configured ways of reading accounts, which every handler uses instead of the account manager.
+ */
+public final class LookupFeatures
+{
+    private final AccountLookup _accountLookup;
+
+    @Nullable
+    private final AccountPrefetcher _accountPrefetcher;
+
+    @Nullable
+    private final AccountResolver _accountResolver;
+
+    public LookupFeatures(UsernamePasswordAuthenticatorPluginConfig configuration, RuntimeResources resources)
+    {
+        @Nullable AccountCache accountCache = configuration.getAccountCache()
+                .map(settings -> new AccountCache(settings.getMaximumEntries(),
+                        Duration.ofSeconds(settings.getTimeToLiveSeconds())))
+                .orElse(null);
+        if (accountCache != null)
+        {
+            resources.register("AccountCache", accountCache);
+        }
+
+        var readReplicaSettings = configuration.getReadReplica();
+        _accountLookup = new AccountLookup(configuration.getAccountManager(),
+                readReplicaSettings
+                        .map(settings -> settings.getReadOnlyAccountManager())
+                        .orElse(null),
+                Duration.ofSeconds(readReplicaSettings
+                        .map(settings -> settings.getReadYourWritesSeconds())
+                        .orElse(0)),
+                readReplicaSettings
+                        .map(settings -> settings.getMaximumRecentWrites())
+                        .orElse(0),
+                accountCache);
+        resources.register("AccountLookup", _accountLookup);
+
+        // accounts can only be prefetched when an account manager is configured
+        _accountPrefetcher = configuration.getPrefetch()
+                .filter(settings -> configuration.getAccountManager() != null)
+                .map(settings -> new AccountPrefetcher(_accountLookup,
+                        resources.newBackgroundExecutor("username-password-prefetch-%d",
+                                settings.getThreads(), settings.getQueueCapacity()),
+                        Duration.ofSeconds(settings.getTimeToLiveSeconds()), settings.getMaximumEntries()))
+                .orElse(null);
+        if (_accountPrefetcher != null)
+        {
+            resources.register("AccountPrefetcher", _accountPrefetcher);
+        }
+
+        _accountResolver = configuration.getAccountManager() != null
+                ? new AccountResolver(_accountLookup, resources.getVirtualThreads())
+                : null;
+    }
+
+    public AccountLookup getAccountLookup()
+    {
+        return _accountLookup;
+    }
+
+    public Optional<AccountPrefetcher> getAccountPrefetcher()
+    {
+        return Optional.ofNullable(_accountPrefetcher);
+    }
+
+    public Optional<AccountResolver> getAccountResolver()
+    {
+        return Optional.ofNullable(_accountResolver);
+    }
+
+    /**
+     * Forget what is remembered about an account after it has been written.
+     */
+    public void onAccountWritten(String username, @Nullable String emailAddress)
+    {
+        if (_accountPrefetcher != null)
+        {
+            _accountPrefetcher.invalidate(username);
+        }
+        _accountLookup.onAccountWritten(username, emailAddress);
+    }
+}
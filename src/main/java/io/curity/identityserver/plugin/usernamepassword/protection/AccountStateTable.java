@@ -0,0 +1,277 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed size, off-heap table of accounts that cannot currently log in, because they are locked out after too
+ * many failed attempts or have not been activated yet.
+ * <p>
+ * Each entry takes 16 bytes outside of the Java heap: a 64-bit keyed hash of the normalized username, and a word
+ * holding the expiry time and the state. Since only hashes are stored, the table never holds usernames, and a
+ * hash collision can at worst make one account share the state of another until the entry expires. The hash is
+ * keyed with a random secret, so that collisions cannot be engineered.
+ * <p>
+ * The table is divided into independently locked segments using open addressing with a short probe window.
+ * When a window is full, the entry closest to expiry is evicted, so memory use never grows.
+ */
+public final class AccountStateTable implements AccountStateTableMXBean
+{
+    private static final int SEGMENTS = 64;
+    private static final int SLOT_BYTES = 16;
+    private static final int PROBE_WINDOW = 16;
+    private static final long EMPTY = 0;
+    private static final int STATE_BITS = 2;
+    private static final long STATE_MASK = (1 << STATE_BITS) - 1;
+
+    private final Segment[] _segments = new Segment[SEGMENTS];
+    private final int _slotsPerSegment;
+    private final HashFunction _hashFunction;
+    private final Clock _clock;
+    private final LongAdder _occupied = new LongAdder();
+    private final LongAdder _inserts = new LongAdder();
+    private final LongAdder _evictions = new LongAdder();
+    private final LongAdder _lockedOutHits = new LongAdder();
+    private final LongAdder _pendingActivationHits = new LongAdder();
+
+    public AccountStateTable(int capacity, Clock clock)
+    {
+        // a power of two, so that the slot can be taken from the low bits of the hash
+        _slotsPerSegment = Integer.highestOneBit(Math.max(PROBE_WINDOW, (capacity + SEGMENTS - 1) / SEGMENTS) * 2 - 1);
+        _clock = clock;
+
+        var random = new SecureRandom();
+        _hashFunction = Hashing.sipHash24(random.nextLong(), random.nextLong());
+
+        for (int i = 0; i < SEGMENTS; i++)
+        {
+            _segments[i] = new Segment(ByteBuffer.allocateDirect(_slotsPerSegment * SLOT_BYTES));
+        }
+    }
+
+    public AccountState get(String username)
+    {
+        long key = keyOf(username);
+        long now = _clock.millis();
+        Segment segment = segmentOf(key);
+
+        segment._lock.lock();
+        try
+        {
+            int start = (int) key & (_slotsPerSegment - 1);
+            for (int probe = 0; probe < PROBE_WINDOW; probe++)
+            {
+                int offset = ((start + probe) & (_slotsPerSegment - 1)) * SLOT_BYTES;
+                long slotKey = segment._buffer.getLong(offset);
+                if (slotKey == EMPTY)
+                {
+                    break;
+                }
+
+                if (slotKey == key)
+                {
+                    long value = segment._buffer.getLong(offset + Long.BYTES);
+                    if ((value >>> STATE_BITS) <= now)
+                    {
+                        return AccountState.NONE;
+                    }
+
+                    AccountState state = AccountState.values()[(int) (value & STATE_MASK)];
+                    (state == AccountState.LOCKED_OUT ? _lockedOutHits : _pendingActivationHits).increment();
+                    return state;
+                }
+            }
+        }
+        finally
+        {
+            segment._lock.unlock();
+        }
+
+        return AccountState.NONE;
+    }
+
+    public void put(String username, AccountState state, Duration timeToLive)
+    {
+        long expiresAt = _clock.millis() + timeToLive.toMillis();
+        write(keyOf(username), (expiresAt << STATE_BITS) | state.ordinal());
+    }
+
+    public void remove(String username)
+    {
+        // an entry that expired at the epoch is treated exactly as an absent one, and its slot can be reused
+        write(keyOf(username), AccountState.NONE.ordinal());
+    }
+
+    private void write(long key, long value)
+    {
+        long now = _clock.millis();
+        Segment segment = segmentOf(key);
+
+        segment._lock.lock();
+        try
+        {
+            int start = (int) key & (_slotsPerSegment - 1);
+            int reusable = -1;
+            int earliestExpiry = -1;
+            long earliestExpiresAt = Long.MAX_VALUE;
+
+            for (int probe = 0; probe < PROBE_WINDOW; probe++)
+            {
+                int offset = ((start + probe) & (_slotsPerSegment - 1)) * SLOT_BYTES;
+                long slotKey = segment._buffer.getLong(offset);
+                if (slotKey == key)
+                {
+                    segment._buffer.putLong(offset + Long.BYTES, value);
+                    return;
+                }
+
+                if (slotKey == EMPTY)
+                {
+                    if (reusable < 0)
+                    {
+                        reusable = offset;
+                    }
+                    break;
+                }
+
+                long expiresAt = segment._buffer.getLong(offset + Long.BYTES) >>> STATE_BITS;
+                if (expiresAt <= now && reusable < 0)
+                {
+                    reusable = offset;
+                }
+
+                if (expiresAt < earliestExpiresAt)
+                {
+                    earliestExpiresAt = expiresAt;
+                    earliestExpiry = offset;
+                }
+            }
+
+            if ((value >>> STATE_BITS) <= now)
+            {
+                // nothing to remove
+                return;
+            }
+
+            int offset;
+            if (reusable >= 0)
+            {
+                offset = reusable;
+                if (segment._buffer.getLong(offset) == EMPTY)
+                {
+                    _occupied.increment();
+                }
+            }
+            else
+            {
+                offset = earliestExpiry;
+                _evictions.increment();
+            }
+
+            segment._buffer.putLong(offset, key);
+            segment._buffer.putLong(offset + Long.BYTES, value);
+            _inserts.increment();
+        }
+        finally
+        {
+            segment._lock.unlock();
+        }
+    }
+
+    private long keyOf(String username)
+    {
+        long hash = _hashFunction.hashString(username.trim().toLowerCase(Locale.ROOT), StandardCharsets.UTF_8).asLong();
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    private Segment segmentOf(long key)
+    {
+        // the high bits choose the segment, and the low bits the slot within it
+        return _segments[(int) (key >>> (Long.SIZE - Integer.numberOfTrailingZeros(SEGMENTS)))];
+    }
+
+    @Override
+    public long getCapacity()
+    {
+        return (long) _slotsPerSegment * SEGMENTS;
+    }
+
+    @Override
+    public long getOffHeapBytes()
+    {
+        return getCapacity() * SLOT_BYTES;
+    }
+
+    @Override
+    public long getOccupiedSlots()
+    {
+        return _occupied.sum();
+    }
+
+    @Override
+    public long getInsertCount()
+    {
+        return _inserts.sum();
+    }
+
+    @Override
+    public long getEvictionCount()
+    {
+        return _evictions.sum();
+    }
+
+    @Override
+    public long getLockedOutHitCount()
+    {
+        return _lockedOutHits.sum();
+    }
+
+    @Override
+    public long getPendingActivationHitCount()
+    {
+        return _pendingActivationHits.sum();
+    }
+
+    public enum AccountState
+    {
+        NONE,
+        LOCKED_OUT,
+        PENDING_ACTIVATION
+    }
+
+    private static final class Segment
+    {
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final ByteBuffer _buffer;
+
+        private Segment(ByteBuffer buffer)
+        {
+            _buffer = buffer;
+        }
+    }
+}
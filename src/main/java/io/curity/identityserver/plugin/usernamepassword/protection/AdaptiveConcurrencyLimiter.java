@@ -0,0 +1,187 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A gradient based concurrency limiter that sizes itself from the observed latency of the protected operation.
+ * <p>
+ * The limit grows while latency stays close to its long term baseline and shrinks when latency rises, which
+ * happens when password hashing saturates the CPU. Callers over the limit are refused immediately rather than
+ * queued, so that the requests which are admitted still complete within their normal latency.
+ */
+public final class AdaptiveConcurrencyLimiter implements AdaptiveConcurrencyLimiterMXBean
+{
+    private static final double SMOOTHING = 0.2;
+    private static final double BASELINE_WINDOW = 600;
+    private static final double RECENT_WINDOW = 10;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final double BASELINE_DRIFT_THRESHOLD = 2.0;
+
+    private final int _minLimit;
+    private final int _maxLimit;
+    private final AtomicInteger _inFlight = new AtomicInteger();
+    private final LongAdder _accepted = new LongAdder();
+    private final LongAdder _shed = new LongAdder();
+
+    private volatile int _limit;
+
+    // guarded by this
+    private double _estimatedLimit;
+    private double _baselineRttNanos;
+    private double _recentRttNanos;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit)
+    {
+        _minLimit = Math.max(1, minLimit);
+        _maxLimit = Math.max(_minLimit, maxLimit);
+        _estimatedLimit = Math.min(_maxLimit, Math.max(_minLimit, initialLimit));
+        _limit = (int) _estimatedLimit;
+    }
+
+    /**
+     * Try to take a permit without waiting.
+     *
+     * @return a permit that must be released when the operation completes, or empty if the caller should be shed
+     */
+    public Optional<Permit> tryAcquire()
+    {
+        int current;
+        do
+        {
+            current = _inFlight.get();
+            if (current >= _limit)
+            {
+                _shed.increment();
+                return Optional.empty();
+            }
+        }
+        while (!_inFlight.compareAndSet(current, current + 1));
+
+        _accepted.increment();
+        return Optional.of(new Permit(current + 1));
+    }
+
+    private synchronized void onSample(long rttNanos, int inFlightAtStart)
+    {
+        if (_baselineRttNanos == 0)
+        {
+            _baselineRttNanos = rttNanos;
+            _recentRttNanos = rttNanos;
+            return;
+        }
+
+        _recentRttNanos += (rttNanos - _recentRttNanos) / RECENT_WINDOW;
+        _baselineRttNanos += (_recentRttNanos - _baselineRttNanos) / BASELINE_WINDOW;
+
+        // When latency has improved a lot, let the baseline catch up quickly instead of over the long window
+        if (_baselineRttNanos / _recentRttNanos > BASELINE_DRIFT_THRESHOLD)
+        {
+            _baselineRttNanos = _recentRttNanos * BASELINE_DRIFT_THRESHOLD;
+        }
+
+        // Do not grow the limit while it is not being used, or it would be meaningless when load arrives
+        if (inFlightAtStart * 2 < _estimatedLimit)
+        {
+            return;
+        }
+
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, _baselineRttNanos / _recentRttNanos));
+        double queueAllowance = Math.sqrt(_estimatedLimit);
+        double newLimit = _estimatedLimit * gradient + queueAllowance;
+
+        _estimatedLimit = _estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        _estimatedLimit = Math.max(_minLimit, Math.min(_maxLimit, _estimatedLimit));
+        _limit = (int) _estimatedLimit;
+    }
+
+    @Override
+    public int getLimit()
+    {
+        return _limit;
+    }
+
+    @Override
+    public int getInFlight()
+    {
+        return _inFlight.get();
+    }
+
+    @Override
+    public long getAcceptedCount()
+    {
+        return _accepted.sum();
+    }
+
+    @Override
+    public long getShedCount()
+    {
+        return _shed.sum();
+    }
+
+    @Override
+    public synchronized double getBaselineLatencyMillis()
+    {
+        return _baselineRttNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public synchronized double getRecentLatencyMillis()
+    {
+        return _recentRttNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public final class Permit
+    {
+        private final long _startedAt = System.nanoTime();
+        private final int _inFlightAtStart;
+        private final AtomicBoolean _released = new AtomicBoolean();
+
+        private Permit(int inFlightAtStart)
+        {
+            _inFlightAtStart = inFlightAtStart;
+        }
+
+        /**
+         * Release the permit after the operation completed normally, using its duration as a latency sample.
+         */
+        public void release()
+        {
+            if (_released.compareAndSet(false, true))
+            {
+                _inFlight.decrementAndGet();
+                onSample(System.nanoTime() - _startedAt, _inFlightAtStart);
+            }
+        }
+
+        /**
+         * Release the permit without sampling, when the operation failed and its duration says nothing about load.
+         */
+        public void abandon()
+        {
+            if (_released.compareAndSet(false, true))
+            {
+                _inFlight.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import com.google.common.net.InetAddresses;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Denies requests from client addresses in a list of hostile ranges, before any data source is called.
+ * <p>
+ * The list is a local file with one address or CIDR range on each line, optionally preceded by {@code deny} or
+ * {@code allow}, where {@code deny} is the default. Lines starting with {@code #} are comments. The longest
+ * range that contains an address decides, so that a smaller range can be allowed within a larger denied one.
+ * <p>
+ * The file is read through a memory mapping into radix tries, which replace the previous ones at once whenever
+ * the file changes. Until the file has been loaded for the first time, every address is allowed.
+ */
+public final class AddressFilter implements AddressFilterMXBean
+{
+    private static final Logger _logger = LoggerFactory.getLogger(AddressFilter.class);
+
+    private final Path _listFile;
+    private final AtomicLong _lastReloadMillis = new AtomicLong();
+    private final LongAdder _reloads = new LongAdder();
+    private final LongAdder _denied = new LongAdder();
+
+    private volatile Tries _tries;
+    private volatile FileTime _loadedVersion;
+
+    public AddressFilter(Path listFile)
+    {
+        _listFile = listFile;
+    }
+
+    public boolean isDenied(@Nullable String clientAddress)
+    {
+        Tries tries = _tries;
+        if (tries == null || clientAddress == null || !InetAddresses.isInetAddress(clientAddress))
+        {
+            return false;
+        }
+
+        InetAddress address = InetAddresses.forString(clientAddress);
+        PrefixTrie trie = address instanceof Inet4Address ? tries.ipv4() : tries.ipv6();
+        if (trie.lookup(address.getAddress()) != PrefixTrie.DENY)
+        {
+            return false;
+        }
+
+        _denied.increment();
+        return true;
+    }
+
+    /**
+     * Reload the list if the file has changed since it was last loaded.
+     */
+    public void refresh()
+    {
+        try
+        {
+            FileTime version = Files.getLastModifiedTime(_listFile);
+            if (!version.equals(_loadedVersion))
+            {
+                reload(version);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // a failure must not escape, or the scheduler would stop checking the file
+            _logger.warn("Unable to load the address list from {}", _listFile, e);
+        }
+    }
+
+    private void reload(FileTime version) throws IOException
+    {
+        long startedAt = System.nanoTime();
+        var ipv4 = new PrefixTrie(32);
+        var ipv6 = new PrefixTrie(128);
+
+        try (FileChannel channel = FileChannel.open(_listFile, StandardOpenOption.READ))
+        {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] line = new byte[256];
+            int lineNumber = 0;
+
+            while (buffer.hasRemaining())
+            {
+                int length = 0;
+                while (buffer.hasRemaining())
+                {
+                    byte value = buffer.get();
+                    if (value == '\n')
+                    {
+                        break;
+                    }
+                    if (length < line.length)
+                    {
+                        line[length] = value;
+                    }
+                    length++;
+                }
+
+                lineNumber++;
+                if (length > line.length)
+                {
+                    throw new IOException("Line " + lineNumber + " is too long");
+                }
+
+                add(new String(line, 0, length, StandardCharsets.ISO_8859_1).trim(), lineNumber, ipv4, ipv6);
+            }
+        }
+
+        ipv4.trim();
+        ipv6.trim();
+        _tries = new Tries(ipv4, ipv6);
+
+        _loadedVersion = version;
+        _lastReloadMillis.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        _reloads.increment();
+
+        _logger.info("Loaded {} address ranges in {} ms",
+                ipv4.getPrefixCount() + ipv6.getPrefixCount(), _lastReloadMillis.get());
+    }
+
+    private static void add(String line, int lineNumber, PrefixTrie ipv4, PrefixTrie ipv6) throws IOException
+    {
+        if (line.isEmpty() || line.startsWith("#"))
+        {
+            return;
+        }
+
+        byte verdict = PrefixTrie.DENY;
+        String range = line;
+        if (line.startsWith("allow ") || line.startsWith("deny "))
+        {
+            verdict = line.startsWith("allow ") ? PrefixTrie.ALLOW : PrefixTrie.DENY;
+            range = line.substring(line.indexOf(' ') + 1).trim();
+        }
+
+        int separator = range.indexOf('/');
+        String addressPart = separator < 0 ? range : range.substring(0, separator);
+        if (!InetAddresses.isInetAddress(addressPart))
+        {
+            throw new IOException("Line " + lineNumber + " does not contain an address");
+        }
+
+        byte[] address = InetAddresses.forString(addressPart).getAddress();
+        int prefixLength;
+        try
+        {
+            prefixLength = separator < 0 ? address.length * Byte.SIZE : Integer.parseInt(range.substring(separator + 1));
+            (address.length == 4 ? ipv4 : ipv6).add(address, prefixLength, verdict);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException("Line " + lineNumber + " does not contain a valid prefix length", e);
+        }
+    }
+
+    @Override
+    public boolean isLoaded()
+    {
+        return _tries != null;
+    }
+
+    @Override
+    public long getPrefixCount()
+    {
+        Tries tries = _tries;
+        return tries == null ? 0 : tries.ipv4().getPrefixCount() + tries.ipv6().getPrefixCount();
+    }
+
+    @Override
+    public long getSizeInBytes()
+    {
+        Tries tries = _tries;
+        return tries == null ? 0 : tries.ipv4().getSizeInBytes() + tries.ipv6().getSizeInBytes();
+    }
+
+    @Override
+    public long getLastReloadMillis()
+    {
+        return _lastReloadMillis.get();
+    }
+
+    @Override
+    public long getReloadCount()
+    {
+        return _reloads.sum();
+    }
+
+    @Override
+    public long getDeniedCount()
+    {
+        return _denied.sum();
+    }
+
+    private record Tries(PrefixTrie ipv4, PrefixTrie ipv6)
+    {
+    }
+}
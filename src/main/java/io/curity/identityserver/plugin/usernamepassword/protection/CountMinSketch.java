@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A fixed size count-min sketch of 64-bit hashes, which can be aged by halving every counter.
+ * <p>
+ * Estimates are never lower than the true count since the last decay, and exceed it by at most
+ * {@code e / width} of the total count with probability {@code 1 - e^-depth}. Updates are lock free.
+ */
+public final class CountMinSketch
+{
+    private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L,
+            0xFF51AFD7ED558CCDL, 0xC4CEB9FE1A85EC53L, 0x94D049BB133111EBL, 0xBF58476D1CE4E5B9L
+    };
+
+    private final int _depth;
+    private final int _widthMask;
+    private final AtomicIntegerArray _counters;
+
+    /**
+     * @param width the number of counters per row, rounded up to a power of two
+     * @param depth the number of rows, between 1 and 8
+     */
+    public CountMinSketch(int width, int depth)
+    {
+        _depth = Math.max(1, Math.min(SEEDS.length, depth));
+        int roundedWidth = Integer.highestOneBit(Math.max(2, width) * 2 - 1);
+        _widthMask = roundedWidth - 1;
+        _counters = new AtomicIntegerArray(roundedWidth * _depth);
+    }
+
+    /**
+     * Count one occurrence of the hash.
+     *
+     * @return the estimated count, including this occurrence
+     */
+    public int increment(long hash)
+    {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < _depth; row++)
+        {
+            int count = _counters.incrementAndGet(indexOf(hash, row));
+            estimate = Math.min(estimate, count);
+        }
+
+        return estimate;
+    }
+
+    public int estimate(long hash)
+    {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < _depth; row++)
+        {
+            estimate = Math.min(estimate, _counters.get(indexOf(hash, row)));
+        }
+
+        return estimate;
+    }
+
+    /**
+     * Halve every counter, so that old occurrences weigh less than recent ones.
+     * Concurrent increments may be halved or not, which only affects the estimates by one.
+     */
+    public void decay()
+    {
+        for (int i = 0; i < _counters.length(); i++)
+        {
+            _counters.getAndUpdate(i, count -> count >>> 1);
+        }
+    }
+
+    public long getSizeInBytes()
+    {
+        return (long) _counters.length() * Integer.BYTES;
+    }
+
+    private int indexOf(long hash, int row)
+    {
+        long mixed = (hash + SEEDS[row]) * SEEDS[(row + 1) % SEEDS.length];
+        mixed ^= mixed >>> 32;
+        return row * (_widthMask + 1) + ((int) mixed & _widthMask);
+    }
+}
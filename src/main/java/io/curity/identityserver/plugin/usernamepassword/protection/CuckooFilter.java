@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * A fixed size cuckoo filter of 64-bit hashes, which unlike a Bloom filter supports removal.
+ * <p>
+ * Each hash is stored as a 32-bit fingerprint in one of two buckets of four slots, where the second bucket is
+ * derived from the first and the fingerprint, so that a fingerprint can be moved between its buckets to make
+ * room. A lookup reports a false positive with probability of about {@code 8 / 2^32} per lookup. When no room
+ * can be made, a fingerprint is dropped, which turns it into a false negative. A fingerprint is held at most once
+ * in its two buckets, so that removing it cannot leave a copy behind. Not thread safe.
+ */
+final class CuckooFilter
+{
+    private static final int BUCKET_SIZE = 4;
+    private static final int MAX_KICKS = 500;
+    private static final int EMPTY = 0;
+
+    private final int[] _slots;
+    private final int _bucketMask;
+    private final SplittableRandom _random = new SplittableRandom();
+    private int _count;
+
+    /**
+     * @param capacity the number of hashes to hold, rounded up so that the number of buckets is a power of two
+     */
+    CuckooFilter(int capacity)
+    {
+        int buckets = Integer.highestOneBit(Math.max(1, (capacity + BUCKET_SIZE - 1) / BUCKET_SIZE) * 2 - 1);
+        _bucketMask = buckets - 1;
+        _slots = new int[buckets * BUCKET_SIZE];
+    }
+
+    /**
+     * Add the hash, unless it is already present.
+     *
+     * @return false if another fingerprint had to be dropped to make room
+     */
+    boolean add(long hash)
+    {
+        int fingerprint = fingerprintOf(hash);
+        int bucket = (int) hash & _bucketMask;
+        int alternate = alternateOf(bucket, fingerprint);
+
+        if (contains(bucket, fingerprint) || contains(alternate, fingerprint))
+        {
+            return true;
+        }
+
+        if (insert(bucket, fingerprint) || insert(alternate, fingerprint))
+        {
+            _count++;
+            return true;
+        }
+
+        // evict a random fingerprint, and move it to its other bucket, until one fits
+        bucket = _random.nextBoolean() ? bucket : alternate;
+        for (int kick = 0; kick < MAX_KICKS; kick++)
+        {
+            int slot = bucket * BUCKET_SIZE + _random.nextInt(BUCKET_SIZE);
+            int evicted = _slots[slot];
+            _slots[slot] = fingerprint;
+
+            fingerprint = evicted;
+            bucket = alternateOf(bucket, fingerprint);
+
+            // a hash that cannot be told apart from the evicted one may already be there, and then it is one entry
+            if (contains(bucket, fingerprint) || insert(bucket, fingerprint))
+            {
+                _count++;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    boolean contains(long hash)
+    {
+        int fingerprint = fingerprintOf(hash);
+        int bucket = (int) hash & _bucketMask;
+        return contains(bucket, fingerprint) || contains(alternateOf(bucket, fingerprint), fingerprint);
+    }
+
+    /**
+     * Remove the hash, together with any other with the same fingerprint and buckets, which cannot be told apart.
+     *
+     * @return whether a fingerprint was removed
+     */
+    boolean remove(long hash)
+    {
+        int fingerprint = fingerprintOf(hash);
+        int bucket = (int) hash & _bucketMask;
+        int alternate = alternateOf(bucket, fingerprint);
+
+        int removed = remove(bucket, fingerprint);
+        if (alternate != bucket)
+        {
+            removed += remove(alternate, fingerprint);
+        }
+
+        _count -= removed;
+        return removed > 0;
+    }
+
+    void clear()
+    {
+        Arrays.fill(_slots, EMPTY);
+        _count = 0;
+    }
+
+    int getCount()
+    {
+        return _count;
+    }
+
+    int getCapacity()
+    {
+        return _slots.length;
+    }
+
+    long getSizeInBytes()
+    {
+        return (long) _slots.length * Integer.BYTES;
+    }
+
+    private boolean contains(int bucket, int fingerprint)
+    {
+        int start = bucket * BUCKET_SIZE;
+        for (int i = start; i < start + BUCKET_SIZE; i++)
+        {
+            if (_slots[i] == fingerprint)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean insert(int bucket, int fingerprint)
+    {
+        int start = bucket * BUCKET_SIZE;
+        for (int i = start; i < start + BUCKET_SIZE; i++)
+        {
+            if (_slots[i] == EMPTY)
+            {
+                _slots[i] = fingerprint;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private int remove(int bucket, int fingerprint)
+    {
+        int removed = 0;
+        int start = bucket * BUCKET_SIZE;
+        for (int i = start; i < start + BUCKET_SIZE; i++)
+        {
+            if (_slots[i] == fingerprint)
+            {
+                _slots[i] = EMPTY;
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    private int alternateOf(int bucket, int fingerprint)
+    {
+        // an involution, so that either bucket leads to the other
+        return (bucket ^ (fingerprint * 0x5BD1E995)) & _bucketMask;
+    }
+
+    private static int fingerprintOf(long hash)
+    {
+        int fingerprint = (int) (hash >>> 32);
+        return fingerprint == EMPTY ? 1 : fingerprint;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spends about as much time as a real password verification, for requests that are answered without one.
+ * <p>
+ * The cost of a verification is learnt from the latency of real verifications. Only part of that time is spent
+ * hashing, and the rest waiting for the data source, so the work factor of the local hash is adjusted to the
+ * hashing share of it, and the rest of the time is spent parked. That way, a rejection without a data source call
+ * can neither be told apart from a normal rejection by its timing, nor costs more CPU than one.
+ */
+public final class DecoyPasswordHasher implements DecoyPasswordHasherMXBean
+{
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final double SMOOTHING = 0.1;
+    private static final int MIN_ITERATIONS = 1_000;
+    private static final int MAX_ITERATIONS = 10_000_000;
+    private static final int CALIBRATION_ITERATIONS = 10_000;
+    private static final Duration INITIAL_TARGET = Duration.ofMillis(100);
+
+    private final byte[] _salt = new byte[16];
+    private final double _hashingShare;
+    private final LongAdder _decoys = new LongAdder();
+
+    // guarded by this
+    private double _targetNanos = INITIAL_TARGET.toNanos();
+    private double _nanosPerIteration;
+
+    /**
+     * @param hashingShare the share of the time of a real verification that is spent hashing, between 0 and 1
+     */
+    public DecoyPasswordHasher(double hashingShare)
+    {
+        _hashingShare = Math.max(0, Math.min(1, hashingShare));
+        new SecureRandom().nextBytes(_salt);
+
+        long startedAt = System.nanoTime();
+        derive("calibration".toCharArray(), CALIBRATION_ITERATIONS);
+        _nanosPerIteration = (double) (System.nanoTime() - startedAt) / CALIBRATION_ITERATIONS;
+    }
+
+    /**
+     * Record the duration of a real password verification, which the decoy imitates.
+     */
+    public synchronized void recordVerification(Duration duration)
+    {
+        _targetNanos += (duration.toNanos() - _targetNanos) * SMOOTHING;
+    }
+
+    /**
+     * Hash the given password with a work factor that takes as long as the hashing of a real verification, and
+     * return once the whole verification would have completed.
+     */
+    public void hash(String password)
+    {
+        long startedAt = System.nanoTime();
+        long completesAt;
+        int iterations;
+        synchronized (this)
+        {
+            completesAt = startedAt + (long) _targetNanos;
+            iterations = getIterations();
+        }
+
+        derive(password.toCharArray(), iterations);
+
+        double nanosPerIteration = (double) (System.nanoTime() - startedAt) / iterations;
+        synchronized (this)
+        {
+            _nanosPerIteration += (nanosPerIteration - _nanosPerIteration) * SMOOTHING;
+        }
+
+        // parking may end early, for instance when the thread is interrupted, which only shortens the decoy
+        long remaining;
+        while ((remaining = completesAt - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted())
+        {
+            LockSupport.parkNanos(remaining);
+        }
+
+        _decoys.increment();
+    }
+
+    private void derive(char[] password, int iterations)
+    {
+        try
+        {
+            SecretKeyFactory.getInstance(ALGORITHM).generateSecret(new PBEKeySpec(password, _salt, iterations, 256));
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("The JVM does not support " + ALGORITHM, e);
+        }
+    }
+
+    @Override
+    public synchronized double getTargetLatencyMillis()
+    {
+        return _targetNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public double getHashingShare()
+    {
+        return _hashingShare;
+    }
+
+    @Override
+    public synchronized int getIterations()
+    {
+        double iterations = _targetNanos * _hashingShare / Math.max(1.0, _nanosPerIteration);
+        return (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations));
+    }
+
+    @Override
+    public long getDecoyCount()
+    {
+        return _decoys.sum();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A probabilistic set of the usernames that exist in the account data source.
+ * <p>
+ * The data source cannot be enumerated through the SDK, so the filter is built from a local file that lists
+ * every username, and is rebuilt whenever that file changes. Accounts created by this plugin are added as soon
+ * as they are created. A username that is not in the filter definitely does not exist, provided the file is kept
+ * complete; a username that is in the filter may or may not exist.
+ * <p>
+ * Until the file has been loaded for the first time, every username is reported as possibly existing.
+ */
+public final class KnownUsernameFilter implements KnownUsernameFilterMXBean
+{
+    private static final Logger _logger = LoggerFactory.getLogger(KnownUsernameFilter.class);
+
+    private final Path _usernameFile;
+    private final int _expectedUsernames;
+    private final double _falsePositiveRate;
+    private final AtomicLong _lastRebuildMillis = new AtomicLong();
+    private final LongAdder _rebuilds = new LongAdder();
+    private final LongAdder _definiteMisses = new LongAdder();
+
+    private volatile BloomFilter<CharSequence> _filter;
+    private volatile FileTime _loadedVersion;
+
+    // guarded by this, the filter being built while the username file is read
+    private BloomFilter<CharSequence> _building;
+
+    public KnownUsernameFilter(Path usernameFile, int expectedUsernames, double falsePositiveRate)
+    {
+        _usernameFile = usernameFile;
+        _expectedUsernames = Math.max(1, expectedUsernames);
+        _falsePositiveRate = falsePositiveRate;
+    }
+
+    public boolean mightExist(String username)
+    {
+        BloomFilter<CharSequence> filter = _filter;
+        if (filter == null || filter.mightContain(normalize(username)))
+        {
+            return true;
+        }
+
+        _definiteMisses.increment();
+        return false;
+    }
+
+    public synchronized void add(String username)
+    {
+        String value = normalize(username);
+        if (_filter != null)
+        {
+            _filter.put(value);
+        }
+
+        // the account may have been created after its line would have been read from the file
+        if (_building != null)
+        {
+            _building.put(value);
+        }
+    }
+
+    /**
+     * Rebuild the filter if the username file has changed since it was last loaded.
+     */
+    public void refresh()
+    {
+        try
+        {
+            FileTime version = Files.getLastModifiedTime(_usernameFile);
+            if (!version.equals(_loadedVersion))
+            {
+                rebuild(version);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // a failure must not escape, or the scheduler would stop checking the file
+            _logger.warn("Unable to load the known usernames from {}", _usernameFile, e);
+        }
+    }
+
+    private void rebuild(FileTime version) throws IOException
+    {
+        long startedAt = System.nanoTime();
+        BloomFilter<CharSequence> filter = BloomFilter.create(
+                Funnels.stringFunnel(StandardCharsets.UTF_8), _expectedUsernames, _falsePositiveRate);
+
+        synchronized (this)
+        {
+            _building = filter;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(_usernameFile, StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (!line.isBlank())
+                {
+                    filter.put(normalize(line));
+                }
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            synchronized (this)
+            {
+                _building = null;
+            }
+            throw e;
+        }
+
+        synchronized (this)
+        {
+            _filter = filter;
+            _building = null;
+        }
+
+        _loadedVersion = version;
+        _lastRebuildMillis.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        _rebuilds.increment();
+
+        _logger.info("Loaded about {} known usernames in {} ms",
+                filter.approximateElementCount(), _lastRebuildMillis.get());
+    }
+
+    private static String normalize(String username)
+    {
+        // folding case can only merge usernames, which may add false positives but never false negatives
+        return username.trim().toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public boolean isLoaded()
+    {
+        return _filter != null;
+    }
+
+    @Override
+    public long getApproximateUsernameCount()
+    {
+        BloomFilter<CharSequence> filter = _filter;
+        return filter == null ? 0 : filter.approximateElementCount();
+    }
+
+    @Override
+    public long getSizeInBytes()
+    {
+        // the optimal number of bits for the configured capacity, which is how Guava sizes the filter
+        double bits = -_expectedUsernames * Math.log(_falsePositiveRate) / (Math.log(2) * Math.log(2));
+        return (long) Math.ceil(bits / Byte.SIZE);
+    }
+
+    @Override
+    public double getConfiguredFalsePositiveRate()
+    {
+        return _falsePositiveRate;
+    }
+
+    @Override
+    public double getExpectedFalsePositiveRate()
+    {
+        BloomFilter<CharSequence> filter = _filter;
+        return filter == null ? 1.0 : filter.expectedFpp();
+    }
+
+    @Override
+    public long getLastRebuildMillis()
+    {
+        return _lastRebuildMillis.get();
+    }
+
+    @Override
+    public long getRebuildCount()
+    {
+        return _rebuilds.sum();
+    }
+
+    @Override
+    public long getDefiniteMissCount()
+    {
+        return _definiteMisses.sum();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * Limits login attempts per client address, and per combination of client address and username.
+ */
+public final class LoginRateLimiter
+{
+    private final StripedRateLimiter _perAddress;
+    private final StripedRateLimiter _perAddressAndUsername;
+
+    public LoginRateLimiter(StripedRateLimiter perAddress, StripedRateLimiter perAddressAndUsername)
+    {
+        _perAddress = perAddress;
+        _perAddressAndUsername = perAddressAndUsername;
+    }
+
+    /**
+     * @return {@link Duration#ZERO} if the attempt may proceed, otherwise the time after which it may be retried
+     */
+    public Duration tryAcquire(String clientAddress, String username)
+    {
+        // the narrower key is checked first, so that one noisy account does not use up the budget of its address
+        Duration wait = _perAddressAndUsername.tryConsume(
+                clientAddress + '\n' + username.trim().toLowerCase(Locale.ROOT));
+        if (!wait.isZero())
+        {
+            return wait;
+        }
+
+        return _perAddress.tryConsume(clientAddress);
+    }
+
+    public StripedRateLimiter getPerAddress()
+    {
+        return _perAddress;
+    }
+
+    public StripedRateLimiter getPerAddressAndUsername()
+    {
+        return _perAddressAndUsername;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Detects password spraying, where one common password is tried against many usernames.
+ * <p>
+ * Every rejected password is reduced to a keyed fingerprint and counted in a count-min sketch, which is decayed
+ * periodically. A password whose fingerprint has become a heavy hitter is refused before it reaches the data
+ * source, whichever username it is used with. The key is random and never leaves memory, so the fingerprints
+ * cannot be used to recover passwords, and memory use is constant whatever the traffic.
+ */
+public final class PasswordSprayDetector implements PasswordSprayDetectorMXBean
+{
+    private final CountMinSketch _sketch;
+    private final HashFunction _fingerprint;
+    private final int _threshold;
+    private final LongAdder _recordedFailures = new LongAdder();
+    private final LongAdder _blockedAttempts = new LongAdder();
+    private final LongAdder _decays = new LongAdder();
+
+    public PasswordSprayDetector(int width, int depth, int threshold)
+    {
+        _sketch = new CountMinSketch(width, depth);
+        _threshold = Math.max(1, threshold);
+
+        var random = new SecureRandom();
+        _fingerprint = Hashing.sipHash24(random.nextLong(), random.nextLong());
+    }
+
+    /**
+     * @return true if the password has been rejected so often recently that it should not be verified
+     */
+    public boolean isSprayed(String password)
+    {
+        long fingerprint = fingerprintOf(password);
+        if (_sketch.estimate(fingerprint) < _threshold)
+        {
+            return false;
+        }
+
+        // keep counting while the attack lasts, so that the password does not decay below the threshold
+        _sketch.increment(fingerprint);
+        _blockedAttempts.increment();
+        return true;
+    }
+
+    public void recordFailure(String password)
+    {
+        _sketch.increment(fingerprintOf(password));
+        _recordedFailures.increment();
+    }
+
+    public void decay()
+    {
+        _sketch.decay();
+        _decays.increment();
+    }
+
+    private long fingerprintOf(String password)
+    {
+        return _fingerprint.hashString(password, StandardCharsets.UTF_8).asLong();
+    }
+
+    @Override
+    public long getSizeInBytes()
+    {
+        return _sketch.getSizeInBytes();
+    }
+
+    @Override
+    public int getThreshold()
+    {
+        return _threshold;
+    }
+
+    @Override
+    public long getRecordedFailureCount()
+    {
+        return _recordedFailures.sum();
+    }
+
+    @Override
+    public long getBlockedAttemptCount()
+    {
+        return _blockedAttempts.sum();
+    }
+
+    @Override
+    public long getDecayCount()
+    {
+        return _decays.sum();
+    }
+}
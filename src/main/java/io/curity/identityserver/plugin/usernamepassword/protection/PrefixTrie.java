@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import java.util.Arrays;
+
+/**
+ * A multibit radix trie of address prefixes, for longest prefix matching of IPv4 or IPv6 addresses.
+ * <p>
+ * The first 16 bits of an address index a flat table, and each further byte indexes a node of 256 entries, so
+ * that an IPv4 lookup reads at most three entries. A prefix that ends within a table or node is expanded into all
+ * the entries it covers, unless a longer prefix already set them. Entries are stored in a few large arrays rather
+ * than as an object each, so that millions of prefixes need little work from the garbage collector.
+ * <p>
+ * A trie is built by one thread, trimmed, and can then be read by any number of threads once it has been published.
+ */
+final class PrefixTrie
+{
+    static final byte NONE = 0;
+    static final byte ALLOW = 1;
+    static final byte DENY = 2;
+
+    private static final int ROOT_BITS = 16;
+    private static final int ROOT_SIZE = 1 << ROOT_BITS;
+    private static final int STRIDE = Byte.SIZE;
+    private static final int NODE_SIZE = 1 << STRIDE;
+    private static final int NO_CHILD = 0;
+
+    private final int _addressBits;
+    private final int[] _rootChildren = new int[ROOT_SIZE];
+    private final byte[] _rootVerdicts = new byte[ROOT_SIZE];
+
+    // node 0 is never used, so that 0 can mean that there is no child
+    private int[] _children = new int[16 * NODE_SIZE];
+    private byte[] _verdicts = new byte[16 * NODE_SIZE];
+    private int _nodeCount = 1;
+    private int _prefixCount;
+
+    // the length of the prefix that set each verdict, which is only needed while the trie is built
+    private byte[] _rootLengths = new byte[ROOT_SIZE];
+    private byte[] _lengths = new byte[16 * NODE_SIZE];
+
+    PrefixTrie(int addressBits)
+    {
+        _addressBits = addressBits;
+    }
+
+    /**
+     * Add a prefix, which replaces the verdict of any equal prefix added before.
+     *
+     * @param address the address bytes, of which only the first {@code prefixLength} bits are used
+     */
+    void add(byte[] address, int prefixLength, byte verdict)
+    {
+        if (prefixLength < 0 || prefixLength > _addressBits)
+        {
+            throw new IllegalArgumentException("Invalid prefix length " + prefixLength);
+        }
+
+        _prefixCount++;
+        int root = (address[0] & 0xff) << 8 | (address[1] & 0xff);
+
+        if (prefixLength <= ROOT_BITS)
+        {
+            expand(_rootVerdicts, _rootLengths, 0, root, ROOT_BITS, prefixLength, verdict);
+            return;
+        }
+
+        if (_rootChildren[root] == NO_CHILD)
+        {
+            _rootChildren[root] = newNode();
+        }
+
+        int node = _rootChildren[root];
+        int bit = ROOT_BITS;
+        while (prefixLength - bit > STRIDE)
+        {
+            int entry = node * NODE_SIZE + (address[bit / STRIDE] & 0xff);
+            if (_children[entry] == NO_CHILD)
+            {
+                int child = newNode();
+                _children[entry] = child;
+            }
+
+            node = _children[entry];
+            bit += STRIDE;
+        }
+
+        expand(_verdicts, _lengths, node * NODE_SIZE, address[bit / STRIDE] & 0xff, STRIDE,
+                prefixLength - bit, verdict);
+    }
+
+    /**
+     * Set the verdict of all entries of a table that the prefix covers, except those set by longer prefixes.
+     */
+    private static void expand(byte[] verdicts, byte[] lengths, int offset, int index, int indexBits,
+                               int remainingBits, byte verdict)
+    {
+        int first = index & ~((1 << (indexBits - remainingBits)) - 1);
+        int last = first + (1 << (indexBits - remainingBits));
+
+        for (int i = offset + first; i < offset + last; i++)
+        {
+            if (verdicts[i] == NONE || lengths[i] <= remainingBits)
+            {
+                verdicts[i] = verdict;
+                lengths[i] = (byte) remainingBits;
+            }
+        }
+    }
+
+    /**
+     * @return the verdict of the longest prefix that contains the address, or {@link #NONE}
+     */
+    byte lookup(byte[] address)
+    {
+        int root = (address[0] & 0xff) << 8 | (address[1] & 0xff);
+        byte verdict = _rootVerdicts[root];
+
+        int node = _rootChildren[root];
+        for (int i = ROOT_BITS / STRIDE; node != NO_CHILD && i < address.length; i++)
+        {
+            int entry = node * NODE_SIZE + (address[i] & 0xff);
+            if (_verdicts[entry] != NONE)
+            {
+                verdict = _verdicts[entry];
+            }
+            node = _children[entry];
+        }
+
+        return verdict;
+    }
+
+    /**
+     * Release what is only needed while prefixes are added, after which no more can be.
+     */
+    void trim()
+    {
+        _children = Arrays.copyOf(_children, _nodeCount * NODE_SIZE);
+        _verdicts = Arrays.copyOf(_verdicts, _nodeCount * NODE_SIZE);
+        _rootLengths = null;
+        _lengths = null;
+    }
+
+    int getPrefixCount()
+    {
+        return _prefixCount;
+    }
+
+    long getSizeInBytes()
+    {
+        return ((long) _children.length + ROOT_SIZE) * Integer.BYTES + _verdicts.length + ROOT_SIZE;
+    }
+
+    private int newNode()
+    {
+        if ((_nodeCount + 1) * NODE_SIZE > _verdicts.length)
+        {
+            int capacity = Math.addExact(_verdicts.length, _verdicts.length >> 1);
+            _children = Arrays.copyOf(_children, capacity);
+            _verdicts = Arrays.copyOf(_verdicts, capacity);
+            _lengths = Arrays.copyOf(_lengths, capacity);
+        }
+
+        return _nodeCount++;
+    }
+}
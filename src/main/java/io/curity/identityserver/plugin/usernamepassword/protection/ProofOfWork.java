@@ -0,0 +1,259 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import se.curity.identityserver.sdk.Nullable;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hashcash style challenges, that make clients spend CPU time before a password is verified for them.
+ * <p>
+ * A challenge has the form {@code v1.<issued at>.<difficulty>.<random>.<signature>}. The client must find a
+ * nonce such that the SHA-256 hash of {@code <challenge>:<nonce>} starts with at least {@code difficulty} zero
+ * bits. The challenge is signed with a key held only in memory, so the server needs no state to issue it, and
+ * checking a solution costs one HMAC and one hash. Solved challenges are remembered until they expire, so that
+ * each can only be used once.
+ * <p>
+ * Difficulty follows the load on password verification, as seen by the concurrency limiter. It is zero, and no
+ * challenge is issued, while the load is below the activation threshold. Without a concurrency limiter there is no
+ * measure of load, so every login requires a challenge, at the minimum difficulty.
+ * <p>
+ * Difficulty is capped at {@value #MAXIMUM_DIFFICULTY} bits, about a million hashes on average, which the HTML
+ * form solves in seconds on a desktop browser, awaiting a batch of hashes at a time. More would lock out users on
+ * slower devices rather than slow down attackers.
+ */
+public final class ProofOfWork implements ProofOfWorkMXBean
+{
+    static final int MAXIMUM_DIFFICULTY = 20;
+
+    private static final String VERSION = "v1";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec _key;
+    private final SecureRandom _random = new SecureRandom();
+    private final Clock _clock;
+    private final Duration _lifetime;
+    private final double _activationLoad;
+    private final int _minDifficulty;
+    private final int _maxDifficulty;
+    private final Cache<String, Boolean> _spent;
+    private final LongAdder _issued = new LongAdder();
+    private final LongAdder _accepted = new LongAdder();
+    private final LongAdder _rejected = new LongAdder();
+
+    @Nullable
+    private final AdaptiveConcurrencyLimiter _concurrencyLimiter;
+
+    public ProofOfWork(@Nullable AdaptiveConcurrencyLimiter concurrencyLimiter, int activationLoadPercent,
+                       int minDifficulty, int maxDifficulty, Duration lifetime, Clock clock)
+    {
+        _concurrencyLimiter = concurrencyLimiter;
+        _activationLoad = Math.max(0, Math.min(99, activationLoadPercent)) / 100.0;
+        _minDifficulty = Math.max(1, Math.min(MAXIMUM_DIFFICULTY, minDifficulty));
+        _maxDifficulty = Math.max(_minDifficulty, Math.min(MAXIMUM_DIFFICULTY, maxDifficulty));
+        _lifetime = lifetime;
+        _clock = clock;
+        _spent = CacheBuilder.newBuilder()
+                .expireAfterWrite(lifetime)
+                .maximumSize(1_000_000)
+                .build();
+
+        byte[] key = new byte[32];
+        _random.nextBytes(key);
+        _key = new SecretKeySpec(key, MAC_ALGORITHM);
+    }
+
+    /**
+     * The number of leading zero bits currently required, or zero if no proof of work is required.
+     * <p>
+     * Without a concurrency limiter there is no measure of load, so the minimum difficulty always applies.
+     */
+    @Override
+    public int getCurrentDifficulty()
+    {
+        if (_concurrencyLimiter == null)
+        {
+            return _minDifficulty;
+        }
+
+        double utilization = (double) _concurrencyLimiter.getInFlight() / _concurrencyLimiter.getLimit();
+        double baseline = _concurrencyLimiter.getBaselineLatencyMillis();
+        double slowdown = baseline > 0 ? _concurrencyLimiter.getRecentLatencyMillis() / baseline - 1 : 0;
+        double load = Math.min(1.0, Math.max(utilization, slowdown));
+
+        if (load < _activationLoad)
+        {
+            return 0;
+        }
+
+        double scale = (load - _activationLoad) / (1 - _activationLoad);
+        return _minDifficulty + (int) Math.round(scale * (_maxDifficulty - _minDifficulty));
+    }
+
+    /**
+     * @return a new challenge, or empty if no proof of work is currently required
+     */
+    public Optional<Challenge> issue()
+    {
+        int difficulty = getCurrentDifficulty();
+        if (difficulty == 0)
+        {
+            return Optional.empty();
+        }
+
+        byte[] random = new byte[12];
+        _random.nextBytes(random);
+
+        String payload = String.join(".", VERSION, Long.toString(_clock.millis()),
+                Integer.toString(difficulty), ENCODER.encodeToString(random));
+
+        _issued.increment();
+        return Optional.of(new Challenge(payload + "." + ENCODER.encodeToString(sign(payload)), difficulty));
+    }
+
+    /**
+     * Check a solution, and spend the challenge if it is valid.
+     *
+     * @return true if the challenge was issued by this server, has not expired or been used, and is solved
+     */
+    public boolean verify(@Nullable String challenge, @Nullable String nonce)
+    {
+        if (challenge == null || nonce == null || !isValid(challenge, nonce) ||
+                _spent.asMap().putIfAbsent(challenge, Boolean.TRUE) != null)
+        {
+            _rejected.increment();
+            return false;
+        }
+
+        _accepted.increment();
+        return true;
+    }
+
+    private boolean isValid(String challenge, String nonce)
+    {
+        String[] parts = challenge.split("\\.");
+        if (parts.length != 5 || !VERSION.equals(parts[0]) || nonce.length() > 64)
+        {
+            return false;
+        }
+
+        int difficulty;
+        long issuedAt;
+        byte[] signature;
+        try
+        {
+            issuedAt = Long.parseLong(parts[1]);
+            difficulty = Integer.parseInt(parts[2]);
+            signature = DECODER.decode(parts[4]);
+        }
+        catch (IllegalArgumentException e)
+        {
+            return false;
+        }
+
+        String payload = challenge.substring(0, challenge.lastIndexOf('.'));
+        if (!MessageDigest.isEqual(sign(payload), signature))
+        {
+            return false;
+        }
+
+        if (_clock.millis() - issuedAt > _lifetime.toMillis())
+        {
+            return false;
+        }
+
+        return leadingZeroBits(sha256(challenge + ":" + nonce)) >= difficulty;
+    }
+
+    private byte[] sign(String payload)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(_key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("The JVM does not support " + MAC_ALGORITHM, e);
+        }
+    }
+
+    private static byte[] sha256(String value)
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("The JVM does not support SHA-256", e);
+        }
+    }
+
+    private static int leadingZeroBits(byte[] hash)
+    {
+        int bits = 0;
+        for (byte b : hash)
+        {
+            if (b != 0)
+            {
+                return bits + Integer.numberOfLeadingZeros(b & 0xFF) - (Integer.SIZE - Byte.SIZE);
+            }
+            bits += Byte.SIZE;
+        }
+
+        return bits;
+    }
+
+    public record Challenge(String value, int difficulty)
+    {
+    }
+
+    @Override
+    public long getIssuedCount()
+    {
+        return _issued.sum();
+    }
+
+    @Override
+    public long getAcceptedCount()
+    {
+        return _accepted.sum();
+    }
+
+    @Override
+    public long getRejectedCount()
+    {
+        return _rejected.sum();
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.usernamepassword.runtime.RuntimeResources;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The configured protections of the data sources and of user accounts, against load and against attackers.
+ */
+public final class ProtectionFeatures
+{
+    @Nullable
+    private final AddressFilter _addressFilter;
+
+    @Nullable
+    private final AdaptiveConcurrencyLimiter _concurrencyLimiter;
+
+    @Nullable
+    private final LoginRateLimiter _loginRateLimiter;
+
+    @Nullable
+    private final KnownUsernameFilter _knownUsernameFilter;
+
+    @Nullable
+    private final UnknownIdentifierFilter _unknownIdentifierFilter;
+
+    @Nullable
+    private final DecoyPasswordHasher _decoyPasswordHasher;
+
+    @Nullable
+    private final AccountStateTable _accountStateTable;
+    private final Duration _lockoutDuration;
+    private final Duration _pendingActivationDuration;
+
+    @Nullable
+    private final PasswordSprayDetector _passwordSprayDetector;
+
+    @Nullable
+    private final ProofOfWork _proofOfWork;
+
+    /**
+     * @param prefetchesAccounts whether logins for accounts that a prefetch found not to exist are answered locally
+     */
+    public ProtectionFeatures(UsernamePasswordAuthenticatorPluginConfig configuration, RuntimeResources resources,
+                              boolean prefetchesAccounts)
+    {
+        var scheduler = resources.getScheduler();
+
+        var addressFilterSettings = configuration.getAddressFilter();
+        if (addressFilterSettings.isPresent())
+        {
+            var settings = addressFilterSettings.get();
+            _addressFilter = new AddressFilter(Path.of(settings.getListFile()));
+
+            scheduler.scheduleWithFixedDelay(_addressFilter::refresh,
+                    0, settings.getReloadIntervalSeconds(), TimeUnit.SECONDS);
+
+            resources.register("AddressFilter", _addressFilter);
+        }
+        else
+        {
+            _addressFilter = null;
+        }
+
+        _concurrencyLimiter = configuration.getConcurrencyLimit()
+                .map(settings -> new AdaptiveConcurrencyLimiter(
+                        settings.getInitialLimit(), settings.getMinimumLimit(), settings.getMaximumLimit()))
+                .orElse(null);
+        if (_concurrencyLimiter != null)
+        {
+            resources.register("ConcurrencyLimiter", _concurrencyLimiter);
+        }
+
+        _loginRateLimiter = configuration.getRateLimit()
+                .map(settings -> new LoginRateLimiter(
+                        new StripedRateLimiter(settings.getAttemptsPerAddress(),
+                                Duration.ofSeconds(settings.getRefillSeconds()), settings.getMaximumTrackedKeys()),
+                        new StripedRateLimiter(settings.getAttemptsPerUsernameAndAddress(),
+                                Duration.ofSeconds(settings.getRefillSeconds()), settings.getMaximumTrackedKeys())))
+                .orElse(null);
+        if (_loginRateLimiter != null)
+        {
+            resources.register("AddressRateLimiter", _loginRateLimiter.getPerAddress());
+            resources.register("AddressAndUsernameRateLimiter", _loginRateLimiter.getPerAddressAndUsername());
+        }
+
+        var knownUsernameFilterSettings = configuration.getKnownUsernameFilter();
+        if (knownUsernameFilterSettings.isPresent())
+        {
+            var settings = knownUsernameFilterSettings.get();
+            _knownUsernameFilter = new KnownUsernameFilter(Path.of(settings.getUsernameFile()),
+                    settings.getExpectedUsernames(), settings.getFalsePositivesPerMillion() / 1_000_000.0);
+
+            // the first load runs immediately, but in the background so that it never delays the server
+            scheduler.scheduleWithFixedDelay(_knownUsernameFilter::refresh,
+                    0, settings.getReloadIntervalSeconds(), TimeUnit.SECONDS);
+
+            resources.register("KnownUsernameFilter", _knownUsernameFilter);
+        }
+        else
+        {
+            _knownUsernameFilter = null;
+        }
+
+        var unknownIdentifierFilterSettings = configuration.getUnknownIdentifierFilter();
+        if (unknownIdentifierFilterSettings.isPresent())
+        {
+            var settings = unknownIdentifierFilterSettings.get();
+            _unknownIdentifierFilter = new UnknownIdentifierFilter(settings.getCapacity());
+
+            scheduler.scheduleAtFixedRate(_unknownIdentifierFilter::rotate,
+                    settings.getTimeToLiveSeconds(), settings.getTimeToLiveSeconds(), TimeUnit.SECONDS);
+
+            resources.register("UnknownIdentifierFilter", _unknownIdentifierFilter);
+        }
+        else
+        {
+            _unknownIdentifierFilter = null;
+        }
+
+        // both answer logins for accounts that do not exist locally, which must take as long as a real verification
+        _decoyPasswordHasher = _knownUsernameFilter != null || prefetchesAccounts
+                ? new DecoyPasswordHasher(configuration.getDecoyHashingPercent() / 100.0)
+                : null;
+        if (_decoyPasswordHasher != null)
+        {
+            resources.register("DecoyPasswordHasher", _decoyPasswordHasher);
+        }
+
+        var accountStateCacheSettings = configuration.getAccountStateCache();
+        _accountStateTable = accountStateCacheSettings
+                .map(settings -> new AccountStateTable(settings.getCapacity(), Clock.systemUTC()))
+                .orElse(null);
+        _lockoutDuration = Duration.ofSeconds(accountStateCacheSettings
+                .map(UsernamePasswordAuthenticatorPluginConfig.AccountStateCacheSettings::getLockoutSeconds)
+                .orElse(0));
+        _pendingActivationDuration = Duration.ofSeconds(accountStateCacheSettings
+                .map(settings -> settings.getPendingActivationSeconds())
+                .orElse(0));
+        if (_accountStateTable != null)
+        {
+            resources.register("AccountStateTable", _accountStateTable);
+        }
+
+        var passwordSprayDetectionSettings = configuration.getPasswordSprayDetection();
+        if (passwordSprayDetectionSettings.isPresent())
+        {
+            var settings = passwordSprayDetectionSettings.get();
+            _passwordSprayDetector = new PasswordSprayDetector(
+                    settings.getWidth(), settings.getDepth(), settings.getThreshold());
+
+            scheduler.scheduleAtFixedRate(_passwordSprayDetector::decay,
+                    settings.getDecayIntervalSeconds(), settings.getDecayIntervalSeconds(), TimeUnit.SECONDS);
+
+            resources.register("PasswordSprayDetector", _passwordSprayDetector);
+        }
+        else
+        {
+            _passwordSprayDetector = null;
+        }
+
+        _proofOfWork = configuration.getProofOfWork()
+                .map(settings -> new ProofOfWork(_concurrencyLimiter, settings.getActivationLoadPercent(),
+                        settings.getMinimumDifficulty(), settings.getMaximumDifficulty(),
+                        Duration.ofSeconds(settings.getChallengeLifetimeSeconds()), Clock.systemUTC()))
+                .orElse(null);
+        if (_proofOfWork != null)
+        {
+            resources.register("ProofOfWork", _proofOfWork);
+        }
+    }
+
+    public Optional<AddressFilter> getAddressFilter()
+    {
+        return Optional.ofNullable(_addressFilter);
+    }
+
+    public Optional<AdaptiveConcurrencyLimiter> getConcurrencyLimiter()
+    {
+        return Optional.ofNullable(_concurrencyLimiter);
+    }
+
+    public Optional<LoginRateLimiter> getLoginRateLimiter()
+    {
+        return Optional.ofNullable(_loginRateLimiter);
+    }
+
+    public Optional<KnownUsernameFilter> getKnownUsernameFilter()
+    {
+        return Optional.ofNullable(_knownUsernameFilter);
+    }
+
+    public Optional<UnknownIdentifierFilter> getUnknownIdentifierFilter()
+    {
+        return Optional.ofNullable(_unknownIdentifierFilter);
+    }
+
+    public Optional<DecoyPasswordHasher> getDecoyPasswordHasher()
+    {
+        return Optional.ofNullable(_decoyPasswordHasher);
+    }
+
+    public Optional<AccountStateTable> getAccountStateTable()
+    {
+        return Optional.ofNullable(_accountStateTable);
+    }
+
+    public Optional<PasswordSprayDetector> getPasswordSprayDetector()
+    {
+        return Optional.ofNullable(_passwordSprayDetector);
+    }
+
+    public Optional<ProofOfWork> getProofOfWork()
+    {
+        return Optional.ofNullable(_proofOfWork);
+    }
+
+    /**
+     * Remember that the data source reported the account as locked out.
+     */
+    public void onLockedOut(String username)
+    {
+        if (_accountStateTable != null)
+        {
+            _accountStateTable.put(username, AccountStateTable.AccountState.LOCKED_OUT, _lockoutDuration);
+        }
+    }
+
+    /**
+     * Remember that the account was created, but cannot log in until it has been activated.
+     */
+    public void onActivationPending(String username)
+    {
+        if (_accountStateTable != null)
+        {
+            _accountStateTable.put(username, AccountStateTable.AccountState.PENDING_ACTIVATION,
+                    _pendingActivationDuration);
+        }
+    }
+
+    /**
+     * Forget that the identifiers are unknown, since an account has them now.
+     */
+    public void onAccountExists(String username, @Nullable String emailAddress)
+    {
+        if (_knownUsernameFilter != null)
+        {
+            _knownUsernameFilter.add(username);
+        }
+        if (_unknownIdentifierFilter != null)
+        {
+            _unknownIdentifierFilter.remove(username, emailAddress);
+        }
+    }
+
+    /**
+     * Forget any state that prevents the account from logging in.
+     */
+    public void onAccountUsable(String username)
+    {
+        if (_accountStateTable != null)
+        {
+            _accountStateTable.remove(username);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token buckets keyed by arbitrary strings, with memory bounded by a maximum number of tracked keys.
+ * <p>
+ * Keys are spread over independently locked stripes, each holding its buckets in least-recently-used order.
+ * When a stripe is full its least recently used bucket is evicted, which is equivalent to forgetting a key
+ * that has been quiet for longest; such a key starts again from a full bucket.
+ */
+public final class StripedRateLimiter implements StripedRateLimiterMXBean
+{
+    private static final int STRIPES = 64;
+
+    private final Stripe[] _stripes = new Stripe[STRIPES];
+    private final double _capacity;
+    private final double _tokensPerNano;
+    private final LongAdder _allowed = new LongAdder();
+    private final LongAdder _rejected = new LongAdder();
+    private final LongAdder _evicted = new LongAdder();
+
+    /**
+     * @param capacity       the number of attempts allowed in a burst for a single key
+     * @param refillInterval the time it takes for an empty bucket to become full again
+     * @param maxKeys        the maximum number of keys that are tracked at the same time
+     */
+    public StripedRateLimiter(int capacity, Duration refillInterval, int maxKeys)
+    {
+        _capacity = Math.max(1, capacity);
+        _tokensPerNano = _capacity / Math.max(1, refillInterval.toNanos());
+
+        int keysPerStripe = Math.max(1, maxKeys / STRIPES);
+        for (int i = 0; i < STRIPES; i++)
+        {
+            _stripes[i] = new Stripe(keysPerStripe);
+        }
+    }
+
+    /**
+     * Take one token from the bucket of the given key.
+     *
+     * @return {@link Duration#ZERO} if the attempt is allowed, otherwise the time until a token is available
+     */
+    public Duration tryConsume(String key)
+    {
+        long now = System.nanoTime();
+        Stripe stripe = _stripes[spread(key.hashCode()) & (STRIPES - 1)];
+
+        stripe._lock.lock();
+        try
+        {
+            Bucket bucket = stripe._buckets.get(key);
+            if (bucket == null)
+            {
+                bucket = new Bucket(_capacity, now);
+                stripe._buckets.put(key, bucket);
+            }
+            else
+            {
+                bucket._tokens = Math.min(_capacity, bucket._tokens + (now - bucket._updatedAt) * _tokensPerNano);
+                bucket._updatedAt = now;
+            }
+
+            if (bucket._tokens >= 1)
+            {
+                bucket._tokens -= 1;
+                _allowed.increment();
+                return Duration.ZERO;
+            }
+
+            _rejected.increment();
+            return Duration.ofNanos((long) Math.ceil((1 - bucket._tokens) / _tokensPerNano));
+        }
+        finally
+        {
+            stripe._lock.unlock();
+        }
+    }
+
+    @Override
+    public long getTrackedKeys()
+    {
+        long count = 0;
+        for (Stripe stripe : _stripes)
+        {
+            stripe._lock.lock();
+            try
+            {
+                count += stripe._buckets.size();
+            }
+            finally
+            {
+                stripe._lock.unlock();
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public long getAllowedCount()
+    {
+        return _allowed.sum();
+    }
+
+    @Override
+    public long getRejectedCount()
+    {
+        return _rejected.sum();
+    }
+
+    @Override
+    public long getEvictedCount()
+    {
+        return _evicted.sum();
+    }
+
+    private static int spread(int hash)
+    {
+        // as in HashMap, mix the high bits in so that they also influence the choice of stripe
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Bucket
+    {
+        private double _tokens;
+        private long _updatedAt;
+
+        private Bucket(double tokens, long updatedAt)
+        {
+            _tokens = tokens;
+            _updatedAt = updatedAt;
+        }
+    }
+
+    private final class Stripe
+    {
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final LinkedHashMap<String, Bucket> _buckets;
+
+        private Stripe(int maxKeys)
+        {
+            _buckets = new LinkedHashMap<>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest)
+                {
+                    if (size() > maxKeys)
+                    {
+                        _evicted.increment();
+                        return true;
+                    }
+
+                    return false;
+                }
+            };
+        }
+    }
+}
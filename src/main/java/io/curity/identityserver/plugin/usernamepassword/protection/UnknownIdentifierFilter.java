@@ -0,0 +1,263 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import org.apache.commons.lang3.StringUtils;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers usernames and email addresses that were recently looked up and found not to belong to any account,
+ * so that repeated requests for them can be answered without calling the data source.
+ * <p>
+ * Identifiers are held as keyed hashes in two generations of cuckoo filters of fixed size. New identifiers are
+ * added to the current generation, and every {@link #rotate()} the older generation is emptied and becomes the
+ * current one, so an identifier is remembered for between one and two rotation intervals. Identifiers of
+ * accounts that are created or activated through this authenticator, or through another one that shares its
+ * invalidation bus, are removed immediately. Accounts created outside of them are only seen once their
+ * identifiers have been rotated out.
+ * <p>
+ * A false positive makes the flow pretend it sent an email without doing so. With 32-bit fingerprints, this
+ * happens for about two in a billion identifiers that do have an account.
+ */
+public final class UnknownIdentifierFilter implements UnknownIdentifierFilterMXBean
+{
+    private static final String USERNAME_KEY_PREFIX = "u:";
+    private static final String EMAIL_KEY_PREFIX = "e:";
+
+    private final int _capacity;
+    private final long _sizeInBytes;
+    private final HashFunction _hashFunction;
+    private final ReentrantLock _lock = new ReentrantLock();
+
+    // guarded by _lock
+    private CuckooFilter _current;
+    private CuckooFilter _previous;
+
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _added = new LongAdder();
+    private final LongAdder _removed = new LongAdder();
+    private final LongAdder _dropped = new LongAdder();
+
+    /**
+     * @param capacity the number of identifiers each generation holds
+     */
+    public UnknownIdentifierFilter(int capacity)
+    {
+        _current = new CuckooFilter(capacity);
+        _previous = new CuckooFilter(capacity);
+        _capacity = _current.getCapacity();
+        _sizeInBytes = _current.getSizeInBytes() * 2;
+
+        var random = new SecureRandom();
+        _hashFunction = Hashing.sipHash24(random.nextLong(), random.nextLong());
+    }
+
+    /**
+     * @return whether every identifier that is given is known not to belong to an account
+     */
+    public boolean isUnknown(@Nullable String username, @Nullable String emailAddress)
+    {
+        List<String> identifiers = keysOf(username, emailAddress);
+        if (identifiers.isEmpty())
+        {
+            return false;
+        }
+
+        _lock.lock();
+        try
+        {
+            for (String identifier : identifiers)
+            {
+                long hash = hash(identifier);
+                if (!_current.contains(hash) && !_previous.contains(hash))
+                {
+                    _misses.increment();
+                    return false;
+                }
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+
+        _hits.increment();
+        return true;
+    }
+
+    /**
+     * Remember that none of the given identifiers belongs to an account.
+     */
+    public void addUnknown(@Nullable String username, @Nullable String emailAddress)
+    {
+        List<String> identifiers = keysOf(username, emailAddress);
+
+        _lock.lock();
+        try
+        {
+            for (String identifier : identifiers)
+            {
+                if (!_current.add(hash(identifier)))
+                {
+                    _dropped.increment();
+                }
+                _added.increment();
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Forget the identifiers, because an account now has them.
+     */
+    public void remove(String username, @Nullable String emailAddress)
+    {
+        List<String> identifiers = keysOf(username, emailAddress);
+
+        _lock.lock();
+        try
+        {
+            for (String identifier : identifiers)
+            {
+                long hash = hash(identifier);
+
+                // the identifier may have been added to both generations, once in each
+                boolean removed = _current.remove(hash);
+                removed |= _previous.remove(hash);
+                if (removed)
+                {
+                    _removed.increment();
+                }
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Forget the older generation of identifiers, reusing its memory for new ones.
+     */
+    public void rotate()
+    {
+        _lock.lock();
+        try
+        {
+            CuckooFilter emptied = _previous;
+            emptied.clear();
+            _previous = _current;
+            _current = emptied;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    // a value is only unknown as the kind of identifier that it was looked up as
+    private static List<String> keysOf(@Nullable String username, @Nullable String emailAddress)
+    {
+        var keys = new ArrayList<String>(2);
+        if (StringUtils.isNotBlank(username))
+        {
+            keys.add(USERNAME_KEY_PREFIX + username);
+        }
+        if (StringUtils.isNotBlank(emailAddress))
+        {
+            keys.add(EMAIL_KEY_PREFIX + emailAddress);
+        }
+
+        return keys;
+    }
+
+    private long hash(String identifier)
+    {
+        // identifiers are not normalized, since it depends on the data source whether case matters
+        return _hashFunction.hashString(identifier, StandardCharsets.UTF_8).asLong();
+    }
+
+    @Override
+    public long getCapacity()
+    {
+        return _capacity;
+    }
+
+    @Override
+    public long getSizeInBytes()
+    {
+        return _sizeInBytes;
+    }
+
+    @Override
+    public long getCount()
+    {
+        _lock.lock();
+        try
+        {
+            return _current.getCount() + _previous.getCount();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public long getHitCount()
+    {
+        return _hits.sum();
+    }
+
+    @Override
+    public long getMissCount()
+    {
+        return _misses.sum();
+    }
+
+    @Override
+    public long getAddedCount()
+    {
+        return _added.sum();
+    }
+
+    @Override
+    public long getRemovedCount()
+    {
+        return _removed.sum();
+    }
+
+    @Override
+    public long getDroppedCount()
+    {
+        return _dropped.sum();
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.reauthentication;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.AuthenticationAttributes;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Short lived tokens that let a user who recently logged in on a device do so again without a call to the
+ * credential data source.
+ * <p>
+ * A token has the form {@code v1.<id>.<issued at>.<expires at>.<signature>}, and is bound to the random device
+ * identifier of the browser it was issued to, which is included in the signature but not in the token. Everything
+ * else is kept in memory under the id: the account the token was issued for, the identifier the user logged in
+ * with, the authentication attributes of that login, and a keyed hash of the password, the token and the device.
+ * So the user must still present the right password, and the token only replaces the expensive hash of the data
+ * source with a cheap local one, while the login that follows has the same attributes as the one that issued it.
+ * The keys are random and everything is held only in memory, so tokens do not survive a restart or a configuration
+ * change, and are only accepted by the node that issued them.
+ * <p>
+ * Tokens are revoked for an account whenever its password changes, by remembering when that happened for as
+ * long as a token can live.
+ */
+public final class ReauthenticationTokens implements ReauthenticationTokensMXBean
+{
+    private static final String VERSION = "v1";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    // beyond this, the oldest revocations are forgotten before their tokens expire
+    private static final int MAXIMUM_REVOCATIONS = 1_000_000;
+
+    private final SecretKeySpec _signingKey;
+    private final SecretKeySpec _digestKey;
+    private final SecureRandom _random = new SecureRandom();
+    private final Duration _lifetime;
+    private final Clock _clock;
+    private final Cache<String, Authentication> _authentications;
+    private final Cache<String, Long> _revokedAt;
+    private final LongAdder _issued = new LongAdder();
+    private final LongAdder _accepted = new LongAdder();
+    private final LongAdder _rejected = new LongAdder();
+
+    /**
+     * @param maximumTokens the number of tokens that can be used at once, beyond which the oldest ones are
+     *                      forgotten, and their users have their password verified by the data source again
+     */
+    public ReauthenticationTokens(Duration lifetime, int maximumTokens, Clock clock)
+    {
+        _lifetime = lifetime;
+        _clock = clock;
+        _signingKey = newKey();
+        _digestKey = newKey();
+        _authentications = CacheBuilder.newBuilder()
+                .expireAfterWrite(lifetime)
+                .maximumSize(maximumTokens)
+                .build();
+        _revokedAt = CacheBuilder.newBuilder()
+                .expireAfterWrite(lifetime)
+                .maximumSize(MAXIMUM_REVOCATIONS)
+                .build();
+    }
+
+    public Duration getLifetime()
+    {
+        return _lifetime;
+    }
+
+    public String newDeviceId()
+    {
+        return ENCODER.encodeToString(randomBytes());
+    }
+
+    /**
+     * Issue a token after a full login.
+     *
+     * @param loginIdentifier the identifier the user logged in with, which may be their email address
+     * @param username        the username of the account the password was verified for
+     * @param attributes      the attributes of the login, which a login with the token will have too
+     */
+    public String issue(String loginIdentifier, String username, AuthenticationAttributes attributes,
+                        String deviceId, String password)
+    {
+        String id = ENCODER.encodeToString(randomBytes());
+        long issuedAt = _clock.millis();
+        long expiresAt = issuedAt + _lifetime.toMillis();
+
+        _authentications.put(id, new Authentication(loginIdentifier, username, attributes, issuedAt,
+                digest(id, deviceId, password)));
+
+        String payload = String.join(".", VERSION, id, Long.toString(issuedAt), Long.toString(expiresAt));
+        _issued.increment();
+        return payload + "." + ENCODER.encodeToString(hmac(_signingKey, payload + "." + deviceId));
+    }
+
+    /**
+     * Check the token presented by a device against the identifier and password the user entered.
+     *
+     * @return the attributes of the login that issued the token, or empty if the token cannot be used and the
+     * password must be verified
+     */
+    public Optional<AuthenticationAttributes> verify(@Nullable String token, @Nullable String deviceId,
+                                                     String loginIdentifier, String password)
+    {
+        @Nullable Authentication authentication = token == null || deviceId == null
+                ? null
+                : authenticationOf(token, deviceId, loginIdentifier, password);
+        if (authentication == null)
+        {
+            _rejected.increment();
+            return Optional.empty();
+        }
+
+        _accepted.increment();
+        return Optional.of(authentication.attributes());
+    }
+
+    @Nullable
+    private Authentication authenticationOf(String token, String deviceId, String loginIdentifier, String password)
+    {
+        String[] parts = token.split("\\.");
+        if (parts.length != 5 || !VERSION.equals(parts[0]))
+        {
+            return null;
+        }
+
+        String payload = token.substring(0, token.lastIndexOf('.'));
+        long expiresAt;
+        try
+        {
+            if (!MessageDigest.isEqual(hmac(_signingKey, payload + "." + deviceId), DECODER.decode(parts[4])))
+            {
+                return null;
+            }
+
+            expiresAt = Long.parseLong(parts[3]);
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+
+        @Nullable Authentication authentication = _authentications.getIfPresent(parts[1]);
+        if (expiresAt <= _clock.millis() || authentication == null ||
+                !(loginIdentifier.equals(authentication.loginIdentifier()) ||
+                        loginIdentifier.equals(authentication.username())))
+        {
+            return null;
+        }
+
+        @Nullable Long revokedAt = _revokedAt.getIfPresent(normalize(authentication.username()));
+        if (revokedAt != null && authentication.issuedAt() <= revokedAt)
+        {
+            return null;
+        }
+
+        return MessageDigest.isEqual(digest(parts[1], deviceId, password), authentication.passwordDigest())
+                ? authentication
+                : null;
+    }
+
+    /**
+     * Make every token issued so far for the account unusable, after its password has changed.
+     *
+     * @param username the username of the account, as tokens were issued for it
+     */
+    public void revoke(String username)
+    {
+        _revokedAt.put(normalize(username), _clock.millis());
+    }
+
+    private byte[] digest(String id, String deviceId, String password)
+    {
+        return hmac(_digestKey, String.join("\u0000", id, deviceId, password));
+    }
+
+    private static byte[] hmac(SecretKeySpec key, String value)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("The JVM does not support " + MAC_ALGORITHM, e);
+        }
+    }
+
+    private SecretKeySpec newKey()
+    {
+        byte[] key = new byte[32];
+        _random.nextBytes(key);
+        return new SecretKeySpec(key, MAC_ALGORITHM);
+    }
+
+    private byte[] randomBytes()
+    {
+        byte[] bytes = new byte[16];
+        _random.nextBytes(bytes);
+        return bytes;
+    }
+
+    // revocation errs on the side of revoking the tokens of accounts that only differ in case
+    private static String normalize(String username)
+    {
+        return username.trim().toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public long getIssuedCount()
+    {
+        return _issued.sum();
+    }
+
+    @Override
+    public long getAcceptedCount()
+    {
+        return _accepted.sum();
+    }
+
+    @Override
+    public long getRejectedCount()
+    {
+        return _rejected.sum();
+    }
+
+    @Override
+    public long getRevokedAccountCount()
+    {
+        return _revokedAt.size();
+    }
+
+    @Override
+    public long getUsableTokenCount()
+    {
+        return _authentications.size();
+    }
+
+    private record Authentication(String loginIdentifier, String username, AuthenticationAttributes attributes,
+                                  long issuedAt, byte[] passwordDigest)
+    {
+    }
+}
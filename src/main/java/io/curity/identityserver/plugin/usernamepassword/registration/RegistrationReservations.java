@@ -0,0 +1,241 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.registration;
+
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.web.alerts.ErrorMessage;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reserves the identifiers of accounts while they are registered, so that concurrent registrations with the same
+ * username, email address or phone number, such as a double submitted form, do not all pass the duplicate check
+ * and race to create the account.
+ * <p>
+ * All identifiers of a registration are claimed at once, before the duplicate check. They are released when no
+ * account is created, and kept for a while when one is, so that repeated registrations with them are refused without
+ * calling the data source. Reservations expire, in case a registration never finishes. Identifiers are compared
+ * exactly, so they should be canonicalized first. Reservations are only known to this server, so the data source
+ * still decides between registrations on different nodes.
+ */
+public final class RegistrationReservations implements RegistrationReservationsMXBean
+{
+    private final ConcurrentMap<String, Reservation> _reservations = new ConcurrentHashMap<>();
+    private final long _pendingNanos;
+    private final long _createdNanos;
+    private final int _maximumEntries;
+    private final LongAdder _claims = new LongAdder();
+    private final LongAdder _conflicts = new LongAdder();
+    private final LongAdder _created = new LongAdder();
+    private final LongAdder _expired = new LongAdder();
+    private final LongAdder _overflows = new LongAdder();
+
+    /**
+     * @param pendingTimeToLive how long identifiers stay reserved by a registration that never finishes
+     * @param createdTimeToLive how long the identifiers of a created account stay reserved
+     * @param maximumEntries    the maximum number of identifiers reserved at once
+     */
+    public RegistrationReservations(Duration pendingTimeToLive, Duration createdTimeToLive, int maximumEntries)
+    {
+        _pendingNanos = pendingTimeToLive.toNanos();
+        _createdNanos = createdTimeToLive.toNanos();
+        _maximumEntries = maximumEntries;
+    }
+
+    /**
+     * Claim the identifiers of a new account, unless another registration holds one of them.
+     * <p>
+     * The claim must be released when the registration finishes, and confirmed before that if the account was
+     * created. When too many identifiers are reserved, the claim holds none and the data source decides alone.
+     */
+    public Claim claim(String username, String emailAddress, @Nullable String phoneNumber)
+    {
+        var claim = new Claim(System.nanoTime() + _pendingNanos);
+        if (_reservations.size() >= _maximumEntries)
+        {
+            _overflows.increment();
+            return claim;
+        }
+
+        _claims.increment();
+        for (Identifier identifier : Identifier.values())
+        {
+            @Nullable String value = switch (identifier)
+            {
+                case USERNAME -> username;
+                case EMAIL -> emailAddress;
+                case PHONE_NUMBER -> phoneNumber;
+            };
+            if (value == null || value.isBlank())
+            {
+                continue;
+            }
+
+            // each identifier is claimed atomically on its own, and all are given up on the first conflict, so
+            // that two registrations never wait for each other
+            String key = identifier._keyPrefix + value;
+            long now = System.nanoTime();
+            Reservation reservation = _reservations.compute(key, (k, existing) ->
+                    existing == null || existing.isExpired(now) ? claim._pending : existing);
+
+            if (reservation != claim._pending)
+            {
+                _conflicts.increment();
+                claim.release();
+                claim._conflict = ErrorMessage.withMessage(identifier._duplicateMessageKey);
+                return claim;
+            }
+            claim._keys.add(key);
+        }
+
+        return claim;
+    }
+
+    /**
+     * Remove the reservations that expired, which are otherwise only replaced when their identifiers are claimed.
+     */
+    public void removeExpired()
+    {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Reservation> entry : _reservations.entrySet())
+        {
+            if (entry.getValue().isExpired(now) && _reservations.remove(entry.getKey(), entry.getValue()))
+            {
+                _expired.increment();
+            }
+        }
+    }
+
+    @Override
+    public long getSize()
+    {
+        return _reservations.size();
+    }
+
+    @Override
+    public long getClaimCount()
+    {
+        return _claims.sum();
+    }
+
+    @Override
+    public long getConflictCount()
+    {
+        return _conflicts.sum();
+    }
+
+    @Override
+    public long getCreatedCount()
+    {
+        return _created.sum();
+    }
+
+    @Override
+    public long getExpiredCount()
+    {
+        return _expired.sum();
+    }
+
+    @Override
+    public long getOverflowCount()
+    {
+        return _overflows.sum();
+    }
+
+    /**
+     * The identifiers reserved by one registration.
+     */
+    public final class Claim
+    {
+        private final Reservation _pending;
+        private final List<String> _keys = new ArrayList<>(Identifier.values().length);
+
+        @Nullable
+        private ErrorMessage _conflict;
+
+        private Claim(long expiresAtNanos)
+        {
+            _pending = new Reservation(this, expiresAtNanos);
+        }
+
+        /**
+         * Get the duplicate error of the first identifier that another registration holds, if any.
+         */
+        public Optional<ErrorMessage> getConflict()
+        {
+            return Optional.ofNullable(_conflict);
+        }
+
+        /**
+         * Keep the identifiers reserved for a while, since an account was created with them.
+         */
+        public void confirm()
+        {
+            var created = new Reservation(null, System.nanoTime() + _createdNanos);
+            for (String key : _keys)
+            {
+                _reservations.replace(key, _pending, created);
+            }
+            _keys.clear();
+            _created.increment();
+        }
+
+        /**
+         * Release the identifiers that are still reserved by this claim. This does nothing after {@link #confirm()}.
+         */
+        public void release()
+        {
+            for (String key : _keys)
+            {
+                _reservations.remove(key, _pending);
+            }
+            _keys.clear();
+        }
+    }
+
+    // identifiers of created accounts have no owner
+    private record Reservation(@Nullable Claim owner, long expiresAtNanos)
+    {
+        boolean isExpired(long now)
+        {
+            return now - expiresAtNanos >= 0;
+        }
+    }
+
+    private enum Identifier
+    {
+        USERNAME("u:", "error.validation.accountId.duplicate"),
+        EMAIL("e:", "error.validation.email.duplicate"),
+        PHONE_NUMBER("p:", "error.validation.phone.duplicate");
+
+        private final String _keyPrefix;
+        private final String _duplicateMessageKey;
+
+        Identifier(String keyPrefix, String duplicateMessageKey)
+        {
+            _keyPrefix = keyPrefix;
+            _duplicateMessageKey = duplicateMessageKey;
+        }
+    }
+}
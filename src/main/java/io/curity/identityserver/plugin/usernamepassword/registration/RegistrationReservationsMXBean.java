@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.registration;
+
+public interface RegistrationReservationsMXBean
+{
+    /**
+     * The number of identifiers reserved, by registrations in progress or by recently created accounts.
+     */
+    long getSize();
+
+    long getClaimCount();
+
+    /**
+     * The number of registrations refused without calling the data source, since another one held an identifier.
+     */
+    long getConflictCount();
+
+    long getCreatedCount();
+
+    long getExpiredCount();
+
+    /**
+     * The number of registrations that reserved nothing, since too many identifiers were reserved already.
+     */
+    long getOverflowCount();
+}
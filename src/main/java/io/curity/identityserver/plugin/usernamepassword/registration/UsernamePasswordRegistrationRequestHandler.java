@@ -18,6 +18,10 @@ package io.curity.identityserver.plugin.usernamepassword.registration;
 
 import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
 import io.curity.identityserver.plugin.usernamepassword.registration.RequestModel.RegistrationRequestModel;
+import io.curity.identityserver.plugin.usernamepassword.runtime.AuthenticatorRuntime;
+import io.curity.identityserver.plugin.usernamepassword.runtime.Deadline;
+import io.curity.identityserver.plugin.usernamepassword.runtime.DeadlineExceededException;
+import io.curity.identityserver.plugin.usernamepassword.utils.RetryableErrors;
 import io.curity.identityserver.plugin.usernamepassword.utils.CredentialOperations;
 import io.curity.identityserver.plugin.usernamepassword.utils.ViewModelReservedKeys;
 import org.slf4j.Logger;
@@ -34,7 +38,6 @@ import se.curity.identityserver.sdk.errors.ExternalServiceException;
 import se.curity.identityserver.sdk.http.HttpStatus;
 import se.curity.identityserver.sdk.service.AccountManager;
 import se.curity.identityserver.sdk.service.UserPreferenceManager;
-import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
 import se.curity.identityserver.sdk.service.credential.CredentialUpdateResult;
 import se.curity.identityserver.sdk.service.credential.UserCredentialManager;
 import se.curity.identityserver.sdk.web.Request;
@@ -42,6 +45,7 @@ import se.curity.identityserver.sdk.web.Response;
 import se.curity.identityserver.sdk.web.alerts.ErrorMessage;
 
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
@@ -56,28 +60,33 @@ public final class UsernamePasswordRegistrationRequestHandler implements Registr
     private static final Logger _logger = LoggerFactory.getLogger(UsernamePasswordRegistrationRequestHandler.class);
     private final AccountManager _accountManager;
     private final UserCredentialManager _userCredentialManager;
-    private final AuthenticatorInformationProvider _authenticatorInformationProvider;
     private final UserPreferenceManager _userPreferenceManager;
+    private final AuthenticatorRuntime _runtime;
 
-    public UsernamePasswordRegistrationRequestHandler(UsernamePasswordAuthenticatorPluginConfig config)
+    public UsernamePasswordRegistrationRequestHandler(UsernamePasswordAuthenticatorPluginConfig config,
+                                                      AuthenticatorRuntime runtime)
     {
         _accountManager = config.getAccountManager();
         _userCredentialManager = config.getCredentialManager();
-        _authenticatorInformationProvider = config.getAuthenticatorInformationProvider();
         _userPreferenceManager = config.getUserPreferenceManager();
+        _runtime = runtime;
     }
 
     @Override
     public RequestModel preProcess(Request request, Response response)
     {
-        var data = new HashMap<String, Object>(2);
-        data.put(ViewModelReservedKeys.SHOW_PASSWORD_FIELDS, !_accountManager.isSetPasswordAfterActivation());
-        data.put(ViewModelReservedKeys.SHOW_EMAIL_FIELD, !_accountManager.useUsernameAsEmail());
+        _runtime.onRequest();
+        _runtime.checkClientAddress(request);
+
+        var viewModel = _runtime.getViewModel();
+        Map<String, Object> data = viewModel.getRegistrationViewData();
 
         if (request.isPostRequest())
         {
             response.setResponseModel(templateResponseModel(data, "create-account/get"),
                     HttpStatus.BAD_REQUEST);
+            response.setResponseModel(templateResponseModel(data, "create-account/get"),
+                    HttpStatus.SERVICE_UNAVAILABLE);
 
             response.setResponseModel(templateResponseModel(emptyMap(), "create-account/post"),
                     Response.ResponseModelScope.NOT_FAILURE);
@@ -88,7 +97,7 @@ public final class UsernamePasswordRegistrationRequestHandler implements Registr
                     Response.ResponseModelScope.NOT_FAILURE);
         }
 
-        return new RequestModel(request, _accountManager.useUsernameAsEmail(), _accountManager.isSetPasswordAfterActivation());
+        return new RequestModel(request, viewModel.isUsernameAsEmail(), viewModel.isSetPasswordAfterActivation());
     }
 
     @Override
@@ -100,37 +109,89 @@ public final class UsernamePasswordRegistrationRequestHandler implements Registr
     @Override
     public Optional<RegistrationResult> post(RequestModel requestModel, Response response)
     {
-        @Nullable ErrorMessage error;
-
         var model = requestModel.getPostRequestModel();
+        Deadline deadline = _runtime.newDeadline("registration");
 
         try
         {
-            error = _accountManager.ensureNonDuplicateAccount(
-                    model.getUserName(), model.getPrimaryEmail(), model.getPrimaryPhoneNumber()).orElse(null);
+            return register(model, deadline, response);
         }
-        catch (RuntimeException e)
+        catch (DeadlineExceededException e)
         {
-            _logger.error("An unexpected error occurred while check if the user account exists prior to creating it", e);
-            error = ErrorMessage.withMessage("error.duplicateAccountCheckFailed");
+            _logger.debug("Registration was aborted: {}", e.getMessage());
+            RetryableErrors.deadlineExceeded(response);
+            onPostRequestValidationError(response, model);
+            return Optional.empty();
         }
+    }
+
+    private Optional<RegistrationResult> register(RegistrationRequestModel model, Deadline deadline,
+                                                  Response response)
+    {
+        @Nullable ErrorMessage error;
 
-        if (error != null)
+        // the forms that are checked for duplicates are the ones stored, so that any variant later finds the account
+        var canonicalizer = _runtime.getIdentifierCanonicalizer();
+        String username = canonicalizer.username(model.getUserName());
+        String emailAddress = _runtime.getViewModel().isUsernameAsEmail()
+                ? username
+                : canonicalizer.email(model.getPrimaryEmail());
+        @Nullable String phoneNumber = canonicalizer.phoneNumber(model.getPrimaryPhoneNumber());
+
+        // claimed before the duplicate check, so that concurrent registrations with the same identifiers cannot
+        // both pass it
+        @Nullable RegistrationReservations.Claim claim = _runtime.getRegistrationReservations()
+                .map(reservations -> reservations.claim(username, emailAddress, phoneNumber))
+                .orElse(null);
+        try
         {
-            response.addErrorMessage(error);
-            onPostRequestValidationError(response, model);
-            return Optional.empty();
+            error = claim == null ? null : claim.getConflict().orElse(null);
+            if (error != null)
+            {
+                _logger.debug("Registration was refused without calling the data source, since its identifiers are reserved");
+            }
+            else
+            {
+                deadline.check("ensureNonDuplicateAccount");
+                try
+                {
+                    error = _accountManager.ensureNonDuplicateAccount(username, emailAddress, phoneNumber).orElse(null);
+                }
+                catch (RuntimeException e)
+                {
+                    _logger.error("An unexpected error occurred while check if the user account exists prior to creating it", e);
+                    error = ErrorMessage.withMessage("error.duplicateAccountCheckFailed");
+                }
+            }
+
+            if (error != null)
+            {
+                response.addErrorMessage(error);
+                onPostRequestValidationError(response, model);
+                return Optional.empty();
+            }
+            else
+            {
+                return createAccount(model, username, emailAddress, phoneNumber, claim, deadline, response);
+            }
         }
-        else
+        finally
         {
-            return createAccount(model, response);
+            // this does nothing once the account was created, so that its identifiers stay reserved for a while
+            if (claim != null)
+            {
+                claim.release();
+            }
         }
     }
 
-    private Optional<RegistrationResult> createAccount(RegistrationRequestModel requestModel, Response response)
+    private Optional<RegistrationResult> createAccount(RegistrationRequestModel requestModel, String username,
+                                                       String emailAddress, @Nullable String primaryPhoneNumber,
+                                                       @Nullable RegistrationReservations.Claim claim,
+                                                       Deadline deadline, Response response)
     {
         String password = requestModel.getPassword();
-        AccountAttributes modelAccount = AccountAttributes.of(requestModel.getUserName(), password, requestModel.getPrimaryEmail())
+        AccountAttributes modelAccount = AccountAttributes.of(username, password, emailAddress)
                 .withActive(false);
 
         String firstName = trimmed(requestModel.getFirstName());
@@ -140,7 +201,7 @@ public final class UsernamePasswordRegistrationRequestHandler implements Registr
             modelAccount = modelAccount.withName(Name.of(firstName, lastName));
         }
 
-        String phoneNumber = trimmed(requestModel.getPrimaryPhoneNumber());
+        String phoneNumber = trimmed(primaryPhoneNumber);
         if (!phoneNumber.isEmpty())
         {
             modelAccount = modelAccount.withPhoneNumbers(PhoneNumber.of(phoneNumber, true));
@@ -149,6 +210,7 @@ public final class UsernamePasswordRegistrationRequestHandler implements Registr
         AccountAttributes account = modelAccount
                 .withActive(false);
 
+        deadline.check("createAccount");
         try
         {
          account = _accountManager.withCredentialManager(_userCredentialManager).createAccount(account);
@@ -174,14 +236,25 @@ public final class UsernamePasswordRegistrationRequestHandler implements Registr
             return Optional.empty();
         }
 
-        _userPreferenceManager.saveUsername(requestModel.getUserName());
+        if (claim != null)
+        {
+            claim.confirm();
+        }
+        _runtime.onAccountCreated(username, emailAddress);
+        // the account exists now, so the rest is done even once the deadline has passed, since a retry would only
+        // find it taken
+        _userPreferenceManager.saveUsername(username);
 
-        var activateAccountUrl = String.format("%s/activate-account",
-                _authenticatorInformationProvider.getFullyQualifiedAnonymousUri());
+        var activateAccountUrl = _runtime.getViewModel().getActivateAccountUrl();
         var model = new HashMap<String, Object>(1);
         model.put(ViewModelReservedKeys.ACTIVATION_ENDPOINT, activateAccountUrl);
 
         ActivationResult activationResult = _accountManager.initializeActivation(account, model);
+        if (activationResult.isPending())
+        {
+            _runtime.onActivationPending(username);
+        }
+
         if (activationResult.isDone() || activationResult.isPending())
         {
             response.setResponseModel(activationResult.getModel(), HttpStatus.CREATED);
@@ -197,8 +270,9 @@ public final class UsernamePasswordRegistrationRequestHandler implements Registr
     {
         if (request.isPostRequest())
         {
+            var viewModel = _runtime.getViewModel();
             var requestModel =
-                    new RegistrationRequestModel(request, _accountManager.useUsernameAsEmail(), _accountManager.isSetPasswordAfterActivation());
+                    new RegistrationRequestModel(request, viewModel.isUsernameAsEmail(), viewModel.isSetPasswordAfterActivation());
 
             var data = new HashMap<String, Object>(1);
             data.put(ViewModelReservedKeys.FORM_POST_BACK, requestModel.dataOnError());
@@ -0,0 +1,420 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.runtime;
+
+import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.usernamepassword.invalidation.InvalidationEvent;
+import io.curity.identityserver.plugin.usernamepassword.invalidation.InvalidationFeatures;
+import io.curity.identityserver.plugin.usernamepassword.lookup.AccountLookup;
+import io.curity.identityserver.plugin.usernamepassword.lookup.AccountPrefetcher;
+import io.curity.identityserver.plugin.usernamepassword.lookup.AccountResolver;
+import io.curity.identityserver.plugin.usernamepassword.lookup.LookupFeatures;
+import io.curity.identityserver.plugin.usernamepassword.protection.AccountStateTable;
+import io.curity.identityserver.plugin.usernamepassword.protection.AdaptiveConcurrencyLimiter;
+import io.curity.identityserver.plugin.usernamepassword.protection.DecoyPasswordHasher;
+import io.curity.identityserver.plugin.usernamepassword.protection.KnownUsernameFilter;
+import io.curity.identityserver.plugin.usernamepassword.protection.LoginRateLimiter;
+import io.curity.identityserver.plugin.usernamepassword.protection.PasswordSprayDetector;
+import io.curity.identityserver.plugin.usernamepassword.protection.ProofOfWork;
+import io.curity.identityserver.plugin.usernamepassword.protection.ProtectionFeatures;
+import io.curity.identityserver.plugin.usernamepassword.protection.UnknownIdentifierFilter;
+import io.curity.identityserver.plugin.usernamepassword.reauthentication.ReauthenticationTokens;
+import io.curity.identityserver.plugin.usernamepassword.registration.RegistrationReservations;
+import io.curity.identityserver.plugin.usernamepassword.setPassword.NonceIntrospectionCache;
+import io.curity.identityserver.plugin.usernamepassword.utils.IdentifierCanonicalizer;
+import io.curity.identityserver.plugin.usernamepassword.utils.NullEmailSender;
+import io.curity.identityserver.plugin.usernamepassword.verification.CredentialMigrator;
+import io.curity.identityserver.plugin.usernamepassword.verification.MultiStoreCredentialVerifier;
+import io.curity.identityserver.plugin.usernamepassword.verification.ShadowVerifier;
+import io.curity.identityserver.plugin.usernamepassword.verification.VerificationFeatures;
+import io.curity.identityserver.plugin.usernamepassword.warmup.WarmupFeatures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import se.curity.identityserver.sdk.plugin.ManagedObject;
+import se.curity.identityserver.sdk.service.EmailSender;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import se.curity.identityserver.sdk.web.Request;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State shared by all request handlers of one authenticator instance.
+ * <p>
+ * The server creates a new request handler for every request, but only one managed object per configuration.
+ * It is recreated, and the previous instance closed, whenever the configuration changes.
+ * <p>
+ * The optional features are created by the package that they belong to, and this only ties them together and
+ * gives handlers access to them.
+ */
+public final class AuthenticatorRuntime extends ManagedObject<UsernamePasswordAuthenticatorPluginConfig>
+{
+    private static final Logger _logger = LoggerFactory.getLogger(AuthenticatorRuntime.class);
+
+    private final UsernamePasswordAuthenticatorPluginConfig _configuration;
+    private final RuntimeResources _resources;
+    private final ExceptionFactory _exceptionFactory;
+    private final EmailSender _emailSender;
+    private final IdentifierCanonicalizer _identifierCanonicalizer;
+
+    // computed on first use, during a request, rather than while the configuration is being applied
+    @Nullable
+    private volatile ViewModelSnapshot _viewModel;
+
+    @Nullable
+    private final DeadlineStatistics _deadlineStatistics;
+
+    private final LookupFeatures _lookup;
+    private final ProtectionFeatures _protection;
+    private final VerificationFeatures _verification;
+    private final WarmupFeatures _warmup;
+
+    @Nullable
+    private final ReauthenticationTokens _reauthenticationTokens;
+
+    @Nullable
+    private final NonceIntrospectionCache _nonceIntrospectionCache;
+
+    @Nullable
+    private final RegistrationReservations _registrationReservations;
+
+    private final InvalidationFeatures _invalidation;
+
+    public AuthenticatorRuntime(UsernamePasswordAuthenticatorPluginConfig configuration)
+    {
+        super(configuration);
+
+        _configuration = configuration;
+        _resources = new RuntimeResources(configuration.id());
+
+        // until the constructor returns, nobody else can close what was started, such as threads and MXBeans
+        try
+        {
+            _exceptionFactory = configuration.getExceptionFactory();
+
+            // resolved once for the configuration, so that a missing provider is only reported once
+            _emailSender = configuration.getEmailSender().orElseGet(() ->
+            {
+                _logger.info("No email provider has been configured");
+                return new NullEmailSender();
+            });
+
+            _identifierCanonicalizer = configuration.getIdentifierCanonicalization()
+                    .map(settings -> new IdentifierCanonicalizer(settings.isCaseInsensitiveUsernames(),
+                            settings.getDefaultCountryCode().orElse(null)))
+                    .orElse(IdentifierCanonicalizer.NONE);
+
+            _deadlineStatistics = configuration.getRequestDeadline()
+                    .map(settings -> new DeadlineStatistics(Duration.ofMillis(settings.getBudgetMillis())))
+                    .orElse(null);
+            if (_deadlineStatistics != null)
+            {
+                _resources.register("Deadlines", _deadlineStatistics);
+            }
+
+            _lookup = new LookupFeatures(configuration, _resources);
+            _protection = new ProtectionFeatures(configuration, _resources,
+                    _lookup.getAccountPrefetcher().isPresent());
+            _verification = new VerificationFeatures(configuration, _resources);
+            _warmup = new WarmupFeatures(configuration, _resources);
+
+            _reauthenticationTokens = configuration.getFastReauthentication()
+                    .map(settings -> new ReauthenticationTokens(
+                            Duration.ofSeconds(settings.getTokenLifetimeSeconds()), settings.getMaximumTokens(),
+                            Clock.systemUTC()))
+                    .orElse(null);
+            if (_reauthenticationTokens != null)
+            {
+                _resources.register("ReauthenticationTokens", _reauthenticationTokens);
+            }
+
+            _nonceIntrospectionCache = configuration.getNonceIntrospectionCache()
+                    .map(settings -> new NonceIntrospectionCache(
+                            Duration.ofSeconds(settings.getTimeToLiveSeconds()), settings.getMaximumEntries()))
+                    .orElse(null);
+            if (_nonceIntrospectionCache != null)
+            {
+                _resources.register("NonceIntrospectionCache", _nonceIntrospectionCache);
+            }
+
+            _registrationReservations = configuration.getRegistrationReservations()
+                    .map(settings -> new RegistrationReservations(Duration.ofSeconds(settings.getPendingSeconds()),
+                            Duration.ofSeconds(settings.getCreatedSeconds()), settings.getMaximumEntries()))
+                    .orElse(null);
+            if (_registrationReservations != null)
+            {
+                // expired reservations are replaced when claimed, so this only bounds those never claimed again
+                _resources.getScheduler().scheduleWithFixedDelay(_registrationReservations::removeExpired,
+                        1, 1, TimeUnit.MINUTES);
+
+                _resources.register("RegistrationReservations", _registrationReservations);
+            }
+
+            // subscribed last, so that no event arrives before the features it changes exist
+            _invalidation = new InvalidationFeatures(configuration, _resources);
+            _invalidation.subscribe(this::onInvalidation);
+        }
+        catch (RuntimeException | Error e)
+        {
+            _resources.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Refuse the request if its client address is denied, before anything else is done for it.
+     */
+    public void checkClientAddress(Request request)
+    {
+        if (_protection.getAddressFilter().map(filter -> filter.isDenied(request.getClientIpAddress())).orElse(false))
+        {
+            throw _exceptionFactory.forbiddenException(ErrorCode.ACCESS_DENIED);
+        }
+    }
+
+    /**
+     * Note that a request has arrived, which every handler does before anything else is done for it.
+     */
+    public void onRequest()
+    {
+        _warmup.onRequest();
+    }
+    /**
+     * Start the time budget of a request, which never runs out unless one is configured.
+     *
+     * @param flow the name of the flow, by which expired requests are counted
+     */
+    public Deadline newDeadline(String flow)
+    {
+        return _deadlineStatistics == null
+                ? Deadline.none()
+                : Deadline.after(Duration.ofMillis(_deadlineStatistics.getBudgetMillis()), flow, _deadlineStatistics);
+    }
+
+    /**
+     * Get the configured email sender, or one that drops every email when none is configured.
+     */
+    public EmailSender getEmailSender()
+    {
+        return _emailSender;
+    }
+
+    /**
+     * Get the canonicalizer for identifiers that users enter, which leaves them as they are when none is configured.
+     */
+    public IdentifierCanonicalizer getIdentifierCanonicalizer()
+    {
+        return _identifierCanonicalizer;
+    }
+
+    /**
+     * Get the view data and URLs that only depend on the configuration.
+     */
+    public ViewModelSnapshot getViewModel()
+    {
+        @Nullable ViewModelSnapshot viewModel = _viewModel;
+        if (viewModel == null)
+        {
+            // computing it more than once in a race is harmless, since every result is the same
+            viewModel = new ViewModelSnapshot(_configuration.getAccountManager(),
+                    _configuration.getAuthenticatorInformationProvider());
+            _viewModel = viewModel;
+        }
+
+        return viewModel;
+    }
+
+    public Optional<AdaptiveConcurrencyLimiter> getConcurrencyLimiter()
+    {
+        return _protection.getConcurrencyLimiter();
+    }
+
+    public Optional<LoginRateLimiter> getLoginRateLimiter()
+    {
+        return _protection.getLoginRateLimiter();
+    }
+
+    public Optional<KnownUsernameFilter> getKnownUsernameFilter()
+    {
+        return _protection.getKnownUsernameFilter();
+    }
+
+    public Optional<DecoyPasswordHasher> getDecoyPasswordHasher()
+    {
+        return _protection.getDecoyPasswordHasher();
+    }
+
+    public Optional<AccountStateTable> getAccountStateTable()
+    {
+        return _protection.getAccountStateTable();
+    }
+
+    public Optional<PasswordSprayDetector> getPasswordSprayDetector()
+    {
+        return _protection.getPasswordSprayDetector();
+    }
+
+    public Optional<ProofOfWork> getProofOfWork()
+    {
+        return _protection.getProofOfWork();
+    }
+
+    public Optional<ReauthenticationTokens> getReauthenticationTokens()
+    {
+        return Optional.ofNullable(_reauthenticationTokens);
+    }
+
+    /**
+     * Get the reader of accounts that every handler uses instead of the account manager.
+     */
+    public AccountLookup getAccountLookup()
+    {
+        return _lookup.getAccountLookup();
+    }
+
+    public Optional<UnknownIdentifierFilter> getUnknownIdentifierFilter()
+    {
+        return _protection.getUnknownIdentifierFilter();
+    }
+
+    public Optional<AccountPrefetcher> getAccountPrefetcher()
+    {
+        return _lookup.getAccountPrefetcher();
+    }
+
+    public Optional<AccountResolver> getAccountResolver()
+    {
+        return _lookup.getAccountResolver();
+    }
+
+    public Optional<NonceIntrospectionCache> getNonceIntrospectionCache()
+    {
+        return Optional.ofNullable(_nonceIntrospectionCache);
+    }
+
+    public Optional<RegistrationReservations> getRegistrationReservations()
+    {
+        return Optional.ofNullable(_registrationReservations);
+    }
+
+    public Optional<MultiStoreCredentialVerifier> getMultiStoreCredentialVerifier()
+    {
+        return _verification.getMultiStoreCredentialVerifier();
+    }
+
+    public Optional<ShadowVerifier> getShadowVerifier()
+    {
+        return _verification.getShadowVerifier();
+    }
+
+    public Optional<CredentialMigrator> getCredentialMigrator()
+    {
+        return _verification.getCredentialMigrator();
+    }
+
+    /**
+     * Record that an account was created, so that neither its username nor its email address is treated as unknown.
+     */
+    public void onAccountCreated(String username, @Nullable String emailAddress)
+    {
+        forgetUnknown(username, emailAddress);
+        _invalidation.publish(InvalidationEvent.Type.ACCOUNT_CREATED, username, emailAddress);
+    }
+
+    /**
+     * Remember that the data source reported the account as locked out.
+     */
+    public void onLockedOut(String username)
+    {
+        _protection.onLockedOut(username);
+    }
+
+    /**
+     * Remember that the account was created, but cannot log in until it has been activated.
+     */
+    public void onActivationPending(String username)
+    {
+        _protection.onActivationPending(username);
+    }
+
+    /**
+     * Forget any state that prevents the account from logging in.
+     */
+    public void onAccountUsable(String username)
+    {
+        forgetUnusable(username);
+        _invalidation.publish(InvalidationEvent.Type.ACCOUNT_ACTIVATED, username, null);
+    }
+
+    /**
+     * Revoke anything that lets the account log in with its previous password, and forget a lockout that the
+     * previous password may have caused.
+     */
+    public void onPasswordChanged(String username)
+    {
+        forgetPassword(username);
+        _invalidation.publish(InvalidationEvent.Type.PASSWORD_CHANGED, username, null);
+    }
+
+    /**
+     * Apply a change that another authenticator made, without publishing it again.
+     */
+    private void onInvalidation(InvalidationEvent event)
+    {
+        switch (event.type())
+        {
+            case ACCOUNT_CREATED -> forgetUnknown(event.username(), event.emailAddress());
+            case ACCOUNT_ACTIVATED -> forgetUnusable(event.username());
+            case PASSWORD_CHANGED -> forgetPassword(event.username());
+        }
+    }
+
+    private void forgetUnknown(String username, @Nullable String emailAddress)
+    {
+        _protection.onAccountExists(username, emailAddress);
+        _lookup.onAccountWritten(username, emailAddress);
+    }
+
+    private void forgetUnusable(String username)
+    {
+        _protection.onAccountExists(username, null);
+        _protection.onAccountUsable(username);
+        _lookup.onAccountWritten(username, null);
+    }
+
+    private void forgetPassword(String username)
+    {
+        if (_reauthenticationTokens != null)
+        {
+            _reauthenticationTokens.revoke(username);
+        }
+        // a lockout is usually lifted by resetting the password, after which the data source decides again
+        _protection.onAccountUsable(username);
+        _lookup.onAccountWritten(username, null);
+    }
+
+    @Override
+    public void close()
+    {
+        _invalidation.close();
+        _resources.close();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.runtime;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The time left for a request to be handled, after which it should not make any more calls to data sources.
+ * <p>
+ * A request handler creates the deadline when it starts handling a request, passes it to the methods that call
+ * data sources, and checks it before each call. A client has usually given up on a request by the time it
+ * expires, so any further work would only add to the load of a data source that is already slow.
+ */
+public final class Deadline
+{
+    private static final Deadline NONE = new Deadline("none", Long.MAX_VALUE, null);
+
+    private final String _flow;
+    private final long _expiresAtNanos;
+
+    @Nullable
+    private final DeadlineStatistics _statistics;
+
+    private Deadline(String flow, long expiresAtNanos, @Nullable DeadlineStatistics statistics)
+    {
+        _flow = flow;
+        _expiresAtNanos = expiresAtNanos;
+        _statistics = statistics;
+    }
+
+    /**
+     * A deadline that never runs out, for work that is not done for a single request.
+     */
+    public static Deadline none()
+    {
+        return NONE;
+    }
+
+    static Deadline after(Duration budget, String flow, DeadlineStatistics statistics)
+    {
+        return new Deadline(flow, System.nanoTime() + budget.toNanos(), statistics);
+    }
+
+    /**
+     * Ensure that there is time left before making a call.
+     *
+     * @param callSite the name of the call that is about to be made
+     * @throws DeadlineExceededException if the request is out of time
+     */
+    public void check(String callSite)
+    {
+        if (_statistics != null && System.nanoTime() - _expiresAtNanos >= 0)
+        {
+            _statistics.onExpired(_flow, callSite);
+            throw new DeadlineExceededException(_flow, callSite);
+        }
+    }
+
+    /**
+     * Wait for the result of a call that another request made, for no longer than the time that is left.
+     *
+     * @param callSite the name of the call that is waited for
+     * @throws DeadlineExceededException if the request runs out of time before the call completes
+     */
+    public <T> T await(Future<T> call, String callSite) throws ExecutionException, InterruptedException
+    {
+        if (_statistics == null)
+        {
+            return call.get();
+        }
+
+        try
+        {
+            return call.get(Math.max(0, _expiresAtNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            _statistics.onExpired(_flow, callSite);
+            throw new DeadlineExceededException(_flow, callSite);
+        }
+    }
+}
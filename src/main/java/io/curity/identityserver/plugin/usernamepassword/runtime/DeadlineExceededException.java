@@ -0,0 +1,31 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.runtime;
+
+/**
+ * Thrown when a request has run out of time, and should be answered with a retryable error.
+ */
+public final class DeadlineExceededException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    DeadlineExceededException(String flow, String callSite)
+    {
+        super(String.format("The %s request ran out of time before calling %s", flow, callSite), null,
+                false, false);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.runtime;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the requests that ran out of time, by flow and call site.
+ */
+public final class DeadlineStatistics implements DeadlineStatisticsMXBean
+{
+    private final Duration _budget;
+    private final Map<String, LongAdder> _expired = new ConcurrentHashMap<>();
+
+    DeadlineStatistics(Duration budget)
+    {
+        _budget = budget;
+    }
+
+    void onExpired(String flow, String callSite)
+    {
+        _expired.computeIfAbsent(flow + "/" + callSite, key -> new LongAdder()).increment();
+    }
+
+    @Override
+    public long getBudgetMillis()
+    {
+        return _budget.toMillis();
+    }
+
+    @Override
+    public Map<String, Long> getExpiredCounts()
+    {
+        var counts = new TreeMap<String, Long>();
+        _expired.forEach((key, count) -> counts.put(key, count.sum()));
+        return counts;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.runtime;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Publishes the statistics of plugin components as MXBeans, so that they can be read with any JMX client.
+ * <p>
+ * Names have the form {@code io.curity.identityserver.plugin.usernamepassword:authenticator=<id>,type=<type>}.
+ */
+public final class ManagementRegistry
+{
+    private static final Logger _logger = LoggerFactory.getLogger(ManagementRegistry.class);
+    private static final String DOMAIN = "io.curity.identityserver.plugin.usernamepassword";
+
+    // The owner of each name, so that a closing instance never removes the beans of its replacement
+    private static final Map<ObjectName, Object> _owners = new ConcurrentHashMap<>();
+
+    private final MBeanServer _server = ManagementFactory.getPlatformMBeanServer();
+    private final String _authenticatorId;
+    private final Map<ObjectName, Object> _registered = new HashMap<>();
+
+    public ManagementRegistry(String authenticatorId)
+    {
+        _authenticatorId = authenticatorId;
+    }
+
+    public synchronized void register(String type, Object mxBean)
+    {
+        try
+        {
+            var name = new ObjectName(String.format("%s:authenticator=%s,type=%s",
+                    DOMAIN, ObjectName.quote(_authenticatorId), type));
+
+            // A previous instance may still be registered while the configuration is being reloaded
+            if (_server.isRegistered(name))
+            {
+                _server.unregisterMBean(name);
+            }
+
+            _server.registerMBean(mxBean, name);
+            _owners.put(name, mxBean);
+            _registered.put(name, mxBean);
+        }
+        catch (JMException e)
+        {
+            _logger.warn("Unable to publish the {} statistics over JMX", type, e);
+        }
+    }
+
+    public synchronized void unregisterAll()
+    {
+        for (var entry : _registered.entrySet())
+        {
+            ObjectName name = entry.getKey();
+            if (!_owners.remove(name, entry.getValue()))
+            {
+                continue;
+            }
+
+            try
+            {
+                _server.unregisterMBean(name);
+            }
+            catch (JMException e)
+            {
+                _logger.debug("Unable to unregister {}", name, e);
+            }
+        }
+
+        _registered.clear();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.runtime;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The threads and published statistics that the features of one authenticator instance share, which are all
+ * released when it is closed.
+ */
+public final class RuntimeResources
+{
+    private final ManagementRegistry _managementRegistry;
+    private final ScheduledExecutorService _scheduler;
+    private final List<ExecutorService> _backgroundExecutors = new ArrayList<>();
+
+    // for calls that mostly wait for data sources, where a virtual thread for each costs next to nothing
+    private final ExecutorService _virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+
+    public RuntimeResources(String authenticatorId)
+    {
+        _managementRegistry = new ManagementRegistry(authenticatorId);
+        _scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("username-password-authenticator-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Publish the statistics of a component over JMX, until the resources are closed.
+     */
+    public void register(String type, Object mxBean)
+    {
+        _managementRegistry.register(type, mxBean);
+    }
+
+    /**
+     * Get the single thread that runs periodic maintenance, which must never block for long.
+     */
+    public ScheduledExecutorService getScheduler()
+    {
+        return _scheduler;
+    }
+
+    public ExecutorService getVirtualThreads()
+    {
+        return _virtualThreads;
+    }
+
+    /**
+     * Create an executor for work that is not worth waiting for, which refuses tasks rather than queue too many.
+     */
+    public synchronized ExecutorService newBackgroundExecutor(String nameFormat, int threads, int queueCapacity)
+    {
+        var executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        _backgroundExecutors.add(executor);
+        return executor;
+    }
+
+    public synchronized void close()
+    {
+        _scheduler.shutdownNow();
+        _backgroundExecutors.forEach(ExecutorService::shutdownNow);
+        _virtualThreads.shutdownNow();
+        _managementRegistry.unregisterAll();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.runtime;
+
+import io.curity.identityserver.plugin.usernamepassword.utils.ViewModelReservedKeys;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.service.AccountManager;
+import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
+
+import java.util.Map;
+
+/**
+ * View data and URLs that only depend on the configuration, computed once for each configuration rather than
+ * on every request. The maps are immutable, so they can be shared by all requests.
+ */
+public final class ViewModelSnapshot
+{
+    private final boolean _registrationEnabled;
+    private final boolean _usernameAsEmail;
+    private final boolean _setPasswordAfterActivation;
+    private final String _activateUrl;
+    private final String _activateAccountUrl;
+    private final String _activationLandingUrl;
+    private final String _setPasswordUrl;
+    private final Map<String, Object> _registrationViewData;
+
+    ViewModelSnapshot(@Nullable AccountManager accountManager, AuthenticatorInformationProvider informationProvider)
+    {
+        _registrationEnabled = accountManager != null && accountManager.supportsRegistration();
+        _usernameAsEmail = accountManager != null && accountManager.useUsernameAsEmail();
+        _setPasswordAfterActivation = accountManager != null && accountManager.isSetPasswordAfterActivation();
+
+        String anonymousUri = informationProvider.getFullyQualifiedAnonymousUri().toString();
+        _activateUrl = anonymousUri + "/activate";
+        _activateAccountUrl = anonymousUri + "/activate-account";
+        _activationLandingUrl = anonymousUri + (_setPasswordAfterActivation ? "/activate-and-set" : "/activate");
+        _setPasswordUrl = anonymousUri + "/set-password";
+
+        _registrationViewData = Map.of(
+                ViewModelReservedKeys.SHOW_PASSWORD_FIELDS, !_setPasswordAfterActivation,
+                ViewModelReservedKeys.SHOW_EMAIL_FIELD, !_usernameAsEmail);
+    }
+
+    public boolean isRegistrationEnabled()
+    {
+        return _registrationEnabled;
+    }
+
+    public boolean isUsernameAsEmail()
+    {
+        return _usernameAsEmail;
+    }
+
+    public boolean isSetPasswordAfterActivation()
+    {
+        return _setPasswordAfterActivation;
+    }
+
+    /**
+     * The endpoint that activates an account, or sends a new activation email.
+     */
+    public String getActivateUrl()
+    {
+        return _activateUrl;
+    }
+
+    /**
+     * The endpoint that activation emails link to.
+     */
+    public String getActivateAccountUrl()
+    {
+        return _activateAccountUrl;
+    }
+
+    /**
+     * The endpoint that the activation landing page submits to.
+     */
+    public String getActivationLandingUrl()
+    {
+        return _activationLandingUrl;
+    }
+
+    public String getSetPasswordUrl()
+    {
+        return _setPasswordUrl;
+    }
+
+    public Map<String, Object> getRegistrationViewData()
+    {
+        return _registrationViewData;
+    }
+}
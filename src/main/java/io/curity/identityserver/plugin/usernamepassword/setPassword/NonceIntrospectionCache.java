@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.setPassword;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import se.curity.identityserver.sdk.data.tokens.TokenAttributes;
+import se.curity.identityserver.sdk.service.NonceTokenIssuer;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers nonces that can no longer be introspected, so that requests with them are answered without calling
+ * the nonce token issuer.
+ * <p>
+ * A nonce can only be introspected once, so after a successful introspection it is remembered as used, just like
+ * a nonce that the issuer did not accept. Its attributes are never handed out again, and a page that is refreshed
+ * finds the nonce in its session instead. Errors of the issuer are not remembered. Nonces are held as keyed hashes,
+ * so that the cache never holds them.
+ * <p>
+ * Nonces that do not have the shape of those that issuers hand out are refused without being introspected or
+ * remembered. Used nonces are remembered apart from invalid ones, so that nonces which anyone can make up never
+ * push out those that only the issuer could have accepted.
+ */
+public final class NonceIntrospectionCache implements NonceIntrospectionCacheMXBean
+{
+    private static final int MINIMUM_NONCE_LENGTH = 16;
+    private static final int MAXIMUM_NONCE_LENGTH = 256;
+
+    private final Cache<Long, Boolean> _usedNonces;
+    private final Cache<Long, Boolean> _invalidNonces;
+    private final HashFunction _hashFunction;
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _rejected = new LongAdder();
+    private final LongAdder _consumed = new LongAdder();
+    private final LongAdder _malformed = new LongAdder();
+
+    /**
+     * @param timeToLive  how long a nonce is remembered, which should be at least the lifetime of nonces
+     * @param maximumSize the maximum number of used nonces remembered, and separately of invalid ones. The least
+     *                    recently used are forgotten first
+     */
+    public NonceIntrospectionCache(Duration timeToLive, int maximumSize)
+    {
+        _usedNonces = CacheBuilder.newBuilder()
+                .expireAfterWrite(timeToLive)
+                .maximumSize(maximumSize)
+                .build();
+        _invalidNonces = CacheBuilder.newBuilder()
+                .expireAfterWrite(timeToLive)
+                .maximumSize(maximumSize)
+                .build();
+
+        var random = new SecureRandom();
+        _hashFunction = Hashing.sipHash24(random.nextLong(), random.nextLong());
+    }
+
+    /**
+     * Introspect the nonce, unless it is malformed or already known to be used or invalid.
+     */
+    public Optional<TokenAttributes> introspect(String nonce, NonceTokenIssuer issuer)
+    {
+        if (!isWellFormed(nonce))
+        {
+            _malformed.increment();
+            return Optional.empty();
+        }
+
+        long key = _hashFunction.hashString(nonce, StandardCharsets.UTF_8).asLong();
+        if (_usedNonces.getIfPresent(key) != null || _invalidNonces.getIfPresent(key) != null)
+        {
+            _hits.increment();
+            return Optional.empty();
+        }
+
+        _misses.increment();
+        Optional<TokenAttributes> attributes = issuer.introspect(nonce);
+
+        if (attributes.isPresent())
+        {
+            _consumed.increment();
+            _usedNonces.put(key, Boolean.TRUE);
+        }
+        else
+        {
+            _rejected.increment();
+            _invalidNonces.put(key, Boolean.TRUE);
+        }
+
+        return attributes;
+    }
+
+    /**
+     * Whether the nonce has the shape of those that nonce token issuers hand out, which are random strings of
+     * URL-safe characters.
+     */
+    static boolean isWellFormed(String nonce)
+    {
+        if (nonce.length() < MINIMUM_NONCE_LENGTH || nonce.length() > MAXIMUM_NONCE_LENGTH)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < nonce.length(); i++)
+        {
+            char c = nonce.charAt(i);
+            boolean isUrlSafe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                    c == '-' || c == '_' || c == '.' || c == '~';
+            if (!isUrlSafe)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public long getSize()
+    {
+        return _usedNonces.size() + _invalidNonces.size();
+    }
+
+    @Override
+    public long getHitCount()
+    {
+        return _hits.sum();
+    }
+
+    @Override
+    public long getMissCount()
+    {
+        return _misses.sum();
+    }
+
+    @Override
+    public long getRejectedCount()
+    {
+        return _rejected.sum();
+    }
+
+    @Override
+    public long getConsumedCount()
+    {
+        return _consumed.sum();
+    }
+
+    @Override
+    public long getMalformedCount()
+    {
+        return _malformed.sum();
+    }
+}
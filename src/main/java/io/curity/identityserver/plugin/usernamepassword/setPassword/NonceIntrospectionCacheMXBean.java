@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.setPassword;
+
+public interface NonceIntrospectionCacheMXBean
+{
+    long getSize();
+
+    /**
+     * The number of introspections answered from memory, because the nonce was already used or found invalid.
+     */
+    long getHitCount();
+
+    /**
+     * The number of introspections passed on to the nonce token issuer.
+     */
+    long getMissCount();
+
+    /**
+     * The number of nonces that the nonce token issuer did not accept.
+     */
+    long getRejectedCount();
+
+    long getConsumedCount();
+
+    /**
+     * The number of nonces refused without introspection, because they could not have been issued.
+     */
+    long getMalformedCount();
+}
@@ -17,7 +17,11 @@
 package io.curity.identityserver.plugin.usernamepassword.setPassword;
 
 import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.usernamepassword.runtime.AuthenticatorRuntime;
+import io.curity.identityserver.plugin.usernamepassword.runtime.Deadline;
+import io.curity.identityserver.plugin.usernamepassword.runtime.DeadlineExceededException;
 import io.curity.identityserver.plugin.usernamepassword.utils.CredentialOperations;
+import io.curity.identityserver.plugin.usernamepassword.utils.RetryableErrors;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,7 +33,6 @@ import se.curity.identityserver.sdk.authentication.AnonymousRequestHandler;
 import se.curity.identityserver.sdk.data.tokens.TokenAttributes;
 import se.curity.identityserver.sdk.errors.ExternalServiceException;
 import se.curity.identityserver.sdk.http.HttpStatus;
-import se.curity.identityserver.sdk.service.AccountManager;
 import se.curity.identityserver.sdk.service.NonceTokenIssuer;
 import se.curity.identityserver.sdk.service.SessionManager;
 import se.curity.identityserver.sdk.service.credential.CredentialUpdateResult;
@@ -49,20 +52,23 @@ public final class UsernamePasswordSetPasswordRequestHandler implements Anonymou
 
     private final NonceTokenIssuer _nonceTokenIssuer;
     private final SessionManager _sessionManager;
-    private final AccountManager _accountManager;
     private final UserCredentialManager _userCredentialManager;
+    private final AuthenticatorRuntime _runtime;
 
-    public UsernamePasswordSetPasswordRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration)
+    public UsernamePasswordSetPasswordRequestHandler(UsernamePasswordAuthenticatorPluginConfig configuration,
+                                                     AuthenticatorRuntime runtime)
     {
         _nonceTokenIssuer = configuration.getNonceTokenIssuer();
         _sessionManager = configuration.getSessionManager();
-        _accountManager = configuration.getAccountManager();
         _userCredentialManager = configuration.getCredentialManager();
+        _runtime = runtime;
     }
 
     @Override
     public RequestModel preProcess(Request request, Response response)
     {
+        _runtime.onRequest();
+
         if (request.isGetRequest())
         {
             response.setResponseModel(templateResponseModel(emptyMap(),
@@ -101,17 +107,27 @@ public final class UsernamePasswordSetPasswordRequestHandler implements Anonymou
     public Void post(RequestModel requestModel, Response response)
     {
         var model = requestModel.getPostRequestModel();
+        Deadline deadline = _runtime.newDeadline("setPassword");
 
         UpdatePasswordResult result;
         try
         {
-            result = updatePassword(model.getPassword());
+            result = updatePassword(model.getPassword(), deadline);
         }
         catch (ExternalServiceException e)
         {
             response.addErrorMessage(ErrorMessage.withMessage("system.status.internal.error"));
             return null;
         }
+        catch (DeadlineExceededException e)
+        {
+            _logger.debug("Set password request was aborted: {}", e.getMessage());
+            RetryableErrors.deadlineExceeded(response);
+            response.setResponseModel(templateResponseModel(emptyMap(),
+                            "set-password/get"),
+                    HttpStatus.SERVICE_UNAVAILABLE);
+            return null;
+        }
 
         if (result instanceof UpdatePasswordResult.UpdateRejected rejected)
         {
@@ -140,7 +156,9 @@ public final class UsernamePasswordSetPasswordRequestHandler implements Anonymou
             return true;
         }
 
-        Optional<TokenAttributes> introspectionResult = _nonceTokenIssuer.introspect(token);
+        Optional<TokenAttributes> introspectionResult = _runtime.getNonceIntrospectionCache()
+                .map(cache -> cache.introspect(token, _nonceTokenIssuer))
+                .orElseGet(() -> _nonceTokenIssuer.introspect(token));
         if (introspectionResult.isPresent())
         {
             _logger.trace("Nonce was successfully introspected");
@@ -170,7 +188,7 @@ public final class UsernamePasswordSetPasswordRequestHandler implements Anonymou
         return false;
     }
 
-    private UpdatePasswordResult updatePassword(String password)
+    private UpdatePasswordResult updatePassword(String password, Deadline deadline)
     {
         var sessionData = new SetPasswordSessionData(_sessionManager);
         String accountId = sessionData.readAccountId();
@@ -180,19 +198,22 @@ public final class UsernamePasswordSetPasswordRequestHandler implements Anonymou
             return new UpdatePasswordResult.InvalidToken();
         }
 
-        @Nullable AccountAttributes account = _accountManager.getByUserName(accountId);
+        deadline.check("getByUserName");
+        @Nullable AccountAttributes account = _runtime.getAccountLookup().getByUserName(accountId, deadline);
         if (account == null)
         {
             return new UpdatePasswordResult.InvalidAccount();
         }
 
         account = account.withPassword(password);
+        deadline.check("update");
         CredentialUpdateResult result = _userCredentialManager.update(SubjectAttributes.of(account.getUserName()), password);
         if (result instanceof CredentialUpdateResult.Rejected rejected)
         {
             return new UpdatePasswordResult.UpdateRejected(rejected);
         }
 
+        _runtime.onPasswordChanged(account.getUserName());
         sessionData.remove();
         return new UpdatePasswordResult.Success();
     }
@@ -48,6 +48,9 @@ public class AuthenticateGetRepresentationFunction implements RepresentationFunc
         Optional<String> registerUrl = model.getOptionalString("_registerUrl");
         Optional<String> username = model.getOptionalString("_username");
 
+        // the difficulty is the third part of the challenge, and the client replaces proofOfWorkNonce with the solution
+        Optional<String> proofOfWorkChallenge = model.getOptionalString("_proofOfWorkChallenge");
+
         return factory.newAuthenticationStep(step -> {
             step.addMessage(MSG_HEADER, HaapiContract.MessageClasses.HEADING);
             step.addFormAction(HaapiContract.Actions.Kinds.LOGIN, URI.create(authUrl),
@@ -58,6 +61,10 @@ public class AuthenticateGetRepresentationFunction implements RepresentationFunc
                     fields -> {
                         fields.addUsernameField("userName", MSG_USERNAME, username.orElse(""));
                         fields.addPasswordField("password", MSG_PASSWORD);
+                        proofOfWorkChallenge.ifPresent(challenge -> {
+                            fields.addHiddenField("proofOfWorkChallenge", challenge);
+                            fields.addHiddenField("proofOfWorkNonce", "");
+                        });
                     });
 
             step.addLink(URI.create(authUrl + "/forgot-password"),
@@ -0,0 +1,221 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.utils;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * Brings usernames, email addresses and phone numbers to a canonical form, so that the variants of an identifier
+ * that users type, which differ in case, Unicode composition or formatting, are looked up, cached and checked for
+ * duplicates as one.
+ * <p>
+ * Values that are already canonical, which are most of them, are returned as they are without allocating.
+ * Phone numbers that cannot be brought to E.164 form are only trimmed, and left for the data source to judge.
+ */
+public final class IdentifierCanonicalizer
+{
+    /**
+     * Leaves identifiers exactly as they were entered.
+     */
+    public static final IdentifierCanonicalizer NONE = new IdentifierCanonicalizer(false, false, null);
+
+    // E.164 numbers have at most 15 digits, including the country calling code
+    private static final int MAXIMUM_PHONE_NUMBER_DIGITS = 15;
+    private static final String PHONE_NUMBER_SEPARATORS = " -./()\u00a0\u2010\u2011\u2012\u2013\u2014";
+
+    private final boolean _enabled;
+    private final boolean _foldUsernameCase;
+
+    @Nullable
+    private final String _defaultCountryCode;
+
+    /**
+     * @param foldUsernameCase   whether usernames that only differ in case are the same
+     * @param defaultCountryCode the country calling code of phone numbers entered without one, if any
+     */
+    public IdentifierCanonicalizer(boolean foldUsernameCase, @Nullable String defaultCountryCode)
+    {
+        this(true, foldUsernameCase, defaultCountryCode);
+    }
+
+    private IdentifierCanonicalizer(boolean enabled, boolean foldUsernameCase, @Nullable String defaultCountryCode)
+    {
+        _enabled = enabled;
+        _foldUsernameCase = foldUsernameCase;
+
+        if (defaultCountryCode != null)
+        {
+            defaultCountryCode = defaultCountryCode.strip();
+            if (defaultCountryCode.startsWith("+"))
+            {
+                defaultCountryCode = defaultCountryCode.substring(1);
+            }
+            if (!defaultCountryCode.matches("[1-9][0-9]{0,2}"))
+            {
+                throw new IllegalArgumentException("The default country code must be one to three digits");
+            }
+        }
+        _defaultCountryCode = defaultCountryCode;
+    }
+
+    /**
+     * Get the NFKC normalized form of a username, in lower case unless case is significant.
+     */
+    @Nullable
+    public String username(@Nullable String value)
+    {
+        if (!_enabled || value == null)
+        {
+            return value;
+        }
+
+        String username = value.strip();
+        if (isAscii(username))
+        {
+            // returns the same instance when there is nothing to lower
+            return _foldUsernameCase ? username.toLowerCase(Locale.ROOT) : username;
+        }
+
+        username = normalize(username);
+        if (_foldUsernameCase)
+        {
+            // a round trip through upper case maps letters with several lower case forms, such as ß and ς, to the
+            // same one, much like Unicode case folding, and that may leave the value to be normalized again
+            username = normalize(username.toLowerCase(Locale.ROOT).toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT));
+        }
+        return username;
+    }
+
+    /**
+     * Get the NFKC normalized form of an email address, with its domain in lower case.
+     * <p>
+     * The local part keeps its case, since it is up to the receiving mail server whether it is significant.
+     */
+    @Nullable
+    public String email(@Nullable String value)
+    {
+        if (!_enabled || value == null)
+        {
+            return value;
+        }
+
+        String email = value.strip();
+        if (!isAscii(email))
+        {
+            email = normalize(email);
+        }
+
+        int at = email.lastIndexOf('@');
+        if (at < 0)
+        {
+            return email;
+        }
+
+        for (int i = at + 1; i < email.length(); )
+        {
+            int codePoint = email.codePointAt(i);
+            if (Character.toLowerCase(codePoint) != codePoint)
+            {
+                return email.substring(0, at + 1) + email.substring(at + 1).toLowerCase(Locale.ROOT);
+            }
+            i += Character.charCount(codePoint);
+        }
+        return email;
+    }
+
+    /**
+     * Get the E.164 form of a phone number, such as +46701234567, without separators.
+     * <p>
+     * Numbers are international when they start with + or 00. Other numbers get the default country code, after
+     * their trunk prefix 0 is dropped, or are only trimmed when there is none.
+     */
+    @Nullable
+    public String phoneNumber(@Nullable String value)
+    {
+        if (!_enabled || value == null)
+        {
+            return value;
+        }
+
+        String phoneNumber = value.strip();
+        var digits = new StringBuilder(MAXIMUM_PHONE_NUMBER_DIGITS + 1);
+        boolean international = false;
+        for (int i = 0; i < phoneNumber.length(); i++)
+        {
+            char c = phoneNumber.charAt(i);
+            int digit = Character.digit(c, 10);
+            if (digit >= 0)
+            {
+                digits.append((char) ('0' + digit));
+            }
+            else if ((c == '+' || c == '\uff0b') && i == 0)
+            {
+                international = true;
+            }
+            else if (PHONE_NUMBER_SEPARATORS.indexOf(c) < 0)
+            {
+                return phoneNumber;
+            }
+        }
+
+        int start = 0;
+        if (!international && digits.length() > 2 && digits.charAt(0) == '0' && digits.charAt(1) == '0')
+        {
+            start = 2;
+        }
+        else if (!international)
+        {
+            if (_defaultCountryCode == null)
+            {
+                return phoneNumber;
+            }
+            start = digits.length() > 0 && digits.charAt(0) == '0' ? 1 : 0;
+            digits.insert(start, _defaultCountryCode);
+        }
+
+        int length = digits.length() - start;
+        if (length < 3 || length > MAXIMUM_PHONE_NUMBER_DIGITS || digits.charAt(start) == '0')
+        {
+            return phoneNumber;
+        }
+
+        digits.replace(0, start, "+");
+        return phoneNumber.contentEquals(digits) ? phoneNumber : digits.toString();
+    }
+
+    private static String normalize(String value)
+    {
+        return Normalizer.isNormalized(value, Normalizer.Form.NFKC)
+                ? value
+                : Normalizer.normalize(value, Normalizer.Form.NFKC);
+    }
+
+    private static boolean isAscii(String value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            if (value.charAt(i) >= 0x80)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.utils;
+
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.web.Request;
+import se.curity.identityserver.sdk.web.Response;
+
+import java.time.Duration;
+
+/**
+ * Cookies owned by this plugin, as opposed to those of the server's session.
+ */
+public final class PluginCookies
+{
+    private PluginCookies()
+    {
+    }
+
+    @Nullable
+    public static String get(Request request, String name)
+    {
+        for (String header : request.getHeaders().allValues("Cookie"))
+        {
+            for (String cookie : header.split(";"))
+            {
+                int separator = cookie.indexOf('=');
+                if (separator > 0 && cookie.substring(0, separator).trim().equals(name))
+                {
+                    return cookie.substring(separator + 1).trim();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Set a cookie that scripts cannot read and that is only sent over HTTPS.
+     *
+     * @param value the value, which must only contain characters allowed in a cookie, such as base64url
+     */
+    public static void set(Response response, String name, String value, Duration maxAge)
+    {
+        response.addHeader("Set-Cookie", name + "=" + value + "; Max-Age=" + maxAge.toSeconds() +
+                "; Path=/; Secure; HttpOnly; SameSite=Lax");
+    }
+
+    public static void remove(Response response, String name)
+    {
+        set(response, name, "", Duration.ZERO);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.utils;
+
+import se.curity.identityserver.sdk.http.HttpStatus;
+import se.curity.identityserver.sdk.web.Response;
+import se.curity.identityserver.sdk.web.alerts.ErrorMessage;
+
+import java.time.Duration;
+
+/**
+ * Responses for requests that are refused before reaching a data source, and that the client may retry later.
+ */
+public final class RetryableErrors
+{
+    private static final Duration DEADLINE_RETRY_AFTER = Duration.ofSeconds(2);
+
+    private RetryableErrors()
+    {
+    }
+
+    public static void serviceUnavailable(Response response, Duration retryAfter)
+    {
+        reject(response, HttpStatus.SERVICE_UNAVAILABLE, "error.service.overloaded", retryAfter);
+    }
+
+    /**
+     * Refuse a request that ran out of time, since the data source was slow for it, but may not be for the next one.
+     */
+    public static void deadlineExceeded(Response response)
+    {
+        serviceUnavailable(response, DEADLINE_RETRY_AFTER);
+    }
+
+    public static void tooManyRequests(Response response, Duration retryAfter)
+    {
+        reject(response, HttpStatus.TOO_MANY_REQUESTS, "error.too-many-attempts", retryAfter);
+    }
+
+    private static void reject(Response response, HttpStatus status, String messageKey, Duration retryAfter)
+    {
+        response.setHttpStatus(status);
+        // rounded up, so that a client honoring the header is not refused again
+        long seconds = retryAfter.toSeconds() + (retryAfter.toNanosPart() > 0 ? 1 : 0);
+        response.addHeader("Retry-After", String.valueOf(Math.max(1, seconds)));
+        response.addErrorMessage(ErrorMessage.withMessage(messageKey));
+    }
+}
@@ -31,4 +31,10 @@ public class ViewModelReservedKeys {
 
     // Whether email related options can be used
     public static final String IS_EMAIL_PROVIDER_CONFIGURED = "_isEmailProviderConfigured";
+
+    // A proof of work challenge that must be solved before the form is posted, or null if none is required
+    public static final String PROOF_OF_WORK_CHALLENGE = "_proofOfWorkChallenge";
+
+    // The number of leading zero bits required in the hash of the proof of work challenge and its solution
+    public static final String PROOF_OF_WORK_DIFFICULTY = "_proofOfWorkDifficulty";
 }
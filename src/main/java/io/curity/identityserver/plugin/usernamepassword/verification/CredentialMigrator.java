@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.verification;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+import se.curity.identityserver.sdk.attribute.SubjectAttributes;
+import se.curity.identityserver.sdk.service.AccountManager;
+import se.curity.identityserver.sdk.service.credential.CredentialUpdateResult;
+import se.curity.identityserver.sdk.service.credential.CredentialVerificationResult;
+import se.curity.identityserver.sdk.service.credential.UserCredentialManager;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Moves credentials from a legacy store into the primary one, one user at a time, as they log in.
+ * <p>
+ * When the primary store has no credentials for a user, the password is verified against the legacy store, and
+ * if it is accepted there, it is written to the primary store. If the account does not exist in the primary store
+ * either, it is copied from the legacy account manager, with all its attributes. Later logins of the user then
+ * only use the primary store. Once the legacy logins have stopped, the legacy store can be retired.
+ */
+public final class CredentialMigrator implements CredentialMigratorMXBean
+{
+    private static final Logger _logger = LoggerFactory.getLogger(CredentialMigrator.class);
+
+    private final UserCredentialManager _legacyCredentialManager;
+    private final @Nullable AccountManager _legacyAccountManager;
+    private final UserCredentialManager _primaryCredentialManager;
+    private final AccountManager _accountManager;
+    private final LatencyHistogram _migrationLatency = new LatencyHistogram();
+    private final LongAdder _legacyLogins = new LongAdder();
+    private final LongAdder _rejectedByLegacy = new LongAdder();
+    private final LongAdder _failures = new LongAdder();
+
+    /**
+     * @param legacyAccountManager the account manager to copy accounts from, or null if accounts that do not exist
+     *                             in the primary store cannot be migrated
+     */
+    public CredentialMigrator(UserCredentialManager legacyCredentialManager,
+                              @Nullable AccountManager legacyAccountManager,
+                              UserCredentialManager primaryCredentialManager,
+                              AccountManager accountManager)
+    {
+        _legacyCredentialManager = legacyCredentialManager;
+        _legacyAccountManager = legacyAccountManager;
+        _primaryCredentialManager = primaryCredentialManager;
+        _accountManager = accountManager;
+    }
+
+    /**
+     * Verify the password against the legacy store, and migrate it to the primary one if it is accepted.
+     *
+     * @return the login through the legacy store, if it accepted the password
+     */
+    public Optional<LegacyLogin> verifyAndMigrate(String username, String password)
+    {
+        if (!(_legacyCredentialManager.verify(SubjectAttributes.of(username), password)
+                instanceof CredentialVerificationResult.Accepted accepted))
+        {
+            _rejectedByLegacy.increment();
+            return Optional.empty();
+        }
+
+        _legacyLogins.increment();
+
+        // the user is logged in by the legacy store even if the migration fails, and it is retried next time
+        long startedAt = System.nanoTime();
+        @Nullable AccountAttributes createdAccount;
+        try
+        {
+            createdAccount = migrate(username, password);
+            _migrationLatency.record(Duration.ofNanos(System.nanoTime() - startedAt));
+        }
+        catch (RuntimeException e)
+        {
+            _logger.warn("Could not migrate the credentials of a user from the legacy credential store", e);
+            _failures.increment();
+            return Optional.of(new LegacyLogin(accepted, null));
+        }
+
+        return Optional.of(new LegacyLogin(accepted, createdAccount));
+    }
+
+    /**
+     * @return the account that was created in the primary store, or null if it already existed there
+     */
+    @Nullable
+    private AccountAttributes migrate(String username, String password)
+    {
+        @Nullable AccountAttributes account = _accountManager.getByUserName(username);
+        if (account == null)
+        {
+            @Nullable AccountAttributes legacyAccount = _legacyAccountManager == null
+                    ? null
+                    : _legacyAccountManager.getByUserName(username);
+            if (legacyAccount == null)
+            {
+                throw new IllegalStateException("The account does not exist in the primary store, and cannot be " +
+                        "copied from the legacy store");
+            }
+
+            AccountAttributes migratedAccount = legacyAccount.withPassword(password);
+            _accountManager.withCredentialManager(_primaryCredentialManager).createAccount(migratedAccount);
+            _logger.debug("Copied a migrated account to the primary store");
+            return migratedAccount;
+        }
+
+        var result = _primaryCredentialManager.update(SubjectAttributes.of(account.getUserName()), password);
+        if (result instanceof CredentialUpdateResult.Rejected rejected)
+        {
+            throw new IllegalStateException("The primary credential store rejected the migrated password: " +
+                    rejected.getDetails());
+        }
+        return null;
+    }
+
+    @Override
+    public long getLegacyLoginCount()
+    {
+        return _legacyLogins.sum();
+    }
+
+    @Override
+    public long getRejectedByLegacyCount()
+    {
+        return _rejectedByLegacy.sum();
+    }
+
+    @Override
+    public long getMigratedCount()
+    {
+        return _migrationLatency.getCount();
+    }
+
+    @Override
+    public long getMigrationFailureCount()
+    {
+        return _failures.sum();
+    }
+
+    @Override
+    public long getMigrationMedianLatencyMillis()
+    {
+        return _migrationLatency.getPercentile(50).toMillis();
+    }
+
+    @Override
+    public long getMigrationPercentile99LatencyMillis()
+    {
+        return _migrationLatency.getPercentile(99).toMillis();
+    }
+
+    /**
+     * A login that the legacy store accepted.
+     *
+     * @param result         the result of the legacy store
+     * @param createdAccount the account that the migration created in the primary store, or null if it did not
+     *                       create one, because the account already existed there or the migration failed
+     */
+    public record LegacyLogin(CredentialVerificationResult.Accepted result, @Nullable AccountAttributes createdAccount)
+    {
+    }
+}
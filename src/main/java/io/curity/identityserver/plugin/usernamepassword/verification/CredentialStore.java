@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.verification;
+
+import se.curity.identityserver.sdk.service.credential.UserCredentialManager;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One of the credential managers that passwords are verified against, with its statistics.
+ */
+public final class CredentialStore implements CredentialStoreMXBean
+{
+    private final UserCredentialManager _credentialManager;
+    private final LatencyHistogram _latency = new LatencyHistogram();
+    private final LongAdder _calls = new LongAdder();
+    private final LongAdder _wins = new LongAdder();
+    private final LongAdder _cancelled = new LongAdder();
+    private final LongAdder _failures = new LongAdder();
+
+    public CredentialStore(UserCredentialManager credentialManager)
+    {
+        _credentialManager = credentialManager;
+    }
+
+    UserCredentialManager getCredentialManager()
+    {
+        return _credentialManager;
+    }
+
+    LatencyHistogram getLatency()
+    {
+        return _latency;
+    }
+
+    void onCompleted(Duration latency)
+    {
+        _calls.increment();
+        _latency.record(latency);
+    }
+
+    void onWon()
+    {
+        _wins.increment();
+    }
+
+    void onCancelled()
+    {
+        _cancelled.increment();
+    }
+
+    void onFailed()
+    {
+        _calls.increment();
+        _failures.increment();
+    }
+
+    @Override
+    public long getCallCount()
+    {
+        return _calls.sum();
+    }
+
+    @Override
+    public long getWinCount()
+    {
+        return _wins.sum();
+    }
+
+    @Override
+    public long getCancelledCount()
+    {
+        return _cancelled.sum();
+    }
+
+    @Override
+    public long getFailureCount()
+    {
+        return _failures.sum();
+    }
+
+    @Override
+    public long getMeanLatencyMillis()
+    {
+        return _latency.getMean().toMillis();
+    }
+
+    @Override
+    public long getMedianLatencyMillis()
+    {
+        return _latency.getPercentile(50).toMillis();
+    }
+
+    @Override
+    public long getPercentile99LatencyMillis()
+    {
+        return _latency.getPercentile(99).toMillis();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.verification;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of latencies, with buckets that grow exponentially, four to each power of two.
+ * <p>
+ * Percentiles are therefore accurate to within about 20%, from a microsecond to days, in a fixed 2 KB.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = Long.SIZE * SUB_BUCKETS;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder _totalMicros = new LongAdder();
+    private final LongAdder _count = new LongAdder();
+
+    public void record(Duration latency)
+    {
+        long micros = Math.max(1, latency.toNanos() / 1_000);
+        _counts.incrementAndGet(bucketOf(micros));
+        _totalMicros.add(micros);
+        _count.increment();
+    }
+
+    public long getCount()
+    {
+        return _count.sum();
+    }
+
+    public Duration getMean()
+    {
+        long count = _count.sum();
+        return count == 0 ? Duration.ZERO : Duration.ofNanos(_totalMicros.sum() / count * 1_000);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket that contains the percentile, or zero if nothing was recorded
+     */
+    public Duration getPercentile(double percentile)
+    {
+        long count = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = _counts.get(i);
+            count += counts[i];
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank))
+            {
+                return Duration.ofNanos(upperBoundOf(i) * 1_000);
+            }
+        }
+
+        return Duration.ZERO;
+    }
+
+    private static int bucketOf(long micros)
+    {
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros);
+        int subBucket = exponent < SUB_BUCKET_BITS
+                ? (int) (micros << (SUB_BUCKET_BITS - exponent)) & (SUB_BUCKETS - 1)
+                : (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return exponent * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket)
+    {
+        int exponent = bucket / SUB_BUCKETS;
+        int subBucket = bucket % SUB_BUCKETS;
+
+        // the lowest value of the next bucket, which is 2^exponent * (1 + (subBucket + 1) / SUB_BUCKETS)
+        return exponent >= Long.SIZE - 2
+                ? Long.MAX_VALUE / 1_000
+                : (1L << exponent) + (((subBucket + 1L) << exponent) >>> SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.verification;
+
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.SubjectAttributes;
+import se.curity.identityserver.sdk.service.credential.CredentialVerificationResult;
+import se.curity.identityserver.sdk.service.credential.results.SubjectCredentialsNotFound;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies a password against several credential stores, in order of preference.
+ * <p>
+ * A store is only consulted for users that the stores preferred to it do not have credentials for. The answer of
+ * the most preferred store that knows the user is final, whether it accepts the password or rejects it, for
+ * instance because the password is wrong or the account is locked out. So is a failure to answer. That way, an
+ * old password left in a less preferred store can never be used once the user is known to a preferred one.
+ * <p>
+ * A store is called once the previous one has reported that it does not know the user. With hedging, it is also
+ * called once the previous one has not answered within a percentile of its recent latency, as long as enough of
+ * that latency has been seen to tell. The calls still running are cancelled as soon as the answer is known. If no
+ * store knows the user, the rejection of the most preferred one is returned.
+ */
+public final class MultiStoreCredentialVerifier
+{
+    // below this, the latency of a store is not known well enough to derive a hedging delay from it
+    private static final long MINIMUM_SAMPLES = 100;
+
+    private final List<CredentialStore> _stores;
+    private final double _hedgingPercentile;
+    private final ExecutorService _executor;
+
+    /**
+     * @param hedgingPercentile the percentile of latency to wait for before calling the next store,
+     *                          or zero to only call it once the previous one does not know the user
+     */
+    public MultiStoreCredentialVerifier(List<CredentialStore> stores, double hedgingPercentile,
+                                        ExecutorService executor)
+    {
+        _stores = List.copyOf(stores);
+        _hedgingPercentile = hedgingPercentile;
+        _executor = executor;
+    }
+
+    public List<CredentialStore> getStores()
+    {
+        return _stores;
+    }
+
+    public CredentialVerificationResult verify(SubjectAttributes subject, String password)
+    {
+        var completionService = new ExecutorCompletionService<Outcome>(_executor);
+        var futures = new ArrayList<Future<Outcome>>(_stores.size());
+        var outcomes = new Outcome[_stores.size()];
+        int completed = 0;
+        boolean known = false;
+        boolean hedging = false;
+        long nextCallAt = 0;
+
+        try
+        {
+            while (true)
+            {
+                int decidedBy = decidingOutcomeOf(outcomes);
+                if (decidedBy >= 0)
+                {
+                    return resultOf(outcomes[decidedBy]);
+                }
+
+                // once a store knows the user, the stores less preferred to it can no longer change the answer
+                int called = futures.size();
+                if (called < _stores.size() && !known
+                        && (called == completed || hedging && System.nanoTime() - nextCallAt >= 0))
+                {
+                    int index = called;
+                    // taken before the call, which could otherwise complete and count its own latency first
+                    @Nullable Duration hedgingDelay = hedgingDelayOf(_stores.get(index));
+                    futures.add(completionService.submit(() -> call(index, subject, password)));
+                    hedging = hedgingDelay != null;
+                    nextCallAt = hedging ? System.nanoTime() + hedgingDelay.toNanos() : 0;
+                    continue;
+                }
+
+                Future<Outcome> done = called < _stores.size() && !known && hedging
+                        ? completionService.poll(nextCallAt - System.nanoTime(), TimeUnit.NANOSECONDS)
+                        : completionService.take();
+                if (done == null)
+                {
+                    continue;
+                }
+
+                Outcome outcome = done.get();
+                outcomes[outcome.index()] = outcome;
+                completed++;
+                known |= !isNotFound(outcome.result());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while verifying credentials", e);
+        }
+        catch (ExecutionException e)
+        {
+            // calls catch their own failures, so this is never expected
+            throw new IllegalStateException("Credential verification failed", e.getCause());
+        }
+        finally
+        {
+            for (int i = 0; i < futures.size(); i++)
+            {
+                if (futures.get(i).cancel(true))
+                {
+                    _stores.get(i).onCancelled();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the index of the outcome that decides the verification, or -1 if that is not known yet
+     */
+    private static int decidingOutcomeOf(Outcome[] outcomes)
+    {
+        for (int i = 0; i < outcomes.length; i++)
+        {
+            if (outcomes[i] == null)
+            {
+                return -1;
+            }
+
+            if (!isNotFound(outcomes[i].result()))
+            {
+                return i;
+            }
+        }
+
+        // no store knows the user, so the rejection of the most preferred one is as good as any
+        return 0;
+    }
+
+    private CredentialVerificationResult resultOf(Outcome outcome)
+    {
+        if (outcome.failure() != null)
+        {
+            throw outcome.failure();
+        }
+
+        if (outcome.result() instanceof CredentialVerificationResult.Accepted)
+        {
+            _stores.get(outcome.index()).onWon();
+        }
+
+        return outcome.result();
+    }
+
+    private static boolean isNotFound(@Nullable CredentialVerificationResult result)
+    {
+        return result instanceof CredentialVerificationResult.Rejected rejected
+                && rejected.getDetails().stream().anyMatch(SubjectCredentialsNotFound.class::isInstance);
+    }
+
+    private Outcome call(int index, SubjectAttributes subject, String password)
+    {
+        var store = _stores.get(index);
+        long startedAt = System.nanoTime();
+        try
+        {
+            var result = store.getCredentialManager().verify(subject, password);
+            store.onCompleted(Duration.ofNanos(System.nanoTime() - startedAt));
+            return new Outcome(index, result, null);
+        }
+        catch (RuntimeException e)
+        {
+            if (!Thread.currentThread().isInterrupted())
+            {
+                store.onFailed();
+            }
+            return new Outcome(index, null, e);
+        }
+    }
+
+    /**
+     * @return how long to wait for the store before also calling the next one, or null to wait for its answer
+     */
+    private @Nullable Duration hedgingDelayOf(CredentialStore store)
+    {
+        if (_hedgingPercentile <= 0 || store.getLatency().getCount() < MINIMUM_SAMPLES)
+        {
+            return null;
+        }
+
+        return store.getLatency().getPercentile(_hedgingPercentile);
+    }
+
+    private record Outcome(int index, @Nullable CredentialVerificationResult result,
+                           @Nullable RuntimeException failure)
+    {
+    }
+}
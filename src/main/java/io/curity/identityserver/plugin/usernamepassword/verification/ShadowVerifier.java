@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.verification;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.attribute.SubjectAttributes;
+import se.curity.identityserver.sdk.service.credential.CredentialVerificationResult;
+import se.curity.identityserver.sdk.service.credential.UserCredentialManager;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Repeats a sample of password verifications against a secondary credential store, to compare its verdicts and
+ * latency with those of the primary one before switching to it.
+ * <p>
+ * The repeated verifications run on a bounded executor, and are dropped when it is full. Their results are only
+ * counted, and never change the result of a login.
+ * <p>
+ * Only passwords that the primary store accepted are repeated. A rejected password would count as a failed
+ * attempt in the shadow store as well, and could lock the account out there, or everywhere when the stores share
+ * their lockout state. The shadow store is therefore only checked for accepting every password the primary one
+ * accepts.
+ */
+public final class ShadowVerifier implements ShadowVerifierMXBean
+{
+    private static final Logger _logger = LoggerFactory.getLogger(ShadowVerifier.class);
+
+    private final UserCredentialManager _shadowCredentialManager;
+    private final double _sampleRatio;
+    private final Executor _executor;
+    private final LatencyHistogram _primaryLatency = new LatencyHistogram();
+    private final LatencyHistogram _shadowLatency = new LatencyHistogram();
+    private final LongAdder _dropped = new LongAdder();
+    private final LongAdder _failures = new LongAdder();
+    private final LongAdder _acceptedByBoth = new LongAdder();
+    private final LongAdder _acceptedOnlyByPrimary = new LongAdder();
+
+    /**
+     * @param samplePercent the percentage of verifications to repeat against the shadow store
+     */
+    public ShadowVerifier(UserCredentialManager shadowCredentialManager, int samplePercent, Executor executor)
+    {
+        _shadowCredentialManager = shadowCredentialManager;
+        _sampleRatio = samplePercent / 100.0;
+        _executor = executor;
+    }
+
+    /**
+     * Repeat a verification against the shadow store in the background, if it is part of the sample, and the
+     * password was accepted.
+     *
+     * @param primaryResult  the result of the primary store
+     * @param primaryLatency how long the primary store took to produce it
+     */
+    public void compare(SubjectAttributes subject, String password, CredentialVerificationResult primaryResult,
+                        Duration primaryLatency)
+    {
+        if (!(primaryResult instanceof CredentialVerificationResult.Accepted) ||
+                ThreadLocalRandom.current().nextDouble() >= _sampleRatio)
+        {
+            return;
+        }
+
+        try
+        {
+            _executor.execute(() -> verify(subject, password, primaryLatency));
+        }
+        catch (RejectedExecutionException e)
+        {
+            _dropped.increment();
+        }
+    }
+
+    private void verify(SubjectAttributes subject, String password, Duration primaryLatency)
+    {
+        CredentialVerificationResult shadowResult;
+        long startedAt = System.nanoTime();
+        try
+        {
+            shadowResult = _shadowCredentialManager.verify(subject, password);
+        }
+        catch (RuntimeException e)
+        {
+            _logger.debug("The shadow credential store failed to verify a password", e);
+            _failures.increment();
+            return;
+        }
+
+        _shadowLatency.record(Duration.ofNanos(System.nanoTime() - startedAt));
+        _primaryLatency.record(primaryLatency);
+
+        if (shadowResult instanceof CredentialVerificationResult.Accepted)
+        {
+            _acceptedByBoth.increment();
+        }
+        else
+        {
+            _acceptedOnlyByPrimary.increment();
+        }
+    }
+
+    @Override
+    public long getAcceptedComparedCount()
+    {
+        return _shadowLatency.getCount();
+    }
+
+    @Override
+    public long getDroppedCount()
+    {
+        return _dropped.sum();
+    }
+
+    @Override
+    public long getFailureCount()
+    {
+        return _failures.sum();
+    }
+
+    @Override
+    public long getAcceptedByBothCount()
+    {
+        return _acceptedByBoth.sum();
+    }
+
+    @Override
+    public long getAcceptedOnlyByPrimaryCount()
+    {
+        return _acceptedOnlyByPrimary.sum();
+    }
+
+    @Override
+    public long getPrimaryMedianLatencyMillis()
+    {
+        return _primaryLatency.getPercentile(50).toMillis();
+    }
+
+    @Override
+    public long getPrimaryPercentile99LatencyMillis()
+    {
+        return _primaryLatency.getPercentile(99).toMillis();
+    }
+
+    @Override
+    public long getShadowMedianLatencyMillis()
+    {
+        return _shadowLatency.getPercentile(50).toMillis();
+    }
+
+    @Override
+    public long getShadowPercentile99LatencyMillis()
+    {
+        return _shadowLatency.getPercentile(99).toMillis();
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.verification;
+
+/**
+ * Only passwords that the primary store accepted are compared, so the counts say whether the shadow store accepts
+ * them as well, and nothing about the passwords it would reject.
+ */
+public interface ShadowVerifierMXBean
+{
+    long getAcceptedComparedCount();
+
+    long getDroppedCount();
+
+    long getFailureCount();
+
+    long getAcceptedByBothCount();
+
+    long getAcceptedOnlyByPrimaryCount();
+
+    long getPrimaryMedianLatencyMillis();
+
+    long getPrimaryPercentile99LatencyMillis();
+
+    long getShadowMedianLatencyMillis();
+
+    long getShadowPercentile99LatencyMillis();
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.verification;
+
+import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.usernamepassword.runtime.RuntimeResources;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.ArrayList;
+import java.util.Optional;
+
+/**
+ * The configured credential stores that passwords are verified against besides the main one.
+ */
+public final class VerificationFeatures
+{
+    @Nullable
+    private final MultiStoreCredentialVerifier _multiStoreCredentialVerifier;
+
+    @Nullable
+    private final ShadowVerifier _shadowVerifier;
+
+    @Nullable
+    private final CredentialMigrator _credentialMigrator;
+
+    public VerificationFeatures(UsernamePasswordAuthenticatorPluginConfig configuration, RuntimeResources resources)
+    {
+        var multipleCredentialStoresSettings = configuration.getMultipleCredentialStores();
+        if (multipleCredentialStoresSettings.isPresent())
+        {
+            var settings = multipleCredentialStoresSettings.get();
+            var stores = new ArrayList<CredentialStore>();
+            stores.add(new CredentialStore(configuration.getCredentialManager()));
+            settings.getAdditionalCredentialManagers().forEach(manager -> stores.add(new CredentialStore(manager)));
+
+            _multiStoreCredentialVerifier = new MultiStoreCredentialVerifier(
+                    stores, settings.getHedgingPercentile(), resources.getVirtualThreads());
+
+            for (int i = 0; i < stores.size(); i++)
+            {
+                resources.register("CredentialStore-" + i, stores.get(i));
+            }
+        }
+        else
+        {
+            _multiStoreCredentialVerifier = null;
+        }
+
+        _shadowVerifier = configuration.getShadowVerification()
+                .map(settings -> new ShadowVerifier(settings.getShadowCredentialManager(),
+                        settings.getSamplePercent(),
+                        resources.newBackgroundExecutor("username-password-shadow-%d",
+                                settings.getThreads(), settings.getQueueCapacity())))
+                .orElse(null);
+        if (_shadowVerifier != null)
+        {
+            resources.register("ShadowVerifier", _shadowVerifier);
+        }
+
+        _credentialMigrator = configuration.getCredentialMigration()
+                .map(settings -> new CredentialMigrator(settings.getLegacyCredentialManager(),
+                        settings.getLegacyAccountManager().orElse(null), configuration.getCredentialManager(),
+                        configuration.getAccountManager()))
+                .orElse(null);
+        if (_credentialMigrator != null)
+        {
+            resources.register("CredentialMigrator", _credentialMigrator);
+        }
+    }
+
+    public Optional<MultiStoreCredentialVerifier> getMultiStoreCredentialVerifier()
+    {
+        return Optional.ofNullable(_multiStoreCredentialVerifier);
+    }
+
+    public Optional<ShadowVerifier> getShadowVerifier()
+    {
+        return Optional.ofNullable(_shadowVerifier);
+    }
+
+    public Optional<CredentialMigrator> getCredentialMigrator()
+    {
+        return Optional.ofNullable(_credentialMigrator);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.warmup;
+
+import io.curity.identityserver.plugin.usernamepassword.verification.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Sends cheap probe operations to the data sources while no requests do, so that their connection pools, caches
+ * and query plans are still warm when traffic resumes.
+ * <p>
+ * A round of probes is due every interval, and is skipped when a request arrived during the last interval, since
+ * the data sources are then kept warm by real traffic. Probes run one after another on a single thread, and a
+ * round is skipped while another one is still waiting to run, so the warmer never makes more than one call at a
+ * time. The latency of each probe is published, which makes it a health signal for the data sources.
+ */
+public final class DataSourceWarmer implements DataSourceWarmerMXBean
+{
+    private static final Logger _logger = LoggerFactory.getLogger(DataSourceWarmer.class);
+
+    private final List<Probe> _probes;
+    private final Duration _interval;
+    private final ExecutorService _executor;
+    private final AtomicLong _lastRequestNanos;
+    private final LongAdder _rounds = new LongAdder();
+    private final LongAdder _skippedForTraffic = new LongAdder();
+    private final LongAdder _skippedForBacklog = new LongAdder();
+
+    /**
+     * @param probes   the operations to run in each round
+     * @param interval how long to wait after the last request before probing, and between probes
+     * @param executor a single thread executor with a small queue, which refuses tasks when it is full
+     */
+    public DataSourceWarmer(List<Probe> probes, Duration interval, ExecutorService executor)
+    {
+        _probes = List.copyOf(probes);
+        _interval = interval;
+        _executor = executor;
+        _lastRequestNanos = new AtomicLong(System.nanoTime() - interval.toNanos());
+    }
+
+    /**
+     * Record that a request arrived, which keeps the data sources warm by itself.
+     */
+    public void onRequest()
+    {
+        _lastRequestNanos.lazySet(System.nanoTime());
+    }
+
+    /**
+     * Run a round of probes in the background, unless requests have kept the data sources warm.
+     */
+    public void probeIfIdle()
+    {
+        if (System.nanoTime() - _lastRequestNanos.get() < _interval.toNanos())
+        {
+            _skippedForTraffic.increment();
+            return;
+        }
+
+        try
+        {
+            _executor.execute(this::probe);
+        }
+        catch (RejectedExecutionException e)
+        {
+            _skippedForBacklog.increment();
+        }
+    }
+
+    private void probe()
+    {
+        _rounds.increment();
+
+        for (Probe probe : _probes)
+        {
+            long started = System.nanoTime();
+            try
+            {
+                probe.operation().run();
+
+                Duration latency = Duration.ofNanos(System.nanoTime() - started);
+                probe.latency().record(latency);
+                probe.lastLatencyMillis().set(latency.toMillis());
+            }
+            catch (RuntimeException e)
+            {
+                _logger.debug("The {} keep-warm probe failed", probe.name(), e);
+                probe.failures().increment();
+            }
+        }
+    }
+
+    @Override
+    public long getIntervalSeconds()
+    {
+        return _interval.toSeconds();
+    }
+
+    @Override
+    public long getProbeRoundCount()
+    {
+        return _rounds.sum();
+    }
+
+    @Override
+    public long getSkippedForTrafficCount()
+    {
+        return _skippedForTraffic.sum();
+    }
+
+    @Override
+    public long getSkippedForBacklogCount()
+    {
+        return _skippedForBacklog.sum();
+    }
+
+    @Override
+    public Map<String, Long> getLastLatencyMillis()
+    {
+        return byProbe(probe -> probe.lastLatencyMillis().get());
+    }
+
+    @Override
+    public Map<String, Long> getMeanLatencyMillis()
+    {
+        return byProbe(probe -> probe.latency().getMean().toMillis());
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMillis99thPercentile()
+    {
+        return byProbe(probe -> probe.latency().getPercentile(99).toMillis());
+    }
+
+    @Override
+    public Map<String, Long> getFailureCounts()
+    {
+        return byProbe(probe -> probe.failures().sum());
+    }
+
+    private Map<String, Long> byProbe(Function<Probe, Long> value)
+    {
+        var values = new TreeMap<String, Long>();
+        _probes.forEach(probe -> values.put(probe.name(), value.apply(probe)));
+        return values;
+    }
+
+    /**
+     * A cheap operation against one data source, whose result is ignored.
+     */
+    public record Probe(String name, Runnable operation, LatencyHistogram latency, AtomicLong lastLatencyMillis,
+                        LongAdder failures)
+    {
+        public Probe(String name, Runnable operation)
+        {
+            this(name, operation, new LatencyHistogram(), new AtomicLong(-1), new LongAdder());
+        }
+    }
+}
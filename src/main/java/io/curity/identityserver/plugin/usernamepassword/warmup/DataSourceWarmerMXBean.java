@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.warmup;
+
+import java.util.Map;
+
+public interface DataSourceWarmerMXBean
+{
+    long getIntervalSeconds();
+
+    long getProbeRoundCount();
+
+    /**
+     * The number of rounds skipped because requests had kept the data sources busy.
+     */
+    long getSkippedForTrafficCount();
+
+    /**
+     * The number of rounds skipped because earlier rounds had not finished.
+     */
+    long getSkippedForBacklogCount();
+
+    Map<String, Long> getLastLatencyMillis();
+
+    Map<String, Long> getMeanLatencyMillis();
+
+    Map<String, Long> getLatencyMillis99thPercentile();
+
+    Map<String, Long> getFailureCounts();
+}
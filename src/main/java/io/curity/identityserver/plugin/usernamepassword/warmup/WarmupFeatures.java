@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.warmup;
+
+import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.usernamepassword.runtime.RuntimeResources;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the data sources warm while no requests reach them, when that is configured.
+ */
+public final class WarmupFeatures
+{
+    @Nullable
+    private final DataSourceWarmer _dataSourceWarmer;
+
+    public WarmupFeatures(UsernamePasswordAuthenticatorPluginConfig configuration, RuntimeResources resources)
+    {
+        _dataSourceWarmer = configuration.getKeepWarm()
+                .map(settings -> newDataSourceWarmer(configuration, settings, resources))
+                .orElse(null);
+        if (_dataSourceWarmer != null)
+        {
+            resources.getScheduler().scheduleWithFixedDelay(_dataSourceWarmer::probeIfIdle,
+                    _dataSourceWarmer.getIntervalSeconds(), _dataSourceWarmer.getIntervalSeconds(),
+                    TimeUnit.SECONDS);
+
+            resources.register("DataSourceWarmer", _dataSourceWarmer);
+        }
+    }
+
+    private static DataSourceWarmer newDataSourceWarmer(
+            UsernamePasswordAuthenticatorPluginConfig configuration,
+            UsernamePasswordAuthenticatorPluginConfig.KeepWarmSettings settings,
+            RuntimeResources resources)
+    {
+        var random = new SecureRandom();
+        Supplier<String> randomValue = () ->
+        {
+            byte[] bytes = new byte[24];
+            random.nextBytes(bytes);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        };
+        String probeUsername = settings.getProbeUsername();
+
+        // probes call the data sources directly, bypassing the plugin caches, and only read from them; credentials
+        // are never verified, since a failed verification can count towards the lockout of an account, and a
+        // random nonce can never be consumed
+        var probes = new ArrayList<DataSourceWarmer.Probe>();
+        if (configuration.getAccountManager() != null)
+        {
+            probes.add(new DataSourceWarmer.Probe("AccountManager",
+                    () -> configuration.getAccountManager().getByUserName(probeUsername)));
+        }
+        probes.add(new DataSourceWarmer.Probe("NonceTokenIssuer",
+                () -> configuration.getNonceTokenIssuer().introspect(randomValue.get())));
+
+        return new DataSourceWarmer(probes, Duration.ofSeconds(settings.getIntervalSeconds()),
+                resources.newBackgroundExecutor("username-password-warmer-%d", 1, 1));
+    }
+
+    /**
+     * Note that a request has arrived, which keeps the data sources warm by itself.
+     */
+    public void onRequest()
+    {
+        if (_dataSourceWarmer != null)
+        {
+            _dataSourceWarmer.onRequest();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.usernamepassword.authentication;
+
+import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.usernamepassword.protection.AccountStateTable.AccountState;
+import io.curity.identityserver.plugin.usernamepassword.protection.AdaptiveConcurrencyLimiter;
+import io.curity.identityserver.plugin.usernamepassword.runtime.AuthenticatorRuntime;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+import se.curity.identityserver.sdk.http.HttpHeaders;
+import se.curity.identityserver.sdk.http.HttpStatus;
+import se.curity.identityserver.sdk.service.AccountManager;
+import se.curity.identityserver.sdk.service.UserPreferenceManager;
+import se.curity.identityserver.sdk.service.credential.UserCredentialManager;
+import se.curity.identityserver.sdk.web.Request;
+import se.curity.identityserver.sdk.web.Response;
+import se.curity.identityserver.sdk.web.alerts.ErrorMessage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+import static io.curity.identityserver.plugin.usernamepassword.verification.CredentialResults.accepted;
+import static io.curity.identityserver.plugin.usernamepassword.verification.CredentialResults.lockedOut;
+import static io.curity.identityserver.plugin.usernamepassword.verification.CredentialResults.wrongPassword;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Logins from the form post to the response, through a runtime with the features that each test configures.
+ */
+final class UsernamePasswordAuthenticationRequestHandlerTest
+{
+    private static final String PASSWORD = "Password1";
+
+    private final UserCredentialManager _credentialManager = mock(UserCredentialManager.class);
+    private final AccountManager _accountManager = mock(AccountManager.class);
+    private final UserPreferenceManager _userPreferenceManager = mock(UserPreferenceManager.class);
+    private final UsernamePasswordAuthenticatorPluginConfig _configuration = configuration();
+    private AuthenticatorRuntime _runtime;
+
+    @AfterEach
+    void close()
+    {
+        if (_runtime != null)
+        {
+            _runtime.close();
+        }
+    }
+
+    @Test
+    void authenticatesAUserWithTheirPasswordAndRemembersTheirUsername()
+    {
+        var acceptance = accepted("alice");
+        when(_credentialManager.verify(any(), anyString())).thenReturn(acceptance);
+        var response = mock(Response.class);
+
+        var result = post("alice", PASSWORD, response);
+
+        assertTrue(result.isPresent());
+        verify(_userPreferenceManager).saveUsername("alice");
+    }
+
+    @Test
+    void reportsAWrongPasswordAsIncorrectCredentials()
+    {
+        var rejection = wrongPassword();
+        when(_credentialManager.verify(any(), anyString())).thenReturn(rejection);
+        var response = mock(Response.class);
+
+        var result = post("alice", "WrongPassword1", response);
+
+        assertTrue(result.isEmpty());
+        assertEquals(List.of("validation.error.incorrect.credentials"), errorsOf(response));
+    }
+
+    @Test
+    void remembersALockoutByTheUsernameOfTheAccountThatAnEmailAddressResolvedTo()
+    {
+        withAccountStateCache();
+        var alice = AccountAttributes.of("alice", null, "alice@example.com");
+        when(_accountManager.getByEmail("alice@example.com")).thenReturn(alice);
+        var lockout = lockedOut();
+        when(_credentialManager.verify(any(), anyString())).thenReturn(lockout);
+
+        post("alice@example.com", PASSWORD, mock(Response.class));
+
+        assertEquals(AccountState.LOCKED_OUT, _runtime.getAccountStateTable().orElseThrow().get("alice"));
+
+        var response = mock(Response.class);
+        post("alice@example.com", PASSWORD, response);
+
+        verify(_credentialManager, times(1)).verify(any(), anyString());
+        assertTrue(errorsOf(response).contains("error.too-many-attempts"));
+    }
+
+    @Test
+    void tellsTheUserThatASprayedPasswordWasRefusedWithoutVerifyingIt()
+    {
+        var settings = mock(UsernamePasswordAuthenticatorPluginConfig.PasswordSprayDetectionSettings.class);
+        when(settings.getWidth()).thenReturn(1024);
+        when(settings.getDepth()).thenReturn(4);
+        when(settings.getThreshold()).thenReturn(2);
+        when(settings.getDecayIntervalSeconds()).thenReturn(3600);
+        when(_configuration.getPasswordSprayDetection()).thenReturn(Optional.of(settings));
+        var detector = runtime().getPasswordSprayDetector().orElseThrow();
+        detector.recordFailure(PASSWORD);
+        detector.recordFailure(PASSWORD);
+        var response = mock(Response.class);
+
+        var result = post("alice", PASSWORD, response);
+
+        assertTrue(result.isEmpty());
+        assertEquals(List.of("error.password-sprayed"), errorsOf(response));
+        verifyNoInteractions(_credentialManager);
+    }
+
+    @Test
+    void shedsALoginOverTheConcurrencyLimitWithABackoff()
+    {
+        withConcurrencyLimitOfOne();
+        var acceptance = accepted("alice");
+        when(_credentialManager.verify(any(), anyString())).thenReturn(acceptance);
+        AdaptiveConcurrencyLimiter.Permit permit = runtime().getConcurrencyLimiter().orElseThrow()
+                .tryAcquire().orElseThrow();
+        try
+        {
+            var response = mock(Response.class);
+
+            var result = post("alice", PASSWORD, response);
+
+            assertTrue(result.isEmpty());
+            verify(response).setHttpStatus(HttpStatus.SERVICE_UNAVAILABLE);
+            verify(response).addHeader("Retry-After", "2");
+            verifyNoInteractions(_credentialManager);
+        }
+        finally
+        {
+            permit.release();
+        }
+    }
+
+    @Test
+    void answersAnUnknownUsernameWithADecoyOnlyUnderThePermit(@TempDir Path directory) throws IOException
+    {
+        withConcurrencyLimitOfOne();
+        var usernameFile = Files.writeString(directory.resolve("usernames"), "alice\n");
+        var settings = mock(UsernamePasswordAuthenticatorPluginConfig.KnownUsernameFilterSettings.class);
+        when(settings.getUsernameFile()).thenReturn(usernameFile.toString());
+        when(settings.getExpectedUsernames()).thenReturn(1000);
+        when(settings.getFalsePositivesPerMillion()).thenReturn(1);
+        when(settings.getReloadIntervalSeconds()).thenReturn(3600);
+        when(_configuration.getKnownUsernameFilter()).thenReturn(Optional.of(settings));
+        var knownUsernameFilter = runtime().getKnownUsernameFilter().orElseThrow();
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+        {
+            while (knownUsernameFilter.mightExist("mallory"))
+            {
+                Thread.sleep(10);
+            }
+        });
+        var decoyPasswordHasher = _runtime.getDecoyPasswordHasher().orElseThrow();
+
+        AdaptiveConcurrencyLimiter.Permit permit = _runtime.getConcurrencyLimiter().orElseThrow()
+                .tryAcquire().orElseThrow();
+        var shedResponse = mock(Response.class);
+        try
+        {
+            post("mallory", PASSWORD, shedResponse);
+        }
+        finally
+        {
+            permit.release();
+        }
+        var response = mock(Response.class);
+        post("mallory", PASSWORD, response);
+
+        verify(shedResponse).setHttpStatus(HttpStatus.SERVICE_UNAVAILABLE);
+        assertEquals(1, decoyPasswordHasher.getDecoyCount());
+        assertEquals(List.of("validation.error.incorrect.credentials"), errorsOf(response));
+        verifyNoInteractions(_credentialManager);
+    }
+
+    @Test
+    void refusesALoginWithoutAProofOfWorkWithABackoff()
+    {
+        var settings = mock(UsernamePasswordAuthenticatorPluginConfig.ProofOfWorkSettings.class);
+        when(settings.getActivationLoadPercent()).thenReturn(50);
+        when(settings.getMinimumDifficulty()).thenReturn(12);
+        when(settings.getMaximumDifficulty()).thenReturn(18);
+        when(settings.getChallengeLifetimeSeconds()).thenReturn(300);
+        when(_configuration.getProofOfWork()).thenReturn(Optional.of(settings));
+        var response = mock(Response.class);
+
+        var result = post("alice", PASSWORD, response);
+
+        assertTrue(result.isEmpty());
+        verify(response).setHttpStatus(HttpStatus.SERVICE_UNAVAILABLE);
+        verify(response).addHeader("Retry-After", "2");
+        verify(_credentialManager, never()).verify(any(), anyString());
+    }
+
+    private Optional<?> post(String userName, String password, Response response)
+    {
+        var request = mock(Request.class);
+        when(request.isPostRequest()).thenReturn(true);
+        when(request.getFormParameterValueOrError(RequestModel.Post.USERNAME_PARAM)).thenReturn(userName);
+        when(request.getFormParameterValueOrError(RequestModel.Post.PASSWORD_PARAM)).thenReturn(password);
+        when(request.getClientIpAddress()).thenReturn("192.0.2.1");
+        when(request.getHeaders()).thenReturn(mock(HttpHeaders.class));
+
+        var handler = new UsernamePasswordAuthenticationRequestHandler(_configuration, runtime());
+        return handler.post(new RequestModel(request), response);
+    }
+
+    private AuthenticatorRuntime runtime()
+    {
+        if (_runtime == null)
+        {
+            _runtime = new AuthenticatorRuntime(_configuration);
+        }
+
+        return _runtime;
+    }
+
+    private static List<String> errorsOf(Response response)
+    {
+        var errors = ArgumentCaptor.forClass(ErrorMessage.class);
+        verify(response, atLeast(0)).addErrorMessage(errors.capture());
+        return errors.getAllValues().stream().map(ErrorMessage::getMessage).toList();
+    }
+
+    private UsernamePasswordAuthenticatorPluginConfig configuration()
+    {
+        var configuration = mock(UsernamePasswordAuthenticatorPluginConfig.class);
+        when(configuration.id()).thenReturn("test-" + System.nanoTime());
+        when(configuration.getDecoyHashingPercent()).thenReturn(50);
+        when(configuration.getCredentialManager()).thenReturn(_credentialManager);
+        when(configuration.getAccountManager()).thenReturn(_accountManager);
+        when(configuration.getUserPreferenceManager()).thenReturn(_userPreferenceManager);
+        return configuration;
+    }
+
+    private void withAccountStateCache()
+    {
+        var settings = mock(UsernamePasswordAuthenticatorPluginConfig.AccountStateCacheSettings.class);
+        when(settings.getCapacity()).thenReturn(1024);
+        when(settings.getLockoutSeconds()).thenReturn(300);
+        when(settings.getPendingActivationSeconds()).thenReturn(600);
+        when(_configuration.getAccountStateCache()).thenReturn(Optional.of(settings));
+    }
+
+    private void withConcurrencyLimitOfOne()
+    {
+        var settings = mock(UsernamePasswordAuthenticatorPluginConfig.ConcurrencyLimitSettings.class);
+        when(settings.getInitialLimit()).thenReturn(1);
+        when(settings.getMinimumLimit()).thenReturn(1);
+        when(settings.getMaximumLimit()).thenReturn(1);
+        when(_configuration.getConcurrencyLimit()).thenReturn(Optional.of(settings));
+    }
+}
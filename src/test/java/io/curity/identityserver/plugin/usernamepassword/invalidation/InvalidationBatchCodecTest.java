@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.invalidation;
+
+import io.curity.identityserver.plugin.usernamepassword.invalidation.InvalidationEvent.Type;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class InvalidationBatchCodecTest
+{
+    private static final long NODE_ID = 42;
+    private static final int CHANNEL_HASH = "channel".hashCode();
+
+    @Test
+    void decodesWhatWasEncoded() throws IOException
+    {
+        var events = List.of(
+                new InvalidationEvent(Type.ACCOUNT_CREATED, "alice", "alice@example.com", 1000),
+                new InvalidationEvent(Type.PASSWORD_CHANGED, "bob", null, 2000));
+
+        var encoded = InvalidationBatchCodec.encode(NODE_ID, CHANNEL_HASH, events);
+        var batch = decode(encoded.datagrams().getFirst());
+
+        assertEquals(1, encoded.datagrams().size());
+        assertEquals(NODE_ID, batch.nodeId());
+        assertEquals(CHANNEL_HASH, batch.channelHash());
+        assertEquals(events, batch.events());
+    }
+
+    @Test
+    void compressesLargeBatches() throws IOException
+    {
+        var events = eventsFor(100, "user");
+        int plainBytes = events.stream().mapToInt(event -> event.username().length() + 12).sum();
+
+        var encoded = InvalidationBatchCodec.encode(NODE_ID, CHANNEL_HASH, events);
+
+        assertEquals(1, encoded.datagrams().size());
+        assertTrue(encoded.datagrams().getFirst().length < plainBytes);
+        assertEquals(events, decode(encoded.datagrams().getFirst()).events());
+    }
+
+    @Test
+    void splitsBatchesThatDoNotFitInOneDatagram() throws IOException
+    {
+        var events = eventsFor(1000, "a-rather-long-username-of-some-user-");
+
+        var encoded = InvalidationBatchCodec.encode(NODE_ID, CHANNEL_HASH, events);
+
+        var decoded = new ArrayList<InvalidationEvent>();
+        for (byte[] datagram : encoded.datagrams())
+        {
+            decoded.addAll(decode(datagram).events());
+        }
+        assertTrue(encoded.datagrams().size() > 1);
+        assertEquals(events, decoded);
+    }
+
+    @Test
+    void leavesOutEventsTooLargeForADatagram() throws IOException
+    {
+        var small = new InvalidationEvent(Type.ACCOUNT_ACTIVATED, "alice", null, 1000);
+        var tooLargeForADatagram = new InvalidationEvent(Type.ACCOUNT_CREATED,
+                "x".repeat(InvalidationBatchCodec.MAXIMUM_BODY_BYTES), null, 1000);
+        var tooLargeForAString = new InvalidationEvent(Type.ACCOUNT_CREATED, "bob", "y".repeat(70_000), 1000);
+
+        var encoded = InvalidationBatchCodec.encode(NODE_ID, CHANNEL_HASH,
+                List.of(tooLargeForADatagram, small, tooLargeForAString));
+
+        assertEquals(2, encoded.oversizedCount());
+        assertEquals(1, encoded.datagrams().size());
+        assertEquals(List.of(small), decode(encoded.datagrams().getFirst()).events());
+    }
+
+    @Test
+    void rejectsDatagramsOfOtherProtocols()
+    {
+        byte[] datagram = "not an invalidation datagram".getBytes();
+
+        assertThrows(IOException.class, () -> InvalidationBatchCodec.decode(datagram, datagram.length));
+    }
+
+    @Test
+    void rejectsTruncatedDatagrams()
+    {
+        byte[] datagram = InvalidationBatchCodec.encode(NODE_ID, CHANNEL_HASH, eventsFor(3, "user"))
+                .datagrams().getFirst();
+
+        assertThrows(IOException.class, () -> InvalidationBatchCodec.decode(datagram, datagram.length - 4));
+    }
+
+    @Test
+    void rejectsBodiesThatInflateBeyondTheMaximum() throws IOException
+    {
+        var deflater = new Deflater();
+        deflater.setInput(new byte[InvalidationBatchCodec.MAXIMUM_BODY_BYTES * 4]);
+        deflater.finish();
+        byte[] body = new byte[4096];
+        int bodyLength = deflater.deflate(body);
+        deflater.end();
+
+        var datagram = new ByteArrayOutputStream();
+        var output = new DataOutputStream(datagram);
+        output.writeInt(0x55504931);
+        output.writeLong(NODE_ID);
+        output.writeInt(CHANNEL_HASH);
+        output.writeByte(1);
+        output.write(body, 0, bodyLength);
+        byte[] bytes = datagram.toByteArray();
+
+        assertThrows(IOException.class, () -> InvalidationBatchCodec.decode(bytes, bytes.length));
+    }
+
+    private static InvalidationBatchCodec.Batch decode(byte[] datagram) throws IOException
+    {
+        return InvalidationBatchCodec.decode(datagram, datagram.length);
+    }
+
+    private static List<InvalidationEvent> eventsFor(int count, String usernamePrefix)
+    {
+        var events = new ArrayList<InvalidationEvent>(count);
+        for (int i = 0; i < count; i++)
+        {
+            events.add(new InvalidationEvent(Type.PASSWORD_CHANGED, usernamePrefix + i, null, 1000 + i));
+        }
+        return events;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.invalidation;
+
+import io.curity.identityserver.plugin.usernamepassword.invalidation.InvalidationEvent.Type;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+final class LocalInvalidationBusTest
+{
+    private static final InvalidationEvent EVENT = new InvalidationEvent(Type.PASSWORD_CHANGED, "alice", null, 1000);
+
+    private final String _channel = "test-" + System.nanoTime();
+
+    @Test
+    void deliversToTheOtherMembersOfTheChannel()
+    {
+        try (var publisher = new LocalInvalidationBus(_channel); var member = new LocalInvalidationBus(_channel))
+        {
+            var published = subscribe(publisher);
+            var received = subscribe(member);
+
+            publisher.publish(EVENT);
+
+            assertEquals(List.of(), published);
+            assertEquals(List.of(EVENT), received);
+        }
+    }
+
+    @Test
+    void doesNotDeliverToOtherChannels()
+    {
+        try (var publisher = new LocalInvalidationBus(_channel);
+             var other = new LocalInvalidationBus(_channel + "-other"))
+        {
+            var received = subscribe(other);
+
+            publisher.publish(EVENT);
+
+            assertEquals(List.of(), received);
+        }
+    }
+
+    @Test
+    void doesNotDeliverOnceClosed()
+    {
+        try (var publisher = new LocalInvalidationBus(_channel))
+        {
+            var member = new LocalInvalidationBus(_channel);
+            var received = subscribe(member);
+            member.close();
+
+            publisher.publish(EVENT);
+
+            assertEquals(List.of(), received);
+        }
+    }
+
+    private static List<InvalidationEvent> subscribe(InvalidationBus bus)
+    {
+        var received = new CopyOnWriteArrayList<InvalidationEvent>();
+        bus.subscribe(received::add);
+        return received;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.invalidation;
+
+import io.curity.identityserver.plugin.usernamepassword.invalidation.InvalidationEvent.Type;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A node of the cluster in a process of its own, for {@link MulticastInvalidationBusTest}.
+ * <p>
+ * It joins the group on the loopback interface, and answers the first event it receives with an event for the
+ * same username, but of the type that follows, before it exits.
+ */
+public final class MulticastInvalidationBusPeer
+{
+    private MulticastInvalidationBusPeer()
+    {
+    }
+
+    /**
+     * @param arguments the multicast address, port and channel
+     */
+    public static void main(String[] arguments) throws InterruptedException
+    {
+        var scheduler = Executors.newSingleThreadScheduledExecutor();
+        var received = new CountDownLatch(1);
+        var answered = new CountDownLatch(1);
+
+        try (var bus = new MulticastInvalidationBus(arguments[2],
+                new InetSocketAddress(arguments[0], Integer.parseInt(arguments[1])),
+                MulticastInvalidationBusTest.LOOPBACK, 1, Duration.ofMillis(10), scheduler))
+        {
+            bus.subscribe(event -> {
+                if (received.getCount() > 0)
+                {
+                    received.countDown();
+                    System.out.println("RECEIVED " + event.type() + " " + event.username());
+                    bus.publish(new InvalidationEvent(Type.values()[event.type().ordinal() + 1],
+                            event.username(), event.emailAddress(), System.currentTimeMillis()));
+                    answered.countDown();
+                }
+            });
+            System.out.println("READY");
+
+            if (!received.await(30, TimeUnit.SECONDS) || !answered.await(5, TimeUnit.SECONDS))
+            {
+                System.exit(1);
+            }
+
+            // the answer is sent with the next batch, which closing flushes
+        }
+        finally
+        {
+            scheduler.shutdownNow();
+        }
+    }
+}
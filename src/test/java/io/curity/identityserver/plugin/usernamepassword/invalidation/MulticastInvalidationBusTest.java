@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.invalidation;
+
+import io.curity.identityserver.plugin.usernamepassword.invalidation.InvalidationEvent.Type;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Sends events between buses over multicast on the loopback interface, which is skipped where that interface
+ * does not carry multicast.
+ */
+final class MulticastInvalidationBusTest
+{
+    static final String LOOPBACK = "lo";
+
+    private static final Duration BATCH_INTERVAL = Duration.ofMillis(10);
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final ScheduledExecutorService _scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final String _channel = "test-" + System.nanoTime();
+    private final InetSocketAddress _group = new InetSocketAddress("239.255.42." +
+            ThreadLocalRandom.current().nextInt(1, 255), ThreadLocalRandom.current().nextInt(40000, 50000));
+
+    @AfterEach
+    void shutDown()
+    {
+        _scheduler.shutdownNow();
+    }
+
+    @Test
+    void deliversEventsToTheOtherNodesOfTheChannel() throws Exception
+    {
+        assumeMulticastOnLoopback();
+
+        try (var publisher = newBus(_channel); var member = newBus(_channel); var other = newBus(_channel + "-other"))
+        {
+            var published = subscribe(publisher);
+            var received = subscribe(member);
+            var receivedByOther = subscribe(other);
+            var event = new InvalidationEvent(Type.PASSWORD_CHANGED, "alice", "alice@example.com", 1000);
+
+            publisher.publish(event);
+
+            assertEquals(event, received.poll(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+            assertNull(published.poll(BATCH_INTERVAL.toMillis() * 10, TimeUnit.MILLISECONDS));
+            assertNull(receivedByOther.poll());
+            assertEquals(1, member.getReceivedCount());
+        }
+    }
+
+    @Test
+    void deliversEventsBetweenProcesses() throws Exception
+    {
+        assumeMulticastOnLoopback();
+
+        Path java = Path.of(System.getProperty("java.home"), "bin", "java");
+        Process peer = new ProcessBuilder(java.toString(), "-cp", System.getProperty("java.class.path"),
+                MulticastInvalidationBusPeer.class.getName(),
+                _group.getHostString(), Integer.toString(_group.getPort()), _channel)
+                .redirectErrorStream(true)
+                .start();
+
+        try (var bus = newBus(_channel);
+             var output = new BufferedReader(new InputStreamReader(peer.getInputStream(), StandardCharsets.UTF_8)))
+        {
+            var received = subscribe(bus);
+            assertEquals("READY", readLineFrom(output, "READY"));
+
+            // the peer may not have joined the group when the first datagram is sent, and loopback datagrams can
+            // still be dropped, so the event is sent again until it is answered
+            var event = new InvalidationEvent(Type.ACCOUNT_CREATED, "alice", null, System.currentTimeMillis());
+            InvalidationEvent answer = null;
+            long giveUpAt = System.nanoTime() + TIMEOUT.toNanos();
+            while (answer == null && System.nanoTime() < giveUpAt)
+            {
+                bus.publish(event);
+                answer = received.poll(200, TimeUnit.MILLISECONDS);
+            }
+
+            assertNotNull(answer, "The peer did not answer");
+            assertEquals(Type.ACCOUNT_ACTIVATED, answer.type());
+            assertEquals("alice", answer.username());
+            assertEquals("RECEIVED ACCOUNT_CREATED alice", readLineFrom(output, "RECEIVED"));
+            assertTrue(peer.waitFor(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+            assertEquals(0, peer.exitValue());
+        }
+        finally
+        {
+            peer.destroyForcibly();
+        }
+    }
+
+    private MulticastInvalidationBus newBus(String channel)
+    {
+        return new MulticastInvalidationBus(channel, _group, LOOPBACK, 1, BATCH_INTERVAL, _scheduler);
+    }
+
+    private static BlockingQueue<InvalidationEvent> subscribe(InvalidationBus bus)
+    {
+        var received = new LinkedBlockingQueue<InvalidationEvent>();
+        bus.subscribe(received::add);
+        return received;
+    }
+
+    // skips what the JVM may print before the output of the peer
+    private static String readLineFrom(BufferedReader output, String prefix) throws IOException
+    {
+        String line;
+        while ((line = output.readLine()) != null)
+        {
+            if (line.startsWith(prefix))
+            {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    // the loopback interface often carries multicast without claiming to support it, so that is tried instead
+    private void assumeMulticastOnLoopback() throws SocketException
+    {
+        var loopback = NetworkInterface.getByName(LOOPBACK);
+        assumeTrue(loopback != null && loopback.isUp(), "There is no loopback interface named " + LOOPBACK);
+
+        boolean delivered;
+        try (var socket = new MulticastSocket(_group.getPort()))
+        {
+            socket.setNetworkInterface(loopback);
+            socket.joinGroup(_group, loopback);
+            socket.setSoTimeout(1_000);
+            socket.send(new DatagramPacket(new byte[1], 1, _group));
+            socket.receive(new DatagramPacket(new byte[1], 1));
+            delivered = true;
+        }
+        catch (IOException e)
+        {
+            delivered = false;
+        }
+        assumeTrue(delivered, "The loopback interface does not carry multicast");
+    }
+}
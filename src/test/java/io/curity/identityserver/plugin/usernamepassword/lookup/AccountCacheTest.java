@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.lookup;
+
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class AccountCacheTest
+{
+    private static final Duration TIME_TO_LIVE = Duration.ofMinutes(5);
+
+    @Test
+    void cachesCompletedLoads()
+    {
+        var cache = new AccountCache(100, TIME_TO_LIVE);
+        var account = AccountAttributes.of("john", null, "john@example.com");
+
+        load(cache, "u:john", account);
+
+        assertSame(account, cache.getIfPresent("u:john"));
+        assertNull(cache.getIfPresent("u:JOHN"));
+    }
+
+    @Test
+    void removesEveryEntryOfAnInvalidatedAccount()
+    {
+        var cache = new AccountCache(100, TIME_TO_LIVE);
+        var account = AccountAttributes.of("john", null, "john@example.com");
+        load(cache, "u:john", account);
+        load(cache, "e:john@example.com", account);
+
+        cache.invalidate("John");
+
+        assertNull(cache.getIfPresent("u:john"));
+        assertNull(cache.getIfPresent("e:john@example.com"));
+    }
+
+    @Test
+    void doesNotCacheALoadThatBeganBeforeTheAccountChanged()
+    {
+        var cache = new AccountCache(100, TIME_TO_LIVE);
+        var stale = AccountAttributes.of("john", null, "john@example.com");
+
+        long generation = cache.beginLoad();
+        cache.invalidate("john");
+        cache.completeLoad("e:john@example.com", stale, generation);
+
+        assertNull(cache.getIfPresent("e:john@example.com"));
+        assertEquals(1, cache.getStaleLoadCount());
+    }
+
+    @Test
+    void cachesALoadThatBeganAfterTheAccountChanged()
+    {
+        var cache = new AccountCache(100, TIME_TO_LIVE);
+        var fresh = AccountAttributes.of("john", null, "john@example.com");
+
+        long earlierLoad = cache.beginLoad();
+        cache.invalidate("john");
+        long laterLoad = cache.beginLoad();
+        cache.completeLoad("u:john", fresh, laterLoad);
+        cache.completeLoad("u:someone", null, earlierLoad);
+
+        assertSame(fresh, cache.getIfPresent("u:john"));
+        assertEquals(0, cache.getStaleLoadCount());
+    }
+
+    @Test
+    void onlyKeepsLoadsOfOtherAccountsWhenOneChanges()
+    {
+        var cache = new AccountCache(100, TIME_TO_LIVE);
+        var other = AccountAttributes.of("jane", null, "jane@example.com");
+
+        long generation = cache.beginLoad();
+        cache.invalidate("john");
+        cache.completeLoad("u:jane", other, generation);
+
+        assertSame(other, cache.getIfPresent("u:jane"));
+    }
+
+    @Test
+    void keepsFrequentlyReadAccountsDuringAScanOfOneOffLookups()
+    {
+        var cache = new AccountCache(100, TIME_TO_LIVE);
+        for (int i = 0; i < 50; i++)
+        {
+            load(cache, "u:user" + i, AccountAttributes.of("user" + i, null, null));
+        }
+        for (int read = 0; read < 5; read++)
+        {
+            for (int i = 0; i < 50; i++)
+            {
+                cache.getIfPresent("u:user" + i);
+            }
+        }
+
+        // the frequently read accounts are still read while the scan goes on
+        for (int i = 0; i < 10_000; i++)
+        {
+            cache.getIfPresent("u:user" + i % 50);
+            cache.getIfPresent("u:scan" + i);
+            load(cache, "u:scan" + i, AccountAttributes.of("scan" + i, null, null));
+        }
+
+        int kept = 0;
+        for (int i = 0; i < 50; i++)
+        {
+            if (cache.getIfPresent("u:user" + i) != null)
+            {
+                kept++;
+            }
+        }
+        // a sketch collision may let a scanned account win now and then
+        assertTrue(kept >= 45, "kept = " + kept);
+    }
+
+    private static void load(AccountCache cache, String key, AccountAttributes account)
+    {
+        cache.completeLoad(key, account, cache.beginLoad());
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.lookup;
+
+import io.curity.identityserver.plugin.usernamepassword.runtime.DeadlineExceededException;
+import io.curity.identityserver.plugin.usernamepassword.runtime.Deadlines;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+import se.curity.identityserver.sdk.errors.ExternalServiceException;
+import se.curity.identityserver.sdk.service.AccountManager;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+final class AccountLookupTest
+{
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final AccountManager _accountManager = mock(AccountManager.class);
+    private final ExecutorService _executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AccountLookup _lookup = new AccountLookup(_accountManager, null, Duration.ZERO, 0, null);
+    private final AccountAttributes _account = AccountAttributes.of("john", null, "john@example.com");
+    private final CountDownLatch _callStarted = new CountDownLatch(1);
+    private final CountDownLatch _callMayFinish = new CountDownLatch(1);
+
+    @AfterEach
+    void shutDown()
+    {
+        _executor.shutdownNow();
+    }
+
+    @Test
+    void sharesOneCallBetweenConcurrentLookups() throws Exception
+    {
+        when(_accountManager.getByUserName("john")).thenAnswer(invocation -> {
+            _callStarted.countDown();
+            _callMayFinish.await();
+            return _account;
+        });
+
+        Future<AccountAttributes> leader = _executor.submit(() -> _lookup.getByUserName("john"));
+        _callStarted.await();
+        Future<AccountAttributes> waiter = _executor.submit(() -> _lookup.getByUserName("john"));
+        awaitCoalesced(1);
+        _callMayFinish.countDown();
+
+        assertSame(_account, leader.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+        assertSame(_account, waiter.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+        assertEquals(1, _lookup.getDataSourceCallCount());
+        assertEquals(0, _lookup.getInFlightCount());
+    }
+
+    @Test
+    void passesTheFailureOfTheAccountManagerToEveryWaiterAndThenCallsAgain() throws Exception
+    {
+        var failure = mock(ExternalServiceException.class);
+        when(_accountManager.getByEmail("john@example.com"))
+                .thenAnswer(invocation -> {
+                    _callStarted.countDown();
+                    _callMayFinish.await();
+                    throw failure;
+                })
+                .thenReturn(_account);
+
+        Future<AccountAttributes> leader = _executor.submit(() -> _lookup.getByEmail("john@example.com"));
+        _callStarted.await();
+        Future<AccountAttributes> waiter = _executor.submit(() -> _lookup.getByEmail("john@example.com"));
+        awaitCoalesced(1);
+        _callMayFinish.countDown();
+
+        assertSame(failure, causeOf(leader));
+        assertSame(failure, causeOf(waiter));
+        assertEquals(0, _lookup.getInFlightCount());
+
+        // nothing is left behind that a later lookup could wait for
+        assertSame(_account, _executor.submit(() -> _lookup.getByEmail("john@example.com"))
+                .get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+        assertEquals(2, _lookup.getDataSourceCallCount());
+    }
+
+    @Test
+    void stopsWaitingForAnotherCallAtTheDeadline() throws Exception
+    {
+        when(_accountManager.getByUserName("john")).thenAnswer(invocation -> {
+            _callStarted.countDown();
+            _callMayFinish.await();
+            return _account;
+        });
+
+        Future<AccountAttributes> leader = _executor.submit(() -> _lookup.getByUserName("john"));
+        _callStarted.await();
+
+        assertTimeoutPreemptively(TIMEOUT, () -> assertThrows(DeadlineExceededException.class,
+                () -> _lookup.getByUserName("john", Deadlines.after(Duration.ofMillis(100)))));
+
+        _callMayFinish.countDown();
+        assertSame(_account, leader.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+        assertEquals(1, _lookup.getDataSourceCallCount());
+    }
+
+    @Test
+    void makesItsOwnCallWhenTheRequestThatMadeTheSharedOneIsInterrupted() throws Exception
+    {
+        var calls = new AtomicInteger();
+        when(_accountManager.getByUserName("john")).thenAnswer(invocation -> {
+            if (calls.incrementAndGet() > 1)
+            {
+                return _account;
+            }
+
+            _callStarted.countDown();
+            try
+            {
+                _callMayFinish.await();
+            }
+            catch (InterruptedException e)
+            {
+                // as data sources usually do
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            }
+            return _account;
+        });
+
+        Future<AccountAttributes> leader = _executor.submit(() -> _lookup.getByUserName("john"));
+        _callStarted.await();
+        Future<AccountAttributes> waiter = _executor.submit(() -> _lookup.getByUserName("john"));
+        awaitCoalesced(1);
+        leader.cancel(true);
+
+        assertSame(_account, waiter.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void readsALimitedNumberOfRecentlyWrittenAccountsFromTheMainAccountManager()
+    {
+        var readOnlyAccountManager = mock(AccountManager.class);
+        when(readOnlyAccountManager.getByUserName("john")).thenReturn(_account);
+        var lookup = new AccountLookup(_accountManager, readOnlyAccountManager, Duration.ofMinutes(1), 1, null);
+
+        lookup.onAccountWritten("john", null);
+        lookup.getByUserName("john");
+        verify(_accountManager).getByUserName("john");
+
+        lookup.onAccountWritten("jane", null);
+        lookup.getByUserName("jane");
+        lookup.getByUserName("john");
+        verify(_accountManager).getByUserName("jane");
+        verify(readOnlyAccountManager).getByUserName("john");
+        assertEquals(1, lookup.getReadOnlyCallCount());
+    }
+
+    @Test
+    void readsAccountsTheReplicaDoesNotHaveFromTheMainAccountManager()
+    {
+        var readOnlyAccountManager = mock(AccountManager.class);
+        when(_accountManager.getByUserName("john")).thenReturn(_account);
+        var lookup = new AccountLookup(_accountManager, readOnlyAccountManager, Duration.ofMinutes(1), 1, null);
+
+        assertSame(_account, lookup.getByUserName("john"));
+        assertNull(lookup.getByUserName("jane"));
+
+        verify(readOnlyAccountManager).getByUserName("john");
+        verify(_accountManager).getByUserName("jane");
+        assertEquals(2, lookup.getReadOnlyMissCount());
+    }
+
+    private void awaitCoalesced(long count) throws InterruptedException
+    {
+        long giveUpAt = System.nanoTime() + TIMEOUT.toNanos();
+        while (_lookup.getCoalescedCount() < count && System.nanoTime() < giveUpAt)
+        {
+            Thread.sleep(1);
+        }
+    }
+
+    private static Throwable causeOf(Future<?> future)
+    {
+        var exception = assertThrows(ExecutionException.class,
+                () -> future.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+        return assertInstanceOf(Throwable.class, exception.getCause());
+    }
+}
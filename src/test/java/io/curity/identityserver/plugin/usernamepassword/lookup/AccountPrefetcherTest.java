@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.lookup;
+
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+import se.curity.identityserver.sdk.service.AccountManager;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+final class AccountPrefetcherTest
+{
+    private final AccountManager _accountManager = mock(AccountManager.class);
+    private final AccountPrefetcher _prefetcher = new AccountPrefetcher(
+            new AccountLookup(_accountManager, null, Duration.ZERO, 0, null), Runnable::run,
+            Duration.ofMinutes(1), 100);
+
+    @Test
+    void keepsTheResultByTheExactUsername()
+    {
+        when(_accountManager.getByUserName("John")).thenReturn(null);
+        when(_accountManager.getByUserName("john")).thenReturn(AccountAttributes.of("john", null, null));
+
+        _prefetcher.prefetch("John");
+        _prefetcher.prefetch("john");
+
+        assertFalse(_prefetcher.take("John").orElseThrow().exists());
+        assertTrue(_prefetcher.take("john").orElseThrow().exists());
+        verify(_accountManager).getByUserName("John");
+        verify(_accountManager).getByUserName("john");
+    }
+
+    @Test
+    void doesNotAnswerForAUsernameInADifferentCase()
+    {
+        _prefetcher.prefetch("John");
+
+        assertEquals(Optional.empty(), _prefetcher.take("john"));
+        assertEquals(1, _prefetcher.getMissCount());
+    }
+
+    @Test
+    void forgetsEveryCaseOfAChangedAccount()
+    {
+        _prefetcher.prefetch("John");
+        _prefetcher.prefetch("JOHN");
+
+        _prefetcher.invalidate("john");
+
+        assertEquals(Optional.empty(), _prefetcher.take("John"));
+        assertEquals(Optional.empty(), _prefetcher.take("JOHN"));
+    }
+
+    @Test
+    void takesEachResultOnce()
+    {
+        _prefetcher.prefetch("john");
+
+        assertTrue(_prefetcher.take("john").isPresent());
+        assertEquals(Optional.empty(), _prefetcher.take("john"));
+        assertEquals(1, _prefetcher.getHitCount());
+        assertEquals(1, _prefetcher.getMissCount());
+    }
+
+    @Test
+    void prefetchesAgainOnlyOnceTheResultWasTaken()
+    {
+        _prefetcher.prefetch("john");
+        _prefetcher.prefetch("john");
+        _prefetcher.take("john");
+        _prefetcher.prefetch("john");
+
+        verify(_accountManager, times(2)).getByUserName("john");
+    }
+
+    @Test
+    void countsNoSavedTimeForAccountsThatExist()
+    {
+        when(_accountManager.getByUserName("john")).thenAnswer(invocation -> {
+            Thread.sleep(20);
+            return AccountAttributes.of("john", null, null);
+        });
+
+        _prefetcher.prefetch("john");
+        _prefetcher.take("john");
+
+        assertEquals(0, _prefetcher.getSavedMillis());
+    }
+
+    @Test
+    void countsTheLookupTimeAsSavedForAccountsThatDoNotExist()
+    {
+        when(_accountManager.getByUserName("nobody")).thenAnswer(invocation -> {
+            Thread.sleep(20);
+            return null;
+        });
+
+        _prefetcher.prefetch("nobody");
+        _prefetcher.take("nobody");
+
+        assertTrue(_prefetcher.getSavedMillis() >= 20);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.lookup;
+
+import io.curity.identityserver.plugin.usernamepassword.runtime.Deadline;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+import se.curity.identityserver.sdk.service.AccountManager;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+final class AccountResolverTest
+{
+    private static final String IDENTIFIER = "john@example.com";
+
+    private final AccountManager _accountManager = mock(AccountManager.class);
+    private final ExecutorService _executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AccountLookup _lookup = new AccountLookup(_accountManager, null, Duration.ZERO, 0, null);
+    private final AccountResolver _resolver = new AccountResolver(_lookup, _executor);
+    private final AccountAttributes _byUsername = AccountAttributes.of(IDENTIFIER, null, "other@example.com");
+    private final AccountAttributes _byEmail = AccountAttributes.of("john", null, IDENTIFIER);
+
+    @AfterEach
+    void shutDown()
+    {
+        _executor.shutdownNow();
+    }
+
+    @Test
+    void prefersTheUsernameAtLoginWhenTheEmailLookupAnswersFirst()
+    {
+        when(_accountManager.getByUserName(IDENTIFIER)).thenAnswer(invocation -> {
+            Thread.sleep(200);
+            return _byUsername;
+        });
+        when(_accountManager.getByEmail(IDENTIFIER)).thenReturn(_byEmail);
+
+        assertSame(_byUsername, _resolver.resolveLoginIdentifier(IDENTIFIER, Deadline.none()));
+    }
+
+    @Test
+    void prefersTheEmailAddressWhenBothAreEnteredAndTheUsernameLookupAnswersFirst()
+    {
+        when(_accountManager.getByEmail(IDENTIFIER)).thenAnswer(invocation -> {
+            Thread.sleep(200);
+            return _byEmail;
+        });
+        when(_accountManager.getByUserName("john")).thenReturn(_byUsername);
+
+        assertSame(_byEmail, _resolver.resolve("john", IDENTIFIER, Deadline.none()));
+    }
+
+    @Test
+    void usesTheOtherLookupWhenTheOneWithPriorityFindsNothing()
+    {
+        when(_accountManager.getByEmail(IDENTIFIER)).thenReturn(_byEmail);
+
+        assertSame(_byEmail, _resolver.resolveLoginIdentifier(IDENTIFIER, Deadline.none()));
+        assertNull(_resolver.resolveLoginIdentifier("nobody@example.com", Deadline.none()));
+        assertNull(_resolver.resolveLoginIdentifier("john", Deadline.none()));
+    }
+
+    @Test
+    void leavesTheOtherLookupRunningForRequestsThatWaitForIt() throws Exception
+    {
+        var emailLookupStarted = new CountDownLatch(1);
+        var emailLookupMayFinish = new CountDownLatch(1);
+        when(_accountManager.getByUserName(IDENTIFIER)).thenAnswer(invocation -> {
+            emailLookupStarted.await();
+            return _byUsername;
+        });
+        when(_accountManager.getByEmail(IDENTIFIER)).thenAnswer(invocation -> {
+            emailLookupStarted.countDown();
+            emailLookupMayFinish.await();
+            return _byEmail;
+        });
+
+        assertSame(_byUsername, _resolver.resolveLoginIdentifier(IDENTIFIER, Deadline.none()));
+
+        // another request joins the email lookup that the login no longer needs
+        var waiter = CompletableFuture.supplyAsync(() -> _lookup.getByEmail(IDENTIFIER), _executor);
+        long giveUpAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (_lookup.getCoalescedCount() == 0 && System.nanoTime() < giveUpAt)
+        {
+            Thread.onSpinWait();
+        }
+        emailLookupMayFinish.countDown();
+
+        assertEquals(1, _lookup.getCoalescedCount());
+
+        assertSame(_byEmail, waiter.get(5, TimeUnit.SECONDS));
+    }
+}
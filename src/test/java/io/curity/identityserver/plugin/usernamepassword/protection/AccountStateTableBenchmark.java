@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import io.curity.identityserver.plugin.usernamepassword.protection.AccountStateTable.AccountState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of looking up and inserting accounts in a full account state table, from several threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-XX:MaxDirectMemorySize=2g")
+@Threads(4)
+public class AccountStateTableBenchmark
+{
+    private static final Duration LOCKOUT = Duration.ofMinutes(5);
+
+    @Param({ "1048576", "33554432" })
+    public int capacity;
+
+    private AccountStateTable _table;
+    private String[] _usernames;
+
+    @Setup(Level.Trial)
+    public void fillTable()
+    {
+        _table = new AccountStateTable(capacity, Clock.systemUTC());
+        for (int i = 0; i < capacity; i++)
+        {
+            _table.put("user" + i, AccountState.LOCKED_OUT, LOCKOUT);
+        }
+
+        _usernames = new String[1 << 16];
+        for (int i = 0; i < _usernames.length; i++)
+        {
+            _usernames[i] = "user" + ThreadLocalRandom.current().nextInt(capacity * 2);
+        }
+    }
+
+    @Benchmark
+    public AccountState get()
+    {
+        return _table.get(_usernames[ThreadLocalRandom.current().nextInt(_usernames.length)]);
+    }
+
+    @Benchmark
+    public void put()
+    {
+        _table.put(_usernames[ThreadLocalRandom.current().nextInt(_usernames.length)],
+                AccountState.LOCKED_OUT, LOCKOUT);
+    }
+}
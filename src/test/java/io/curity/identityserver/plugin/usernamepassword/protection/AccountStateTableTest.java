@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import io.curity.identityserver.plugin.usernamepassword.protection.AccountStateTable.AccountState;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class AccountStateTableTest
+{
+    private static final Duration LOCKOUT = Duration.ofMinutes(5);
+
+    private final MutableClock _clock = new MutableClock();
+
+    @Test
+    void remembersTheStateOfAnAccountUntilItExpires()
+    {
+        var table = new AccountStateTable(1024, _clock);
+
+        table.put("alice", AccountState.LOCKED_OUT, LOCKOUT);
+        table.put("bob", AccountState.PENDING_ACTIVATION, LOCKOUT.multipliedBy(2));
+
+        assertEquals(AccountState.LOCKED_OUT, table.get("alice"));
+        assertEquals(AccountState.LOCKED_OUT, table.get(" Alice "));
+        assertEquals(AccountState.PENDING_ACTIVATION, table.get("bob"));
+        assertEquals(AccountState.NONE, table.get("carol"));
+
+        _clock.advance(LOCKOUT);
+
+        assertEquals(AccountState.NONE, table.get("alice"));
+        assertEquals(AccountState.PENDING_ACTIVATION, table.get("bob"));
+        assertEquals(2, table.getLockedOutHitCount());
+        assertEquals(2, table.getPendingActivationHitCount());
+    }
+
+    @Test
+    void forgetsRemovedAccounts()
+    {
+        var table = new AccountStateTable(1024, _clock);
+        table.put("alice", AccountState.LOCKED_OUT, LOCKOUT);
+
+        table.remove("alice");
+        table.remove("bob");
+
+        assertEquals(AccountState.NONE, table.get("alice"));
+        assertEquals(AccountState.NONE, table.get("bob"));
+    }
+
+    @Test
+    void replacesTheStateOfAnAccount()
+    {
+        var table = new AccountStateTable(1024, _clock);
+        table.put("alice", AccountState.PENDING_ACTIVATION, LOCKOUT);
+
+        table.put("alice", AccountState.LOCKED_OUT, LOCKOUT);
+
+        assertEquals(AccountState.LOCKED_OUT, table.get("alice"));
+        assertEquals(1, table.getOccupiedSlots());
+    }
+
+    @Test
+    void evictsTheEntriesClosestToExpiryInsteadOfGrowing()
+    {
+        var table = new AccountStateTable(1024, _clock);
+
+        for (int i = 0; i < 100_000; i++)
+        {
+            table.put("user" + i, AccountState.LOCKED_OUT, LOCKOUT.plusMillis(i));
+        }
+
+        assertTrue(table.getOccupiedSlots() <= table.getCapacity());
+        assertTrue(table.getEvictionCount() > 0);
+        assertEquals(AccountState.LOCKED_OUT, table.get("user99999"));
+        assertEquals(table.getCapacity() * 16, table.getOffHeapBytes());
+    }
+
+    @Test
+    void reusesTheSlotsOfExpiredEntries()
+    {
+        var table = new AccountStateTable(1024, _clock);
+        for (int i = 0; i < 400; i++)
+        {
+            table.put("user" + i, AccountState.LOCKED_OUT, LOCKOUT);
+        }
+        long evictions = table.getEvictionCount();
+
+        // once every entry has expired, any slot of a probe window can be taken without evicting
+        _clock.advance(LOCKOUT);
+        for (int i = 0; i < 400; i++)
+        {
+            table.put("other" + i, AccountState.LOCKED_OUT, LOCKOUT);
+        }
+
+        assertEquals(evictions, table.getEvictionCount());
+        assertTrue(table.getOccupiedSlots() <= table.getCapacity());
+    }
+
+    static final class MutableClock extends Clock
+    {
+        private Instant _now = Instant.parse("2017-01-01T00:00:00Z");
+
+        void advance(Duration duration)
+        {
+            _now = _now.plus(duration);
+        }
+
+        @Override
+        public ZoneOffset getZone()
+        {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone)
+        {
+            return this;
+        }
+
+        @Override
+        public Instant instant()
+        {
+            return _now;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.attribute.SubjectAttributes;
+import se.curity.identityserver.sdk.service.credential.CredentialVerificationResult;
+import se.curity.identityserver.sdk.service.credential.UserCredentialManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+final class AdaptiveConcurrencyLimiterTest
+{
+    // the stand-in credential manager hashes on this many cores, for this long per password
+    private static final int CORES = 4;
+    private static final Duration HASH_TIME = Duration.ofMillis(5);
+
+    // a login that takes longer than this has been given up on by the user
+    private static final Duration LATENCY_OBJECTIVE = Duration.ofMillis(50);
+
+    private static final int CLIENTS = 64;
+    private static final Duration RUN_TIME = Duration.ofSeconds(3);
+
+    @Test
+    void shedsCallersOverTheLimitWithoutWaiting()
+    {
+        var limiter = new AdaptiveConcurrencyLimiter(2, 1, 10);
+
+        var first = limiter.tryAcquire();
+        var second = limiter.tryAcquire();
+        var third = limiter.tryAcquire();
+
+        assertTrue(first.isPresent());
+        assertTrue(second.isPresent());
+        assertTrue(third.isEmpty());
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(2, limiter.getAcceptedCount());
+        assertEquals(1, limiter.getShedCount());
+
+        first.get().release();
+        first.get().release();
+
+        assertEquals(1, limiter.getInFlight());
+        assertTrue(limiter.tryAcquire().isPresent());
+    }
+
+    @Test
+    void abandonedPermitsAreNotUsedAsLatencySamples()
+    {
+        var limiter = new AdaptiveConcurrencyLimiter(2, 1, 10);
+
+        limiter.tryAcquire().orElseThrow().abandon();
+
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getRecentLatencyMillis());
+    }
+
+    @Test
+    void keepsTheLimitWithinItsBounds()
+    {
+        var limiter = new AdaptiveConcurrencyLimiter(100, 2, 8);
+
+        assertEquals(8, limiter.getLimit());
+
+        for (int i = 0; i < 1_000; i++)
+        {
+            var permits = new ArrayList<AdaptiveConcurrencyLimiter.Permit>();
+            limiter.tryAcquire().ifPresent(permits::add);
+            limiter.tryAcquire().ifPresent(permits::add);
+            permits.forEach(AdaptiveConcurrencyLimiter.Permit::release);
+        }
+
+        assertTrue(limiter.getLimit() >= 2 && limiter.getLimit() <= 8);
+    }
+
+    @Test
+    void goodputHoldsSteadyUnderOverload() throws Exception
+    {
+        double capacity = CORES * 1000.0 / HASH_TIME.toMillis();
+
+        double unlimited = goodputOf(null);
+        var limiter = new AdaptiveConcurrencyLimiter(CORES * 2, 1, CLIENTS);
+        double limited = goodputOf(limiter);
+
+        assertTrue(limited > capacity / 2,
+                "Goodput with the limiter was " + limited + "/s of a capacity of " + capacity + "/s");
+        assertTrue(limited > unlimited * 4,
+                "Goodput with the limiter was " + limited + "/s, and " + unlimited + "/s without it");
+        assertTrue(limiter.getShedCount() > 0);
+    }
+
+    /**
+     * Runs more clients than the stand-in credential manager can serve, each logging in again as soon as it is
+     * answered, and counts the logins per second that complete within the latency objective.
+     */
+    private static double goodputOf(AdaptiveConcurrencyLimiter limiter) throws InterruptedException
+    {
+        UserCredentialManager credentialManager = standInCredentialManager();
+        var good = new LongAdder();
+        long endAt = System.nanoTime() + RUN_TIME.toNanos();
+        var clients = new ArrayList<Thread>(CLIENTS);
+
+        for (int i = 0; i < CLIENTS; i++)
+        {
+            clients.add(Thread.ofPlatform().start(() -> {
+                while (System.nanoTime() < endAt)
+                {
+                    long startedAt = System.nanoTime();
+                    if (limiter == null)
+                    {
+                        credentialManager.verify(SubjectAttributes.of("alice"), "Password1");
+                    }
+                    else
+                    {
+                        var permit = limiter.tryAcquire();
+                        if (permit.isEmpty())
+                        {
+                            // a shed client is told to retry after a while
+                            sleep(HASH_TIME);
+                            continue;
+                        }
+                        try
+                        {
+                            credentialManager.verify(SubjectAttributes.of("alice"), "Password1");
+                        }
+                        finally
+                        {
+                            permit.get().release();
+                        }
+                    }
+
+                    if (System.nanoTime() - startedAt <= LATENCY_OBJECTIVE.toNanos())
+                    {
+                        good.increment();
+                    }
+                }
+            }));
+        }
+
+        for (Thread client : clients)
+        {
+            client.join();
+        }
+
+        return good.sum() / (double) RUN_TIME.toSeconds();
+    }
+
+    private static UserCredentialManager standInCredentialManager()
+    {
+        var cores = new Semaphore(CORES, true);
+        var result = mock(CredentialVerificationResult.Rejected.class);
+        var credentialManager = mock(UserCredentialManager.class);
+
+        when(credentialManager.verify(any(), anyString())).thenAnswer(invocation -> {
+            cores.acquire();
+            try
+            {
+                sleep(HASH_TIME);
+            }
+            finally
+            {
+                cores.release();
+            }
+            return result;
+        });
+
+        return credentialManager;
+    }
+
+    private static void sleep(Duration duration)
+    {
+        try
+        {
+            TimeUnit.NANOSECONDS.sleep(duration.toNanos());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
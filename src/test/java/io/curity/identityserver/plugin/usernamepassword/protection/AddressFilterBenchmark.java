@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of checking a client address against a list of millions of ranges, and of reloading that list.
+ * <p>
+ * The list is like those of hostile networks: mostly {@code /24} ranges, with some wider ones, a few single
+ * addresses, and a few smaller ranges that are allowed within denied ones.
+ */
+@State(Scope.Benchmark)
+public class AddressFilterBenchmark
+{
+    @Param({ "5000000" })
+    public int prefixes;
+
+    private Path _file;
+    private AddressFilter _filter;
+    private String[] _addresses;
+
+    @Setup(Level.Trial)
+    public void writeAddressList() throws IOException
+    {
+        var random = new SplittableRandom(1);
+        _file = Files.createTempFile("addresses", ".txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(_file))
+        {
+            writer.write("# hostile networks");
+            writer.newLine();
+            for (int i = 0; i < prefixes; i++)
+            {
+                int kind = random.nextInt(100);
+                int prefixLength = kind < 90 ? 24 : kind < 98 ? random.nextInt(16, 24) : kind < 99 ? 32 : 28;
+                writer.write(kind == 99 ? "allow " : "deny ");
+                writer.write(addressOf(random.nextInt()));
+                writer.write('/');
+                writer.write(Integer.toString(prefixLength));
+                writer.newLine();
+            }
+        }
+
+        _filter = new AddressFilter(_file);
+        _filter.refresh();
+
+        _addresses = new String[1 << 16];
+        for (int i = 0; i < _addresses.length; i++)
+        {
+            _addresses[i] = addressOf(random.nextInt());
+        }
+    }
+
+    private static String addressOf(int address)
+    {
+        return (address >>> 24) + "." + (address >>> 16 & 0xFF) + "." + (address >>> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteAddressList() throws IOException
+    {
+        Files.deleteIfExists(_file);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean isDenied()
+    {
+        return _filter.isDenied(_addresses[ThreadLocalRandom.current().nextInt(_addresses.length)]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean isDeniedIpv6()
+    {
+        return _filter.isDenied("2001:db8::" + Integer.toHexString(ThreadLocalRandom.current().nextInt(0xFFFF)));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long reload() throws IOException
+    {
+        // a new modification time makes the filter reload the file
+        Files.setLastModifiedTime(_file, FileTime.fromMillis(System.currentTimeMillis()));
+        _filter.refresh();
+        return _filter.getLastReloadMillis();
+    }
+}
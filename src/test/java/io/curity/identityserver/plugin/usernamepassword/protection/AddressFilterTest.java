@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class AddressFilterTest
+{
+    @TempDir
+    Path _directory;
+
+    @Test
+    void allowsEveryAddressUntilLoaded()
+    {
+        var filter = new AddressFilter(_directory.resolve("missing"));
+
+        filter.refresh();
+
+        assertFalse(filter.isLoaded());
+        assertFalse(filter.isDenied("10.0.0.1"));
+    }
+
+    @Test
+    void letsTheLongestMatchingRangeDecide() throws IOException
+    {
+        var filter = loadedFilter("""
+                # hostile networks
+                10.0.0.0/8
+                deny 192.168.0.0/16
+                allow 10.1.0.0/16
+                deny 10.1.2.0/24
+                allow 10.1.2.3
+                198.51.100.7
+
+                2001:db8::/32
+                allow 2001:db8:1::/48
+                """);
+
+        assertTrue(filter.isDenied("10.200.0.1"));
+        assertTrue(filter.isDenied("192.168.1.1"));
+        assertFalse(filter.isDenied("10.1.0.1"));
+        assertTrue(filter.isDenied("10.1.2.4"));
+        assertFalse(filter.isDenied("10.1.2.3"));
+        assertTrue(filter.isDenied("198.51.100.7"));
+        assertFalse(filter.isDenied("198.51.100.8"));
+        assertFalse(filter.isDenied("172.16.0.1"));
+
+        assertTrue(filter.isDenied("2001:db8:2::1"));
+        assertFalse(filter.isDenied("2001:db8:1::1"));
+        assertFalse(filter.isDenied("2001:db9::1"));
+
+        assertEquals(8, filter.getPrefixCount());
+        assertEquals(5, filter.getDeniedCount());
+    }
+
+    @Test
+    void ignoresWhatIsNotAnAddress() throws IOException
+    {
+        var filter = loadedFilter("10.0.0.0/8\n");
+
+        assertFalse(filter.isDenied(null));
+        assertFalse(filter.isDenied("unknown"));
+        assertFalse(filter.isDenied("10.0.0.1:8443"));
+    }
+
+    @Test
+    void replacesTheRangesWhenTheFileChanges() throws IOException
+    {
+        Path file = _directory.resolve("addresses");
+        var filter = loadedFilter("10.0.0.0/8\n");
+
+        Files.writeString(file, "192.168.0.0/16\n");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 1000));
+        filter.refresh();
+
+        assertFalse(filter.isDenied("10.0.0.1"));
+        assertTrue(filter.isDenied("192.168.0.1"));
+        assertEquals(2, filter.getReloadCount());
+    }
+
+    @Test
+    void keepsTheRangesItHasWhenTheFileIsInvalid() throws IOException
+    {
+        Path file = _directory.resolve("addresses");
+        var filter = loadedFilter("10.0.0.0/8\n");
+
+        Files.writeString(file, "10.0.0.0/33\n");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 1000));
+        filter.refresh();
+
+        assertTrue(filter.isDenied("10.0.0.1"));
+        assertEquals(1, filter.getReloadCount());
+    }
+
+    private AddressFilter loadedFilter(String ranges) throws IOException
+    {
+        Path file = _directory.resolve("addresses");
+        Files.writeString(file, ranges);
+
+        var filter = new AddressFilter(file);
+        filter.refresh();
+        assertTrue(filter.isLoaded());
+        return filter;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class CountMinSketchTest
+{
+    private static final int WIDTH = 1024;
+    private static final int DEPTH = 4;
+
+    @Test
+    void neverUnderestimatesAndOverestimatesWithinItsBound()
+    {
+        var sketch = new CountMinSketch(WIDTH, DEPTH);
+        var random = new SplittableRandom(1);
+        var counts = new HashMap<Long, Integer>();
+        long[] hashes = random.longs(20_000).toArray();
+        int total = 200_000;
+
+        // a skewed stream, where a few hashes are frequent and most are rare
+        for (int i = 0; i < total; i++)
+        {
+            long hash = hashes[(int) (hashes.length * Math.pow(random.nextDouble(), 3))];
+            sketch.increment(hash);
+            counts.merge(hash, 1, Integer::sum);
+        }
+
+        double bound = Math.E / WIDTH * total;
+        int overBound = 0;
+        for (var entry : counts.entrySet())
+        {
+            int estimate = sketch.estimate(entry.getKey());
+            assertTrue(estimate >= entry.getValue());
+            if (estimate - entry.getValue() > bound)
+            {
+                overBound++;
+            }
+        }
+
+        // at most e^-depth of the estimates may exceed the bound, with some slack for chance
+        assertTrue(overBound <= 2 * Math.exp(-DEPTH) * counts.size(), overBound + " estimates exceed the bound");
+    }
+
+    @Test
+    void estimatesZeroForHashesItHasNotSeen()
+    {
+        var sketch = new CountMinSketch(WIDTH, DEPTH);
+
+        assertEquals(0, sketch.estimate(42));
+        assertEquals(1, sketch.increment(42));
+        assertEquals(1, sketch.estimate(42));
+    }
+
+    @Test
+    void halvesEveryCountWhenItDecays()
+    {
+        var sketch = new CountMinSketch(WIDTH, DEPTH);
+        for (int i = 0; i < 100; i++)
+        {
+            sketch.increment(7);
+        }
+        sketch.increment(8);
+
+        sketch.decay();
+
+        assertEquals(50, sketch.estimate(7));
+        assertEquals(0, sketch.estimate(8));
+
+        sketch.decay();
+        assertEquals(25, sketch.estimate(7));
+    }
+
+    @Test
+    void losesNoConcurrentIncrements() throws Exception
+    {
+        var sketch = new CountMinSketch(WIDTH, DEPTH);
+        int threads = 8;
+        int incrementsPerThread = 50_000;
+        // the sketch is fed keyed hashes, which look random
+        long[] hashes = new SplittableRandom(3).longs(threads + 1).toArray();
+        long shared = hashes[threads];
+
+        var tasks = new ArrayList<Callable<Void>>();
+        for (int thread = 0; thread < threads; thread++)
+        {
+            long own = hashes[thread];
+            tasks.add(() ->
+            {
+                for (int i = 0; i < incrementsPerThread; i++)
+                {
+                    sketch.increment(shared);
+                    sketch.increment(own);
+                }
+                return null;
+            });
+        }
+
+        try (var executor = Executors.newFixedThreadPool(threads))
+        {
+            for (var future : executor.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+
+        assertEquals(threads * incrementsPerThread, sketch.estimate(shared));
+        for (int thread = 0; thread < threads; thread++)
+        {
+            assertTrue(sketch.estimate(hashes[thread]) >= incrementsPerThread);
+        }
+    }
+
+    @Test
+    void roundsItsWidthUpToAPowerOfTwo()
+    {
+        assertEquals(1024L * DEPTH * Integer.BYTES, new CountMinSketch(1000, DEPTH).getSizeInBytes());
+        assertEquals(1024L * DEPTH * Integer.BYTES, new CountMinSketch(1024, DEPTH).getSizeInBytes());
+    }
+}
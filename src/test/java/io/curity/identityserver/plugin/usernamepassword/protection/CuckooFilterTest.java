@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class CuckooFilterTest
+{
+    private static final int CAPACITY = 100_000;
+
+    @Test
+    void holdsEveryHashUntilItIsRemoved()
+    {
+        var filter = new CuckooFilter(CAPACITY);
+        long[] hashes = new SplittableRandom(1).longs(CAPACITY).toArray();
+
+        for (long hash : hashes)
+        {
+            assertTrue(filter.add(hash));
+        }
+        for (long hash : hashes)
+        {
+            assertTrue(filter.contains(hash));
+        }
+
+        for (long hash : hashes)
+        {
+            filter.remove(hash);
+        }
+        for (long hash : hashes)
+        {
+            assertFalse(filter.contains(hash));
+        }
+        assertEquals(0, filter.getCount());
+    }
+
+    @Test
+    void holdsAHashOnlyOnceSoThatOneRemovalForgetsIt()
+    {
+        var filter = new CuckooFilter(CAPACITY);
+        long hash = 0x1234_5678_0000_0042L;
+        // the same fingerprint and buckets, so the filter cannot tell the two apart
+        long twin = hash | (1L << 30);
+
+        filter.add(hash);
+        filter.add(hash);
+        filter.add(twin);
+
+        assertEquals(1, filter.getCount());
+        assertTrue(filter.remove(twin));
+        assertFalse(filter.contains(hash));
+        assertFalse(filter.remove(hash));
+        assertEquals(0, filter.getCount());
+    }
+
+    @Test
+    void keepsItsCountWhenFull()
+    {
+        var filter = new CuckooFilter(64);
+        var random = new SplittableRandom(2);
+
+        int dropped = 0;
+        for (int i = 0; i < 1_000; i++)
+        {
+            if (!filter.add(random.nextLong()))
+            {
+                dropped++;
+            }
+        }
+
+        assertTrue(dropped > 0);
+        assertEquals(filter.getCapacity(), filter.getCount());
+    }
+
+    @Test
+    void reportsFewFalsePositives()
+    {
+        var filter = new CuckooFilter(CAPACITY);
+        var random = new SplittableRandom(3);
+        for (int i = 0; i < CAPACITY; i++)
+        {
+            filter.add(random.nextLong());
+        }
+
+        // about 8 / 2^32 per lookup, so a few in a billion
+        int falsePositives = 0;
+        for (int i = 0; i < 2_000_000; i++)
+        {
+            if (filter.contains(random.nextLong()))
+            {
+                falsePositives++;
+            }
+        }
+
+        assertTrue(falsePositives <= 2, "false positives = " + falsePositives);
+    }
+}
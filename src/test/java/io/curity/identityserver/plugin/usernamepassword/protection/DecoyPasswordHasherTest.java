@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class DecoyPasswordHasherTest
+{
+    private static final Duration VERIFICATION_TIME = Duration.ofMillis(60);
+
+    @Test
+    void takesAsLongAsARealVerification()
+    {
+        var hasher = trainedHasher(0.5);
+        long decoysBefore = hasher.getDecoyCount();
+
+        long[] durations = new long[15];
+        for (int i = 0; i < durations.length; i++)
+        {
+            long startedAt = System.nanoTime();
+            hasher.hash("Password1");
+            durations[i] = System.nanoTime() - startedAt;
+        }
+        Arrays.sort(durations);
+
+        // a decoy is never shorter than a verification, and only longer when hashing was slower than learnt
+        assertTrue(durations[0] >= VERIFICATION_TIME.toNanos() * 0.95, "Shortest decoy took " + durations[0]);
+        assertTrue(durations[durations.length / 2] <= VERIFICATION_TIME.toNanos() * 1.3,
+                "Median decoy took " + durations[durations.length / 2]);
+        assertEquals(durations.length, hasher.getDecoyCount() - decoysBefore);
+    }
+
+    @Test
+    void onlyHashesForTheHashingShareOfTheTime()
+    {
+        var threads = ManagementFactory.getThreadMXBean();
+        var partlyHashing = trainedHasher(0.25);
+        var onlyHashing = trainedHasher(1.0);
+
+        long partlyHashingCpu = cpuTimeOf(() -> partlyHashing.hash("Password1"));
+        long onlyHashingCpu = cpuTimeOf(() -> onlyHashing.hash("Password1"));
+
+        if (threads.isCurrentThreadCpuTimeSupported())
+        {
+            assertTrue(partlyHashingCpu < VERIFICATION_TIME.toNanos() * 0.6,
+                    "A decoy that hashes for a quarter of the time used " + partlyHashingCpu + " ns of CPU");
+            assertTrue(onlyHashingCpu > partlyHashingCpu * 2,
+                    "A decoy that only hashes used " + onlyHashingCpu + " ns of CPU, and one that hashes for " +
+                            "a quarter of the time " + partlyHashingCpu + " ns");
+        }
+        assertTrue(onlyHashing.getIterations() > partlyHashing.getIterations() * 2);
+    }
+
+    @Test
+    void stopsWaitingWhenInterrupted()
+    {
+        var hasher = new DecoyPasswordHasher(0);
+        hasher.recordVerification(Duration.ofSeconds(10));
+        for (int i = 0; i < 100; i++)
+        {
+            hasher.recordVerification(Duration.ofSeconds(10));
+        }
+
+        Thread.currentThread().interrupt();
+        long startedAt = System.nanoTime();
+        hasher.hash("Password1");
+
+        assertTrue(Thread.interrupted());
+        assertTrue(System.nanoTime() - startedAt < Duration.ofSeconds(5).toNanos());
+    }
+
+    private static DecoyPasswordHasher trainedHasher(double hashingShare)
+    {
+        var hasher = new DecoyPasswordHasher(hashingShare);
+
+        // the cost of an iteration is learnt from the decoys themselves, which are kept short while it is
+        for (int i = 0; i < 200; i++)
+        {
+            hasher.recordVerification(Duration.ofMillis(5));
+        }
+        for (int i = 0; i < 40; i++)
+        {
+            hasher.hash("warm-up");
+        }
+
+        for (int i = 0; i < 200; i++)
+        {
+            hasher.recordVerification(VERIFICATION_TIME);
+        }
+        return hasher;
+    }
+
+    private static long cpuTimeOf(Runnable runnable)
+    {
+        var threads = ManagementFactory.getThreadMXBean();
+        long startedAt = threads.getCurrentThreadCpuTime();
+        runnable.run();
+        return threads.getCurrentThreadCpuTime() - startedAt;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of looking up a username in the known username filter, and of rebuilding it from the username file.
+ */
+@State(Scope.Benchmark)
+public class KnownUsernameFilterBenchmark
+{
+    @Param({ "1000000" })
+    public int usernames;
+
+    private Path _file;
+    private KnownUsernameFilter _filter;
+
+    @Setup(Level.Trial)
+    public void writeUsernameFile() throws IOException
+    {
+        _file = Files.createTempFile("usernames", ".txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(_file))
+        {
+            for (int i = 0; i < usernames; i++)
+            {
+                writer.write("user" + i);
+                writer.newLine();
+            }
+        }
+
+        _filter = new KnownUsernameFilter(_file, usernames, 0.001);
+        _filter.refresh();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteUsernameFile() throws IOException
+    {
+        Files.deleteIfExists(_file);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean lookUpKnownUsername()
+    {
+        return _filter.mightExist("user" + ThreadLocalRandom.current().nextInt(usernames));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean lookUpUnknownUsername()
+    {
+        return _filter.mightExist("unknown" + ThreadLocalRandom.current().nextInt(usernames));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long rebuild() throws IOException
+    {
+        // a new modification time makes the filter reload the file
+        Files.setLastModifiedTime(_file, FileTime.fromMillis(System.currentTimeMillis()));
+        _filter.refresh();
+        return _filter.getLastRebuildMillis();
+    }
+}
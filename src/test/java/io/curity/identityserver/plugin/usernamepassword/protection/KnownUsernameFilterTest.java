@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class KnownUsernameFilterTest
+{
+    private static final int USERNAMES = 100_000;
+    private static final double FALSE_POSITIVE_RATE = 0.001;
+
+    @TempDir
+    Path _directory;
+
+    @Test
+    void considersEveryUsernameAsExistingUntilLoaded()
+    {
+        var filter = new KnownUsernameFilter(_directory.resolve("missing"), USERNAMES, FALSE_POSITIVE_RATE);
+
+        filter.refresh();
+
+        assertFalse(filter.isLoaded());
+        assertTrue(filter.mightExist("anyone"));
+    }
+
+    @Test
+    void knowsEveryListedAndCreatedUsername() throws IOException
+    {
+        var filter = loadedFilter();
+
+        for (int i = 0; i < USERNAMES; i++)
+        {
+            assertTrue(filter.mightExist("user" + i));
+        }
+        assertTrue(filter.mightExist(" USER1 "));
+
+        filter.add("registered");
+
+        assertTrue(filter.mightExist("registered"));
+    }
+
+    @Test
+    void keepsFalsePositivesNearTheConfiguredRate() throws IOException
+    {
+        var filter = loadedFilter();
+
+        int falsePositives = 0;
+        for (int i = 0; i < USERNAMES; i++)
+        {
+            if (filter.mightExist("unknown" + i))
+            {
+                falsePositives++;
+            }
+        }
+
+        double rate = (double) falsePositives / USERNAMES;
+        assertTrue(rate < FALSE_POSITIVE_RATE * 2, "The false positive rate was " + rate);
+        assertTrue(filter.getExpectedFalsePositiveRate() < FALSE_POSITIVE_RATE * 2);
+        assertTrue(filter.getDefiniteMissCount() > USERNAMES / 2);
+    }
+
+    private KnownUsernameFilter loadedFilter() throws IOException
+    {
+        Path file = _directory.resolve("usernames");
+        Files.writeString(file, IntStream.range(0, USERNAMES)
+                .mapToObj(i -> "user" + i)
+                .collect(Collectors.joining("\n")));
+
+        var filter = new KnownUsernameFilter(file, USERNAMES, FALSE_POSITIVE_RATE);
+        filter.refresh();
+        assertTrue(filter.isLoaded());
+        return filter;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+final class LoginRateLimiterTest
+{
+    private static final Duration REFILL = Duration.ofMinutes(10);
+
+    private final LoginRateLimiter _limiter = new LoginRateLimiter(
+            new StripedRateLimiter(10, REFILL, 1000), new StripedRateLimiter(3, REFILL, 1000));
+
+    @Test
+    void limitsAttemptsForOneUsernameFromOneAddress()
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            assertEquals(Duration.ZERO, _limiter.tryAcquire("10.0.0.1", "alice"));
+        }
+
+        assertNotEquals(Duration.ZERO, _limiter.tryAcquire("10.0.0.1", "alice"));
+        assertEquals(Duration.ZERO, _limiter.tryAcquire("10.0.0.2", "alice"));
+        assertEquals(Duration.ZERO, _limiter.tryAcquire("10.0.0.1", "bob"));
+    }
+
+    @Test
+    void countsUsernamesThatDifferOnlyInCaseAsOne()
+    {
+        _limiter.tryAcquire("10.0.0.1", "alice");
+        _limiter.tryAcquire("10.0.0.1", "Alice");
+        _limiter.tryAcquire("10.0.0.1", " ALICE ");
+
+        assertNotEquals(Duration.ZERO, _limiter.tryAcquire("10.0.0.1", "alice"));
+    }
+
+    @Test
+    void limitsAttemptsFromOneAddressForAnyUsername()
+    {
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(Duration.ZERO, _limiter.tryAcquire("10.0.0.1", "user" + i));
+        }
+
+        assertNotEquals(Duration.ZERO, _limiter.tryAcquire("10.0.0.1", "user10"));
+    }
+
+    @Test
+    void refusedAttemptsForOneUsernameDoNotUseUpTheBudgetOfTheAddress()
+    {
+        for (int i = 0; i < 20; i++)
+        {
+            _limiter.tryAcquire("10.0.0.1", "alice");
+        }
+
+        assertEquals(3, _limiter.getPerAddress().getAllowedCount());
+        assertEquals(Duration.ZERO, _limiter.tryAcquire("10.0.0.1", "bob"));
+    }
+}
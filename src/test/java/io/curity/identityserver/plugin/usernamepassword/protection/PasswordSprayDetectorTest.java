@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class PasswordSprayDetectorTest
+{
+    // the default size of the sketch
+    private static final int WIDTH = 262_144;
+    private static final int DEPTH = 4;
+    private static final int THRESHOLD = 50;
+
+    @Test
+    void refusesAPasswordOnceItWasRejectedAsOftenAsTheThreshold()
+    {
+        var detector = new PasswordSprayDetector(WIDTH, DEPTH, THRESHOLD);
+
+        for (int i = 0; i < THRESHOLD - 1; i++)
+        {
+            detector.recordFailure("Summer2024!");
+        }
+        assertFalse(detector.isSprayed("Summer2024!"));
+
+        detector.recordFailure("Summer2024!");
+        assertTrue(detector.isSprayed("Summer2024!"));
+        assertFalse(detector.isSprayed("Winter2024!"));
+
+        assertEquals(THRESHOLD, detector.getRecordedFailureCount());
+        assertEquals(1, detector.getBlockedAttemptCount());
+    }
+
+    @Test
+    void doesNotRefusePasswordsThatWereRejectedOnceEach()
+    {
+        var detector = new PasswordSprayDetector(WIDTH, DEPTH, THRESHOLD);
+
+        // more distinct failures than are likely within one decay interval
+        for (int i = 0; i < 1_000_000; i++)
+        {
+            detector.recordFailure("typo-" + i);
+        }
+
+        for (int i = 0; i < 100_000; i++)
+        {
+            assertFalse(detector.isSprayed("other-" + i));
+        }
+        assertEquals(0, detector.getBlockedAttemptCount());
+    }
+
+    @Test
+    void forgetsASprayOnceItHasStopped()
+    {
+        var detector = new PasswordSprayDetector(WIDTH, DEPTH, THRESHOLD);
+        for (int i = 0; i < THRESHOLD; i++)
+        {
+            detector.recordFailure("Summer2024!");
+        }
+
+        // attempts that are refused keep the password counted
+        for (int i = 0; i < THRESHOLD; i++)
+        {
+            assertTrue(detector.isSprayed("Summer2024!"));
+        }
+        detector.decay();
+        assertTrue(detector.isSprayed("Summer2024!"));
+
+        detector.decay();
+        detector.decay();
+        assertFalse(detector.isSprayed("Summer2024!"));
+        assertEquals(3, detector.getDecayCount());
+    }
+
+    @Test
+    void detectsASprayAmongConcurrentFailures() throws Exception
+    {
+        var detector = new PasswordSprayDetector(WIDTH, DEPTH, THRESHOLD);
+        int threads = 8;
+        int failuresPerThread = 10_000;
+
+        var tasks = new ArrayList<Callable<Void>>();
+        for (int thread = 0; thread < threads; thread++)
+        {
+            int offset = thread * failuresPerThread;
+            tasks.add(() ->
+            {
+                for (int i = 0; i < failuresPerThread; i++)
+                {
+                    detector.recordFailure(i % 100 == 0 ? "Summer2024!" : "typo-" + (offset + i));
+                }
+                return null;
+            });
+        }
+
+        try (var executor = Executors.newFixedThreadPool(threads))
+        {
+            for (var future : executor.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+
+        assertTrue(detector.isSprayed("Summer2024!"));
+        assertFalse(detector.isSprayed("typo-0"));
+        assertEquals((long) threads * failuresPerThread, detector.getRecordedFailureCount());
+    }
+}
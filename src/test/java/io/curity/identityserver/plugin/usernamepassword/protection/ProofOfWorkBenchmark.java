@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import io.curity.identityserver.plugin.usernamepassword.protection.ProofOfWork.Challenge;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The cost to the server of checking solutions, from several threads at once. Solutions are found ahead of each
+ * iteration, and each is checked once, so that every check spends its challenge. Bad nonces are checked as well,
+ * since they are what an attacker sends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Threads(4)
+public class ProofOfWorkBenchmark
+{
+    private static final int SOLUTIONS = 1 << 18;
+
+    private final AtomicInteger _next = new AtomicInteger();
+    private ProofOfWork _proofOfWork;
+    private String[] _challenges;
+    private String[] _nonces;
+
+    @Setup(Level.Iteration)
+    public void solveChallenges()
+    {
+        _proofOfWork = new ProofOfWork(null, 50, 1, 1, Duration.ofHours(1), Clock.systemUTC());
+        _challenges = new String[SOLUTIONS];
+        _nonces = new String[SOLUTIONS];
+        for (int i = 0; i < SOLUTIONS; i++)
+        {
+            Challenge challenge = _proofOfWork.issue().orElseThrow();
+            _challenges[i] = challenge.value();
+            _nonces[i] = ProofOfWorkTest.solve(challenge.value(), challenge.difficulty());
+        }
+        _next.set(0);
+    }
+
+    @Benchmark
+    public boolean verifySolved()
+    {
+        // once all were spent, the checks that follow are replays, which cost as much to reject
+        int i = _next.getAndIncrement() & (SOLUTIONS - 1);
+        return _proofOfWork.verify(_challenges[i], _nonces[i]);
+    }
+
+    @Benchmark
+    public boolean verifyBadNonce()
+    {
+        int i = _next.getAndIncrement() & (SOLUTIONS - 1);
+        return _proofOfWork.verify(_challenges[i], "x");
+    }
+}
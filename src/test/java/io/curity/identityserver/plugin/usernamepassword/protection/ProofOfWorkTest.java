@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import io.curity.identityserver.plugin.usernamepassword.protection.ProofOfWork.Challenge;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+final class ProofOfWorkTest
+{
+    private static final Duration LIFETIME = Duration.ofMinutes(5);
+
+    private final AtomicLong _now = new AtomicLong(1_000_000);
+    private final Clock _clock = mock(Clock.class);
+
+    ProofOfWorkTest()
+    {
+        when(_clock.millis()).thenAnswer(invocation -> _now.get());
+    }
+
+    @Test
+    void acceptsASolvedChallengeOnce()
+    {
+        var proofOfWork = new ProofOfWork(null, 50, 8, 20, LIFETIME, _clock);
+        var challenge = proofOfWork.issue().orElseThrow();
+        String nonce = solve(challenge.value(), challenge.difficulty());
+
+        assertTrue(proofOfWork.verify(challenge.value(), nonce));
+        assertFalse(proofOfWork.verify(challenge.value(), nonce));
+        assertEquals(1, proofOfWork.getAcceptedCount());
+        assertEquals(1, proofOfWork.getRejectedCount());
+    }
+
+    @Test
+    void rejectsANonceThatDoesNotSolveTheChallenge()
+    {
+        var proofOfWork = new ProofOfWork(null, 50, 8, 20, LIFETIME, _clock);
+        var challenge = proofOfWork.issue().orElseThrow();
+
+        assertFalse(proofOfWork.verify(challenge.value(), unsolved(challenge.value(), challenge.difficulty())));
+        assertFalse(proofOfWork.verify(challenge.value(), null));
+        assertFalse(proofOfWork.verify(null, "0"));
+    }
+
+    @Test
+    void rejectsAnExpiredChallenge()
+    {
+        var proofOfWork = new ProofOfWork(null, 50, 8, 20, LIFETIME, _clock);
+        var challenge = proofOfWork.issue().orElseThrow();
+        String nonce = solve(challenge.value(), challenge.difficulty());
+
+        _now.addAndGet(LIFETIME.toMillis() + 1);
+
+        assertFalse(proofOfWork.verify(challenge.value(), nonce));
+    }
+
+    @Test
+    void rejectsAChallengeWithALowerDifficulty()
+    {
+        var proofOfWork = new ProofOfWork(null, 50, 8, 20, LIFETIME, _clock);
+        String[] parts = proofOfWork.issue().orElseThrow().value().split("\\.");
+        parts[2] = "1";
+        String tampered = String.join(".", parts);
+
+        assertFalse(proofOfWork.verify(tampered, solve(tampered, 1)));
+    }
+
+    @Test
+    void rejectsAChallengeIssuedByAnotherServer()
+    {
+        var challenge = new ProofOfWork(null, 50, 8, 20, LIFETIME, _clock).issue().orElseThrow();
+        var proofOfWork = new ProofOfWork(null, 50, 8, 20, LIFETIME, _clock);
+
+        assertFalse(proofOfWork.verify(challenge.value(), solve(challenge.value(), challenge.difficulty())));
+    }
+
+    @Test
+    void requiresTheMinimumDifficultyWithoutAConcurrencyLimiter()
+    {
+        var proofOfWork = new ProofOfWork(null, 99, 8, 20, LIFETIME, _clock);
+
+        assertEquals(8, proofOfWork.getCurrentDifficulty());
+        assertEquals(8, proofOfWork.issue().map(Challenge::difficulty).orElseThrow());
+    }
+
+    @Test
+    void issuesNoChallengeBelowTheActivationLoad()
+    {
+        var proofOfWork = new ProofOfWork(limiterWithInFlight(4), 50, 8, 20, LIFETIME, _clock);
+
+        assertEquals(0, proofOfWork.getCurrentDifficulty());
+        assertEquals(Optional.empty(), proofOfWork.issue());
+    }
+
+    @Test
+    void growsTheDifficultyWithLoad()
+    {
+        assertEquals(8, new ProofOfWork(limiterWithInFlight(5), 50, 8, 20, LIFETIME, _clock).getCurrentDifficulty());
+        assertEquals(14, new ProofOfWork(limiterWithInFlight(75), 50, 8, 20, LIFETIME, _clock)
+                .getCurrentDifficulty());
+        assertEquals(20, new ProofOfWork(limiterWithInFlight(10), 50, 8, 20, LIFETIME, _clock)
+                .getCurrentDifficulty());
+    }
+
+    @Test
+    void capsTheDifficultyAtWhatABrowserCanSolve()
+    {
+        var proofOfWork = new ProofOfWork(limiterWithInFlight(10), 50, 30, 32, LIFETIME, _clock);
+
+        assertEquals(ProofOfWork.MAXIMUM_DIFFICULTY, proofOfWork.getCurrentDifficulty());
+    }
+
+    // a limit of 10 for the smaller values, and of 100 for the larger ones
+    private static AdaptiveConcurrencyLimiter limiterWithInFlight(int inFlight)
+    {
+        var limiter = mock(AdaptiveConcurrencyLimiter.class);
+        when(limiter.getInFlight()).thenReturn(inFlight);
+        when(limiter.getLimit()).thenReturn(inFlight > 10 ? 100 : 10);
+        return limiter;
+    }
+
+    static String solve(String challenge, int difficulty)
+    {
+        for (long nonce = 0; ; nonce++)
+        {
+            if (leadingZeroBits(challenge, nonce) >= difficulty)
+            {
+                return Long.toString(nonce);
+            }
+        }
+    }
+
+    private static String unsolved(String challenge, int difficulty)
+    {
+        for (long nonce = 0; ; nonce++)
+        {
+            if (leadingZeroBits(challenge, nonce) < difficulty)
+            {
+                return Long.toString(nonce);
+            }
+        }
+    }
+
+    private static int leadingZeroBits(String challenge, long nonce)
+    {
+        byte[] hash;
+        try
+        {
+            hash = MessageDigest.getInstance("SHA-256")
+                    .digest((challenge + ":" + nonce).getBytes(StandardCharsets.UTF_8));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        int bits = 0;
+        for (byte b : hash)
+        {
+            if (b != 0)
+            {
+                return bits + Integer.numberOfLeadingZeros(b & 0xFF) - (Integer.SIZE - Byte.SIZE);
+            }
+            bits += Byte.SIZE;
+        }
+
+        return bits;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of a login attempt to the rate limiters, from many threads at once, for a few hot keys that contend
+ * for their stripes, and for more keys than are tracked, so that every attempt also evicts a bucket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Threads(8)
+public class StripedRateLimiterBenchmark
+{
+    private static final int MAXIMUM_TRACKED_KEYS = 100_000;
+
+    @Param({ "16", "1000000" })
+    public int keys;
+
+    private LoginRateLimiter _limiter;
+    private String[] _addresses;
+    private String[] _usernames;
+
+    @Setup(Level.Trial)
+    public void createLimiter()
+    {
+        _limiter = new LoginRateLimiter(
+                new StripedRateLimiter(100, Duration.ofMinutes(1), MAXIMUM_TRACKED_KEYS),
+                new StripedRateLimiter(10, Duration.ofMinutes(1), MAXIMUM_TRACKED_KEYS));
+
+        _addresses = new String[1 << 16];
+        _usernames = new String[_addresses.length];
+        for (int i = 0; i < _addresses.length; i++)
+        {
+            int key = ThreadLocalRandom.current().nextInt(keys);
+            _addresses[i] = "10." + (key >>> 16) + "." + (key >>> 8 & 0xFF) + "." + (key & 0xFF);
+            _usernames[i] = "user" + key;
+        }
+    }
+
+    @Benchmark
+    public Duration tryAcquire()
+    {
+        int i = ThreadLocalRandom.current().nextInt(_addresses.length);
+        return _limiter.tryAcquire(_addresses[i], _usernames[i]);
+    }
+}
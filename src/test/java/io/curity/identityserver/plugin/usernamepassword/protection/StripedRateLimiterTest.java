@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class StripedRateLimiterTest
+{
+    private static final Duration REFILL = Duration.ofMinutes(10);
+
+    @Test
+    void allowsABurstOfTheCapacityAndThenRefusesUntilATokenIsBack()
+    {
+        var limiter = new StripedRateLimiter(5, REFILL, 1000);
+
+        for (int i = 0; i < 5; i++)
+        {
+            assertEquals(Duration.ZERO, limiter.tryConsume("10.0.0.1"));
+        }
+        Duration retryAfter = limiter.tryConsume("10.0.0.1");
+
+        // a token comes back every fifth of the refill interval
+        assertTrue(retryAfter.compareTo(REFILL.dividedBy(5)) <= 0, "Retry after " + retryAfter);
+        assertTrue(retryAfter.compareTo(REFILL.dividedBy(6)) > 0, "Retry after " + retryAfter);
+        assertEquals(5, limiter.getAllowedCount());
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    @Test
+    void refillsOverTime() throws InterruptedException
+    {
+        var limiter = new StripedRateLimiter(1, Duration.ofMillis(50), 1000);
+        limiter.tryConsume("10.0.0.1");
+
+        Thread.sleep(100);
+
+        assertEquals(Duration.ZERO, limiter.tryConsume("10.0.0.1"));
+    }
+
+    @Test
+    void keepsABucketForEachKey()
+    {
+        var limiter = new StripedRateLimiter(1, REFILL, 1000);
+
+        assertEquals(Duration.ZERO, limiter.tryConsume("10.0.0.1"));
+        assertEquals(Duration.ZERO, limiter.tryConsume("10.0.0.2"));
+        assertEquals(2, limiter.getTrackedKeys());
+    }
+
+    @Test
+    void forgetsTheLeastRecentlyUsedKeysWhenFull()
+    {
+        // a single key for each of the 64 stripes
+        var limiter = new StripedRateLimiter(1, REFILL, 64);
+
+        for (int i = 0; i < 1000; i++)
+        {
+            limiter.tryConsume("10.0." + i / 256 + "." + i % 256);
+        }
+
+        assertTrue(limiter.getTrackedKeys() <= 64);
+        assertEquals(1000 - limiter.getTrackedKeys(), limiter.getEvictedCount());
+    }
+
+    @Test
+    void neverAllowsMoreThanTheCapacityFromConcurrentCallers() throws Exception
+    {
+        var limiter = new StripedRateLimiter(100, REFILL, 1000);
+        var executor = Executors.newFixedThreadPool(8);
+        var start = new CountDownLatch(1);
+        try
+        {
+            var callers = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 8; i++)
+            {
+                callers.add(executor.submit((Callable<Integer>) () -> {
+                    start.await();
+                    int allowed = 0;
+                    for (int j = 0; j < 1000; j++)
+                    {
+                        allowed += limiter.tryConsume("10.0.0.1").isZero() ? 1 : 0;
+                    }
+                    return allowed;
+                }));
+            }
+            start.countDown();
+
+            int allowed = 0;
+            for (Future<Integer> caller : callers)
+            {
+                allowed += caller.get(10, TimeUnit.SECONDS);
+            }
+
+            // at most one more token refills during the test
+            assertTrue(allowed == 100 || allowed == 101, "Allowed " + allowed);
+            assertEquals(8000, limiter.getAllowedCount() + limiter.getRejectedCount());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.protection;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class UnknownIdentifierFilterTest
+{
+    private static final int CAPACITY = 100_000;
+
+    @Test
+    void remembersUnknownIdentifiersForTwoRotations()
+    {
+        var filter = new UnknownIdentifierFilter(CAPACITY);
+
+        filter.addUnknown("nobody", "nobody@example.com");
+
+        assertTrue(filter.isUnknown("nobody", null));
+        assertTrue(filter.isUnknown(null, "nobody@example.com"));
+        filter.rotate();
+        assertTrue(filter.isUnknown("nobody", "nobody@example.com"));
+        filter.rotate();
+        assertFalse(filter.isUnknown("nobody", null));
+        assertEquals(0, filter.getCount());
+    }
+
+    @Test
+    void requiresEveryGivenIdentifierToBeUnknown()
+    {
+        var filter = new UnknownIdentifierFilter(CAPACITY);
+
+        filter.addUnknown("nobody", null);
+
+        assertFalse(filter.isUnknown("nobody", "nobody@example.com"));
+        assertFalse(filter.isUnknown(null, "nobody"));
+        assertFalse(filter.isUnknown(null, null));
+    }
+
+    @Test
+    void remembersAnIdentifierOnceHoweverOftenItIsAdded()
+    {
+        var filter = new UnknownIdentifierFilter(CAPACITY);
+
+        for (int i = 0; i < 10; i++)
+        {
+            filter.addUnknown("nobody", null);
+        }
+
+        assertEquals(1, filter.getCount());
+        filter.remove("nobody", null);
+        assertFalse(filter.isUnknown("nobody", null));
+    }
+
+    @Test
+    void forgetsIdentifiersInBothGenerationsWhenTheirAccountIsCreated()
+    {
+        var filter = new UnknownIdentifierFilter(CAPACITY);
+
+        filter.addUnknown("newcomer", "newcomer@example.com");
+        filter.rotate();
+        filter.addUnknown("newcomer", "newcomer@example.com");
+        assertEquals(4, filter.getCount());
+
+        filter.remove("newcomer", "newcomer@example.com");
+
+        assertFalse(filter.isUnknown("newcomer", null));
+        assertFalse(filter.isUnknown(null, "newcomer@example.com"));
+        assertEquals(0, filter.getCount());
+    }
+
+    @Test
+    void rarelyTakesAnExistingAccountForAnUnknownOne()
+    {
+        var filter = new UnknownIdentifierFilter(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++)
+        {
+            filter.addUnknown("nobody" + i, "nobody" + i + "@example.com");
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 1_000_000; i++)
+        {
+            if (filter.isUnknown("user" + i, null))
+            {
+                falsePositives++;
+            }
+        }
+
+        // at most 8 / 2^32 per lookup and generation
+        assertTrue(falsePositives <= 2, "false positives = " + falsePositives);
+        assertEquals(falsePositives, filter.getHitCount());
+    }
+}
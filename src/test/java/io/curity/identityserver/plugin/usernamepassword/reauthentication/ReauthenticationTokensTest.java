@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.reauthentication;
+
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.attribute.AuthenticationAttributes;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+final class ReauthenticationTokensTest
+{
+    private static final Duration LIFETIME = Duration.ofHours(8);
+
+    private final MutableClock _clock = new MutableClock();
+    private final ReauthenticationTokens _tokens = new ReauthenticationTokens(LIFETIME, 100, _clock);
+    private final String _deviceId = _tokens.newDeviceId();
+    private final AuthenticationAttributes _attributes = mock(AuthenticationAttributes.class);
+
+    @Test
+    void givesTheAttributesOfTheLoginThatIssuedTheToken()
+    {
+        String token = _tokens.issue("alice@example.com", "alice", _attributes, _deviceId, "Password1");
+
+        assertSame(_attributes, _tokens.verify(token, _deviceId, "alice@example.com", "Password1").orElseThrow());
+        assertSame(_attributes, _tokens.verify(token, _deviceId, "alice", "Password1").orElseThrow());
+    }
+
+    @Test
+    void isRevokedByTheUsernameOfTheAccountWhenTheUserLoggedInWithTheirEmailAddress()
+    {
+        String token = _tokens.issue("alice@example.com", "alice", _attributes, _deviceId, "Password1");
+        _clock.advance(Duration.ofMillis(1));
+
+        _tokens.revoke("alice");
+
+        assertTrue(_tokens.verify(token, _deviceId, "alice@example.com", "Password1").isEmpty());
+    }
+
+    @Test
+    void tokensIssuedAfterARevocationCanBeUsed()
+    {
+        _tokens.revoke("alice");
+        _clock.advance(Duration.ofMillis(1));
+
+        String token = _tokens.issue("alice", "alice", _attributes, _deviceId, "Password2");
+
+        assertTrue(_tokens.verify(token, _deviceId, "alice", "Password2").isPresent());
+    }
+
+    @Test
+    void requiresTheSamePasswordDeviceAndUser()
+    {
+        String token = _tokens.issue("alice", "alice", _attributes, _deviceId, "Password1");
+
+        assertTrue(_tokens.verify(token, _deviceId, "alice", "Password2").isEmpty());
+        assertTrue(_tokens.verify(token, _tokens.newDeviceId(), "alice", "Password1").isEmpty());
+        assertTrue(_tokens.verify(token, _deviceId, "bob", "Password1").isEmpty());
+        assertTrue(_tokens.verify(token, null, "alice", "Password1").isEmpty());
+        assertEquals(4, _tokens.getRejectedCount());
+    }
+
+    @Test
+    void refusesTamperedAndExpiredTokens()
+    {
+        String token = _tokens.issue("alice", "alice", _attributes, _deviceId, "Password1");
+        String[] parts = token.split("\\.");
+        String extended = String.join(".", parts[0], parts[1], parts[2], String.valueOf(Long.MAX_VALUE), parts[4]);
+
+        assertTrue(_tokens.verify(extended, _deviceId, "alice", "Password1").isEmpty());
+        assertTrue(_tokens.verify("garbage", _deviceId, "alice", "Password1").isEmpty());
+
+        _clock.advance(LIFETIME);
+
+        assertTrue(_tokens.verify(token, _deviceId, "alice", "Password1").isEmpty());
+    }
+
+    @Test
+    void forgetsTheOldestTokensBeyondTheMaximum()
+    {
+        var tokens = new ReauthenticationTokens(LIFETIME, 1, _clock);
+        String first = tokens.issue("alice", "alice", _attributes, _deviceId, "Password1");
+        String second = tokens.issue("alice", "alice", _attributes, _deviceId, "Password1");
+
+        assertTrue(tokens.verify(first, _deviceId, "alice", "Password1").isEmpty());
+        assertTrue(tokens.verify(second, _deviceId, "alice", "Password1").isPresent());
+        assertEquals(1, tokens.getUsableTokenCount());
+    }
+
+    private static final class MutableClock extends Clock
+    {
+        private Instant _now = Instant.parse("2017-01-01T00:00:00Z");
+
+        void advance(Duration duration)
+        {
+            _now = _now.plus(duration);
+        }
+
+        @Override
+        public ZoneOffset getZone()
+        {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone)
+        {
+            return this;
+        }
+
+        @Override
+        public Instant instant()
+        {
+            return _now;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.usernamepassword.registration;
+
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.web.alerts.ErrorMessage;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class RegistrationReservationsTest
+{
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    private static final int THREADS = 8;
+
+    @Test
+    void refusesARegistrationWithAnIdentifierThatAnotherOneHolds()
+    {
+        var reservations = new RegistrationReservations(Duration.ofMinutes(1), Duration.ofMinutes(1), 100);
+
+        var first = reservations.claim("john", "john@example.com", "+46700000000");
+        var second = reservations.claim("johnny", "john@example.com", null);
+
+        assertFalse(first.getConflict().isPresent());
+        assertEquals("error.validation.email.duplicate",
+                second.getConflict().map(ErrorMessage::getMessage).orElse(null));
+
+        // the username that the refused registration claimed before its conflict is given up again
+        assertFalse(reservations.claim("johnny", "other@example.com", "").getConflict().isPresent());
+        assertEquals(1, reservations.getConflictCount());
+    }
+
+    @Test
+    void letsIdentifiersBeClaimedAgainOnceReleasedWithoutAnAccount()
+    {
+        var reservations = new RegistrationReservations(Duration.ofMinutes(1), Duration.ofMinutes(1), 100);
+
+        reservations.claim("john", "john@example.com", null).release();
+
+        assertFalse(reservations.claim("john", "john@example.com", null).getConflict().isPresent());
+    }
+
+    @Test
+    void keepsTheIdentifiersOfACreatedAccountReserved()
+    {
+        var reservations = new RegistrationReservations(Duration.ofMinutes(1), Duration.ofMinutes(1), 100);
+        var claim = reservations.claim("john", "john@example.com", null);
+
+        claim.confirm();
+        claim.release();
+
+        assertEquals("error.validation.accountId.duplicate", reservations.claim("john", "other@example.com", null)
+                .getConflict().map(ErrorMessage::getMessage).orElse(null));
+        assertEquals(1, reservations.getCreatedCount());
+    }
+
+    @Test
+    void replacesAndRemovesReservationsThatExpired()
+    {
+        var reservations = new RegistrationReservations(Duration.ZERO, Duration.ZERO, 100);
+
+        reservations.claim("john", "john@example.com", null);
+        assertFalse(reservations.claim("john", "john@example.com", null).getConflict().isPresent());
+
+        reservations.removeExpired();
+        assertEquals(0, reservations.getSize());
+        assertEquals(2, reservations.getExpiredCount());
+    }
+
+    @Test
+    void leavesTheDecisionToTheDataSourceWhenFull()
+    {
+        var reservations = new RegistrationReservations(Duration.ofMinutes(1), Duration.ofMinutes(1), 2);
+        reservations.claim("john", "john@example.com", null);
+
+        assertFalse(reservations.claim("john", "john@example.com", null).getConflict().isPresent());
+        assertEquals(1, reservations.getOverflowCount());
+    }
+
+    @Test
+    void createsAnAccountOnceWhenTheSameFormIsSubmittedConcurrently()
+    {
+        var reservations = new RegistrationReservations(Duration.ofMinutes(1), Duration.ofMinutes(1), 100_000);
+        // a data source whose duplicate check and creation are not atomic, which they are not across requests
+        var accounts = new ConcurrentHashMap<String, AtomicInteger>();
+        var refused = new LongAdder();
+        int rounds = 500;
+        var barrier = new CyclicBarrier(THREADS);
+
+        runConcurrently(() ->
+        {
+            for (int round = 0; round < rounds; round++)
+            {
+                barrier.await(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+
+                String username = "user" + round;
+                var claim = reservations.claim(username, username + "@example.com", null);
+                if (claim.getConflict().isPresent())
+                {
+                    refused.increment();
+                    continue;
+                }
+
+                try
+                {
+                    if (!accounts.containsKey(username))
+                    {
+                        Thread.yield();
+                        accounts.computeIfAbsent(username, key -> new AtomicInteger()).incrementAndGet();
+                        claim.confirm();
+                    }
+                }
+                finally
+                {
+                    claim.release();
+                }
+            }
+            return null;
+        });
+
+        assertEquals(rounds, accounts.size());
+        accounts.forEach((username, created) -> assertEquals(1, created.get(), username));
+        assertEquals((long) rounds * (THREADS - 1), refused.sum());
+    }
+
+    @Test
+    void neverLetsTwoRegistrationsHoldTheSameIdentifier()
+    {
+        var reservations = new RegistrationReservations(Duration.ofMinutes(1), Duration.ofMinutes(1), 100_000);
+        Set<String> held = ConcurrentHashMap.newKeySet();
+        var violations = new LongAdder();
+        int attemptsPerThread = 20_000;
+
+        runConcurrently(() ->
+        {
+            var random = ThreadLocalRandom.current();
+            for (int i = 0; i < attemptsPerThread; i++)
+            {
+                // few distinct identifiers, which registrations share in every combination
+                List<String> identifiers = List.of(
+                        "user" + random.nextInt(8),
+                        "user" + random.nextInt(8) + "@example.com",
+                        "+4670000000" + random.nextInt(8));
+                boolean withPhoneNumber = random.nextBoolean();
+
+                var claim = reservations.claim(identifiers.get(0), identifiers.get(1),
+                        withPhoneNumber ? identifiers.get(2) : null);
+                if (claim.getConflict().isPresent())
+                {
+                    continue;
+                }
+
+                var claimed = withPhoneNumber ? identifiers : identifiers.subList(0, 2);
+                for (String identifier : claimed)
+                {
+                    if (!held.add(identifier))
+                    {
+                        violations.increment();
+                    }
+                }
+                Thread.yield();
+                claimed.forEach(held::remove);
+                claim.release();
+            }
+            return null;
+        });
+
+        assertEquals(0, violations.sum());
+        assertEquals(0, reservations.getSize());
+        assertEquals((long) THREADS * attemptsPerThread, reservations.getClaimCount());
+        assertTrue(reservations.getConflictCount() > 0);
+    }
+
+    private static void runConcurrently(Callable<Void> task)
+    {
+        assertTimeoutPreemptively(TIMEOUT, () ->
+        {
+            var tasks = new ArrayList<Callable<Void>>();
+            for (int thread = 0; thread < THREADS; thread++)
+            {
+                tasks.add(task);
+            }
+
+            try (ExecutorService executor = Executors.newFixedThreadPool(THREADS))
+            {
+                for (var future : executor.invokeAll(tasks))
+                {
+                    future.get();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.runtime;
+
+import io.curity.identityserver.plugin.usernamepassword.config.UsernamePasswordAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.usernamepassword.protection.AccountStateTable.AccountState;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.service.AccountManager;
+import se.curity.identityserver.sdk.service.NonceTokenIssuer;
+import se.curity.identityserver.sdk.service.credential.UserCredentialManager;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+final class AuthenticatorRuntimeTest
+{
+    private AuthenticatorRuntime _runtime;
+
+    @AfterEach
+    void close()
+    {
+        if (_runtime != null)
+        {
+            _runtime.close();
+        }
+    }
+
+    @Test
+    void forgetsALockoutWhenThePasswordIsChanged()
+    {
+        _runtime = new AuthenticatorRuntime(withAccountStateCache(configuration()));
+        _runtime.onLockedOut("alice");
+
+        _runtime.onPasswordChanged("alice");
+
+        assertEquals(AccountState.NONE, _runtime.getAccountStateTable().orElseThrow().get("alice"));
+    }
+
+    @Test
+    void forgetsAPendingActivationWhenThePasswordIsChanged()
+    {
+        _runtime = new AuthenticatorRuntime(withAccountStateCache(configuration()));
+        _runtime.onActivationPending("alice");
+
+        _runtime.onPasswordChanged("alice");
+
+        assertEquals(AccountState.NONE, _runtime.getAccountStateTable().orElseThrow().get("alice"));
+    }
+
+    @Test
+    void keepsTheLockoutsOfOtherAccounts()
+    {
+        _runtime = new AuthenticatorRuntime(withAccountStateCache(configuration()));
+        _runtime.onLockedOut("alice");
+        _runtime.onLockedOut("bob");
+
+        _runtime.onPasswordChanged("alice");
+
+        assertEquals(AccountState.LOCKED_OUT, _runtime.getAccountStateTable().orElseThrow().get("bob"));
+    }
+
+    @Test
+    void sendsChangesToTheSameAuthenticatorByDefault()
+    {
+        var configuration = withInvalidationBus(withAccountStateCache(configuration()));
+        _runtime = new AuthenticatorRuntime(configuration);
+        var sameAuthenticator = new AuthenticatorRuntime(configuration);
+        var otherAuthenticator = new AuthenticatorRuntime(withInvalidationBus(withAccountStateCache(configuration())));
+        try
+        {
+            sameAuthenticator.onLockedOut("alice");
+            otherAuthenticator.onLockedOut("alice");
+
+            _runtime.onPasswordChanged("alice");
+
+            assertEquals(AccountState.NONE, sameAuthenticator.getAccountStateTable().orElseThrow().get("alice"));
+            assertEquals(AccountState.LOCKED_OUT,
+                    otherAuthenticator.getAccountStateTable().orElseThrow().get("alice"));
+        }
+        finally
+        {
+            sameAuthenticator.close();
+            otherAuthenticator.close();
+        }
+    }
+
+    @Test
+    void forgetsUnknownIdentifiersOfAccountsCreatedThroughAnotherAuthenticatorOnTheBus()
+    {
+        var configuration = withInvalidationBus(withUnknownIdentifierFilter(configuration()));
+        _runtime = new AuthenticatorRuntime(configuration);
+        var sameAuthenticator = new AuthenticatorRuntime(configuration);
+        try
+        {
+            var filter = _runtime.getUnknownIdentifierFilter().orElseThrow();
+            filter.addUnknown("alice", "alice@example.com");
+            filter.addUnknown("bob", null);
+
+            sameAuthenticator.onAccountCreated("alice", "alice@example.com");
+            sameAuthenticator.onAccountUsable("bob");
+
+            assertFalse(filter.isUnknown("alice", null));
+            assertFalse(filter.isUnknown(null, "alice@example.com"));
+            assertFalse(filter.isUnknown("bob", null));
+        }
+        finally
+        {
+            sameAuthenticator.close();
+        }
+    }
+
+    @Test
+    void keepsTheDataSourcesWarmWithoutVerifyingCredentials()
+    {
+        var configuration = configuration();
+        var accountManager = mock(AccountManager.class);
+        var credentialManager = mock(UserCredentialManager.class);
+        var nonceTokenIssuer = mock(NonceTokenIssuer.class);
+        when(configuration.getAccountManager()).thenReturn(accountManager);
+        when(configuration.getCredentialManager()).thenReturn(credentialManager);
+        when(configuration.getNonceTokenIssuer()).thenReturn(nonceTokenIssuer);
+        var settings = mock(UsernamePasswordAuthenticatorPluginConfig.KeepWarmSettings.class);
+        when(settings.getIntervalSeconds()).thenReturn(1);
+        when(settings.getProbeUsername()).thenReturn("keep-warm-probe");
+        when(configuration.getKeepWarm()).thenReturn(Optional.of(settings));
+
+        _runtime = new AuthenticatorRuntime(configuration);
+
+        verify(accountManager, timeout(5_000)).getByUserName("keep-warm-probe");
+        verify(nonceTokenIssuer, timeout(5_000)).introspect(anyString());
+        verifyNoInteractions(credentialManager);
+    }
+
+    @Test
+    void releasesWhatWasStartedWhenTheConfigurationCannotBeApplied() throws Exception
+    {
+        var configuration = configuration();
+        var concurrencyLimit = mock(UsernamePasswordAuthenticatorPluginConfig.ConcurrencyLimitSettings.class);
+        when(concurrencyLimit.getInitialLimit()).thenReturn(10);
+        when(concurrencyLimit.getMinimumLimit()).thenReturn(1);
+        when(concurrencyLimit.getMaximumLimit()).thenReturn(100);
+        when(configuration.getConcurrencyLimit()).thenReturn(Optional.of(concurrencyLimit));
+        var unknownIdentifierFilter = mock(UsernamePasswordAuthenticatorPluginConfig.UnknownIdentifierFilterSettings.class);
+        when(unknownIdentifierFilter.getCapacity()).thenReturn(1024);
+        when(unknownIdentifierFilter.getTimeToLiveSeconds()).thenReturn(1);
+        when(configuration.getUnknownIdentifierFilter()).thenReturn(Optional.of(unknownIdentifierFilter));
+        // applied last, after the scheduler has started and the other statistics were published
+        var invalidationBus = mock(UsernamePasswordAuthenticatorPluginConfig.InvalidationBusSettings.class);
+        when(invalidationBus.getMulticastGroup()).thenReturn(Optional.of("not:an:address"));
+        when(configuration.getInvalidationBus()).thenReturn(Optional.of(invalidationBus));
+
+        assertThrows(IllegalArgumentException.class, () -> new AuthenticatorRuntime(configuration));
+
+        var name = new ObjectName("io.curity.identityserver.plugin.usernamepassword:authenticator=" +
+                ObjectName.quote(configuration.id()) + ",type=ConcurrencyLimiter");
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            while (Thread.getAllStackTraces().keySet().stream()
+                    .anyMatch(thread -> thread.getName().startsWith("username-password-authenticator-")))
+            {
+                Thread.sleep(10);
+            }
+        });
+    }
+
+    /**
+     * A configuration without any of the optional features.
+     */
+    static UsernamePasswordAuthenticatorPluginConfig configuration()
+    {
+        var configuration = mock(UsernamePasswordAuthenticatorPluginConfig.class);
+        when(configuration.id()).thenReturn("test-" + System.nanoTime());
+        when(configuration.getDecoyHashingPercent()).thenReturn(50);
+        return configuration;
+    }
+
+    private static UsernamePasswordAuthenticatorPluginConfig withInvalidationBus(
+            UsernamePasswordAuthenticatorPluginConfig configuration)
+    {
+        var settings = mock(UsernamePasswordAuthenticatorPluginConfig.InvalidationBusSettings.class);
+        when(configuration.getInvalidationBus()).thenReturn(Optional.of(settings));
+        return configuration;
+    }
+
+    private static UsernamePasswordAuthenticatorPluginConfig withUnknownIdentifierFilter(
+            UsernamePasswordAuthenticatorPluginConfig configuration)
+    {
+        var settings = mock(UsernamePasswordAuthenticatorPluginConfig.UnknownIdentifierFilterSettings.class);
+        when(settings.getCapacity()).thenReturn(1024);
+        when(settings.getTimeToLiveSeconds()).thenReturn(300);
+        when(configuration.getUnknownIdentifierFilter()).thenReturn(Optional.of(settings));
+        return configuration;
+    }
+
+    private static UsernamePasswordAuthenticatorPluginConfig withAccountStateCache(
+            UsernamePasswordAuthenticatorPluginConfig configuration)
+    {
+        var settings = mock(UsernamePasswordAuthenticatorPluginConfig.AccountStateCacheSettings.class);
+        when(settings.getCapacity()).thenReturn(1024);
+        when(settings.getLockoutSeconds()).thenReturn(300);
+        when(settings.getPendingActivationSeconds()).thenReturn(600);
+        when(configuration.getAccountStateCache()).thenReturn(Optional.of(settings));
+        return configuration;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.usernamepassword.runtime;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+final class DeadlineTest
+{
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final DeadlineStatistics _statistics = new DeadlineStatistics(Duration.ofMillis(50));
+
+    @Test
+    void allowsCallsWhileThereIsTimeLeft()
+    {
+        var deadline = Deadline.after(Duration.ofMinutes(1), "login", _statistics);
+
+        deadline.check("verify");
+
+        assertEquals(Map.of(), _statistics.getExpiredCounts());
+    }
+
+    @Test
+    void refusesCallsOnceTheBudgetIsSpentAndCountsThemByFlowAndCallSite()
+    {
+        var deadline = Deadline.after(Duration.ZERO, "login", _statistics);
+
+        assertThrows(DeadlineExceededException.class, () -> deadline.check("verify"));
+        assertThrows(DeadlineExceededException.class, () -> deadline.check("verify"));
+        assertThrows(DeadlineExceededException.class, () -> deadline.check("resolveIdentifier"));
+
+        assertEquals(Map.of("login/resolveIdentifier", 1L, "login/verify", 2L), _statistics.getExpiredCounts());
+    }
+
+    @Test
+    void stopsWaitingForAnotherCallWhenTheBudgetIsSpent()
+    {
+        var deadline = Deadline.after(Duration.ofMillis(50), "login", _statistics);
+        var call = new CompletableFuture<String>();
+
+        assertTimeoutPreemptively(TIMEOUT, () ->
+                assertThrows(DeadlineExceededException.class, () -> deadline.await(call, "awaitAccountLookup")));
+        assertEquals(Map.of("login/awaitAccountLookup", 1L), _statistics.getExpiredCounts());
+    }
+
+    @Test
+    void returnsTheResultOfACallThatCompletesInTime() throws Exception
+    {
+        var deadline = Deadline.after(Duration.ofMinutes(1), "login", _statistics);
+
+        assertEquals("alice", deadline.await(CompletableFuture.completedFuture("alice"), "awaitAccountLookup"));
+    }
+
+    @Test
+    void neverRunsOutWithoutABudget() throws Exception
+    {
+        var call = CompletableFuture.supplyAsync(() -> "alice", CompletableFuture.delayedExecutor(
+                100, TimeUnit.MILLISECONDS));
+
+        Deadline.none().check("verify");
+
+        assertEquals("alice", Deadline.none().await(call, "awaitAccountLookup"));
+    }
+}
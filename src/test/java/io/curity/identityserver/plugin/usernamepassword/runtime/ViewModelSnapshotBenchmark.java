@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.usernamepassword.runtime;
+
+import io.curity.identityserver.plugin.usernamepassword.utils.ViewModelReservedKeys;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import se.curity.identityserver.sdk.service.AccountManager;
+import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
+
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * What the registration form needs from the configuration on each request, computed on every request as before,
+ * and read from the snapshot. Run with {@code -prof gc} to compare the bytes allocated per request, given as
+ * {@code gc.alloc.rate.norm}.
+ * <p>
+ * The SDK services are proxies that return constants without allocating, so that only the work of the handler
+ * is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class ViewModelSnapshotBenchmark
+{
+    private static final URI ANONYMOUS_URI = URI.create("https://login.example.com/authn/anonymous/username-password");
+
+    private AccountManager _accountManager;
+    private AuthenticatorInformationProvider _informationProvider;
+    private ViewModelSnapshot _viewModel;
+
+    @Setup(Level.Trial)
+    public void createServices()
+    {
+        _accountManager = proxy(AccountManager.class, method -> switch (method)
+        {
+            case "supportsRegistration", "isSetPasswordAfterActivation" -> true;
+            case "useUsernameAsEmail" -> false;
+            default -> null;
+        });
+        _informationProvider = proxy(AuthenticatorInformationProvider.class,
+                method -> "getFullyQualifiedAnonymousUri".equals(method) ? ANONYMOUS_URI : null);
+
+        _viewModel = new ViewModelSnapshot(_accountManager, _informationProvider);
+    }
+
+    private static <T> T proxy(Class<T> type, Function<String, Object> answers)
+    {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, arguments) -> answers.apply(method.getName())));
+    }
+
+    @Benchmark
+    public void computedOnEveryRequest(Blackhole blackhole)
+    {
+        var data = new HashMap<String, Object>(2);
+        data.put(ViewModelReservedKeys.SHOW_PASSWORD_FIELDS, !_accountManager.isSetPasswordAfterActivation());
+        data.put(ViewModelReservedKeys.SHOW_EMAIL_FIELD, !_accountManager.useUsernameAsEmail());
+        blackhole.consume(data);
+
+        blackhole.consume(_accountManager != null && _accountManager.supportsRegistration());
+        blackhole.consume(String.format("%s/activate-account", _informationProvider.getFullyQualifiedAnonymousUri()));
+    }
+
+    @Benchmark
+    public void readFromTheSnapshot(Blackhole blackhole)
+    {
+        Map<String, Object> data = _viewModel.getRegistrationViewData();
+        blackhole.consume(data);
+
+        blackhole.consume(_viewModel.isRegistrationEnabled());
+        blackhole.consume(_viewModel.getActivateAccountUrl());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.usernamepassword.runtime;
+
+import io.curity.identityserver.plugin.usernamepassword.utils.ViewModelReservedKeys;
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.service.AccountManager;
+import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
+
+import java.net.URI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+final class ViewModelSnapshotTest
+{
+    private static final URI ANONYMOUS_URI = URI.create("https://login.example.com/authn/anonymous/up");
+
+    @Test
+    void buildsTheUrlsOfTheAnonymousEndpoints()
+    {
+        var accountManager = mock(AccountManager.class);
+        when(accountManager.supportsRegistration()).thenReturn(true);
+        when(accountManager.isSetPasswordAfterActivation()).thenReturn(true);
+
+        var viewModel = new ViewModelSnapshot(accountManager, informationProvider());
+
+        assertTrue(viewModel.isRegistrationEnabled());
+        assertEquals(ANONYMOUS_URI + "/activate", viewModel.getActivateUrl());
+        assertEquals(ANONYMOUS_URI + "/activate-account", viewModel.getActivateAccountUrl());
+        assertEquals(ANONYMOUS_URI + "/activate-and-set", viewModel.getActivationLandingUrl());
+        assertEquals(ANONYMOUS_URI + "/set-password", viewModel.getSetPasswordUrl());
+    }
+
+    @Test
+    void sharesOneImmutableMapOfRegistrationViewData()
+    {
+        var accountManager = mock(AccountManager.class);
+        when(accountManager.useUsernameAsEmail()).thenReturn(true);
+
+        var viewModel = new ViewModelSnapshot(accountManager, informationProvider());
+        var data = viewModel.getRegistrationViewData();
+
+        assertEquals(true, data.get(ViewModelReservedKeys.SHOW_PASSWORD_FIELDS));
+        assertEquals(false, data.get(ViewModelReservedKeys.SHOW_EMAIL_FIELD));
+        assertEquals(ANONYMOUS_URI + "/activate", viewModel.getActivationLandingUrl());
+        assertSame(data, viewModel.getRegistrationViewData());
+        assertThrows(UnsupportedOperationException.class, () -> data.put("other", "value"));
+    }
+
+    @Test
+    void disablesRegistrationWithoutAnAccountManager()
+    {
+        var viewModel = new ViewModelSnapshot(null, informationProvider());
+
+        assertFalse(viewModel.isRegistrationEnabled());
+        assertFalse(viewModel.isUsernameAsEmail());
+        assertFalse(viewModel.isSetPasswordAfterActivation());
+    }
+
+    private static AuthenticatorInformationProvider informationProvider()
+    {
+        var informationProvider = mock(AuthenticatorInformationProvider.class);
+        when(informationProvider.getFullyQualifiedAnonymousUri()).thenReturn(ANONYMOUS_URI);
+        return informationProvider;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.usernamepassword.setPassword;
+
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.data.tokens.TokenAttributes;
+import se.curity.identityserver.sdk.service.NonceTokenIssuer;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+final class NonceIntrospectionCacheTest
+{
+    private static final String NONCE = "c2FtcGxlLW5vbmNlLWZvci10ZXN0cw";
+
+    private final NonceTokenIssuer _issuer = mock(NonceTokenIssuer.class);
+    private final NonceIntrospectionCache _cache = new NonceIntrospectionCache(Duration.ofMinutes(1), 2);
+
+    @Test
+    void refusesNoncesThatCouldNotHaveBeenIssuedWithoutCallingTheIssuer()
+    {
+        assertEquals(Optional.empty(), _cache.introspect("short", _issuer));
+        assertEquals(Optional.empty(), _cache.introspect("x".repeat(257), _issuer));
+        assertEquals(Optional.empty(), _cache.introspect(NONCE + "<script>", _issuer));
+        assertEquals(Optional.empty(), _cache.introspect(NONCE + " ", _issuer));
+
+        verifyNoInteractions(_issuer);
+        assertEquals(4, _cache.getMalformedCount());
+        assertEquals(0, _cache.getSize());
+    }
+
+    @Test
+    void acceptsNoncesOfUrlSafeCharacters()
+    {
+        assertTrue(NonceIntrospectionCache.isWellFormed(NONCE));
+        assertTrue(NonceIntrospectionCache.isWellFormed("aZ09-_.~aZ09-_.~"));
+        assertFalse(NonceIntrospectionCache.isWellFormed("aZ09-_.~aZ09-_.=="));
+    }
+
+    @Test
+    void answersARepeatedInvalidNonceFromMemory()
+    {
+        when(_issuer.introspect(NONCE)).thenReturn(Optional.empty());
+
+        _cache.introspect(NONCE, _issuer);
+        assertEquals(Optional.empty(), _cache.introspect(NONCE, _issuer));
+
+        verify(_issuer, times(1)).introspect(NONCE);
+        assertEquals(1, _cache.getRejectedCount());
+        assertEquals(1, _cache.getHitCount());
+    }
+
+    @Test
+    void refusesAUsedNonceWithoutHandingOutItsAttributesAgain()
+    {
+        when(_issuer.introspect(NONCE)).thenReturn(Optional.of(mock(TokenAttributes.class)));
+
+        assertTrue(_cache.introspect(NONCE, _issuer).isPresent());
+        assertEquals(Optional.empty(), _cache.introspect(NONCE, _issuer));
+
+        verify(_issuer, times(1)).introspect(NONCE);
+        assertEquals(1, _cache.getConsumedCount());
+    }
+
+    @Test
+    void doesNotRememberErrorsOfTheIssuer()
+    {
+        when(_issuer.introspect(NONCE))
+                .thenThrow(new IllegalStateException("unavailable"))
+                .thenReturn(Optional.empty());
+
+        assertThrows(IllegalStateException.class, () -> _cache.introspect(NONCE, _issuer));
+        _cache.introspect(NONCE, _issuer);
+
+        verify(_issuer, times(2)).introspect(NONCE);
+    }
+
+    @Test
+    void keepsUsedNoncesWhenManyInvalidOnesAreTried()
+    {
+        when(_issuer.introspect(anyString())).thenReturn(Optional.empty());
+        when(_issuer.introspect(NONCE)).thenReturn(Optional.of(mock(TokenAttributes.class)));
+        _cache.introspect(NONCE, _issuer);
+
+        for (int i = 0; i < 100; i++)
+        {
+            _cache.introspect(NONCE + "-" + i, _issuer);
+        }
+
+        assertEquals(Optional.empty(), _cache.introspect(NONCE, _issuer));
+        verify(_issuer, times(1)).introspect(NONCE);
+    }
+}
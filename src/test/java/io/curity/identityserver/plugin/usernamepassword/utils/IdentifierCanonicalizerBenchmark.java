@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of canonicalizing usernames that are already canonical, which most are, and of those that are not,
+ * with and without case folding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class IdentifierCanonicalizerBenchmark
+{
+    @Param({ "false", "true" })
+    public boolean caseInsensitiveUsernames;
+
+    @Param({ "john.doe", "John.Doe", "jöhn.döe", "Jöhn.Döe" })
+    public String username;
+
+    private IdentifierCanonicalizer _canonicalizer;
+
+    @Setup
+    public void createCanonicalizer()
+    {
+        _canonicalizer = new IdentifierCanonicalizer(caseInsensitiveUsernames, "46");
+    }
+
+    @Benchmark
+    public String username()
+    {
+        return _canonicalizer.username(username);
+    }
+
+    @Benchmark
+    public String email()
+    {
+        return _canonicalizer.email(username + "@Example.com");
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+final class IdentifierCanonicalizerTest
+{
+    private final IdentifierCanonicalizer _caseSensitive = new IdentifierCanonicalizer(false, null);
+    private final IdentifierCanonicalizer _caseInsensitive = new IdentifierCanonicalizer(true, "46");
+
+    @Test
+    void keepsTheCaseOfCaseSensitiveUsernames()
+    {
+        assertEquals("John.Doe", _caseSensitive.username(" John.Doe "));
+        assertEquals("Jöhn", _caseSensitive.username("Jöhn"));
+    }
+
+    @Test
+    void foldsTheCaseOfCaseInsensitiveUsernames()
+    {
+        assertEquals("john.doe", _caseInsensitive.username(" John.Doe "));
+        assertEquals("jöhn", _caseInsensitive.username("JÖHN"));
+        assertEquals(_caseInsensitive.username("STRASSE"), _caseInsensitive.username("Straße"));
+    }
+
+    @Test
+    void normalizesCompatibleCharacters()
+    {
+        assertEquals("john", _caseSensitive.username("\uff4a\uff4f\uff48\uff4e"));
+        assertEquals("\u00c5sa", _caseSensitive.username("A\u030asa"));
+    }
+
+    @Test
+    void returnsCanonicalValuesWithoutCopying()
+    {
+        String username = "john";
+        String email = "John@example.com";
+        String phoneNumber = "+46701234567";
+
+        assertSame(username, _caseSensitive.username(username));
+        assertSame(username, _caseInsensitive.username(username));
+        assertSame(email, _caseSensitive.email(email));
+        assertSame(phoneNumber, _caseInsensitive.phoneNumber(phoneNumber));
+    }
+
+    @Test
+    void lowersOnlyTheDomainOfEmailAddresses()
+    {
+        assertEquals("John@example.com", _caseInsensitive.email(" John@Example.COM "));
+        assertEquals("john", _caseInsensitive.email("john"));
+    }
+
+    @Test
+    void writesPhoneNumbersInE164Form()
+    {
+        assertEquals("+46701234567", _caseInsensitive.phoneNumber("070-123 45 67"));
+        assertEquals("+46701234567", _caseInsensitive.phoneNumber("0046 70 123 45 67"));
+        assertEquals("+14155550123", _caseInsensitive.phoneNumber("+1 (415) 555-0123"));
+        assertEquals("070-123 45 67", _caseSensitive.phoneNumber("070-123 45 67"));
+        assertEquals("ext. 12", _caseInsensitive.phoneNumber("ext. 12"));
+    }
+
+    @Test
+    void leavesIdentifiersAloneWhenDisabled()
+    {
+        assertEquals(" John ", IdentifierCanonicalizer.NONE.username(" John "));
+        assertEquals("John@Example.com", IdentifierCanonicalizer.NONE.email("John@Example.com"));
+        assertNull(IdentifierCanonicalizer.NONE.username(null));
+    }
+
+    @Test
+    void rejectsAnInvalidDefaultCountryCode()
+    {
+        assertThrows(IllegalArgumentException.class, () -> new IdentifierCanonicalizer(false, "0046"));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.verification;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+import se.curity.identityserver.sdk.service.AccountManager;
+import se.curity.identityserver.sdk.service.credential.CredentialVerificationResult;
+import se.curity.identityserver.sdk.service.credential.UserCredentialManager;
+
+import static io.curity.identityserver.plugin.usernamepassword.verification.CredentialResults.accepted;
+import static io.curity.identityserver.plugin.usernamepassword.verification.CredentialResults.wrongPassword;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+final class CredentialMigratorTest
+{
+    private final UserCredentialManager _legacyCredentialManager = mock(UserCredentialManager.class);
+    private final AccountManager _legacyAccountManager = mock(AccountManager.class);
+    private final UserCredentialManager _primaryCredentialManager = mock(UserCredentialManager.class);
+    private final AccountManager _accountManager = mock(AccountManager.class, RETURNS_DEEP_STUBS);
+    private final CredentialVerificationResult _accepted = accepted("alice");
+
+    @BeforeEach
+    void accountIsOnlyInTheLegacyStore()
+    {
+        when(_accountManager.getByUserName(anyString())).thenReturn(null);
+    }
+
+    @Test
+    void copiesTheWholeLegacyAccountWithTheMigratedPassword()
+    {
+        var legacyAccount = mock(AccountAttributes.class);
+        var migratedAccount = mock(AccountAttributes.class);
+        when(legacyAccount.withPassword("Password1")).thenReturn(migratedAccount);
+        when(_legacyAccountManager.getByUserName("alice")).thenReturn(legacyAccount);
+        when(_legacyCredentialManager.verify(any(), anyString())).thenReturn(_accepted);
+
+        var legacyLogin = migrator(_legacyAccountManager).verifyAndMigrate("alice", "Password1").orElseThrow();
+
+        assertSame(_accepted, legacyLogin.result());
+        assertSame(migratedAccount, legacyLogin.createdAccount());
+        verify(_accountManager.withCredentialManager(_primaryCredentialManager)).createAccount(migratedAccount);
+    }
+
+    @Test
+    void reportsNoCreatedAccountWhenItCannotBeCopied()
+    {
+        var migrator = migrator(null);
+        when(_legacyCredentialManager.verify(any(), anyString())).thenReturn(_accepted);
+
+        var legacyLogin = migrator.verifyAndMigrate("alice", "Password1").orElseThrow();
+
+        // the user still logs in through the legacy store
+        assertTrue(legacyLogin.result() instanceof CredentialVerificationResult.Accepted);
+        assertNull(legacyLogin.createdAccount());
+        assertEquals(1, migrator.getMigrationFailureCount());
+        assertEquals(0, migrator.getMigratedCount());
+    }
+
+    @Test
+    void updatesThePasswordOfAnExistingAccountWithoutCreatingOne()
+    {
+        var account = mock(AccountAttributes.class);
+        when(account.getUserName()).thenReturn("alice");
+        when(_accountManager.getByUserName("alice")).thenReturn(account);
+        when(_legacyCredentialManager.verify(any(), anyString())).thenReturn(_accepted);
+        var migrator = migrator(_legacyAccountManager);
+
+        var legacyLogin = migrator.verifyAndMigrate("alice", "Password1").orElseThrow();
+
+        assertNull(legacyLogin.createdAccount());
+        verify(_primaryCredentialManager).update(any(), any());
+        verify(_legacyAccountManager, never()).getByUserName(anyString());
+        assertEquals(1, migrator.getMigratedCount());
+    }
+
+    @Test
+    void doesNotMigratePasswordsTheLegacyStoreRejects()
+    {
+        var migrator = migrator(_legacyAccountManager);
+        var rejection = wrongPassword();
+        when(_legacyCredentialManager.verify(any(), anyString())).thenReturn(rejection);
+
+        assertTrue(migrator.verifyAndMigrate("alice", "Password1").isEmpty());
+        assertEquals(1, migrator.getRejectedByLegacyCount());
+        verify(_primaryCredentialManager, never()).update(any(), any());
+    }
+
+    private CredentialMigrator migrator(AccountManager legacyAccountManager)
+    {
+        return new CredentialMigrator(_legacyCredentialManager, legacyAccountManager, _primaryCredentialManager,
+                _accountManager);
+    }
+}
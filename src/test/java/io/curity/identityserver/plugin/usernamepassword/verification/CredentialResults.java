@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.verification;
+
+import se.curity.identityserver.sdk.attribute.AuthenticationAttributes;
+import se.curity.identityserver.sdk.attribute.ContextAttributes;
+import se.curity.identityserver.sdk.attribute.SubjectAttributes;
+import se.curity.identityserver.sdk.service.credential.CredentialOperationDetails;
+import se.curity.identityserver.sdk.service.credential.CredentialVerificationResult;
+import se.curity.identityserver.sdk.service.credential.results.PasswordLockedOut;
+import se.curity.identityserver.sdk.service.credential.results.SubjectCredentialsNotFound;
+
+import java.util.List;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Verification results as returned by credential managers, for tests in any package.
+ */
+public final class CredentialResults
+{
+    private CredentialResults()
+    {
+    }
+
+    public static CredentialVerificationResult accepted(String subject)
+    {
+        var result = mock(CredentialVerificationResult.Accepted.class);
+        doReturn(AuthenticationAttributes.of(SubjectAttributes.of(subject), ContextAttributes.empty()))
+                .when(result).getAuthenticationAttributes();
+        return result;
+    }
+
+    public static CredentialVerificationResult notFound()
+    {
+        return rejected(mock(SubjectCredentialsNotFound.class));
+    }
+
+    public static CredentialVerificationResult lockedOut()
+    {
+        return rejected(mock(PasswordLockedOut.class));
+    }
+
+    public static CredentialVerificationResult wrongPassword()
+    {
+        return rejected();
+    }
+
+    private static CredentialVerificationResult rejected(CredentialOperationDetails.Rejected... details)
+    {
+        var result = mock(CredentialVerificationResult.Rejected.class);
+        doReturn(List.of(details)).when(result).getDetails();
+        return result;
+    }
+}
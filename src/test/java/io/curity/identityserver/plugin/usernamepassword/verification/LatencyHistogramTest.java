@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.usernamepassword.verification;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class LatencyHistogramTest
+{
+    private final LatencyHistogram _histogram = new LatencyHistogram();
+
+    @Test
+    void isEmptyBeforeAnythingIsRecorded()
+    {
+        assertEquals(0, _histogram.getCount());
+        assertEquals(Duration.ZERO, _histogram.getMean());
+        assertEquals(Duration.ZERO, _histogram.getPercentile(99));
+    }
+
+    @Test
+    void boundsEveryLatencyFromAboveToWithinAQuarter()
+    {
+        for (long micros = 1; micros < 1L << 40; micros = micros * 3 / 2 + 1)
+        {
+            var histogram = new LatencyHistogram();
+            histogram.record(Duration.ofNanos(micros * 1_000));
+
+            long upperBound = histogram.getPercentile(100).toNanos() / 1_000;
+            assertTrue(upperBound >= micros && upperBound <= micros * 5 / 4 + 1,
+                    micros + " was bounded by " + upperBound);
+        }
+    }
+
+    @Test
+    void findsPercentilesOfTheRecordedLatencies()
+    {
+        for (int millis = 1; millis <= 100; millis++)
+        {
+            _histogram.record(Duration.ofMillis(millis));
+        }
+
+        assertEquals(100, _histogram.getCount());
+        assertBetween(Duration.ofMillis(50), Duration.ofMillis(63), _histogram.getPercentile(50));
+        assertBetween(Duration.ofMillis(99), Duration.ofMillis(124), _histogram.getPercentile(99));
+        assertBetween(Duration.ofMillis(1), Duration.ofMillis(2), _histogram.getPercentile(0));
+    }
+
+    @Test
+    void keepsTheExactMean()
+    {
+        _histogram.record(Duration.ofMillis(10));
+        _histogram.record(Duration.ofMillis(30));
+
+        assertEquals(Duration.ofMillis(20), _histogram.getMean());
+    }
+
+    @Test
+    void countsLatenciesBelowAMicrosecondAsOne()
+    {
+        _histogram.record(Duration.ZERO);
+        _histogram.record(Duration.ofNanos(10));
+
+        assertEquals(Duration.ofNanos(1_000), _histogram.getPercentile(100));
+    }
+
+    private static void assertBetween(Duration lowest, Duration highest, Duration actual)
+    {
+        assertTrue(actual.compareTo(lowest) >= 0 && actual.compareTo(highest) <= 0,
+                actual + " is not between " + lowest + " and " + highest);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.verification;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.attribute.SubjectAttributes;
+import se.curity.identityserver.sdk.service.credential.CredentialVerificationResult;
+import se.curity.identityserver.sdk.service.credential.UserCredentialManager;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static io.curity.identityserver.plugin.usernamepassword.verification.CredentialResults.accepted;
+import static io.curity.identityserver.plugin.usernamepassword.verification.CredentialResults.lockedOut;
+import static io.curity.identityserver.plugin.usernamepassword.verification.CredentialResults.notFound;
+import static io.curity.identityserver.plugin.usernamepassword.verification.CredentialResults.wrongPassword;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+final class MultiStoreCredentialVerifierTest
+{
+    private final ExecutorService _executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void shutDown()
+    {
+        _executor.shutdownNow();
+    }
+
+    @Test
+    void usesTheLegacyStoreForUsersThePrimaryDoesNotKnow()
+    {
+        var legacy = storeAnswering(accepted("alice"));
+        var verifier = verifierOf(0, storeAnswering(notFound()), legacy);
+
+        var result = verifier.verify(SubjectAttributes.of("alice"), "Password1");
+
+        assertInstanceOf(CredentialVerificationResult.Accepted.class, result);
+        assertEquals(1, legacy.getWinCount());
+    }
+
+    @Test
+    void aWrongPasswordInThePrimaryIsFinal()
+    {
+        var rejection = wrongPassword();
+        var legacy = storeAnswering(accepted("alice"));
+
+        for (double hedgingPercentile : new double[] { 0, 90 })
+        {
+            var verifier = verifierOf(hedgingPercentile, storeAnswering(rejection), legacy);
+
+            assertSame(rejection, verifier.verify(SubjectAttributes.of("alice"), "OldPassword1"));
+        }
+        assertEquals(0, legacy.getWinCount());
+    }
+
+    @Test
+    void aLockoutInThePrimaryIsFinal()
+    {
+        var lockout = lockedOut();
+        var verifier = verifierOf(0, storeAnswering(lockout), storeAnswering(accepted("alice")));
+
+        assertSame(lockout, verifier.verify(SubjectAttributes.of("alice"), "Password1"));
+    }
+
+    @Test
+    void waitsForThePrimaryEvenWhenTheLegacyStoreAcceptsFirst() throws Exception
+    {
+        var primaryCalled = new CountDownLatch(1);
+        var legacyAnswered = new CountDownLatch(1);
+        var rejection = wrongPassword();
+        var primary = mock(UserCredentialManager.class);
+        when(primary.verify(any(), anyString())).thenAnswer(invocation -> {
+            primaryCalled.countDown();
+            legacyAnswered.await();
+            return rejection;
+        });
+        var legacy = mock(UserCredentialManager.class);
+        when(legacy.verify(any(), anyString())).thenAnswer(invocation -> {
+            legacyAnswered.countDown();
+            return accepted("alice");
+        });
+        var primaryStore = new CredentialStore(primary);
+        // the legacy store is only called before the primary answers once the latency of the primary is known
+        for (int i = 0; i < 100; i++)
+        {
+            primaryStore.onCompleted(Duration.ofMillis(1));
+        }
+        var verifier = verifierOf(50, primaryStore, new CredentialStore(legacy));
+
+        assertSame(rejection, verifier.verify(SubjectAttributes.of("alice"), "OldPassword1"));
+    }
+
+    @Test
+    void doesNotCallTheLegacyStoreOnceThePrimaryKnowsTheUser()
+    {
+        var primary = storeAnswering(wrongPassword());
+        var legacy = mock(UserCredentialManager.class);
+        for (int i = 0; i < 100; i++)
+        {
+            primary.onCompleted(Duration.ofSeconds(10));
+        }
+
+        for (double hedgingPercentile : new double[] { 0, 90 })
+        {
+            verifierOf(hedgingPercentile, primary, new CredentialStore(legacy))
+                    .verify(SubjectAttributes.of("alice"), "Password1");
+        }
+
+        verify(legacy, never()).verify(any(), anyString());
+    }
+
+    @Test
+    void waitsForThePrimaryWhileItsLatencyIsNotKnown()
+    {
+        var primary = storeAnswering(wrongPassword());
+        var legacy = mock(UserCredentialManager.class);
+
+        verifierOf(90, primary, new CredentialStore(legacy)).verify(SubjectAttributes.of("alice"), "Password1");
+
+        verify(legacy, never()).verify(any(), anyString());
+    }
+
+    @Test
+    void aFailureOfThePrimaryIsFinal()
+    {
+        var primary = mock(UserCredentialManager.class);
+        when(primary.verify(any(), anyString())).thenThrow(new IllegalStateException("unavailable"));
+        var verifier = verifierOf(0, new CredentialStore(primary), storeAnswering(accepted("alice")));
+
+        assertThrows(IllegalStateException.class, () -> verifier.verify(SubjectAttributes.of("alice"), "Password1"));
+    }
+
+    @Test
+    void returnsThePrimaryRejectionWhenNoStoreKnowsTheUser()
+    {
+        var rejection = notFound();
+        var verifier = verifierOf(0, storeAnswering(rejection), storeAnswering(notFound()));
+
+        assertSame(rejection, verifier.verify(SubjectAttributes.of("mallory"), "Password1"));
+    }
+
+    private MultiStoreCredentialVerifier verifierOf(double hedgingPercentile, CredentialStore... stores)
+    {
+        return new MultiStoreCredentialVerifier(List.of(stores), hedgingPercentile, _executor);
+    }
+
+    private static CredentialStore storeAnswering(CredentialVerificationResult result)
+    {
+        var credentialManager = mock(UserCredentialManager.class);
+        when(credentialManager.verify(any(), anyString())).thenReturn(result);
+        return new CredentialStore(credentialManager);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.usernamepassword.verification;
+
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.attribute.SubjectAttributes;
+import se.curity.identityserver.sdk.service.credential.UserCredentialManager;
+
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+
+import static io.curity.identityserver.plugin.usernamepassword.verification.CredentialResults.accepted;
+import static io.curity.identityserver.plugin.usernamepassword.verification.CredentialResults.lockedOut;
+import static io.curity.identityserver.plugin.usernamepassword.verification.CredentialResults.notFound;
+import static io.curity.identityserver.plugin.usernamepassword.verification.CredentialResults.wrongPassword;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+final class ShadowVerifierTest
+{
+    private static final SubjectAttributes ALICE = SubjectAttributes.of("alice");
+    private static final Duration LATENCY = Duration.ofMillis(10);
+
+    private final UserCredentialManager _shadow = mock(UserCredentialManager.class);
+    private final ShadowVerifier _verifier = new ShadowVerifier(_shadow, 100, Runnable::run);
+
+    @Test
+    void countsWhetherTheShadowAcceptsWhatThePrimaryAccepted()
+    {
+        var acceptance = accepted("alice");
+        var rejection = wrongPassword();
+        when(_shadow.verify(any(), anyString())).thenReturn(acceptance, rejection);
+
+        _verifier.compare(ALICE, "Password1", accepted("alice"), LATENCY);
+        _verifier.compare(ALICE, "Password1", accepted("alice"), LATENCY);
+
+        assertEquals(2, _verifier.getAcceptedComparedCount());
+        assertEquals(1, _verifier.getAcceptedByBothCount());
+        assertEquals(1, _verifier.getAcceptedOnlyByPrimaryCount());
+    }
+
+    @Test
+    void neverRepeatsARejectedPassword()
+    {
+        _verifier.compare(ALICE, "Wrong1", wrongPassword(), LATENCY);
+        _verifier.compare(ALICE, "Wrong1", lockedOut(), LATENCY);
+        _verifier.compare(ALICE, "Wrong1", notFound(), LATENCY);
+
+        verifyNoInteractions(_shadow);
+        assertEquals(0, _verifier.getAcceptedComparedCount());
+    }
+
+    @Test
+    void repeatsNothingOutsideTheSample()
+    {
+        var verifier = new ShadowVerifier(_shadow, 0, Runnable::run);
+
+        verifier.compare(ALICE, "Password1", accepted("alice"), LATENCY);
+
+        verifyNoInteractions(_shadow);
+    }
+
+    @Test
+    void countsFailuresOfTheShadow()
+    {
+        when(_shadow.verify(any(), anyString())).thenThrow(new IllegalStateException("unavailable"));
+
+        _verifier.compare(ALICE, "Password1", accepted("alice"), LATENCY);
+
+        assertEquals(1, _verifier.getFailureCount());
+        assertEquals(0, _verifier.getAcceptedComparedCount());
+    }
+
+    @Test
+    void dropsVerificationsWhenTheExecutorIsFull()
+    {
+        var verifier = new ShadowVerifier(_shadow, 100, task -> {
+            throw new RejectedExecutionException();
+        });
+
+        verifier.compare(ALICE, "Password1", accepted("alice"), LATENCY);
+
+        assertEquals(1, verifier.getDroppedCount());
+        verifyNoInteractions(_shadow);
+    }
+}
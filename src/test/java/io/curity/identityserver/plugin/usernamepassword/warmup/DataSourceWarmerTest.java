@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2017 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.usernamepassword.warmup;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class DataSourceWarmerTest
+{
+    private static final Duration INTERVAL = Duration.ofMinutes(1);
+
+    private final AtomicInteger _accountManagerCalls = new AtomicInteger();
+    private final AtomicInteger _nonceIssuerCalls = new AtomicInteger();
+
+    @Test
+    void probesEveryDataSourceWhileNoRequestsArrive()
+    {
+        var warmer = warmerOf(new DataSourceWarmer.Probe("AccountManager", _accountManagerCalls::incrementAndGet),
+                new DataSourceWarmer.Probe("NonceTokenIssuer", _nonceIssuerCalls::incrementAndGet));
+
+        warmer.probeIfIdle();
+        warmer.probeIfIdle();
+
+        assertEquals(2, warmer.getProbeRoundCount());
+        assertEquals(2, _accountManagerCalls.get());
+        assertEquals(2, _nonceIssuerCalls.get());
+        assertTrue(warmer.getLastLatencyMillis().values().stream().allMatch(latency -> latency >= 0));
+    }
+
+    @Test
+    void doesNotProbeWhileRequestsKeepTheDataSourcesWarm()
+    {
+        var warmer = warmerOf(new DataSourceWarmer.Probe("AccountManager", _accountManagerCalls::incrementAndGet));
+
+        warmer.onRequest();
+        warmer.probeIfIdle();
+
+        assertEquals(0, warmer.getProbeRoundCount());
+        assertEquals(1, warmer.getSkippedForTrafficCount());
+        assertEquals(0, _accountManagerCalls.get());
+    }
+
+    @Test
+    void keepsProbingTheOtherDataSourcesWhenOneFails()
+    {
+        var warmer = warmerOf(
+                new DataSourceWarmer.Probe("AccountManager", () ->
+                {
+                    throw new IllegalStateException("unavailable");
+                }),
+                new DataSourceWarmer.Probe("NonceTokenIssuer", _nonceIssuerCalls::incrementAndGet));
+
+        warmer.probeIfIdle();
+
+        assertEquals(1, _nonceIssuerCalls.get());
+        assertEquals(Map.of("AccountManager", 1L, "NonceTokenIssuer", 0L), warmer.getFailureCounts());
+        assertEquals(-1L, warmer.getLastLatencyMillis().get("AccountManager"));
+    }
+
+    @Test
+    void skipsARoundWhileTheExecutorIsBusy()
+    {
+        var executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        var warmer = new DataSourceWarmer(
+                List.of(new DataSourceWarmer.Probe("AccountManager", _accountManagerCalls::incrementAndGet)),
+                INTERVAL, executor);
+
+        warmer.probeIfIdle();
+
+        assertEquals(1, warmer.getSkippedForBacklogCount());
+        assertEquals(0, _accountManagerCalls.get());
+    }
+
+    private static DataSourceWarmer warmerOf(DataSourceWarmer.Probe... probes)
+    {
+        return new DataSourceWarmer(List.of(probes), INTERVAL, MoreExecutors.newDirectExecutorService());
+    }
+}